@@ -0,0 +1,68 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.data;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * One received transmission: a squelch-open stretch on a single channel.
+ */
+@Entity(
+    tableName = "rx_transmissions",
+    indices = {
+        @Index(value = {"start_time"}),
+        @Index(value = {"frequency", "start_time"}),
+        @Index(value = {"memory_id", "start_time"})
+    }
+)
+public class RxTransmission {
+    public static final int NO_MEMORY = -1;
+    public static final long NO_AUDIO = -1;
+
+    @PrimaryKey(autoGenerate = true)
+    public int id;
+
+    @ColumnInfo(name = "start_time")
+    public long startTime; // Milliseconds since epoch in UTC
+
+    @ColumnInfo(name = "end_time")
+    public long endTime; // Milliseconds since epoch in UTC
+
+    @ColumnInfo(name = "frequency")
+    public String frequency; // in format "xxx.xxxx"
+
+    @ColumnInfo(name = "memory_id")
+    public int memoryId; // Memory tuned to at the time, or NO_MEMORY for a VFO frequency
+
+    @ColumnInfo(name = "peak_rssi")
+    public int peakRssi; // Raw RSSI as reported by the radio module (0-255)
+
+    @ColumnInfo(name = "recording")
+    public String recording; // Path of the RX recording holding the audio, or null
+
+    @ColumnInfo(name = "audio_offset")
+    public long audioOffset; // Byte offset of the first audio block in the recording, or NO_AUDIO
+
+    public long getDurationMillis() {
+        return endTime - startTime;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.data;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface RxTransmissionDao {
+    @Query("SELECT * FROM rx_transmissions ORDER BY start_time DESC LIMIT :limit")
+    List<RxTransmission> getRecent(int limit);
+
+    @Query("SELECT * FROM rx_transmissions WHERE `frequency` = :frequency ORDER BY start_time DESC LIMIT :limit")
+    List<RxTransmission> getRecentOnFrequency(String frequency, int limit);
+
+    @Query("SELECT * FROM rx_transmissions WHERE `memory_id` = :memoryId ORDER BY start_time DESC LIMIT :limit")
+    List<RxTransmission> getRecentOnMemory(int memoryId, int limit);
+
+    @Query("SELECT * FROM rx_transmissions WHERE start_time >= :fromTime AND start_time < :toTime ORDER BY start_time")
+    List<RxTransmission> getBetween(long fromTime, long toTime);
+
+    @Insert
+    void insertAll(RxTransmission... rxTransmissions);
+
+    /** Deletes all but the newest {@code keep} transmissions. */
+    @Query("DELETE FROM rx_transmissions WHERE start_time < " +
+           "(SELECT start_time FROM rx_transmissions ORDER BY start_time DESC LIMIT 1 OFFSET :keep)")
+    void trimTo(int keep);
+}
@@ -0,0 +1,18 @@
+package com.vagell.kv4pht.data.migrations;
+
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+public class MigrationFrom7To8 extends Migration {
+    public MigrationFrom7To8() {
+        super(7, 8);
+    }
+
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+        database.execSQL("CREATE TABLE IF NOT EXISTS `rx_transmissions` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `start_time` INTEGER NOT NULL, `end_time` INTEGER NOT NULL, `frequency` TEXT, `memory_id` INTEGER NOT NULL, `peak_rssi` INTEGER NOT NULL, `recording` TEXT, `audio_offset` INTEGER NOT NULL)");
+        database.execSQL("CREATE INDEX IF NOT EXISTS `index_rx_transmissions_start_time` ON `rx_transmissions` (`start_time`)");
+        database.execSQL("CREATE INDEX IF NOT EXISTS `index_rx_transmissions_frequency_start_time` ON `rx_transmissions` (`frequency`, `start_time`)");
+        database.execSQL("CREATE INDEX IF NOT EXISTS `index_rx_transmissions_memory_id_start_time` ON `rx_transmissions` (`memory_id`, `start_time`)");
+    }
+}
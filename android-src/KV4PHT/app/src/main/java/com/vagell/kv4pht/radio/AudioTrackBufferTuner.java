@@ -0,0 +1,185 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Value;
+
+/**
+ * Sizes the RX {@code AudioTrack} buffer from its own underrun count.
+ * <p>
+ * The audio thread reports every frame it writes; a few times a second the tuner reads
+ * {@code getUnderrunCount()} and grows the buffer by one output burst if it went up. After a
+ * stretch of playback without underruns it gives one burst back, and the stretch required
+ * doubles whenever an underrun follows such a shrink, so a device settles just above the size
+ * it needs instead of oscillating. Underruns while the stream is idle (squelch closed, link
+ * quiet) are expected and ignored: the pipeline calls {@link #onIdle} and the count is
+ * re-baselined when writing resumes.
+ * <p>
+ * Resizes are kept in a short history for diagnostics.
+ */
+public final class AudioTrackBufferTuner {
+    private static final String TAG = AudioTrackBufferTuner.class.getSimpleName();
+
+    static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    static final long INITIAL_SHRINK_HOLD_NANOS = TimeUnit.SECONDS.toNanos(15);
+    static final long MAX_SHRINK_HOLD_NANOS = TimeUnit.MINUTES.toNanos(5);
+    static final int HISTORY_SIZE = 32;
+
+    /** The parts of {@code AudioTrack} the tuner uses. */
+    public interface Track {
+        int getUnderrunCount();
+
+        int getBufferSizeInFrames();
+
+        /** @return the size actually applied, or a negative error code. */
+        int setBufferSizeInFrames(int frames);
+
+        int getBufferCapacityInFrames();
+    }
+
+    /** One buffer resize; {@code underruns} is how many triggered it (0 for a shrink). */
+    @Value
+    public static class Adjustment {
+        long timeNanos;
+        int underruns;
+        int fromFrames;
+        int toFrames;
+    }
+
+    private final Track track;
+    private final int sampleRate;
+    private final int burstFrames;
+    private final int minFrames;
+    private final int maxFrames;
+    private final Adjustment[] history = new Adjustment[HISTORY_SIZE];
+    private int historyCount;
+    private int bufferFrames;
+    private boolean baselineNeeded = true;
+    private int lastUnderrunCount;
+    private long lastPollNanos;
+    private long quietNanos;
+    private long shrinkHoldNanos = INITIAL_SHRINK_HOLD_NANOS;
+    private boolean shrunkSinceUnderrun;
+    private long underruns;
+
+    /**
+     * @param minFrames smallest buffer to shrink to; the current track size and capacity bound
+     *                  it from above.
+     */
+    public AudioTrackBufferTuner(Track track, int sampleRate, int burstFrames, int minFrames) {
+        if (sampleRate <= 0 || burstFrames <= 0) {
+            throw new IllegalArgumentException("Sample rate and burst size must be positive");
+        }
+        this.track = track;
+        this.sampleRate = sampleRate;
+        this.burstFrames = burstFrames;
+        this.maxFrames = track.getBufferCapacityInFrames();
+        this.bufferFrames = track.getBufferSizeInFrames();
+        this.minFrames = Math.min(Math.max(minFrames, burstFrames), bufferFrames);
+    }
+
+    /** Called by the audio thread after each write. */
+    public synchronized void onFrameWritten(long nowNanos) {
+        if (baselineNeeded) {
+            lastUnderrunCount = track.getUnderrunCount();
+            lastPollNanos = nowNanos;
+            baselineNeeded = false;
+            return;
+        }
+        if (nowNanos - lastPollNanos < POLL_INTERVAL_NANOS) {
+            return;
+        }
+        quietNanos += nowNanos - lastPollNanos;
+        lastPollNanos = nowNanos;
+        int count = track.getUnderrunCount();
+        int fresh = count - lastUnderrunCount;
+        lastUnderrunCount = count;
+        if (fresh > 0) {
+            underruns += fresh;
+            quietNanos = 0;
+            if (shrunkSinceUnderrun) {
+                // The last shrink went too far; wait longer before trying again.
+                shrinkHoldNanos = Math.min(shrinkHoldNanos * 2, MAX_SHRINK_HOLD_NANOS);
+                shrunkSinceUnderrun = false;
+            }
+            resize(bufferFrames + burstFrames, fresh, nowNanos);
+        } else if (quietNanos >= shrinkHoldNanos && bufferFrames > minFrames) {
+            quietNanos = 0;
+            shrunkSinceUnderrun = true;
+            resize(bufferFrames - burstFrames, 0, nowNanos);
+        }
+    }
+
+    /** Called by the audio thread when it stops writing because the stream ended. */
+    public synchronized void onIdle() {
+        baselineNeeded = true;
+    }
+
+    private void resize(int target, int cause, long nowNanos) {
+        int frames = Math.max(minFrames, Math.min(maxFrames, target));
+        if (frames == bufferFrames) {
+            return;
+        }
+        int applied = track.setBufferSizeInFrames(frames);
+        if (applied < 0) {
+            Log.w(TAG, "setBufferSizeInFrames(" + frames + ") failed: " + applied);
+            return;
+        }
+        history[historyCount++ % HISTORY_SIZE] = new Adjustment(nowNanos, cause, bufferFrames, applied);
+        Log.i(TAG, "RX audio buffer " + bufferFrames + " -> " + applied + " frames"
+            + (cause > 0 ? " after " + cause + " underrun(s)" : ""));
+        bufferFrames = applied;
+    }
+
+    public synchronized int getBufferSizeFrames() {
+        return bufferFrames;
+    }
+
+    /** Latency the track buffer adds when full. */
+    public synchronized long getBufferLatencyNanos() {
+        return bufferFrames * TimeUnit.SECONDS.toNanos(1) / sampleRate;
+    }
+
+    /** Underruns counted during playback, i.e. excluding idle periods. */
+    public synchronized long getUnderruns() {
+        return underruns;
+    }
+
+    /** The most recent resizes, oldest first. */
+    public synchronized List<Adjustment> getHistory() {
+        List<Adjustment> adjustments = new ArrayList<>(Math.min(historyCount, HISTORY_SIZE));
+        for (int i = Math.max(0, historyCount - HISTORY_SIZE); i < historyCount; i++) {
+            adjustments.add(history[i % HISTORY_SIZE]);
+        }
+        return adjustments;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "buffer=%d frames (%.1fms, min=%d max=%d) underruns=%d resizes=%d",
+            bufferFrames, getBufferLatencyNanos() / 1e6, minFrames, maxFrames, underruns, historyCount);
+    }
+}
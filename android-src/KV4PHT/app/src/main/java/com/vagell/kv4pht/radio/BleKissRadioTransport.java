@@ -141,11 +141,11 @@ final class BleKissRadioTransport implements RadioTransport {
     }
 
     @Override
-    public void writeAsync(byte[] bytes) {
-        if (bytes == null || bytes.length == 0) {
+    public void writeAsync(byte[] bytes, int offset, int len) {
+        if (bytes == null || len <= 0) {
             return;
         }
-        byte[] copy = Arrays.copyOf(bytes, bytes.length);
+        byte[] copy = Arrays.copyOfRange(bytes, offset, offset + len);
         handler.post(() -> enqueueWrite(copy));
     }
 
@@ -0,0 +1,261 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional stage between {@link Protocol.Sender} and a transport that packs consecutive
+ * encoded KISS frames into a single transport write.
+ * <p>
+ * On USB CDC/CH34x adapters and BLE the cost of a transfer barely depends on its size, so
+ * sending each 132-byte audio frame on its own wastes most of the link. Frames are appended
+ * to a preallocated batch that is flushed when the next frame would exceed the byte budget,
+ * or when the oldest frame in the batch has been held for {@code maxHoldNanos}.
+ * <p>
+ * The transport write happens outside the lock, on a batch swapped out for a second buffer, so a
+ * write blocked on the link does not hold up producers: they keep filling the other batch, and
+ * only wait once that is full too. One write is in progress at a time, which keeps frames in
+ * order; a batch that becomes due meanwhile is written by the same thread right after.
+ */
+public final class CoalescingFrameWriter implements Protocol.AsyncFrameWriter, AutoCloseable {
+    public static final int DEFAULT_MAX_BATCH_BYTES = 512;
+    public static final long DEFAULT_MAX_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    // Histogram bucket i counts writes that carried i frames; the last bucket collects the rest.
+    static final int FRAMES_PER_WRITE_BUCKETS = 17;
+
+    /** Notified after every transport write with the number of frames it carried. */
+    @FunctionalInterface
+    public interface BatchListener {
+        void onBatchWritten(int frames, int bytes);
+    }
+
+    private final Protocol.AsyncFrameWriter downstream;
+    private final BatchListener listener;
+    private final long maxHoldNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a batch starts, a write completes, or the writer closes.
+    private final Condition stateChanged = lock.newCondition();
+    private final Thread flusher;
+    private final long[] writesByFrameCount = new long[FRAMES_PER_WRITE_BUCKETS];
+    // The batch being filled, and the one being written (or free to swap in when not writing).
+    private byte[] batch;
+    private byte[] spare;
+    private boolean writing = false;
+    // The current batch is due but a write was in progress; the writing thread takes it next.
+    private boolean flushRequested = false;
+    private int batchLen = 0;
+    private int batchFrames = 0;
+    private long batchStartNanos = 0;
+    private long writes = 0;
+    private long frames = 0;
+    private boolean closed = false;
+
+    public CoalescingFrameWriter(Protocol.AsyncFrameWriter downstream) {
+        this(downstream, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_HOLD_NANOS, null);
+    }
+
+    public CoalescingFrameWriter(Protocol.AsyncFrameWriter downstream, int maxBatchBytes, long maxHoldNanos,
+                                 BatchListener listener) {
+        if (maxBatchBytes <= 0 || maxHoldNanos < 0) {
+            throw new IllegalArgumentException("maxBatchBytes must be positive and maxHoldNanos non-negative");
+        }
+        this.downstream = downstream;
+        this.listener = listener != null ? listener : (batchFrames, bytes) -> { };
+        this.maxHoldNanos = maxHoldNanos;
+        this.batch = new byte[maxBatchBytes];
+        this.spare = new byte[maxBatchBytes];
+        this.flusher = new Thread(this::runFlusher, CoalescingFrameWriter.class.getSimpleName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public void writeAsync(byte[] bytes, int offset, int len) {
+        if (len <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed || len > batch.length) {
+                // Too large to batch (or shutting down): keep ordering and pass it straight through.
+                awaitWriteLocked();
+                writeOutLocked(bytes, offset, len);
+                return;
+            }
+            while (batchLen + len > batch.length) {
+                flushLocked();
+            }
+            if (batchLen == 0) {
+                batchStartNanos = System.nanoTime();
+                stateChanged.signalAll();
+            }
+            System.arraycopy(bytes, offset, batch, batchLen, len);
+            batchLen += len;
+            batchFrames++;
+            if (batchLen == batch.length || maxHoldNanos == 0) {
+                if (writing) {
+                    flushRequested = true;
+                } else {
+                    writeOutLocked(null, 0, 0);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes any held frames immediately. */
+    public void flush() {
+        lock.lock();
+        try {
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            flushLocked();
+            closed = true;
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWrites() {
+        lock.lock();
+        try {
+            return writes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFrames() {
+        lock.lock();
+        try {
+            return frames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the frames-per-write histogram: element {@code i} is the number of
+     * transport writes that carried {@code i} frames, with the last element counting every
+     * write of {@code FRAMES_PER_WRITE_BUCKETS - 1} frames or more.
+     */
+    public long[] getFramesPerWriteHistogram() {
+        lock.lock();
+        try {
+            return writesByFrameCount.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runFlusher() {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (batchLen == 0 || writing) {
+                    stateChanged.awaitUninterruptibly();
+                    continue;
+                }
+                long remaining = batchStartNanos + maxHoldNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    writeOutLocked(null, 0, 0);
+                } else {
+                    stateChanged.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits for any write in progress, then writes the held frames. */
+    private void flushLocked() {
+        awaitWriteLocked();
+        if (batchLen > 0) {
+            writeOutLocked(null, 0, 0);
+        }
+    }
+
+    private void awaitWriteLocked() {
+        while (writing) {
+            stateChanged.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Swaps out the current batch and writes it, followed by {@code frame} if not null, with the
+     * lock released; then does the same for a batch that became due meanwhile. Called with the
+     * lock held and no write in progress, and returns with the lock held.
+     */
+    private void writeOutLocked(byte[] frame, int offset, int frameLen) {
+        do {
+            byte[] out = batch;
+            int len = batchLen;
+            int count = batchFrames;
+            batch = spare;
+            batchLen = 0;
+            batchFrames = 0;
+            flushRequested = false;
+            writing = true;
+            lock.unlock();
+            try {
+                if (len > 0) {
+                    downstream.writeAsync(out, 0, len);
+                }
+                if (frame != null) {
+                    downstream.writeAsync(frame, offset, frameLen);
+                }
+            } finally {
+                lock.lock();
+                spare = out;
+                writing = false;
+                stateChanged.signalAll();
+            }
+            if (len > 0) {
+                recordWrite(count, len);
+            }
+            if (frame != null) {
+                recordWrite(1, frameLen);
+                frame = null;
+            }
+        } while (flushRequested && batchLen > 0);
+    }
+
+    private void recordWrite(int count, int len) {
+        writes++;
+        frames += count;
+        writesByFrameCount[Math.min(count, FRAMES_PER_WRITE_BUCKETS - 1)]++;
+        listener.onBatchWritten(count, len);
+    }
+}
@@ -0,0 +1,372 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.util.Arrays;
+
+/**
+ * DTMF signalling on 16 kHz audio, e.g. to control repeaters or IRLP/AllStar link nodes: a
+ * {@link Generator} for TX and a {@link Decoder} for RX. Both work on frames in place and
+ * allocate nothing once constructed.
+ */
+public final class Dtmf {
+    public static final int SAMPLE_RATE = RxJitterBuffer.SAMPLE_RATE;
+    static final String KEYS = "123A456B789C*0#D";
+    static final double[] ROW_HZ = {697, 770, 852, 941};
+    static final double[] COLUMN_HZ = {1209, 1336, 1477, 1633};
+
+    private Dtmf() {
+    }
+
+    public static boolean isValidDigit(char digit) {
+        return KEYS.indexOf(Character.toUpperCase(digit)) >= 0;
+    }
+
+    /**
+     * Plays queued digits as tones of exactly {@code toneMillis} each followed by exactly
+     * {@code gapMillis} of silence. The two oscillators run continuously, so a tone that spans
+     * frames has no phase steps, and each tone gets a short raised-cosine edge to keep it free
+     * of key clicks. The high group is {@link #HIGH_GROUP_PRE_EMPHASIS_DB} louder, a small forward
+     * twist that survives FM de-emphasis better than equal levels. A sequence can start with a
+     * lead-in of silence, giving the transmitter and the far receiver time to key up before the
+     * first tone. Digits are queued from any thread and {@link #generate} runs on the TX audio
+     * thread.
+     */
+    public static final class Generator {
+        public static final int DEFAULT_TONE_MILLIS = 100;
+        public static final int DEFAULT_GAP_MILLIS = 100;
+        public static final int MAX_QUEUED_DIGITS = 64;
+        static final double HIGH_GROUP_PRE_EMPHASIS_DB = 2;
+        // Peak of the two tones together, as a fraction of full scale.
+        static final double PEAK_LEVEL = 0.7;
+        static final int RAMP_SAMPLES = SAMPLE_RATE * 2 / 1000;
+
+        private final int toneSamples;
+        private final int gapSamples;
+        private final Runnable onIdle;
+        private final float lowAmplitude;
+        private final float highAmplitude;
+        private final char[] queue = new char[MAX_QUEUED_DIGITS];
+        private int queueHead;
+        private int queued;
+        // Silence still to play before the first queued digit.
+        private int leadInSamples;
+        // Position within the current digit's tone and gap, or -1 when idle.
+        private int position = -1;
+        private double lowStep;
+        private double highStep;
+        private double lowPhase;
+        private double highPhase;
+
+        public Generator() {
+            this(DEFAULT_TONE_MILLIS, DEFAULT_GAP_MILLIS, () -> { });
+        }
+
+        /** @param onIdle called on the generating thread when the last queued digit has finished. */
+        public Generator(int toneMillis, int gapMillis, Runnable onIdle) {
+            if (toneMillis <= 0 || gapMillis < 0) {
+                throw new IllegalArgumentException("toneMillis must be positive and gapMillis not negative");
+            }
+            this.toneSamples = toneMillis * SAMPLE_RATE / 1000;
+            this.gapSamples = gapMillis * SAMPLE_RATE / 1000;
+            this.onIdle = onIdle;
+            double high = Math.pow(10, HIGH_GROUP_PRE_EMPHASIS_DB / 20);
+            this.lowAmplitude = (float) (PEAK_LEVEL * Short.MAX_VALUE / (1 + high));
+            this.highAmplitude = (float) (lowAmplitude * high);
+        }
+
+        /**
+         * Queues {@code digits} (0-9, A-D, * and #) after anything still playing.
+         *
+         * @return false, queueing nothing, if a digit is invalid or the queue would overflow.
+         */
+        public synchronized boolean queue(CharSequence digits) {
+            return queue(digits, 0);
+        }
+
+        /**
+         * Like {@link #queue(CharSequence)}, but when nothing is playing the digits start after
+         * {@code leadInMillis} of silence, e.g. while the radio keys up.
+         */
+        public synchronized boolean queue(CharSequence digits, int leadInMillis) {
+            if (leadInMillis < 0) {
+                throw new IllegalArgumentException("leadInMillis must not be negative");
+            }
+            if (queued + digits.length() > MAX_QUEUED_DIGITS) {
+                return false;
+            }
+            for (int i = 0; i < digits.length(); i++) {
+                if (!isValidDigit(digits.charAt(i))) {
+                    return false;
+                }
+            }
+            if (digits.length() > 0 && !isActive()) {
+                leadInSamples = leadInMillis * SAMPLE_RATE / 1000;
+            }
+            for (int i = 0; i < digits.length(); i++) {
+                queue[(queueHead + queued++) % MAX_QUEUED_DIGITS] = Character.toUpperCase(digits.charAt(i));
+            }
+            return true;
+        }
+
+        /** Drops queued digits and stops the current one at once. */
+        public synchronized void cancel() {
+            queued = 0;
+            position = -1;
+            leadInSamples = 0;
+        }
+
+        public synchronized boolean isActive() {
+            return position >= 0 || queued > 0 || leadInSamples > 0;
+        }
+
+        /** How long the queued digits, including the one playing, still take. */
+        public synchronized long getRemainingMillis() {
+            long samples = leadInSamples + (long) queued * (toneSamples + gapSamples);
+            if (position >= 0) {
+                samples += toneSamples + gapSamples - position;
+            }
+            return samples * 1000 / SAMPLE_RATE;
+        }
+
+        /**
+         * Writes the next {@code len} samples into {@code pcm}, replacing what was there, with
+         * silence after the last digit ends.
+         *
+         * @return false, leaving {@code pcm} untouched, if there was nothing to play.
+         */
+        public synchronized boolean generate(short[] pcm, int offset, int len) {
+            if (position < 0 && leadInSamples == 0 && !nextDigit()) {
+                return false;
+            }
+            int end = offset + len;
+            for (int i = offset; i < end; i++) {
+                if (leadInSamples > 0) {
+                    pcm[i] = 0;
+                    if (--leadInSamples == 0 && !nextDigit()) {
+                        onIdle.run();
+                    }
+                    continue;
+                }
+                if (position < 0) {
+                    pcm[i] = 0;
+                    continue;
+                }
+                if (position < toneSamples) {
+                    pcm[i] = (short) Math.round(envelope(position)
+                        * (lowAmplitude * Math.sin(lowPhase) + highAmplitude * Math.sin(highPhase)));
+                } else {
+                    pcm[i] = 0;
+                }
+                lowPhase += lowStep;
+                highPhase += highStep;
+                if (lowPhase >= 2 * Math.PI) {
+                    lowPhase -= 2 * Math.PI;
+                }
+                if (highPhase >= 2 * Math.PI) {
+                    highPhase -= 2 * Math.PI;
+                }
+                if (++position == toneSamples + gapSamples && !nextDigit()) {
+                    onIdle.run();
+                }
+            }
+            return true;
+        }
+
+        private boolean nextDigit() {
+            if (queued == 0) {
+                position = -1;
+                return false;
+            }
+            int key = KEYS.indexOf(queue[queueHead]);
+            queueHead = (queueHead + 1) % MAX_QUEUED_DIGITS;
+            queued--;
+            lowStep = 2 * Math.PI * ROW_HZ[key / 4] / SAMPLE_RATE;
+            highStep = 2 * Math.PI * COLUMN_HZ[key % 4] / SAMPLE_RATE;
+            position = 0;
+            return true;
+        }
+
+        private double envelope(int n) {
+            int fromEdge = Math.min(n, toneSamples - 1 - n);
+            return fromEdge >= RAMP_SAMPLES ? 1 : 0.5 - 0.5 * Math.cos(Math.PI * fromEdge / RAMP_SAMPLES);
+        }
+    }
+
+    /**
+     * Finds DTMF digits in received audio. Eight Goertzel filters run over blocks of
+     * {@link #BLOCK_SAMPLES} (25.6 ms, 39 Hz resolution, the classic 205 points at 8 kHz). A block
+     * holds a digit when the strongest row and column tones:
+     * <ul>
+     * <li>carry most of the block's energy, which rejects voice and noise,</li>
+     * <li>each stand {@link #MIN_PEAK_RATIO_DB} above the rest of their group,</li>
+     * <li>are within {@link #MAX_FORWARD_TWIST_DB} (high group louder) or
+     * {@link #MAX_REVERSE_TWIST_DB} (low group louder) of each other.</li>
+     * </ul>
+     * A digit is reported once it holds for {@link #CONFIRM_BLOCKS} blocks in a row, and another
+     * (or the same) digit only after {@link #CONFIRM_BLOCKS} blocks without it, so tones and gaps
+     * need to last about 50 ms, and a noisy block in the middle of a tone does not repeat it.
+     */
+    public static final class Decoder {
+        static final int BLOCK_SAMPLES = 410;
+        static final float MIN_ENERGY_FRACTION = 0.5f;
+        static final float MIN_PEAK_RATIO_DB = 6;
+        static final float MAX_FORWARD_TWIST_DB = 8;
+        static final float MAX_REVERSE_TWIST_DB = 4;
+        static final int CONFIRM_BLOCKS = 2;
+        // Ignore blocks quieter than this RMS, in 16-bit units.
+        static final float MIN_LEVEL = 100;
+
+        /** Called on the processing thread once per received digit. */
+        @FunctionalInterface
+        public interface Listener {
+            void onDigit(char digit);
+        }
+
+        private static final float MIN_PEAK_RATIO = dbToPower(MIN_PEAK_RATIO_DB);
+        private static final float MAX_FORWARD_TWIST = dbToPower(MAX_FORWARD_TWIST_DB);
+        private static final float MAX_REVERSE_TWIST = dbToPower(MAX_REVERSE_TWIST_DB);
+
+        private final Listener listener;
+        private final float[] coeff = new float[8];
+        private final float[] s1 = new float[8];
+        private final float[] s2 = new float[8];
+        private final float[] power = new float[8];
+        private float blockEnergy;
+        private int blockSamples;
+        // Digit seen in the last block and for how many blocks in a row; -1 for none.
+        private int candidate = -1;
+        private int candidateBlocks;
+        // Digit last reported, until it has been absent for CONFIRM_BLOCKS; -1 for none.
+        private int reported = -1;
+        private int absentBlocks;
+        private long digits;
+
+        public Decoder(Listener listener) {
+            this.listener = listener;
+            for (int i = 0; i < 4; i++) {
+                coeff[i] = (float) (2 * Math.cos(2 * Math.PI * ROW_HZ[i] / SAMPLE_RATE));
+                coeff[i + 4] = (float) (2 * Math.cos(2 * Math.PI * COLUMN_HZ[i] / SAMPLE_RATE));
+            }
+        }
+
+        /** Feeds decoded 16 kHz PCM. */
+        public void process(short[] pcm, int offset, int len) {
+            for (int i = offset; i < offset + len; i++) {
+                float x = pcm[i];
+                for (int f = 0; f < 8; f++) {
+                    float s0 = x + coeff[f] * s1[f] - s2[f];
+                    s2[f] = s1[f];
+                    s1[f] = s0;
+                }
+                blockEnergy += x * x;
+                if (++blockSamples == BLOCK_SAMPLES) {
+                    onBlock(detect());
+                    Arrays.fill(s1, 0);
+                    Arrays.fill(s2, 0);
+                    blockEnergy = 0;
+                    blockSamples = 0;
+                }
+            }
+        }
+
+        /** Digits reported so far. */
+        public long getDigits() {
+            return digits;
+        }
+
+        public void reset() {
+            Arrays.fill(s1, 0);
+            Arrays.fill(s2, 0);
+            blockEnergy = 0;
+            blockSamples = 0;
+            candidate = -1;
+            candidateBlocks = 0;
+            reported = -1;
+            absentBlocks = 0;
+        }
+
+        /** The key index heard in the block just finished, or -1. */
+        private int detect() {
+            if (blockEnergy < MIN_LEVEL * MIN_LEVEL * BLOCK_SAMPLES) {
+                return -1;
+            }
+            for (int f = 0; f < 8; f++) {
+                power[f] = s1[f] * s1[f] + s2[f] * s2[f] - coeff[f] * s1[f] * s2[f];
+            }
+            int row = strongest(0);
+            int column = strongest(4);
+            if (row < 0 || column < 0) {
+                return -1;
+            }
+            float low = power[row];
+            float high = power[column + 4];
+            // A pure tone of amplitude A puts (A N / 2)^2 in its filter and A^2 N / 2 in the block.
+            if (2 * (low + high) < MIN_ENERGY_FRACTION * BLOCK_SAMPLES * blockEnergy) {
+                return -1;
+            }
+            if (high > low * MAX_FORWARD_TWIST || low > high * MAX_REVERSE_TWIST) {
+                return -1;
+            }
+            return row * 4 + column;
+        }
+
+        /** The strongest of the four filters from {@code first} if it clearly beats the others, or -1. */
+        private int strongest(int first) {
+            int best = first;
+            for (int f = first + 1; f < first + 4; f++) {
+                if (power[f] > power[best]) {
+                    best = f;
+                }
+            }
+            for (int f = first; f < first + 4; f++) {
+                if (f != best && power[f] * MIN_PEAK_RATIO > power[best]) {
+                    return -1;
+                }
+            }
+            return best - first;
+        }
+
+        private void onBlock(int key) {
+            if (key >= 0 && key == candidate) {
+                candidateBlocks++;
+            } else {
+                candidate = key;
+                candidateBlocks = 1;
+            }
+            if (reported >= 0) {
+                absentBlocks = key == reported ? 0 : absentBlocks + 1;
+                if (absentBlocks < CONFIRM_BLOCKS) {
+                    return;
+                }
+                reported = -1;
+            }
+            if (candidate >= 0 && candidateBlocks >= CONFIRM_BLOCKS) {
+                reported = candidate;
+                absentBlocks = 0;
+                digits++;
+                listener.onDigit(KEYS.charAt(candidate));
+            }
+        }
+
+        private static float dbToPower(float db) {
+            return (float) Math.pow(10, db / 10);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Byte credits granted by the ESP32 through {@code COMMAND_WINDOW_UPDATE}.
+ * <p>
+ * Senders take credits with a compare-and-set; only a sender that finds the window too small
+ * parks, and every grant unparks the parked senders so they can retry. A wait can be bounded,
+ * so a lost window update can no longer block the audio thread forever, and the time spent
+ * waiting is counted so throttling by the firmware window is visible in the field.
+ * <p>
+ * Each acquire carries a priority ({@code 0} is highest). While a sender is parked at some
+ * priority, senders at lower priorities cannot take credits, so the next window update always
+ * goes to the most urgent frame.
+ */
+public final class FlowControlCredits {
+
+    /** What to do with a frame whose credits did not arrive within the timeout. */
+    public enum TimeoutPolicy {
+        /** Silently drop the frame; {@link #acquire} returns {@code false}. */
+        DROP,
+        /** Throw {@link StalledException} so the caller can reset the link. */
+        FAIL
+    }
+
+    public static final class StalledException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        StalledException(int size, int available, long waitedNanos) {
+            super("Flow control stalled for " + waitedNanos / 1_000_000 + " ms waiting for "
+                + size + " bytes of credit (" + available + " available)");
+        }
+    }
+
+    public static final int PRIORITY_LEVELS = 4;
+
+    private final AtomicInteger credits;
+    private final AtomicIntegerArray waitersAtPriority = new AtomicIntegerArray(PRIORITY_LEVELS);
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+    private final LongAdder stalledNanos = new LongAdder();
+    private final LongAdder stalledFrames = new LongAdder();
+    private final LongAdder timedOutFrames = new LongAdder();
+    private volatile long timeoutNanos;
+    private volatile TimeoutPolicy timeoutPolicy;
+
+    public FlowControlCredits(int initialCredits, long timeoutNanos, TimeoutPolicy timeoutPolicy) {
+        this.credits = new AtomicInteger(initialCredits);
+        setTimeout(timeoutNanos, timeoutPolicy);
+    }
+
+    /**
+     * Sets how long {@link #acquire} may wait; {@code timeoutNanos <= 0} waits indefinitely.
+     */
+    public void setTimeout(long timeoutNanos, TimeoutPolicy timeoutPolicy) {
+        this.timeoutNanos = timeoutNanos;
+        this.timeoutPolicy = timeoutPolicy;
+    }
+
+    /**
+     * Takes {@code size} credits at the highest priority with the configured timeout and policy.
+     */
+    public boolean acquire(int size) {
+        return acquire(size, 0);
+    }
+
+    /** Takes {@code size} credits at {@code priority} with the configured timeout and policy. */
+    public boolean acquire(int size, int priority) {
+        return acquire(size, priority, timeoutNanos, timeoutPolicy);
+    }
+
+    /**
+     * Takes {@code size} credits, parking until enough are granted or the timeout expires.
+     *
+     * @param priority     {@code 0} (highest) to {@code PRIORITY_LEVELS - 1}.
+     * @param timeoutNanos how long to wait; {@code <= 0} waits indefinitely.
+     * @return {@code true} if the credits were taken, {@code false} if the frame should be
+     * dropped because of a timeout (with {@link TimeoutPolicy#DROP}) or an interrupt.
+     * @throws StalledException on timeout with {@link TimeoutPolicy#FAIL}.
+     */
+    public boolean acquire(int size, int priority, long timeoutNanos, TimeoutPolicy policy) {
+        if (tryAcquire(size, priority)) {
+            return true;
+        }
+        Thread current = Thread.currentThread();
+        long start = System.nanoTime();
+        stalledFrames.increment();
+        waitersAtPriority.incrementAndGet(priority);
+        waiters.add(current);
+        try {
+            // Registered before re-checking, so a grant racing with us always unparks this thread.
+            while (!tryAcquire(size, priority)) {
+                if (current.isInterrupted()) {
+                    return false;
+                }
+                if (timeoutNanos <= 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long remaining = start + timeoutNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    timedOutFrames.increment();
+                    if (policy == TimeoutPolicy.FAIL) {
+                        throw new StalledException(size, credits.get(), System.nanoTime() - start);
+                    }
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        } finally {
+            waiters.remove(current);
+            if (waitersAtPriority.decrementAndGet(priority) == 0) {
+                // Lower-priority senders may have been held back only by us.
+                wakeWaiters();
+            }
+            stalledNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /** Takes {@code size} credits only if they are available right now. */
+    public boolean tryAcquire(int size) {
+        return tryAcquire(size, 0);
+    }
+
+    /**
+     * Takes {@code size} credits only if they are available right now and no sender of a
+     * higher priority is waiting for them.
+     */
+    public boolean tryAcquire(int size, int priority) {
+        for (int higher = 0; higher < priority; higher++) {
+            if (waitersAtPriority.get(higher) > 0) {
+                return false;
+            }
+        }
+        for (;;) {
+            int available = credits.get();
+            if (available < size) {
+                return false;
+            }
+            if (credits.compareAndSet(available, available - size)) {
+                return true;
+            }
+        }
+    }
+
+    /** Adds credits returned by a window update and wakes parked senders. */
+    public void grant(int size) {
+        credits.addAndGet(size);
+        wakeWaiters();
+    }
+
+    /** Replaces the window, e.g. with the size advertised in the firmware Hello. */
+    public void reset(int size) {
+        credits.set(size);
+        wakeWaiters();
+    }
+
+    /**
+     * Grows ({@code delta > 0}) or shrinks the window without waiting. A shrink may leave the
+     * balance negative, meaning more is in flight than the new window allows; senders then wait
+     * until enough window updates have come back.
+     */
+    public void adjust(int delta) {
+        credits.addAndGet(delta);
+        if (delta > 0) {
+            wakeWaiters();
+        }
+    }
+
+    public int getAvailable() {
+        return credits.get();
+    }
+
+    /** Total time senders spent parked waiting for credits. */
+    public long getStalledNanos() {
+        return stalledNanos.sum();
+    }
+
+    /** Number of frames that had to wait for credits at all. */
+    public long getStalledFrames() {
+        return stalledFrames.sum();
+    }
+
+    /** Number of frames whose wait ended in a timeout (dropped or failed). */
+    public long getTimedOutFrames() {
+        return timedOutFrames.sum();
+    }
+
+    private void wakeWaiters() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        for (Thread waiter : waiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
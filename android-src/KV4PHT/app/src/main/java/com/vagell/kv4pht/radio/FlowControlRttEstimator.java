@@ -0,0 +1,159 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the link between the host and the ESP32 from the flow-control exchange.
+ * <p>
+ * The firmware returns a {@code COMMAND_WINDOW_UPDATE} with the encoded length of every frame
+ * once it has processed it, so matching cumulative acked bytes against cumulative sent bytes
+ * yields a round-trip time per frame. RTT is smoothed as in RFC 6298, and the rate at which
+ * credits come back gives the delivery rate; their product is the bandwidth-delay product,
+ * i.e. how many bytes need to be in flight to keep the firmware fed.
+ */
+public final class FlowControlRttEstimator {
+    // Frames sent but not yet acked; more than this in flight only loses RTT samples.
+    static final int MAX_TRACKED_FRAMES = 256;
+    // Acks further apart than this start a new busy period instead of a (tiny) rate sample.
+    static final long IDLE_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    static final long MIN_RTT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final long[] sentEnds = new long[MAX_TRACKED_FRAMES];
+    private final long[] sentTimes = new long[MAX_TRACKED_FRAMES];
+    private int head = 0;
+    private int tracked = 0;
+    private long sentBytes = 0;
+    private long ackedBytes = 0;
+
+    private long samples = 0;
+    private long smoothedRttNanos = 0;
+    private long rttVarNanos = 0;
+    private long minRttNanos = 0;
+    private long minRttStampNanos = 0;
+    private long lastAckNanos = 0;
+    private double deliveryRateBytesPerSec = 0;
+
+    public synchronized void onSent(int bytes, long nowNanos) {
+        sentBytes += bytes;
+        if (tracked == MAX_TRACKED_FRAMES) {
+            // Overwrite the oldest record; it simply yields no sample.
+            head = (head + 1) % MAX_TRACKED_FRAMES;
+            tracked--;
+        }
+        int slot = (head + tracked) % MAX_TRACKED_FRAMES;
+        sentEnds[slot] = sentBytes;
+        sentTimes[slot] = nowNanos;
+        tracked++;
+    }
+
+    public synchronized void onAcked(int bytes, long nowNanos) {
+        ackedBytes += bytes;
+        long sentAt = -1;
+        while (tracked > 0 && sentEnds[head] <= ackedBytes) {
+            sentAt = sentTimes[head];
+            head = (head + 1) % MAX_TRACKED_FRAMES;
+            tracked--;
+        }
+        if (sentAt >= 0) {
+            addRttSample(nowNanos - sentAt, nowNanos);
+        }
+        if (lastAckNanos != 0) {
+            long gap = nowNanos - lastAckNanos;
+            if (gap > 0 && gap <= IDLE_GAP_NANOS) {
+                double rate = bytes * 1e9 / gap;
+                deliveryRateBytesPerSec = deliveryRateBytesPerSec == 0
+                    ? rate : deliveryRateBytesPerSec + (rate - deliveryRateBytesPerSec) / 8;
+            }
+        }
+        lastAckNanos = nowNanos;
+    }
+
+    /**
+     * Forgets frames in flight, e.g. after a new Hello resets the firmware window. Link
+     * estimates are kept since the link itself has not changed.
+     */
+    public synchronized void resetInFlight() {
+        head = 0;
+        tracked = 0;
+        sentBytes = 0;
+        ackedBytes = 0;
+        lastAckNanos = 0;
+    }
+
+    private void addRttSample(long rtt, long nowNanos) {
+        if (samples == 0) {
+            smoothedRttNanos = rtt;
+            rttVarNanos = rtt / 2;
+        } else {
+            rttVarNanos += (Math.abs(smoothedRttNanos - rtt) - rttVarNanos) / 4;
+            smoothedRttNanos += (rtt - smoothedRttNanos) / 8;
+        }
+        if (samples == 0 || rtt <= minRttNanos || nowNanos - minRttStampNanos > MIN_RTT_WINDOW_NANOS) {
+            minRttNanos = rtt;
+            minRttStampNanos = nowNanos;
+        }
+        samples++;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    public synchronized long getRttVarNanos() {
+        return rttVarNanos;
+    }
+
+    /** Lowest RTT seen in the last {@code MIN_RTT_WINDOW_NANOS}, the best estimate of the unloaded link. */
+    public synchronized long getMinRttNanos() {
+        return minRttNanos;
+    }
+
+    /** Smoothed rate at which the firmware returns credits, in bytes per second. */
+    public synchronized long getDeliveryRateBytesPerSec() {
+        return (long) deliveryRateBytesPerSec;
+    }
+
+    /** Delivery rate times smoothed RTT, in bytes. */
+    public synchronized int getBandwidthDelayProductBytes() {
+        return (int) Math.ceil(deliveryRateBytesPerSec * smoothedRttNanos / 1e9);
+    }
+
+    /**
+     * Bytes worth keeping in flight: the bandwidth-delay product over a conservative RTT
+     * ({@code srtt + 4 * rttvar}, as for a retransmission timeout) so jitter does not starve
+     * the firmware.
+     */
+    public synchronized int getTargetInFlightBytes() {
+        return (int) Math.ceil(deliveryRateBytesPerSec * (smoothedRttNanos + 4 * rttVarNanos) / 1e9);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "srtt=%.2fms rttvar=%.2fms minRtt=%.2fms rate=%dB/s bdp=%dB samples=%d",
+            smoothedRttNanos / 1e6, rttVarNanos / 1e6, minRttNanos / 1e6, (long) deliveryRateBytesPerSec,
+            getBandwidthDelayProductBytes(), samples);
+    }
+}
@@ -9,6 +9,11 @@
  */
 package com.vagell.kv4pht.radio;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
 /**
  * IMA ADPCM encoder/decoder for the live voice protocol stream.
  *
@@ -18,7 +23,9 @@ package com.vagell.kv4pht.radio;
  * Android and the ESP32 firmware path.
  *
  * <p>This implementation uses the mono IMA WAV block layout used by the
- * firmware ADPCM codec.
+ * firmware ADPCM codec. Per-nibble work is table lookups over
+ * (step index, code), and codec state lives in locals, so encoding and
+ * decoding allocate nothing.
  */
 public final class ImaAdpcm {
     private static final int[] INDEX_TABLE = {
@@ -38,6 +45,41 @@ public final class ImaAdpcm {
             15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
     };
 
+    // Per (stepIndex, code): the decoder's signed predictor delta and the next step index.
+    private static final int STEP_COUNT = STEP_TABLE.length;
+    private static final int[] DECODE_DELTA = new int[STEP_COUNT * 16];
+    private static final byte[] NEXT_INDEX = new byte[STEP_COUNT * 16];
+    // Per (stepIndex, magnitude): the encoder's unsigned predictor delta.
+    private static final int[] ENCODE_DELTA = new int[STEP_COUNT * 8];
+    // ceil(2^40 / step): for the encoder's dividends (4 * |diff| < 2^18) multiplying and shifting
+    // gives exactly the truncated quotient, without a division per sample.
+    private static final int RECIPROCAL_SHIFT = 40;
+    private static final long[] STEP_RECIPROCAL = new long[STEP_COUNT];
+
+    static {
+        for (int index = 0; index < STEP_COUNT; index++) {
+            int step = STEP_TABLE[index];
+            for (int code = 0; code < 16; code++) {
+                int delta = step >> 3;
+                if ((code & 4) != 0) {
+                    delta += step;
+                }
+                if ((code & 2) != 0) {
+                    delta += step >> 1;
+                }
+                if ((code & 1) != 0) {
+                    delta += step >> 2;
+                }
+                DECODE_DELTA[index * 16 + code] = (code & 8) != 0 ? -delta : delta;
+                NEXT_INDEX[index * 16 + code] = (byte) clampIndex(index + INDEX_TABLE[code]);
+            }
+            STEP_RECIPROCAL[index] = ((1L << RECIPROCAL_SHIFT) + step - 1) / step;
+            for (int magnitude = 0; magnitude < 8; magnitude++) {
+                ENCODE_DELTA[index * 8 + magnitude] = step * (2 * magnitude + 1) / 8;
+            }
+        }
+    }
+
     private ImaAdpcm() {}
 
     /** Stateful encoder for a continuous IMA ADPCM stream. */
@@ -48,12 +90,26 @@ public final class ImaAdpcm {
             if (samples <= 0) {
                 return 0;
             }
-            int[] state = {pcm[pcmOffset], stepIndex};
-            int encoded = ImaAdpcm.encodeBlock(pcm, pcmOffset, samples, adpcm, adpcmOffset, state);
-            if (encoded > 0) {
-                stepIndex = state[1];
+            stepIndex = ImaAdpcm.encodeBlock(pcm, pcmOffset, samples, adpcm, adpcmOffset, stepIndex);
+            return encodedSize(samples);
+        }
+
+        /** Buffer form of {@link #encodeBlock(short[], int, int, byte[], int)}; see {@link ImaAdpcm#encodeBlock(ShortBuffer, int, ByteBuffer)}. */
+        public int encodeBlock(ShortBuffer pcm, int samples, ByteBuffer adpcm) {
+            if (samples <= 0) {
+                return 0;
+            }
+            stepIndex = ImaAdpcm.encodeBlock(pcm, samples, adpcm, stepIndex);
+            return encodedSize(samples);
+        }
+
+        /** Buffer form for 16-bit PCM bytes, e.g. from {@code AudioRecord.read(ByteBuffer, ...)}. */
+        public int encodeBlock(ByteBuffer pcm, int samples, ByteBuffer adpcm) {
+            if (samples <= 0) {
+                return 0;
             }
-            return encoded;
+            stepIndex = ImaAdpcm.encodeBlock(pcm, samples, adpcm, stepIndex);
+            return encodedSize(samples);
         }
 
         public void reset() {
@@ -66,29 +122,63 @@ public final class ImaAdpcm {
     }
 
     public static int encodeBlock(short[] pcm, int pcmOffset, int samples, byte[] adpcm, int adpcmOffset) {
-        int[] state = {samples > 0 ? pcm[pcmOffset] : 0, 0};
-        return encodeBlock(pcm, pcmOffset, samples, adpcm, adpcmOffset, state);
+        if (samples <= 0) {
+            return 0;
+        }
+        encodeBlock(pcm, pcmOffset, samples, adpcm, adpcmOffset, 0);
+        return encodedSize(samples);
     }
 
-    private static int encodeBlock(short[] pcm, int pcmOffset, int samples, byte[] adpcm, int adpcmOffset,
-                                   int[] state) {
+    /**
+     * Encodes {@code samples} samples from {@code pcm}'s position into one block at
+     * {@code adpcm}'s position, advancing both.
+     *
+     * @return the encoded length, {@link #encodedSize}{@code (samples)}.
+     * @throws BufferUnderflowException if {@code pcm} has fewer samples remaining.
+     * @throws BufferOverflowException if {@code adpcm} cannot hold the block.
+     */
+    public static int encodeBlock(ShortBuffer pcm, int samples, ByteBuffer adpcm) {
         if (samples <= 0) {
             return 0;
         }
+        encodeBlock(pcm, samples, adpcm, 0);
+        return encodedSize(samples);
+    }
+
+    /** Like {@link #encodeBlock(ShortBuffer, int, ByteBuffer)} for 16-bit samples in {@code pcm}'s byte order. */
+    public static int encodeBlock(ByteBuffer pcm, int samples, ByteBuffer adpcm) {
+        if (samples <= 0) {
+            return 0;
+        }
+        encodeBlock(pcm, samples, adpcm, 0);
+        return encodedSize(samples);
+    }
 
-        state[0] = pcm[pcmOffset];
-        adpcm[adpcmOffset] = (byte) state[0];
-        adpcm[adpcmOffset + 1] = (byte) (state[0] >> 8);
-        adpcm[adpcmOffset + 2] = (byte) state[1];
-        adpcm[adpcmOffset + 3] = 0;
+    /**
+     * Writes {@link #encodedSize}{@code (samples)} bytes and returns the final step index. The
+     * array kernels keep the state in locals; the buffer forms share {@link #encodeStep} and
+     * {@link #decodeStep}, which cost a little more per sample.
+     */
+    private static int encodeBlock(short[] pcm, int pcmOffset, int samples, byte[] adpcm, int adpcmOffset,
+                                   int stepIndex) {
+        int predictor = pcm[pcmOffset];
+        int index = stepIndex;
+        writeHeader(pcm[pcmOffset], stepIndex, adpcm, adpcmOffset);
 
         int out = adpcmOffset + 4;
         boolean highNibble = false;
         int packed = 0;
-        for (int i = 1; i < samples; i++) {
-            int code = encodeNibble(pcm[pcmOffset + i], state);
+        for (int i = pcmOffset + 1; i < pcmOffset + samples; i++) {
+            int diff = pcm[i] - predictor;
+            int sign = diff >> 31; // 0 or -1
+            int scaled = ((diff ^ sign) - sign) << 2;
+            int magnitude = (int) Math.min(7, (scaled * STEP_RECIPROCAL[index]) >>> RECIPROCAL_SHIFT);
+            int delta = ENCODE_DELTA[index * 8 + magnitude];
+            predictor = clampInt16(predictor + ((delta ^ sign) - sign));
+            int code = magnitude | (sign & 8);
+            index = NEXT_INDEX[index * 16 + code];
             if (!highNibble) {
-                packed = code & 0x0f;
+                packed = code;
                 highNibble = true;
             } else {
                 adpcm[out++] = (byte) (packed | (code << 4));
@@ -96,69 +186,218 @@ public final class ImaAdpcm {
             }
         }
         if (highNibble) {
-            adpcm[out++] = (byte) packed;
+            adpcm[out] = (byte) packed;
         }
-        return out - adpcmOffset;
+        return index;
+    }
+
+    private static int encodeBlock(ShortBuffer pcm, int samples, ByteBuffer adpcm, int stepIndex) {
+        checkEncodeBuffers(pcm.remaining(), samples, adpcm);
+        int start = pcm.position();
+        int out = adpcm.position();
+        int state = writeHeader(pcm.get(start), stepIndex, adpcm, out);
+        out += 4;
+        int end = start + samples;
+        int i = start + 1;
+        for (; i + 1 < end; i += 2) {
+            state = encodeStep(state, pcm.get(i));
+            int low = state >>> CODE_SHIFT;
+            state = encodeStep(state, pcm.get(i + 1));
+            adpcm.put(out++, (byte) (low | (state >>> CODE_SHIFT << 4)));
+        }
+        if (i < end) {
+            state = encodeStep(state, pcm.get(i));
+            adpcm.put(out, (byte) (state >>> CODE_SHIFT));
+        }
+        pcm.position(end);
+        adpcm.position(adpcm.position() + encodedSize(samples));
+        return stepIndexOf(state);
+    }
+
+    private static int encodeBlock(ByteBuffer pcm, int samples, ByteBuffer adpcm, int stepIndex) {
+        checkEncodeBuffers(pcm.remaining() / 2, samples, adpcm);
+        int start = pcm.position();
+        int out = adpcm.position();
+        int state = writeHeader(pcm.getShort(start), stepIndex, adpcm, out);
+        out += 4;
+        int end = start + samples * 2;
+        int i = start + 2;
+        for (; i + 2 < end; i += 4) {
+            state = encodeStep(state, pcm.getShort(i));
+            int low = state >>> CODE_SHIFT;
+            state = encodeStep(state, pcm.getShort(i + 2));
+            adpcm.put(out++, (byte) (low | (state >>> CODE_SHIFT << 4)));
+        }
+        if (i < end) {
+            state = encodeStep(state, pcm.getShort(i));
+            adpcm.put(out, (byte) (state >>> CODE_SHIFT));
+        }
+        pcm.position(end);
+        adpcm.position(adpcm.position() + encodedSize(samples));
+        return stepIndexOf(state);
     }
 
     public static int decodeBlock(byte[] adpcm, int adpcmOffset, int len, short[] pcm, int pcmOffset, int samples) {
         if (len < 4 || samples <= 0) {
             return 0;
         }
-
-        int[] state = {
-                (short) ((adpcm[adpcmOffset] & 0xff) | ((adpcm[adpcmOffset + 1] & 0xff) << 8)),
-                clampIndex(adpcm[adpcmOffset + 2] & 0xff)
-        };
+        int predictor = (short) ((adpcm[adpcmOffset] & 0xff) | ((adpcm[adpcmOffset + 1] & 0xff) << 8));
+        int index = clampIndex(adpcm[adpcmOffset + 2] & 0xff);
         int written = 0;
-        pcm[pcmOffset + written++] = (short) state[0];
+        pcm[pcmOffset + written++] = (short) predictor;
 
-        for (int i = adpcmOffset + 4; i < adpcmOffset + len && written < samples; i++) {
+        int end = adpcmOffset + len;
+        for (int i = adpcmOffset + 4; i < end && written < samples; i++) {
             int packed = adpcm[i] & 0xff;
-            decodeNibble(packed & 0x0f, state);
-            pcm[pcmOffset + written++] = (short) state[0];
+            int entry = index * 16 + (packed & 0x0f);
+            predictor = clampInt16(predictor + DECODE_DELTA[entry]);
+            index = NEXT_INDEX[entry];
+            pcm[pcmOffset + written++] = (short) predictor;
             if (written >= samples) {
                 break;
             }
-            decodeNibble((packed >> 4) & 0x0f, state);
-            pcm[pcmOffset + written++] = (short) state[0];
+            entry = index * 16 + (packed >> 4);
+            predictor = clampInt16(predictor + DECODE_DELTA[entry]);
+            index = NEXT_INDEX[entry];
+            pcm[pcmOffset + written++] = (short) predictor;
         }
         return written;
     }
 
-    private static int encodeNibble(short sample, int[] state) {
-        int predictor = state[0];
-        int index = state[1];
-        int step = STEP_TABLE[index];
-        int diff = sample - predictor;
-        int magnitude = Math.min(7, Math.abs(diff) * 4 / step);
-        int code = magnitude | (diff < 0 ? 8 : 0);
-        int delta = step * (2 * magnitude + 1) / 8;
+    /**
+     * Decodes the block formed by {@code adpcm}'s remaining bytes (typically a slice of a received
+     * frame) into {@code pcm}, at most {@code pcm.remaining()} samples. Advances {@code adpcm} past
+     * the bytes used and {@code pcm} past the samples written. Neither buffer needs a backing array.
+     *
+     * @return the number of samples written.
+     */
+    public static int decodeBlock(ByteBuffer adpcm, ShortBuffer pcm) {
+        int in = adpcm.position();
+        int len = adpcm.remaining();
+        int samples = pcm.remaining();
+        if (len < 4 || samples <= 0) {
+            return 0;
+        }
+        int state = readHeader(adpcm.get(in), adpcm.get(in + 1), adpcm.get(in + 2));
+        int out = pcm.position();
+        int written = 0;
+        pcm.put(out + written++, predictorOf(state));
 
-        predictor += diff < 0 ? -delta : delta;
-        state[0] = clampInt16(predictor);
-        state[1] = clampIndex(index + INDEX_TABLE[code]);
-        return code;
+        int i = in + 4;
+        int end = in + len;
+        for (; i < end && written < samples; i++) {
+            int packed = adpcm.get(i) & 0xff;
+            state = decodeStep(state, packed & 0x0f);
+            pcm.put(out + written++, predictorOf(state));
+            if (written >= samples) {
+                i++;
+                break;
+            }
+            state = decodeStep(state, packed >> 4);
+            pcm.put(out + written++, predictorOf(state));
+        }
+        adpcm.position(i);
+        pcm.position(out + written);
+        return written;
     }
 
-    private static void decodeNibble(int code, int[] state) {
-        int predictor = state[0];
-        int index = state[1];
-        int step = STEP_TABLE[index];
-        int delta = step >> 3;
-        if ((code & 4) != 0) {
-            delta += step;
-        }
-        if ((code & 2) != 0) {
-            delta += step >> 1;
+    /**
+     * Like {@link #decodeBlock(ByteBuffer, ShortBuffer)} but writes 16-bit samples in
+     * {@code pcm}'s byte order, e.g. into a direct buffer in native order for
+     * {@code AudioTrack.write(ByteBuffer, ...)}.
+     */
+    public static int decodeBlock(ByteBuffer adpcm, ByteBuffer pcm) {
+        int in = adpcm.position();
+        int len = adpcm.remaining();
+        int samples = pcm.remaining() / 2;
+        if (len < 4 || samples <= 0) {
+            return 0;
         }
-        if ((code & 1) != 0) {
-            delta += step >> 2;
+        int state = readHeader(adpcm.get(in), adpcm.get(in + 1), adpcm.get(in + 2));
+        int out = pcm.position();
+        int written = 0;
+        pcm.putShort(out + 2 * written++, predictorOf(state));
+
+        int i = in + 4;
+        int end = in + len;
+        for (; i < end && written < samples; i++) {
+            int packed = adpcm.get(i) & 0xff;
+            state = decodeStep(state, packed & 0x0f);
+            pcm.putShort(out + 2 * written++, predictorOf(state));
+            if (written >= samples) {
+                i++;
+                break;
+            }
+            state = decodeStep(state, packed >> 4);
+            pcm.putShort(out + 2 * written++, predictorOf(state));
         }
+        adpcm.position(i);
+        pcm.position(out + 2 * written);
+        return written;
+    }
+
+    // Codec state packed in one int so the per-sample steps can return it whole:
+    // bits 0-15 predictor, 16-22 step index, 24-27 the code just encoded.
+    private static final int INDEX_SHIFT = 16;
+    private static final int CODE_SHIFT = 24;
 
-        predictor += (code & 8) != 0 ? -delta : delta;
-        state[0] = clampInt16(predictor);
-        state[1] = clampIndex(index + INDEX_TABLE[code & 0x0f]);
+    private static int packState(int predictor, int index) {
+        return (predictor & 0xffff) | (index << INDEX_SHIFT);
+    }
+
+    private static short predictorOf(int state) {
+        return (short) state;
+    }
+
+    private static int stepIndexOf(int state) {
+        return (state >>> INDEX_SHIFT) & 0x7f;
+    }
+
+    private static int encodeStep(int state, int sample) {
+        int predictor = predictorOf(state);
+        int index = stepIndexOf(state);
+        int diff = sample - predictor;
+        int sign = diff >> 31; // 0 or -1
+        int scaled = ((diff ^ sign) - sign) << 2;
+        int magnitude = (int) Math.min(7, (scaled * STEP_RECIPROCAL[index]) >>> RECIPROCAL_SHIFT);
+        int delta = ENCODE_DELTA[index * 8 + magnitude];
+        int code = magnitude | (sign & 8);
+        return packState(clampInt16(predictor + ((delta ^ sign) - sign)), NEXT_INDEX[index * 16 + code])
+            | (code << CODE_SHIFT);
+    }
+
+    private static int decodeStep(int state, int code) {
+        int entry = stepIndexOf(state) * 16 + code;
+        return packState(clampInt16(predictorOf(state) + DECODE_DELTA[entry]), NEXT_INDEX[entry]);
+    }
+
+    private static int writeHeader(short predictor, int stepIndex, byte[] adpcm, int offset) {
+        adpcm[offset] = (byte) predictor;
+        adpcm[offset + 1] = (byte) (predictor >> 8);
+        adpcm[offset + 2] = (byte) stepIndex;
+        adpcm[offset + 3] = 0;
+        return packState(predictor, stepIndex);
+    }
+
+    private static int writeHeader(short predictor, int stepIndex, ByteBuffer adpcm, int offset) {
+        adpcm.put(offset, (byte) predictor);
+        adpcm.put(offset + 1, (byte) (predictor >> 8));
+        adpcm.put(offset + 2, (byte) stepIndex);
+        adpcm.put(offset + 3, (byte) 0);
+        return packState(predictor, stepIndex);
+    }
+
+    private static int readHeader(byte predictorLow, byte predictorHigh, byte stepIndex) {
+        return packState((predictorLow & 0xff) | ((predictorHigh & 0xff) << 8), clampIndex(stepIndex & 0xff));
+    }
+
+    private static void checkEncodeBuffers(int pcmSamplesRemaining, int samples, ByteBuffer adpcm) {
+        if (pcmSamplesRemaining < samples) {
+            throw new BufferUnderflowException();
+        }
+        if (adpcm.remaining() < encodedSize(samples)) {
+            throw new BufferOverflowException();
+        }
     }
 
     private static int clampInt16(int sample) {
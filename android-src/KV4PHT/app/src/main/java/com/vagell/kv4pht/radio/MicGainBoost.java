@@ -17,6 +17,14 @@ public enum MicGainBoost {
         this.label = label;
     }
 
+    /**
+     * TX processing for this preset. The boost is the most the AGC may amplify quiet speech;
+     * loud speech is brought down to the same level whatever the preset.
+     */
+    public TxAudioProcessor.Config getTxProcessing() {
+        return TxAudioProcessor.Config.builder().agcMaxGain(gain).build();
+    }
+
     public static MicGainBoost parse(String str) {
         for (MicGainBoost value : values()) {
             if (value.label.equalsIgnoreCase(str)) {
@@ -0,0 +1,172 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.util.Arrays;
+
+/**
+ * Streaming rational-ratio resampler for 16-bit mono PCM.
+ * <p>
+ * Converting {@code inputRate} to {@code outputRate} is done as upsampling by {@code L},
+ * low-pass filtering and downsampling by {@code M} (with {@code L/M} the reduced rate ratio,
+ * 3/1 for 16 kHz to 48 kHz). The Kaiser-windowed sinc low-pass is split into {@code L} phases
+ * of {@link #TAPS_PER_PHASE} taps, so each output sample costs one short dot product over the
+ * most recent input samples and the zero-stuffed samples are never computed. Input can be
+ * pushed in chunks of any size; filter history and phase carry over between calls.
+ * <p>
+ * Not thread-safe; one instance per stream.
+ */
+public final class PolyphaseResampler {
+    public static final int TAPS_PER_PHASE = 24;
+    // Pass band up to this fraction of the lower Nyquist frequency.
+    private static final double CUTOFF = 0.9;
+    // About 70 dB of stop-band attenuation.
+    private static final double KAISER_BETA = 7.0;
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int interpolation;
+    private final int decimation;
+    private final float[][] phases;
+    // Delay line written twice, at pos and pos + TAPS_PER_PHASE, so the newest
+    // TAPS_PER_PHASE samples are always contiguous from pos (newest first).
+    private final float[] delay = new float[2 * TAPS_PER_PHASE];
+    private int pos;
+    private int phase;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Sample rates must be positive");
+        }
+        int gcd = gcd(inputRate, outputRate);
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.interpolation = outputRate / gcd;
+        this.decimation = inputRate / gcd;
+        this.phases = designPhases(interpolation, Math.min(1.0, (double) interpolation / decimation));
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /** Upper bound on the samples one {@link #process} call produces from {@code inputSamples}. */
+    public int maxOutputSamples(int inputSamples) {
+        return (int) (((long) inputSamples * interpolation + decimation - 1) / decimation) + 1;
+    }
+
+    /** Group delay of the filter in output samples. */
+    public int getLatencySamples() {
+        return (TAPS_PER_PHASE * interpolation / 2) / decimation;
+    }
+
+    /**
+     * Resamples {@code inLen} samples into {@code out}, which must have room for
+     * {@link #maxOutputSamples}{@code (inLen)} samples from {@code outOffset}.
+     *
+     * @return the number of samples written.
+     */
+    public int process(short[] in, int inOffset, int inLen, short[] out, int outOffset) {
+        int written = outOffset;
+        int taps = TAPS_PER_PHASE;
+        for (int i = inOffset; i < inOffset + inLen; i++) {
+            pos = pos == 0 ? taps - 1 : pos - 1;
+            delay[pos] = delay[pos + taps] = in[i];
+            while (phase < interpolation) {
+                float[] coefficients = phases[phase];
+                float sum = 0;
+                for (int k = 0; k < taps; k++) {
+                    sum += coefficients[k] * delay[pos + k];
+                }
+                out[written++] = clampToShort(sum);
+                phase += decimation;
+            }
+            phase -= interpolation;
+        }
+        return written - outOffset;
+    }
+
+    public void reset() {
+        Arrays.fill(delay, 0);
+        pos = 0;
+        phase = 0;
+    }
+
+    private static short clampToShort(float sample) {
+        int rounded = Math.round(sample);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, rounded));
+    }
+
+    /**
+     * Designs the prototype low-pass at {@code L} times the input rate and splits it into phases;
+     * {@code band} is the pass band relative to the input Nyquist frequency.
+     */
+    private static float[][] designPhases(int interpolation, double band) {
+        int length = interpolation * TAPS_PER_PHASE;
+        double center = (length - 1) / 2.0;
+        double cutoff = CUTOFF * band / interpolation; // Fraction of the upsampled Nyquist.
+        double i0Beta = besselI0(KAISER_BETA);
+        float[][] phases = new float[interpolation][TAPS_PER_PHASE];
+        for (int p = 0; p < interpolation; p++) {
+            double sum = 0;
+            double[] taps = new double[TAPS_PER_PHASE];
+            for (int k = 0; k < TAPS_PER_PHASE; k++) {
+                int n = p + k * interpolation;
+                double x = n - center;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+                double ratio = 2 * n / (double) (length - 1) - 1;
+                double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - ratio * ratio))) / i0Beta;
+                taps[k] = sinc * window;
+                sum += taps[k];
+            }
+            // Unity DC gain in every phase keeps a steady input steady at the output.
+            for (int k = 0; k < TAPS_PER_PHASE; k++) {
+                phases[p][k] = (float) (taps[k] / sum);
+            }
+        }
+        return phases;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double half = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (half / k) * (half / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
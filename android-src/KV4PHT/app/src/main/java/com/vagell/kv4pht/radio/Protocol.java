@@ -4,10 +4,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
 
 import androidx.annotation.NonNull;
 
@@ -50,6 +50,16 @@ public final class Protocol {
         return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    /** Lookup table from a one-byte wire value to its enum constant, so decoding is a single array read. */
+    private static <E extends Enum<E>> E[] byteTable(E[] values, ToIntFunction<E> wireValue, E unknown) {
+        E[] table = Arrays.copyOf(values, 256);
+        Arrays.fill(table, unknown);
+        for (E value : values) {
+            table[wireValue.applyAsInt(value)] = value;
+        }
+        return table;
+    }
+
     @Getter
     public enum SndCommand {
         COMMAND_SND_UNKNOWN(0x00),
@@ -73,18 +83,13 @@ public final class Protocol {
         COMMAND_RX_AUDIO(0x0C),         // [COMMAND_RX_AUDIO(int8_t[])]
         COMMAND_WINDOW_UPDATE(0x09),    // [COMMAND_WINDOW_UPDATE()]
         COMMAND_DEVICE_STATE(0x0B);
-        private static final RcvCommand[] VALUES = values();
+        private static final RcvCommand[] BY_VALUE = byteTable(values(), RcvCommand::getValue, COMMAND_RCV_UNKNOWN);
         private final int value;
         RcvCommand(int value) {
             this.value = value;
         }
         public static RcvCommand fromValue(int value) {
-            for (RcvCommand type : VALUES) {
-                if (type.getValue() == value) {
-                    return type;
-                }
-            }
-            return COMMAND_RCV_UNKNOWN;
+            return (value & ~0xFF) == 0 ? BY_VALUE[value] : COMMAND_RCV_UNKNOWN;
         }
     }
 
@@ -93,17 +98,13 @@ public final class Protocol {
         RADIO_STATUS_UNKNOWN('u'),
         RADIO_STATUS_NOT_FOUND('x'),
         RADIO_STATUS_FOUND('f');
+        private static final RadioStatus[] BY_VALUE = byteTable(values(), RadioStatus::getValue, RADIO_STATUS_UNKNOWN);
         private final char value;
         RadioStatus(char value) {
             this.value = value;
         }
         public static RadioStatus fromValue(char value) {
-            for (RadioStatus status : RadioStatus.values()) {
-                if (status.getValue() == value) {
-                    return status;
-                }
-            }
-            return RADIO_STATUS_UNKNOWN;
+            return value <= 0xFF ? BY_VALUE[value] : RADIO_STATUS_UNKNOWN;
         }
     }
 
@@ -127,17 +128,13 @@ public final class Protocol {
         DEVICE_MODE_RX(1),
         DEVICE_MODE_STOPPED(2),
         DEVICE_MODE_UNKNOWN(255);
+        private static final DeviceMode[] BY_VALUE = byteTable(values(), DeviceMode::getValue, DEVICE_MODE_UNKNOWN);
         private final int value;
         DeviceMode(int value) {
             this.value = value;
         }
         public static DeviceMode fromValue(int value) {
-            for (DeviceMode mode : DeviceMode.values()) {
-                if (mode.getValue() == value) {
-                    return mode;
-                }
-            }
-            return DEVICE_MODE_UNKNOWN;
+            return (value & ~0xFF) == 0 ? BY_VALUE[value] : DEVICE_MODE_UNKNOWN;
         }
     }
 
@@ -223,17 +220,17 @@ public final class Protocol {
     public enum RfModuleType {
         RF_SA818_VHF(0),
         RF_SA818_UHF(1);
+        private static final RfModuleType[] BY_VALUE = byteTable(values(), RfModuleType::getValue, null);
         private final int value;
         RfModuleType(int value) {
             this.value = value;
         }
         public static RfModuleType fromValue(int value) {
-            for (RfModuleType moduleType : RfModuleType.values()) {
-                if (moduleType.getValue() == value) {
-                    return moduleType;
-                }
+            RfModuleType moduleType = (value & ~0xFF) == 0 ? BY_VALUE[value] : null;
+            if (moduleType == null) {
+                throw new IllegalArgumentException("Unexpected value: " + value);
             }
-            throw new IllegalArgumentException("Unexpected value: " + value);
+            return moduleType;
         }
     }
 
@@ -263,7 +260,7 @@ public final class Protocol {
     @Data
     @Builder
     public static class FirmwareVersion {
-        private static final int BYTE_LEN = 17;
+        static final int BYTE_LEN = 17;
         private final short ver;  // equivalent to uint16_t
         private final RadioStatus radioModuleStatus;  // equivalent to char
         private final int windowSize; // equivalent to uint32_t
@@ -322,16 +319,89 @@ public final class Protocol {
         }
     }
 
+    /**
+     * Outbound frame classes, most urgent first. The ordinal is the flow-control priority, so
+     * a waiting control frame always takes the next window credits before queued audio.
+     */
+    public enum FrameClass {
+        CONTROL,    // COMMAND_HOST_DESIRED_STATE (PTT, frequency, squelch...)
+        DATA,       // KISS DATA frames carrying AX.25
+        AUDIO       // COMMAND_HOST_TX_AUDIO
+    }
+
+    /** Queueing statistics for one {@link FrameClass}. */
+    public static final class FrameClassStats {
+        private final LongAdder sentFrames = new LongAdder();
+        private final LongAdder droppedFrames = new LongAdder();
+        private final LongAdder totalQueueNanos = new LongAdder();
+        private final LongAccumulator maxQueueNanos = new LongAccumulator(Math::max, 0);
+
+        void recordSent(long queueNanos) {
+            sentFrames.increment();
+            totalQueueNanos.add(queueNanos);
+            maxQueueNanos.accumulate(queueNanos);
+        }
+
+        void recordDropped() {
+            droppedFrames.increment();
+        }
+
+        public long getSentFrames() {
+            return sentFrames.sum();
+        }
+
+        public long getDroppedFrames() {
+            return droppedFrames.sum();
+        }
+
+        /** Sum of the time sent frames spent between the send call and the transport write. */
+        public long getTotalQueueNanos() {
+            return totalQueueNanos.sum();
+        }
+
+        public long getMaxQueueNanos() {
+            return maxQueueNanos.get();
+        }
+    }
+
     public static class Sender {
 
-        private final AtomicInteger flowControlWindow = new AtomicInteger(1024);
+        static final int INITIAL_FLOW_CONTROL_WINDOW = 1024;
+        static final long DEFAULT_FLOW_CONTROL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+        static final long DEFAULT_AUDIO_LATENCY_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+        // Adaptive window: never below this, and only once the RTT estimate has settled.
+        static final int MIN_ADAPTIVE_FLOW_CONTROL_WINDOW = 512;
+        static final int MIN_ADAPTIVE_RTT_SAMPLES = 16;
+        // Headroom over the estimated in-flight requirement, so a late ack does not starve the firmware.
+        static final int ADAPTIVE_WINDOW_GAIN = 2;
+
+        /** One frame class: its own encode buffer and lock, so classes never wait on each other's encoding. */
+        private static final class Lane {
+            private final FrameClass frameClass;
+            private final byte[] encodeBuffer = new byte[KISS_MAX_ENCODED_FRAME_SIZE];
+            private final FrameClassStats stats = new FrameClassStats();
+
+            Lane(FrameClass frameClass) {
+                this.frameClass = frameClass;
+            }
+        }
+
+        private final FlowControlCredits flowControlCredits = new FlowControlCredits(
+            INITIAL_FLOW_CONTROL_WINDOW, DEFAULT_FLOW_CONTROL_TIMEOUT_NANOS, FlowControlCredits.TimeoutPolicy.DROP);
         private final AsyncFrameWriter writer;
         private final boolean flowControlEnabled;
-        private final Lock lock = new ReentrantLock();
-        private final Condition canSendCondition = lock.newCondition();
-        private final byte[] kissEncodeBuffer = new byte[KISS_MAX_ENCODED_FRAME_SIZE];
+        private final Lane controlLane = new Lane(FrameClass.CONTROL);
+        private final Lane dataLane = new Lane(FrameClass.DATA);
+        private final Lane audioLane = new Lane(FrameClass.AUDIO);
         private final ByteBuffer desiredStateBuffer =
             ByteBuffer.allocate(HostDesiredState.BYTE_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        private volatile long audioLatencyBudgetNanos = DEFAULT_AUDIO_LATENCY_BUDGET_NANOS;
+        private final FlowControlRttEstimator windowRtt = new FlowControlRttEstimator();
+        private final Object windowLock = new Object();
+        private int advertisedWindow = INITIAL_FLOW_CONTROL_WINDOW; // guarded by windowLock
+        private int windowLimit = INITIAL_FLOW_CONTROL_WINDOW;      // guarded by windowLock
+        private int largestFrame = 0;                               // guarded by windowLock
+        private volatile boolean adaptiveWindow = false;
 
         public Sender(AsyncFrameWriter writer) {
             this(writer, true);
@@ -342,161 +412,248 @@ public final class Protocol {
             this.flowControlEnabled = flowControlEnabled;
         }
 
-        private synchronized void sendKissFrame(int kissCommand, byte[] payload, int len) {
-            int frameSize = encodeKissFrame(kissCommand, payload, len);
-            writeEncodedFrame(frameSize);
-        }
-
-        private synchronized void sendKv4pVendorFrame(SndCommand commandType, byte[] param, int len) {
-            int frameSize = encodeKv4pVendorFrame(commandType.getValue(), param, len);
-            writeEncodedFrame(frameSize);
-        }
-
-        private void sendKissDataFrame(byte[] ax25Bytes) {
-            sendKissFrame(KISS_CMD_DATA, ax25Bytes, ax25Bytes != null ? ax25Bytes.length : 0);
-        }
-
         public void txAudio(byte[] audio, int len) {
-            sendKv4pVendorFrame(SndCommand.COMMAND_HOST_TX_AUDIO, audio, len);
+            synchronized (audioLane) {
+                long queuedAt = System.nanoTime();
+                int frameSize = encodeKv4pVendorFrame(audioLane.encodeBuffer, SndCommand.COMMAND_HOST_TX_AUDIO.getValue(), audio, len);
+                writeEncodedFrame(audioLane, frameSize, queuedAt);
+            }
         }
 
         public void txAx25(byte[] ax25Bytes) {
-            sendKissDataFrame(ax25Bytes);
+            synchronized (dataLane) {
+                long queuedAt = System.nanoTime();
+                int frameSize = encodeKissFrame(dataLane.encodeBuffer, KISS_CMD_DATA, ax25Bytes, ax25Bytes != null ? ax25Bytes.length : 0);
+                writeEncodedFrame(dataLane, frameSize, queuedAt);
+            }
         }
 
-        private int encodeKissFrame(int kissCommand, byte[] payload, int len) {
+        public void sendDesiredState(@NonNull HostDesiredState state) {
+            synchronized (controlLane) {
+                long queuedAt = System.nanoTime();
+                desiredStateBuffer.clear();
+                state.writeTo(desiredStateBuffer);
+                desiredStateBuffer.flip();
+                int frameSize = encodeKv4pVendorFrame(controlLane.encodeBuffer, SndCommand.COMMAND_HOST_DESIRED_STATE.getValue(), desiredStateBuffer, 0, HostDesiredState.BYTE_LEN);
+                writeEncodedFrame(controlLane, frameSize, queuedAt);
+            }
+        }
+
+        private static int encodeKissFrame(byte[] out, int kissCommand, byte[] payload, int len) {
             int payloadLen = boundedPayloadLen(payload, len);
-            int pos = beginKissFrame(kissCommand);
+            int pos = beginKissFrame(out, kissCommand);
             for (int i = 0; i < payloadLen; i++) {
-                pos = putEscaped(pos, payload[i] & 0xFF);
+                pos = putEscaped(out, pos, payload[i] & 0xFF);
             }
-            return endKissFrame(pos);
+            return endKissFrame(out, pos);
         }
 
-        private int encodeKv4pVendorFrame(int kv4pCommand, byte[] payload, int len) {
+        private static int encodeKv4pVendorFrame(byte[] out, int kv4pCommand, byte[] payload, int len) {
             int payloadLen = boundedPayloadLen(payload, len);
-            int pos = beginKv4pVendorFrame(kv4pCommand);
+            int pos = beginKv4pVendorFrame(out, kv4pCommand);
             for (int i = 0; i < payloadLen; i++) {
-                pos = putEscaped(pos, payload[i] & 0xFF);
+                pos = putEscaped(out, pos, payload[i] & 0xFF);
             }
-            return endKissFrame(pos);
+            return endKissFrame(out, pos);
         }
 
-        private int encodeKv4pVendorFrame(int kv4pCommand, ByteBuffer payload, int offset, int len) {
+        private static int encodeKv4pVendorFrame(byte[] out, int kv4pCommand, ByteBuffer payload, int offset, int len) {
             int payloadLen = boundedPayloadLen(payload, offset, len);
-            int pos = beginKv4pVendorFrame(kv4pCommand);
+            int pos = beginKv4pVendorFrame(out, kv4pCommand);
             for (int i = 0; i < payloadLen; i++) {
-                pos = putEscaped(pos, payload.get(offset + i) & 0xFF);
+                pos = putEscaped(out, pos, payload.get(offset + i) & 0xFF);
             }
-            return endKissFrame(pos);
+            return endKissFrame(out, pos);
         }
 
-        private int beginKv4pVendorFrame(int kv4pCommand) {
-            int pos = beginKissFrame(KISS_CMD_SETHARDWARE);
+        private static int beginKv4pVendorFrame(byte[] out, int kv4pCommand) {
+            int pos = beginKissFrame(out, KISS_CMD_SETHARDWARE);
             for (byte prefixByte : KV4P_VENDOR_PREFIX) {
-                pos = putEscaped(pos, prefixByte & 0xFF);
+                pos = putEscaped(out, pos, prefixByte & 0xFF);
             }
-            pos = putEscaped(pos, KV4P_PROTOCOL_VERSION);
-            return putEscaped(pos, kv4pCommand);
+            pos = putEscaped(out, pos, KV4P_PROTOCOL_VERSION);
+            return putEscaped(out, pos, kv4pCommand);
         }
 
-        private int beginKissFrame(int kissCommand) {
-            kissEncodeBuffer[0] = (byte) KISS_FEND;
-            kissEncodeBuffer[1] = (byte) (kissCommand & 0xFF);
+        private static int beginKissFrame(byte[] out, int kissCommand) {
+            out[0] = (byte) KISS_FEND;
+            out[1] = (byte) (kissCommand & 0xFF);
             return 2;
         }
 
-        private int putEscaped(int pos, int value) {
+        private static int putEscaped(byte[] out, int pos, int value) {
             if (value == KISS_FEND) {
-                kissEncodeBuffer[pos++] = (byte) KISS_FESC;
-                kissEncodeBuffer[pos++] = (byte) KISS_TFEND;
+                out[pos++] = (byte) KISS_FESC;
+                out[pos++] = (byte) KISS_TFEND;
             } else if (value == KISS_FESC) {
-                kissEncodeBuffer[pos++] = (byte) KISS_FESC;
-                kissEncodeBuffer[pos++] = (byte) KISS_TFESC;
+                out[pos++] = (byte) KISS_FESC;
+                out[pos++] = (byte) KISS_TFESC;
             } else {
-                kissEncodeBuffer[pos++] = (byte) value;
+                out[pos++] = (byte) value;
             }
             return pos;
         }
 
-        private int endKissFrame(int pos) {
-            kissEncodeBuffer[pos++] = (byte) KISS_FEND;
+        private static int endKissFrame(byte[] out, int pos) {
+            out[pos++] = (byte) KISS_FEND;
             return pos;
         }
 
-        private void writeEncodedFrame(int frameSize) {
-            if (!flowControlEnabled || waitUntilCanSend(frameSize)) {
-                writer.writeAsync(Arrays.copyOf(kissEncodeBuffer, frameSize));
-                if (flowControlEnabled) {
-                    flowControlWindow.addAndGet(-frameSize);
-                }
+        private void writeEncodedFrame(Lane lane, int frameSize, long queuedAtNanos) {
+            if (flowControlEnabled && !acquireCredits(lane, frameSize)) {
+                lane.stats.recordDropped();
+                return;
+            }
+            long now = System.nanoTime();
+            lane.stats.recordSent(now - queuedAtNanos);
+            if (flowControlEnabled) {
+                windowRtt.onSent(frameSize, now);
             }
+            writer.writeAsync(lane.encodeBuffer, 0, frameSize);
         }
 
-        private int boundedPayloadLen(byte[] payload, int len) {
+        private boolean acquireCredits(Lane lane, int frameSize) {
+            if (adaptiveWindow) {
+                fitWindowToFrame(frameSize);
+            }
+            int priority = lane.frameClass.ordinal();
+            if (lane.frameClass == FrameClass.AUDIO) {
+                // Audio older than the latency budget is worthless on air: drop it rather than queue more delay.
+                return flowControlCredits.acquire(frameSize, priority, audioLatencyBudgetNanos, FlowControlCredits.TimeoutPolicy.DROP);
+            }
+            try {
+                return flowControlCredits.acquire(frameSize, priority);
+            } catch (FlowControlCredits.StalledException e) {
+                lane.stats.recordDropped();
+                throw e;
+            }
+        }
+
+        private static int boundedPayloadLen(byte[] payload, int len) {
             if (payload == null || len <= 0) {
                 return 0;
             }
             return Math.min(len, Math.min(payload.length, PROTO_MTU));
         }
 
-        private int boundedPayloadLen(ByteBuffer payload, int offset, int len) {
+        private static int boundedPayloadLen(ByteBuffer payload, int offset, int len) {
             if (payload == null || offset < 0 || len <= 0 || payload.limit() < offset) {
                 return 0;
             }
             return Math.min(len, Math.min(payload.limit() - offset, PROTO_MTU));
         }
-        
-        // Waits until it can send (windowSize > 0)
-        private boolean waitUntilCanSend(int size) {
-            lock.lock();
-            try {
-                while (flowControlWindow.get() < size) {
-                    try {
-                        canSendCondition.await();  // Waits until the flow-control window has enough space for this encoded frame.
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        return false;
-                    }
+
+        /** Sets the window advertised by the firmware Hello; nothing is in flight afterwards. */
+        public void setFlowControlWindow(int size) {
+            synchronized (windowLock) {
+                advertisedWindow = size;
+                windowLimit = size;
+                largestFrame = 0;
+                windowRtt.resetInFlight();
+                flowControlCredits.reset(size);
+            }
+        }
+
+        public void enlargeFlowControlWindow(int size) {
+            windowRtt.onAcked(size, System.nanoTime());
+            flowControlCredits.grant(size);
+            if (adaptiveWindow) {
+                synchronized (windowLock) {
+                    resizeWindowLocked(adaptiveWindowTarget());
                 }
-            } finally {
-                lock.unlock();
             }
-            return true;
         }
 
-        public void setFlowControlWindow(int size) {
-            lock.lock();
-            try {
-                flowControlWindow.set(size);
-                canSendCondition.signalAll();  // Signal all waiting threads that they can proceed
-            } finally {
-                lock.unlock();
+        /**
+         * When enabled, the host keeps only about twice the measured bandwidth-delay product in
+         * flight instead of the whole advertised window: enough that the ESP32 never runs dry,
+         * without parking a backlog of audio in its serial buffer. The advertised window stays
+         * the upper bound.
+         */
+        public void setAdaptiveFlowControlWindow(boolean enabled) {
+            adaptiveWindow = enabled;
+            synchronized (windowLock) {
+                resizeWindowLocked(enabled ? adaptiveWindowTarget() : advertisedWindow);
             }
         }
 
-        public void enlargeFlowControlWindow(int size) {
-            lock.lock();
-            try {
-                flowControlWindow.addAndGet(size);
-                canSendCondition.signalAll();  // Signal all waiting threads that they can proceed
-            } finally {
-                lock.unlock();
+        /** Bytes the host currently allows in flight (the advertised window unless adaptive). */
+        public int getFlowControlWindowLimit() {
+            synchronized (windowLock) {
+                return windowLimit;
             }
         }
 
-        public synchronized void sendDesiredState(@NonNull HostDesiredState state) {
-            desiredStateBuffer.clear();
-            state.writeTo(desiredStateBuffer);
-            desiredStateBuffer.flip();
-            int frameSize = encodeKv4pVendorFrame(SndCommand.COMMAND_HOST_DESIRED_STATE.getValue(), desiredStateBuffer, 0, HostDesiredState.BYTE_LEN);
-            writeEncodedFrame(frameSize);
+        /** RTT, delivery rate and bandwidth-delay product measured from window updates. */
+        public FlowControlRttEstimator getWindowRtt() {
+            return windowRtt;
+        }
+
+        private void fitWindowToFrame(int frameSize) {
+            synchronized (windowLock) {
+                // Remembered so later shrinks never leave a window this frame can't fit in.
+                largestFrame = Math.max(largestFrame, frameSize);
+                if (frameSize > windowLimit) {
+                    resizeWindowLocked(adaptiveWindowTarget());
+                }
+            }
+        }
+
+        private int adaptiveWindowTarget() {
+            if (windowRtt.getSamples() < MIN_ADAPTIVE_RTT_SAMPLES) {
+                return Math.max(windowLimit, Math.min(largestFrame, advertisedWindow));
+            }
+            int target = Math.max(MIN_ADAPTIVE_FLOW_CONTROL_WINDOW, ADAPTIVE_WINDOW_GAIN * windowRtt.getTargetInFlightBytes());
+            return Math.max(target, largestFrame);
+        }
+
+        private void resizeWindowLocked(int limit) {
+            int target = Math.min(limit, advertisedWindow);
+            if (target != windowLimit) {
+                flowControlCredits.adjust(target - windowLimit);
+                windowLimit = target;
+            }
+        }
+
+        /**
+         * Bounds how long a control or AX.25 frame waits for window credits; {@code timeout <= 0}
+         * waits forever. With {@link FlowControlCredits.TimeoutPolicy#FAIL} the sending call throws
+         * {@link FlowControlCredits.StalledException} instead of dropping the frame.
+         */
+        public void setFlowControlTimeout(long timeout, TimeUnit unit, FlowControlCredits.TimeoutPolicy policy) {
+            flowControlCredits.setTimeout(unit.toNanos(timeout), policy);
+        }
+
+        /** Audio frames still waiting for credits after this long are dropped. */
+        public void setAudioLatencyBudget(long budget, TimeUnit unit) {
+            audioLatencyBudgetNanos = unit.toNanos(budget);
+        }
+
+        /** Credit state and stall counters (total stalled ns, stalled and timed-out frames). */
+        public FlowControlCredits getFlowControlCredits() {
+            return flowControlCredits;
+        }
+
+        public FrameClassStats getFrameClassStats(FrameClass frameClass) {
+            switch (frameClass) {
+                case CONTROL:
+                    return controlLane.stats;
+                case DATA:
+                    return dataLane.stats;
+                default:
+                    return audioLane.stats;
+            }
         }
     }
 
+    /**
+     * Sink for encoded KISS frames. The sender reuses its encode buffers for every frame, so
+     * implementations must copy {@code len} bytes out of {@code bytes} before returning. Frames
+     * of different {@link FrameClass}es may be written concurrently from different threads.
+     */
     @FunctionalInterface
     public interface AsyncFrameWriter {
-        void writeAsync(byte[] bytes);
+        void writeAsync(byte[] bytes, int offset, int len);
     }
 
     @FunctionalInterface
@@ -509,50 +666,185 @@ public final class Protocol {
         void accept(ByteBuffer buffer, int offset, int len);
     }
 
+    /**
+     * Routes received frames to the subsystem that registered for them: one slot per vendor
+     * command byte, so dispatch is an array read with no allocation, plus a slot for KISS DATA
+     * (AX.25) frames. New frame types only need a registration. Register handlers before the
+     * parser starts receiving.
+     */
+    public static final class CommandRegistry {
+        private static final BufferConsumer IGNORE_AX25 = (buffer, offset, len) -> { };
+        private final CommandBufferConsumer[] handlers = new CommandBufferConsumer[256];
+        private BufferConsumer ax25Handler = IGNORE_AX25;
+
+        /** A registry sending every known {@link RcvCommand} to one handler, like a {@code switch}. */
+        public static CommandRegistry forwardingAll(CommandBufferConsumer onCommand, BufferConsumer onAx25) {
+            CommandRegistry registry = new CommandRegistry().registerAx25(onAx25);
+            for (RcvCommand command : RcvCommand.values()) {
+                if (command != RcvCommand.COMMAND_RCV_UNKNOWN) {
+                    registry.register(command, onCommand);
+                }
+            }
+            return registry;
+        }
+
+        public CommandRegistry register(RcvCommand command, CommandBufferConsumer handler) {
+            return register(command.getValue(), handler);
+        }
+
+        /**
+         * Registers a handler for a raw command byte, e.g. one not yet named in {@link RcvCommand};
+         * it receives {@code COMMAND_RCV_UNKNOWN} as the command.
+         */
+        public CommandRegistry register(int commandByte, CommandBufferConsumer handler) {
+            if ((commandByte & ~0xFF) != 0) {
+                throw new IllegalArgumentException("Command byte out of range: " + commandByte);
+            }
+            if (handlers[commandByte] != null) {
+                throw new IllegalStateException("Handler already registered for command 0x" + Integer.toHexString(commandByte));
+            }
+            handlers[commandByte] = handler;
+            return this;
+        }
+
+        public CommandRegistry registerAx25(BufferConsumer handler) {
+            ax25Handler = handler != null ? handler : IGNORE_AX25;
+            return this;
+        }
+
+        /** @return {@code false} if nothing is registered for {@code commandByte}. */
+        boolean dispatch(int commandByte, ByteBuffer buffer, int offset, int len) {
+            CommandBufferConsumer handler = handlers[commandByte & 0xFF];
+            if (handler == null) {
+                return false;
+            }
+            handler.accept(RcvCommand.fromValue(commandByte), buffer, offset, len);
+            return true;
+        }
+
+        void dispatchAx25(ByteBuffer buffer, int offset, int len) {
+            ax25Handler.accept(buffer, offset, len);
+        }
+    }
+
     public static class KissParser {
 
+        private static final int DIRECT_CHUNK_SIZE = 512;
         private final ByteBuffer frameBuffer = ByteBuffer.allocate(KISS_MAX_FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final byte[] directChunk = new byte[DIRECT_CHUNK_SIZE];
         private int frameLen = 0;
         private boolean escape = false;
         private boolean dropFrame = false;
         private boolean inFrame = false;
-        private final CommandBufferConsumer onCommand;
-        private final BufferConsumer onAx25;
+        private final CommandRegistry commands;
 
+        /** Sends every known command to {@code onCommand} and AX.25 packets to {@code onAx25}. */
         public KissParser(CommandBufferConsumer onCommand, BufferConsumer onAx25) {
-            this.onCommand = onCommand;
-            this.onAx25 = onAx25;
+            this(CommandRegistry.forwardingAll(onCommand, onAx25));
+        }
+
+        public KissParser(CommandRegistry commands) {
+            this.commands = commands;
         }
 
         public void processBytes(byte[] newData) {
-            for (byte b : newData) {
-                processByte(b);
+            processBytes(newData, 0, newData.length);
+        }
+
+        /**
+         * Parses {@code len} bytes starting at {@code offset}. Runs of plain bytes between
+         * FEND/FESC markers are located with a tight scan and copied into the frame buffer in
+         * bulk, so the per-byte state machine only runs on framing and escape bytes.
+         */
+        public void processBytes(byte[] data, int offset, int len) {
+            final byte[] frame = frameBuffer.array();
+            final int end = offset + len;
+            int pos = offset;
+            while (pos < end) {
+                if (!inFrame || dropFrame) {
+                    while (pos < end && data[pos] != (byte) KISS_FEND) {
+                        pos++;
+                    }
+                    if (pos == end) {
+                        return;
+                    }
+                    pos++;
+                    endFrame();
+                } else if (escape) {
+                    processEscapedByte(data[pos++] & 0xFF);
+                } else {
+                    int runStart = pos;
+                    byte b = 0;
+                    while (pos < end && (b = data[pos]) != (byte) KISS_FEND && b != (byte) KISS_FESC) {
+                        pos++;
+                    }
+                    appendRun(data, runStart, pos - runStart, frame);
+                    if (pos == end) {
+                        return;
+                    }
+                    pos++;
+                    if (b == (byte) KISS_FEND) {
+                        endFrame();
+                    } else {
+                        escape = true;
+                    }
+                }
             }
         }
 
-        private void processByte(byte b) {
-            int value = b & 0xFF;
+        /**
+         * Parses the remaining bytes of {@code data}, advancing its position to the limit.
+         * Direct buffers are staged through a small reusable chunk, so no allocation happens.
+         */
+        public void processBytes(ByteBuffer data) {
+            int remaining = data.remaining();
+            if (data.hasArray()) {
+                processBytes(data.array(), data.arrayOffset() + data.position(), remaining);
+                data.position(data.limit());
+                return;
+            }
+            while (remaining > 0) {
+                int chunk = Math.min(remaining, directChunk.length);
+                data.get(directChunk, 0, chunk);
+                processBytes(directChunk, 0, chunk);
+                remaining -= chunk;
+            }
+        }
+
+        private void processEscapedByte(int value) {
             if (value == KISS_FEND) {
-                if (frameLen > 0 && !dropFrame) {
-                    processFrame();
-                }
-                resetParser();
-                inFrame = true;
-            } else if (inFrame && !dropFrame && escape) {
-                if (value == KISS_TFEND) {
-                    appendByte((byte) KISS_FEND);
-                } else if (value == KISS_TFESC) {
-                    appendByte((byte) KISS_FESC);
-                } else {
-                    // Unknown KISS escape: drop this frame and wait for the next FEND.
-                    dropFrame = true;
-                }
-                escape = false;
-            } else if (inFrame && !dropFrame && value == KISS_FESC) {
-                escape = true;
-            } else if (inFrame && !dropFrame) {
-                appendByte(b);
+                endFrame();
+                return;
+            }
+            if (value == KISS_TFEND) {
+                appendByte((byte) KISS_FEND);
+            } else if (value == KISS_TFESC) {
+                appendByte((byte) KISS_FESC);
+            } else {
+                // Unknown KISS escape: drop this frame and wait for the next FEND.
+                dropFrame = true;
+            }
+            escape = false;
+        }
+
+        private void endFrame() {
+            if (frameLen > 0 && !dropFrame) {
+                processFrame();
             }
+            resetParser();
+            inFrame = true;
+        }
+
+        private void appendRun(byte[] data, int offset, int len, byte[] frame) {
+            if (len == 0) {
+                return;
+            }
+            if (frameLen + len > KISS_MAX_FRAME_SIZE) {
+                dropFrame = true;
+                return;
+            }
+            System.arraycopy(data, offset, frame, frameLen, len);
+            frameLen += len;
         }
 
         private void appendByte(byte b) {
@@ -575,7 +867,7 @@ public final class Protocol {
             }
             if (kissCommand == KISS_CMD_DATA) {
                 if (payloadLen > 0 && payloadLen <= PROTO_MTU) {
-                    onAx25.accept(frameBuffer, 1, payloadLen);
+                    commands.dispatchAx25(frameBuffer, 1, payloadLen);
                 }
             } else if (kissCommand == KISS_CMD_SETHARDWARE) {
                 processVendorFrame(payloadLen);
@@ -602,12 +894,9 @@ public final class Protocol {
             if (commandPayloadLen > PROTO_MTU) {
                 return;
             }
-            RcvCommand cmd = RcvCommand.fromValue(command);
-            if (cmd == RcvCommand.COMMAND_RCV_UNKNOWN) {
+            if (!commands.dispatch(command, frameBuffer, commandPayloadOffset, commandPayloadLen)) {
                 Log.w(TAG, "Unknown KV4P vendor cmd received from ESP32: 0x" + Integer.toHexString(command) + " paramLen=" + commandPayloadLen);
-                return;
             }
-            onCommand.accept(cmd, frameBuffer, commandPayloadOffset, commandPayloadLen);
         }
 
         private void prepareFrameBuffer() {
@@ -26,6 +26,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
@@ -34,7 +35,9 @@ import android.media.AudioAttributes;
 import android.media.AudioFocusRequest;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioRecord;
 import android.media.AudioTrack;
+import android.media.MediaRecorder;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
@@ -42,6 +45,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
@@ -67,7 +71,10 @@ import com.vagell.kv4pht.aprs.parser.MessagePacket;
 import com.vagell.kv4pht.aprs.parser.Parser;
 import com.vagell.kv4pht.aprs.parser.Position;
 import com.vagell.kv4pht.aprs.parser.PositionField;
+import com.vagell.kv4pht.data.AppDatabase;
 import com.vagell.kv4pht.data.ChannelMemory;
+import com.vagell.kv4pht.data.RxTransmission;
+import com.vagell.kv4pht.data.RxTransmissionDao;
 import com.vagell.kv4pht.firmware.FirmwareUtils;
 import com.vagell.kv4pht.javAX25.ax25.Packet;
 import com.vagell.kv4pht.radio.Protocol.KissParser;
@@ -78,17 +85,23 @@ import com.vagell.kv4pht.ui.ToneHelper;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Background service that manages the connection to the ESP32 (to control the radio), and
@@ -117,14 +130,22 @@ public class RadioAudioService extends Service {
     public static final int AUDIO_SAMPLE_RATE = 16000;
     private static final int RX_AUDIO_CHANNEL_CONFIG = AudioFormat.CHANNEL_OUT_MONO;
     private static final int RX_AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int TX_AUDIO_CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
+    private static final int TX_AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
     public static final int AUDIO_FRAME_SAMPLES = 249; // One 128-byte mono IMA ADPCM audio block at 16kHz
     public static final int AUDIO_FRAME_BYTES = ImaAdpcm.encodedSize(AUDIO_FRAME_SAMPLES);
-    private static final int RX_AUDIO_MIN_BUFFER_SIZE =
-            Math.max(AudioTrack.getMinBufferSize(
-                    AUDIO_SAMPLE_RATE,
-                    RX_AUDIO_CHANNEL_CONFIG,
-                    RX_AUDIO_FORMAT),
-                    AUDIO_FRAME_SAMPLES * 2);
+    // Used when the device does not report its native output configuration.
+    private static final int DEFAULT_OUTPUT_SAMPLE_RATE = 48000;
+    private static final int DEFAULT_OUTPUT_FRAMES_PER_BURST = 256;
+    // Audio focus is kept this long after the squelch closes, so a back-and-forth conversation
+    // does not make other apps' audio bounce in and out.
+    private static final long RX_FOCUS_HANG_MS = 3000L;
+    // RX stays silent this long after the track starts or a transmission ends, hiding the
+    // receiver's noise burst as it comes back.
+    private static final long RX_UNMUTE_DELAY_MS = 900L;
+    public static final int DEFAULT_DTMF_KEY_UP_DELAY_MS = 300;
+    // Track capacity, in multiples of the smallest usable buffer, that underrun tuning may grow into.
+    private static final int RX_AUDIO_BUFFER_GROWTH_LIMIT = 4;
 
     // === APRS Constants ===
     public static final int APRS_POSITION_EXACT = 0;
@@ -135,6 +156,8 @@ public class RadioAudioService extends Service {
     public static final int MESSAGE_NOTIFICATION_TO_YOU_ID = 0;
     public static final List<Digipeater> DEFAULT_DIGIPEATERS = List.of(new Digipeater("WIDE1-1"), new Digipeater("WIDE2-1"));
     private static final long SCAN_SQUELCHED_ADVANCE_DELAY_MS = 250L;
+    // Slider drags and scan hops change desired state faster than the firmware needs to hear about it.
+    private static final long DESIRED_STATE_COALESCE_MS = 50L;
 
     // === Used for the persistent notification ===
     private PowerManager.WakeLock wakeLock;
@@ -161,12 +184,39 @@ public class RadioAudioService extends Service {
     public enum RadioModuleType {UNKNOWN, VHF, UHF}
 
     // === Audio / 4-bit IMA ADPCM Handling ===
-    private final short[] pcm16 = new short[AUDIO_FRAME_SAMPLES];
     private AudioTrack audioTrack;
-    private float audioTrackVolume = 0.0f;
-    private AudioFocusRequest audioFocusRequest;
-    private final byte[] txAudioFrame = new byte[AUDIO_FRAME_BYTES];
-    private final ImaAdpcm.Encoder txAudioEncoder = new ImaAdpcm.Encoder();
+    private AudioTrackBufferTuner rxAudioBufferTuner;
+    // Decodes and plays RX audio on its own thread so main-thread jank does not gap the track.
+    private RxAudioPipeline rxAudio;
+    private RxAudioSession rxSession;
+    // Compressed RX audio log, written on the parser thread while recording is on.
+    private final AtomicReference<RxAudioRecorder> rxRecorder = new AtomicReference<>();
+    // The last few minutes of RX audio, still compressed, for instant replay.
+    @Getter
+    private final RxReplayRing rxReplayRing = new RxReplayRing();
+    private volatile Thread rxReplayThread;
+    // Live audio and replay both feed rxAudio, whose ring takes a single producer at a time.
+    private final Object rxAudioProducerLock = new Object();
+    // Squelch-open transmissions, logged to the rx_transmissions table off the parser thread.
+    private final TransmissionSegmenter rxTransmissions = new TransmissionSegmenter(this::logRxTransmission);
+    private ExecutorService rxTransmissionLogger;
+    public static final int MAX_LOGGED_RX_TRANSMISSIONS = 10000;
+    // Mic capture and TX audio encoding while PTT is down; owned here so it survives activity restarts.
+    private AudioRecord txAudioRecord;
+    private TxCaptureEngine txCapture;
+    // Spectrum frames for a waterfall display, only while one is shown (see setSpectrumEnabled).
+    private volatile SpectrumAnalyzer rxSpectrum;
+    private volatile SpectrumAnalyzer txSpectrum;
+    // CTCSS/DCS detection on RX audio, only while requested (see setToneDetectionEnabled).
+    private volatile SubAudibleToneDetector rxToneDetector;
+    // DTMF decoding of RX audio, only while requested (see setDtmfDecodingEnabled).
+    private volatile Dtmf.Decoder rxDtmfDecoder;
+    // Digits from sendDtmf, played by the TX capture engine; set when sendDtmf keyed up for them.
+    private final Dtmf.Generator dtmfGenerator = new Dtmf.Generator(Dtmf.Generator.DEFAULT_TONE_MILLIS,
+        Dtmf.Generator.DEFAULT_GAP_MILLIS, this::onDtmfIdle);
+    private boolean pttKeyedForDtmf;
+    // Silence sent after sendDtmf keys up, so the radio and any repeater open before the first digit.
+    private volatile int dtmfKeyUpDelayMs = DEFAULT_DTMF_KEY_UP_DELAY_MS;
 
     // === USB / Serial ===
     private UsbManager usbManager;
@@ -174,9 +224,23 @@ public class RadioAudioService extends Service {
     private boolean usbPermissionRequestPending = false;
     @Getter
     private Protocol.Sender hostToEsp32;
+    // Opt-in: pack consecutive host->ESP32 frames into fewer transport writes (applies on next connect).
+    @Setter
+    private boolean txFrameCoalescing = false;
+    @Getter
+    private CoalescingFrameWriter txFrameCoalescer;
+    // Opt-in: size the host->ESP32 window from the measured bandwidth-delay product (applies on next connect).
+    @Setter
+    private boolean adaptiveFlowControlWindow = false;
+    // Opt-in: record the raw transport byte stream into this directory (applies on next connect).
+    @Setter
+    private File radioStreamCaptureDir = null;
+    public static final String RADIO_STREAM_CAPTURE_NAME = "radio-stream";
     @Getter
     private final RadioModuleController radioModule = new RadioModuleController();
-    private final KissParser esp32DataStreamParser = new KissParser(this::handleParsedCommand, this::handleEsp32Ax25Packet);
+    @Getter
+    private final Protocol.CommandRegistry esp32Commands = createEsp32CommandRegistry();
+    private final KissParser esp32DataStreamParser = new KissParser(esp32Commands);
     private int usbConnectAttemptSeq = 0;
     private int activeUsbConnectAttemptId = 0;
 
@@ -264,6 +328,14 @@ public class RadioAudioService extends Service {
         default void unknownLocation() {}
         default void forcedPttStart() {}
         default void forcedPttEnd() {}
+        default void txAudioLevel(float level) {}
+        default void rxTransmissionLogged(RxTransmission transmission) {}
+        // On an analyzer thread; columnsDb is reused for the next frame.
+        default void audioSpectrum(boolean tx, float[] columnsDb) {}
+        // On the RX audio thread; tone is a ToneHelper string, a DCS code like "D023N", or "None".
+        default void subAudibleToneDetected(String tone, float confidence) {}
+        // On the RX audio thread, once per digit.
+        default void dtmfDigitReceived(char digit) {}
         default void setRadioType(RadioModuleType ratioType) {}
         default void showNotification(String notificationChannelId, int notificationTypeId, String title, String message, String tapIntentName) {}
     }
@@ -288,6 +360,7 @@ public class RadioAudioService extends Service {
 
     public void setMicGainBoost(String micGainBoost) {
         this.micGainBoost = MicGainBoost.parse(micGainBoost);
+        Optional.ofNullable(txCapture).ifPresent(c -> c.setProcessing(this.micGainBoost.getTxProcessing()));
     }
 
     public void setAprsBeaconPosition(boolean enabled) {
@@ -424,8 +497,12 @@ public class RadioAudioService extends Service {
             nm.createNotificationChannel(chan);
         }
 
+        radioModule.setDesiredStateCoalescing(DESIRED_STATE_COALESCE_MS, TimeUnit.MILLISECONDS, handler::postDelayed);
+
         SecureRandom random = new SecureRandom();
         messageNumber = random.nextInt(APRS_MAX_MESSAGE_NUM); // Start with any Message # from 0-99999, we'll increment it by 1 each tx until restart.
+
+        rxTransmissionLogger = Executors.newSingleThreadExecutor();
     }
 
     /**
@@ -591,11 +668,13 @@ public class RadioAudioService extends Service {
 
         closePortAndReset();
 
-        if (audioTrack != null) {
-            audioTrack.stop();
-            audioTrack.release();
-            audioTrack = null;
+        releaseAudioTrack();
+        setSpectrumEnabled(false);
+        synchronized (this) {
+            rxTransmissions.flush(System.currentTimeMillis());
         }
+        stopRxRecording();
+        rxTransmissionLogger.shutdown();
 
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
@@ -789,34 +868,202 @@ public class RadioAudioService extends Service {
     }
 
     private void initAudioTrack() {
-        if (audioTrack != null) {
-            audioTrack.release();
-            audioTrack = null;
-        }
+        releaseAudioTrack();
         AudioAttributes audioAttributes = new AudioAttributes.Builder()
             .setUsage(AudioAttributes.USAGE_MEDIA)
             .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
             .build();
-        audioFocusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        AudioFocusRequest focusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
             .setAudioAttributes(audioAttributes)
+            .setOnAudioFocusChangeListener(this::onRxAudioFocusChange, handler)
             .build();
+        rxSession = new RxAudioSession(new RxAudioSession.Focus() {
+            @Override
+            public boolean request() {
+                return audioManager.requestAudioFocus(focusRequest) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+            }
+
+            @Override
+            public void abandon() {
+                audioManager.abandonAudioFocusRequest(focusRequest);
+            }
+        }, handler::postDelayed, RX_FOCUS_HANG_MS);
+        // Play at the mixer's native rate so the track qualifies for the low-latency fast mixer
+        // path; radio audio is resampled up from 16kHz on the audio thread.
+        int outputSampleRate = getAudioProperty(audioManager,
+            AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE, DEFAULT_OUTPUT_SAMPLE_RATE);
+        int framesPerBurst = getAudioProperty(audioManager,
+            AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER, DEFAULT_OUTPUT_FRAMES_PER_BURST);
+        // Start at the platform minimum and let underrun telemetry move the size between one
+        // resampled radio frame and the capacity allocated here.
+        int minBufferFrames = rxAudioMinBufferFrames(outputSampleRate, framesPerBurst);
+        int initialBufferFrames = Math.max(minBufferFrames,
+            AudioTrack.getMinBufferSize(outputSampleRate, RX_AUDIO_CHANNEL_CONFIG, RX_AUDIO_FORMAT) / 2);
+        int capacityFrames = Math.max(initialBufferFrames, RX_AUDIO_BUFFER_GROWTH_LIMIT * minBufferFrames);
+        Log.i(TAG, "RX audio output: " + outputSampleRate + "Hz, burst=" + framesPerBurst
+            + " frames, buffer=" + initialBufferFrames + "/" + capacityFrames + " frames");
         audioTrack = new AudioTrack.Builder()
             .setAudioAttributes(audioAttributes)
             .setAudioFormat(new AudioFormat.Builder()
                 .setEncoding(RX_AUDIO_FORMAT)
-                .setSampleRate(AUDIO_SAMPLE_RATE)
+                .setSampleRate(outputSampleRate)
                 .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
                 .build())
             .setTransferMode(AudioTrack.MODE_STREAM)
-            .setBufferSizeInBytes(RX_AUDIO_MIN_BUFFER_SIZE)
+            .setBufferSizeInBytes(capacityFrames * 2)
             .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
             .build();
-        audioTrack.setVolume(0.0f);
-        audioTrackVolume = 0.0f;
+        audioTrack.setBufferSizeInFrames(initialBufferFrames);
+        rxAudioBufferTuner = new AudioTrackBufferTuner(
+            audioTrackForTuning(audioTrack), outputSampleRate, framesPerBurst, minBufferFrames);
         audioTrack.setAuxEffectSendLevel(0.0f);
+        rxAudio = createRxAudioPipeline(audioTrack, outputSampleRate, rxAudioBufferTuner, rxSession);
+        rxAudio.start();
         callbacks.audioTrackCreated();
     }
 
+    private static int getAudioProperty(AudioManager audioManager, String property, int fallback) {
+        String value = audioManager == null ? null : audioManager.getProperty(property);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            return parsed > 0 ? parsed : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /** Smallest track buffer: whole output bursts holding one resampled radio audio frame. */
+    private static int rxAudioMinBufferFrames(int outputSampleRate, int framesPerBurst) {
+        int frameSamples = (int) Math.ceil((double) AUDIO_FRAME_SAMPLES * outputSampleRate / AUDIO_SAMPLE_RATE);
+        return (frameSamples + framesPerBurst - 1) / framesPerBurst * framesPerBurst;
+    }
+
+    private static AudioTrackBufferTuner.Track audioTrackForTuning(AudioTrack track) {
+        return new AudioTrackBufferTuner.Track() {
+            @Override
+            public int getUnderrunCount() {
+                return track.getUnderrunCount();
+            }
+
+            @Override
+            public int getBufferSizeInFrames() {
+                return track.getBufferSizeInFrames();
+            }
+
+            @Override
+            public int setBufferSizeInFrames(int frames) {
+                return track.setBufferSizeInFrames(frames);
+            }
+
+            @Override
+            public int getBufferCapacityInFrames() {
+                return track.getBufferCapacityInFrames();
+            }
+        };
+    }
+
+    private void onRxAudioFocusChange(int focusChange) {
+        RxAudioSession session = rxSession;
+        if (session == null) {
+            return;
+        }
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                session.onFocusChange(RxAudioSession.FocusChange.GAIN);
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS:
+                session.onFocusChange(RxAudioSession.FocusChange.LOSS);
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                session.onFocusChange(RxAudioSession.FocusChange.LOSS_TRANSIENT);
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                session.onFocusChange(RxAudioSession.FocusChange.LOSS_TRANSIENT_CAN_DUCK);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private RxAudioPipeline createRxAudioPipeline(AudioTrack track, int outputSampleRate,
+                                                  AudioTrackBufferTuner tuner, RxAudioSession session) {
+        PolyphaseResampler resampler = outputSampleRate == AUDIO_SAMPLE_RATE
+            ? null : new PolyphaseResampler(AUDIO_SAMPLE_RATE, outputSampleRate);
+        short[] resampled = resampler == null ? null : new short[resampler.maxOutputSamples(AUDIO_FRAME_SAMPLES)];
+        return new RxAudioPipeline(new RxAudioPipeline.PcmSink() {
+            @Override
+            public void write(short[] pcm, int offset, int len) {
+                SpectrumAnalyzer spectrum = rxSpectrum;
+                if (spectrum != null) {
+                    spectrum.offer(pcm, offset, len);
+                }
+                SubAudibleToneDetector toneDetector = rxToneDetector;
+                if (toneDetector != null) {
+                    toneDetector.process(pcm, offset, len);
+                }
+                Dtmf.Decoder dtmfDecoder = rxDtmfDecoder;
+                if (dtmfDecoder != null) {
+                    dtmfDecoder.process(pcm, offset, len);
+                }
+                session.applyVolume(pcm, offset, len);
+                // Only block while playing; a stopped track would otherwise park the audio thread.
+                boolean trackPlaying = track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+                int writeMode = trackPlaying ? AudioTrack.WRITE_BLOCKING : AudioTrack.WRITE_NON_BLOCKING;
+                if (resampler == null) {
+                    track.write(pcm, offset, len, writeMode);
+                } else {
+                    track.write(resampled, 0, resampler.process(pcm, offset, len, resampled, 0), writeMode);
+                }
+                if (trackPlaying) {
+                    tuner.onFrameWritten(System.nanoTime());
+                } else {
+                    tuner.onIdle();
+                }
+            }
+
+            @Override
+            public void onIdle() {
+                tuner.onIdle();
+            }
+        }, audioThreadFactory("kv4p-rx-audio", Process.THREAD_PRIORITY_URGENT_AUDIO));
+    }
+
+    private static ThreadFactory audioThreadFactory(String name, int priority) {
+        return runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(priority);
+                runnable.run();
+            }, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private void releaseAudioTrack() {
+        stopRxReplay();
+        if (rxSession != null) {
+            rxSession.close();
+            rxSession = null;
+        }
+        // Stop the audio thread first so it never writes to a released track.
+        if (rxAudio != null) {
+            rxAudio.close();
+            Log.i(TAG, "RX audio: played=" + rxAudio.getFramesPlayed() + " overruns=" + rxAudio.getOverruns()
+                + " " + rxAudio.getJitterBuffer() + " " + rxAudioBufferTuner);
+            rxAudio = null;
+            rxAudioBufferTuner = null;
+        }
+        if (audioTrack != null) {
+            audioTrack.stop();
+            audioTrack.release();
+            audioTrack = null;
+        }
+    }
+
     private void setTxRunAwayTimer() {
         // cancel any existing timeout
         if (txTimeoutHandler != null) {
@@ -838,13 +1085,13 @@ public class RadioAudioService extends Service {
             return;
         }
         if (mode == RadioMode.RX && isTxAllowed()) {
-            txAudioEncoder.reset();
             setMode(RadioMode.TX);
             callbacks.sMeterUpdate(0);
             setTxRunAwayTimer();
             radioModule.pttDown();
-            audioTrackVolume = 0.0f;
-            Optional.ofNullable(audioTrack).ifPresent(t -> t.setVolume(0.0f));
+            stopRxReplay();
+            Optional.ofNullable(rxSession).ifPresent(RxAudioSession::mute);
+            startTxAudioCapture();
             callbacks.txStarted();
         } else {
             Log.w(TAG, "Attempted to start PTT when not allowed", new Throwable());
@@ -852,15 +1099,72 @@ public class RadioAudioService extends Service {
     }
 
     public void endPtt() {
+        pttKeyedForDtmf = false;
+        dtmfGenerator.cancel();
         if (mode == RadioMode.TX) {
-            setMode(RadioMode.RX);
-            audioTrackVolume = 0.0f;
-            Optional.ofNullable(audioTrack).ifPresent(t -> t.setVolume(0.0f));
+            // Unkey first: the control lane overtakes any audio still queued, and stopping capture
+            // (which waits for the TX thread) cannot hold the transmitter keyed.
             radioModule.pttUp();
+            stopTxAudioCapture();
+            setMode(RadioMode.RX);
+            Optional.ofNullable(rxSession).ifPresent(s -> s.unmuteAfter(RX_UNMUTE_DELAY_MS));
             callbacks.txEnded();
         }
     }
 
+    private void startTxAudioCapture() {
+        stopTxAudioCapture();
+        if (checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "No RECORD_AUDIO permission, transmitting without mic audio.");
+            return;
+        }
+        int bufferSize = Math.max(
+            AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE, TX_AUDIO_CHANNEL_CONFIG, TX_AUDIO_FORMAT),
+            AUDIO_FRAME_SAMPLES * 2);
+        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC,
+            AUDIO_SAMPLE_RATE, TX_AUDIO_CHANNEL_CONFIG, TX_AUDIO_FORMAT, bufferSize);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.w(TAG, "AudioRecord not ready, transmitting without mic audio.");
+            record.release();
+            return;
+        }
+        txCapture = new TxCaptureEngine(
+            (buffer, sizeInBytes) -> record.read(buffer, sizeInBytes, AudioRecord.READ_BLOCKING),
+            (adpcm, len) -> {
+                Protocol.Sender sender = hostToEsp32;
+                if (sender != null) { // If connection is lost, just drop the audio frame.
+                    sender.txAudio(adpcm, len);
+                }
+            },
+            level -> callbacks.txAudioLevel(level),
+            audioThreadFactory("kv4p-tx-capture", Process.THREAD_PRIORITY_URGENT_AUDIO),
+            audioThreadFactory("kv4p-tx-audio", Process.THREAD_PRIORITY_AUDIO),
+            TxCaptureEngine.DEFAULT_CAPACITY_BLOCKS);
+        txCapture.setProcessing(micGainBoost.getTxProcessing());
+        txCapture.setSpectrumAnalyzer(txSpectrum);
+        txCapture.setDtmfGenerator(dtmfGenerator);
+        txAudioRecord = record;
+        record.startRecording();
+        txCapture.start();
+    }
+
+    private void stopTxAudioCapture() {
+        // Stop the engine first so nothing reads from a released AudioRecord.
+        if (txCapture != null) {
+            txCapture.close();
+            Log.i(TAG, "TX audio: captured=" + txCapture.getBlocksCaptured() + " sent=" + txCapture.getBlocksSent()
+                + " overruns=" + txCapture.getOverruns() + " maxQueueDelay="
+                + TimeUnit.NANOSECONDS.toMillis(txCapture.getMaxQueueDelayNanos()) + "ms");
+            txCapture = null;
+        }
+        if (txAudioRecord != null) {
+            txAudioRecord.stop();
+            txAudioRecord.release();
+            txAudioRecord = null;
+        }
+        callbacks.txAudioLevel(0.0f);
+    }
+
     public void reconnectViaUSB() {
         Log.i(TAG, connectLog("reconnectViaUSB(): clearing pending state for next attempt"));
         usbPermissionRequestPending = false;
@@ -887,10 +1191,22 @@ public class RadioAudioService extends Service {
     }
 
     private void closePortAndReset() {
+        stopTxAudioCapture();
         waitingForHello = false;
         cancelHelloTimeout();
         radioModule.detachSender();
+        Log.i(TAG, "Desired state frames: sent=" + radioModule.getDesiredStateFramesSent()
+            + " suppressed=" + radioModule.getDesiredStateFramesSuppressed()
+            + " retries=" + radioModule.getDesiredStateRetriesSent());
+        if (hostToEsp32 != null && hostToEsp32.getWindowRtt().getSamples() > 0) {
+            Log.i(TAG, "Flow control link: " + hostToEsp32.getWindowRtt()
+                + " window=" + hostToEsp32.getFlowControlWindowLimit() + "B");
+        }
         hostToEsp32 = null;
+        if (txFrameCoalescer != null) {
+            txFrameCoalescer.close();
+            txFrameCoalescer = null;
+        }
         RadioTransport transport = activeTransport;
         activeTransport = null;
         if (transport != null) {
@@ -1004,13 +1320,48 @@ public class RadioAudioService extends Service {
         } catch (Exception e) {
             // Ignore, may not be supported on all devices.
         }
-        RadioTransport transport = new UsbSerialRadioTransport(serialPort, handler);
+        RadioTransport transport = withStreamCapture(new UsbSerialRadioTransport(serialPort, handler));
         activeTransport = transport;
         transport.start(createTransportListener(transport));
     }
 
+    /** Connects to a simulated ESP32 instead of real hardware, for load testing the host stack. */
+    public void connectSimulatedRadio(SimulatedEsp32Transport simulator) {
+        closePortAndReset();
+        activeTransport = simulator;
+        simulator.start(onMainThread(createTransportListener(simulator)));
+    }
+
+    /**
+     * Delivers every callback of {@code listener} on the main thread, as the USB and BLE
+     * transports do, for transports that call back from their own threads.
+     */
+    private RadioTransport.Listener onMainThread(RadioTransport.Listener listener) {
+        return new RadioTransport.Listener() {
+            @Override
+            public void onBytes(byte[] bytes) {
+                handler.post(() -> listener.onBytes(bytes));
+            }
+
+            @Override
+            public void onReady() {
+                handler.post(listener::onReady);
+            }
+
+            @Override
+            public void onDisconnected() {
+                handler.post(listener::onDisconnected);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                handler.post(() -> listener.onError(error));
+            }
+        };
+    }
+
     private void attemptBleConnect() {
-        RadioTransport transport = new BleKissRadioTransport(this, handler);
+        RadioTransport transport = withStreamCapture(new BleKissRadioTransport(this, handler));
         activeTransport = transport;
         transport.start(createTransportListener(transport));
     }
@@ -1028,7 +1379,13 @@ public class RadioAudioService extends Service {
                     return;
                 }
                 callbacks.hideSnackBar();
-                hostToEsp32 = new Protocol.Sender(transport::writeAsync);
+                Protocol.AsyncFrameWriter writer = transport::writeAsync;
+                if (txFrameCoalescing) {
+                    txFrameCoalescer = new CoalescingFrameWriter(writer);
+                    writer = txFrameCoalescer;
+                }
+                hostToEsp32 = new Protocol.Sender(writer);
+                hostToEsp32.setAdaptiveFlowControlWindow(adaptiveFlowControlWindow);
                 radioModule.attachSender(hostToEsp32);
                 Log.i(TAG, connectLog(transport.getName() + " connected; starting handshake"));
                 startProtocolHandshake();
@@ -1059,6 +1416,45 @@ public class RadioAudioService extends Service {
         esp32DataStreamParser.processBytes(data);
     }
 
+    private RadioTransport withStreamCapture(RadioTransport transport) {
+        if (radioStreamCaptureDir == null) {
+            return transport;
+        }
+        return new RecordingRadioTransport(transport, new RadioStreamRecorder(radioStreamCaptureDir, RADIO_STREAM_CAPTURE_NAME));
+    }
+
+    /**
+     * Feeds the radio-to-host side of a capture through the same parser and handlers as a live
+     * connection. The capture is read and paced on its own thread, and each chunk is posted to
+     * the main thread like USB data. Without a connected radio, anything the handlers send back
+     * is discarded. Interrupt the returned thread to stop early.
+     */
+    public Thread replayRadioStream(List<File> captureFiles, boolean realTime) {
+        if (hostToEsp32 == null) {
+            hostToEsp32 = new Protocol.Sender((bytes, offset, len) -> { }, false);
+            radioModule.attachSender(hostToEsp32);
+        }
+        RadioStreamReplayer replayer = new RadioStreamReplayer(captureFiles);
+        Thread replay = new Thread(() -> {
+            try {
+                long chunks = replayer.replay((direction, bytes, offset, len) -> {
+                    if (direction == RadioStreamRecorder.Direction.FROM_RADIO) {
+                        // The replayer reuses its chunk buffer once this returns.
+                        byte[] copy = Arrays.copyOfRange(bytes, offset, offset + len);
+                        handler.post(() -> processRadioBytes(copy));
+                    }
+                }, realTime);
+                Log.i(TAG, "Replayed " + chunks + " radio stream chunks from " + captureFiles);
+            } catch (IOException e) {
+                Log.w(TAG, "Radio stream replay failed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "RadioStreamReplay");
+        replay.start();
+        return replay;
+    }
+
     public void radioConnected() {
         Log.i(TAG, connectLog("radioConnected(): handshake complete; state=" + connectionStateSummary()));
         radioMissingNotified = false;
@@ -1355,35 +1751,6 @@ public class RadioAudioService extends Service {
         Log.d(TAG, "Warning: All memories are skipDuringScan, no next memory found to scan to.");
     }
 
-    private short[] applyMicGain(short[] audioBuffer, int samples) {
-        if (micGainBoost == MicGainBoost.NONE) {
-            return audioBuffer; // No gain, just return original
-        }
-        float gain = micGainBoost.getGain();
-        for (int i = 0; i < samples; i++) {
-            int sample = Math.round(audioBuffer[i] * gain);
-            if (sample > Short.MAX_VALUE) {
-                sample = Short.MAX_VALUE;
-            } else if (sample < Short.MIN_VALUE) {
-                sample = Short.MIN_VALUE;
-            }
-            audioBuffer[i] = (short) sample;
-        }
-        return audioBuffer;
-    }
-
-    public void sendAudioToESP32(short[] samples, boolean dataMode) {
-        Protocol.Sender sender = hostToEsp32;
-        if (sender == null) {
-            return; // If connection is lost, just drop the audio frame.
-        }
-        if (!dataMode) {
-            applyMicGain(samples, AUDIO_FRAME_SAMPLES);
-        }
-        int encodedLength = txAudioEncoder.encodeBlock(samples, 0, AUDIO_FRAME_SAMPLES, txAudioFrame, 0);
-        sender.txAudio(txAudioFrame, encodedLength);
-    }
-
     public boolean isRadioConnected() {
         return isConnectionReady() && mode != RadioMode.STARTUP;
     }
@@ -1402,57 +1769,41 @@ public class RadioAudioService extends Service {
     }
 
     /**
-     * Handles the parsed command received from the ESP32.
-     * It processes various commands such as S-meter reports, PTT control,
-     * debug messages, HELLO command, RX audio, version information, and window updates.
-     *
-     * @param cmd   The command received from the ESP32.
-     * @param param The parameters associated with the command.
-     * @param len   The length of the parameters.
+     * Builds the handler table for frames received from the ESP32. Each subsystem (firmware
+     * debug log, link/state, RX audio, AX.25) registers its own commands; other components can
+     * add new frame types through {@link #getEsp32Commands()}.
      */
-    @SuppressWarnings({"java:S6541"})
-    private void handleParsedCommand(final RcvCommand cmd, final ByteBuffer param, final int offset, final int len) {
-        switch (cmd) {
-            case COMMAND_DEBUG_INFO:
-                Log.i(FIRMWARE_TAG, firmwareString(param, offset, len));
-                break;
-
-            case COMMAND_DEBUG_DEBUG:
-                Log.d(FIRMWARE_TAG, firmwareString(param, offset, len));
-                break;
-
-            case COMMAND_DEBUG_ERROR:
-                Log.e(FIRMWARE_TAG, firmwareString(param, offset, len));
-                break;
-
-            case COMMAND_DEBUG_WARN:
-                Log.w(FIRMWARE_TAG, firmwareString(param, offset, len));
-                break;
-
-            case COMMAND_DEBUG_TRACE:
-                Log.v(FIRMWARE_TAG, firmwareString(param, offset, len));
-                break;
-
-            case COMMAND_HELLO:
-                handleHelloReceived(Protocol.Hello.from(param, offset, len));
-                break;
-
-            case COMMAND_RX_AUDIO:
-                handleRxAudio(param, offset, len);
-                break;
-
-            case COMMAND_WINDOW_UPDATE:
+    private Protocol.CommandRegistry createEsp32CommandRegistry() {
+        Protocol.CommandRegistry registry = new Protocol.CommandRegistry();
+        registerFirmwareLogHandlers(registry);
+        registerLinkHandlers(registry);
+        registerAudioHandlers(registry);
+        registry.registerAx25(this::handleEsp32Ax25Packet);
+        return registry;
+    }
+
+    private void registerFirmwareLogHandlers(Protocol.CommandRegistry registry) {
+        registry
+            .register(RcvCommand.COMMAND_DEBUG_INFO, (cmd, param, offset, len) -> Log.i(FIRMWARE_TAG, firmwareString(param, offset, len)))
+            .register(RcvCommand.COMMAND_DEBUG_DEBUG, (cmd, param, offset, len) -> Log.d(FIRMWARE_TAG, firmwareString(param, offset, len)))
+            .register(RcvCommand.COMMAND_DEBUG_ERROR, (cmd, param, offset, len) -> Log.e(FIRMWARE_TAG, firmwareString(param, offset, len)))
+            .register(RcvCommand.COMMAND_DEBUG_WARN, (cmd, param, offset, len) -> Log.w(FIRMWARE_TAG, firmwareString(param, offset, len)))
+            .register(RcvCommand.COMMAND_DEBUG_TRACE, (cmd, param, offset, len) -> Log.v(FIRMWARE_TAG, firmwareString(param, offset, len)));
+    }
+
+    private void registerLinkHandlers(Protocol.CommandRegistry registry) {
+        registry
+            .register(RcvCommand.COMMAND_HELLO, (cmd, param, offset, len) ->
+                handleHelloReceived(Protocol.Hello.from(param, offset, len)))
+            .register(RcvCommand.COMMAND_WINDOW_UPDATE, (cmd, param, offset, len) ->
                 WindowUpdate.from(param, offset, len).ifPresent(windowAck ->
-                    hostToEsp32.enlargeFlowControlWindow(windowAck.getSize()));
-                break;
-
-            case COMMAND_DEVICE_STATE:
-                Protocol.DeviceState.from(param, offset, len).ifPresent(this::handleDeviceState);
-                break;
+                    hostToEsp32.enlargeFlowControlWindow(windowAck.getSize())))
+            .register(RcvCommand.COMMAND_DEVICE_STATE, (cmd, param, offset, len) ->
+                Protocol.DeviceState.from(param, offset, len).ifPresent(this::handleDeviceState));
+    }
 
-            default:
-                break;
-        }
+    private void registerAudioHandlers(Protocol.CommandRegistry registry) {
+        registry.register(RcvCommand.COMMAND_RX_AUDIO, (cmd, param, offset, len) -> handleRxAudio(param, offset, len));
     }
 
     private String firmwareString(ByteBuffer param, int offset, int len) {
@@ -1489,6 +1840,16 @@ public class RadioAudioService extends Service {
         syncActiveRadioConfig(state);
         final boolean deviceTxActive = radioModule.isDeviceTxActive();
         callbacks.moduleStateChanged(deviceTxActive, radioModule.isSquelched());
+        boolean audible = isReceiving() && !radioModule.isSquelched();
+        if (rxSession != null) {
+            rxSession.onSquelch(audible || rxReplayThread != null);
+        }
+        RxAudioRecorder recorder = rxRecorder.get();
+        if (recorder != null) {
+            recorder.onSquelch(audible);
+        }
+        rxTransmissions.onSquelch(audible, activeFrequencyStr, activeMemoryId, state.getLatestRssi(),
+            System.currentTimeMillis(), recorder);
         if (radioModule.isAppliedStateInSync() && radioModule.getTxFrequency() > 0) {
             updateTxAllowed(radioModule.getTxFrequency());
         }
@@ -1529,55 +1890,57 @@ public class RadioAudioService extends Service {
     }
 
     /**
-     * Handles incoming audio data from the ESP32, decoding it and playing it through the AudioTrack.
-     * If in RX or SCAN mode, it processes the audio samples and manages the AFSK demodulator.
-     * In SCAN mode, firmware squelch state determines whether scanning should advance.
+     * Handles incoming audio data from the ESP32, queueing it for the RX audio thread to decode
+     * and play through the AudioTrack. Focus and volume are up to {@link RxAudioSession}, driven
+     * by the squelch state, so nothing here calls into the audio system per frame.
      *
-     * @param param The byte array containing the audio data.
+     * @param param The frame buffer containing the audio data; it need not have a backing array.
      * @param len   The length of the audio data in bytes.
      */
     private void handleRxAudio(final ByteBuffer param, final int offset, final int len) {
-        if (param == null || !param.hasArray() || offset < 0 || len <= 0 || param.limit() < offset + len) {
+        if (param == null || offset < 0 || len <= 0 || param.limit() < offset + len) {
             return;
         }
-        int decoded = ImaAdpcm.decodeBlock(param.array(), offset, len, pcm16, 0, AUDIO_FRAME_SAMPLES);
-
-        if ((getMode() == RadioMode.RX || getMode() == RadioMode.SCAN) && audioTrack != null) {
-            AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-            audioTrack.write(pcm16, 0, decoded, AudioTrack.WRITE_NON_BLOCKING);
-            audioManager.requestAudioFocus(audioFocusRequest);
-            ensureAudioPlaying();
-        }
-    }
-
-    /**
-     * Ensures that the AudioTrack is playing and gradually adjusts its volume.
-     * The volume is increased smoothly based on a factor of alpha.
-     * This method is intended to apply smooth volume adjustments to the AudioTrack.
-     * <p>
-     * The method first checks if the AudioTrack is playing. If it is not playing, the method starts the playback.
-     * Then, the volume is adjusted by applying a smoothing factor using a simple exponential-like formula.
-     * </p>
-     *
-     * @see AudioTrack
-     * @see AudioTrack#setVolume(float)
-     */
-    private void ensureAudioPlaying() {
-        if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
-            audioTrackVolume = 0;
-            audioTrack.setVolume(0.0f);
-            audioTrack.play();
+        if (!isReceiving()) {
+            return;
         }
-        float alpha = 0.02f;
-        audioTrackVolume = alpha + (1.0f - alpha) * audioTrackVolume;
-        if (audioTrackVolume > 0.7f) {
-            audioTrack.setVolume(audioTrackVolume);
+        RxAudioRecorder recorder = rxRecorder.get();
+        if (recorder != null) {
+            recorder.append(param, offset, len);
         }
-        else {
-            audioTrack.setVolume(0.0f);
+        rxTransmissions.onAudio(System.currentTimeMillis());
+        rxReplayRing.append(param, offset, len, System.nanoTime(), radioModule.getRxFrequency(), !radioModule.isSquelched());
+        if (audioTrack != null) {
+            synchronized (rxAudioProducerLock) {
+                if (rxReplayThread == null) {
+                    rxAudio.offerAdpcm(param, offset, len);
+                }
+            }
+            if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                rxSession.unmuteAfter(RX_UNMUTE_DELAY_MS);
+                audioTrack.play();
+            }
         }
     }
 
+    private void logRxTransmission(RxTransmission transmission) {
+        Log.d(TAG, "RX transmission on " + transmission.frequency + ": " + transmission.getDurationMillis() + "ms");
+        rxTransmissionLogger.execute(() -> {
+            try {
+                RxTransmissionDao dao = AppDatabase.getInstance(getApplicationContext()).rxTransmissionDao();
+                dao.insertAll(transmission);
+                dao.trimTo(MAX_LOGGED_RX_TRANSMISSIONS);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to log RX transmission", e);
+            }
+        });
+        callbacks.rxTransmissionLogged(transmission);
+    }
+
+    private boolean isReceiving() {
+        return getMode() == RadioMode.RX || getMode() == RadioMode.SCAN;
+    }
+
     private void handleAx25Packet(byte[] packet, int offset, int len) {
         try {
             APRSPacket aprsPacket = Parser.parseAX25(packet, offset, len);
@@ -1876,6 +2239,207 @@ public class RadioAudioService extends Service {
         return Optional.ofNullable(audioTrack).map(AudioTrack::getAudioSessionId).orElse(-1);
     }
 
+    /** RX playout delay, late and concealed frame counts, or empty before the audio track exists. */
+    public Optional<RxJitterBuffer> getRxJitterBuffer() {
+        return Optional.ofNullable(rxAudio).map(RxAudioPipeline::getJitterBuffer);
+    }
+
+    /** RX track buffer size, latency, underruns and resize history, or empty before the audio track exists. */
+    public Optional<AudioTrackBufferTuner> getRxAudioBufferTuner() {
+        return Optional.ofNullable(rxAudioBufferTuner);
+    }
+
+    /**
+     * Starts logging received audio to {@code wavFile} (an IMA ADPCM WAV plus its squelch
+     * segment index), replacing any recording in progress.
+     */
+    public void startRxRecording(File wavFile) throws IOException {
+        RxAudioRecorder recorder = new RxAudioRecorder(wavFile);
+        recorder.onSquelch(isReceiving() && !radioModule.isSquelched());
+        RxAudioRecorder previous = rxRecorder.getAndSet(recorder);
+        if (previous != null) {
+            previous.close();
+        }
+        Log.i(TAG, "RX recording started: " + wavFile);
+    }
+
+    public void stopRxRecording() {
+        RxAudioRecorder recorder = rxRecorder.getAndSet(null);
+        if (recorder != null) {
+            recorder.close();
+            Log.i(TAG, "RX recording stopped after " + recorder.getDurationMillis() + "ms: " + recorder.getFile());
+        }
+    }
+
+    /** The recording in progress, or empty when not recording. */
+    public Optional<RxAudioRecorder> getRxRecorder() {
+        return Optional.ofNullable(rxRecorder.get());
+    }
+
+    /**
+     * Starts or stops spectrum analysis of RX and TX audio. While enabled, frames arrive through
+     * {@link RadioAudioServiceCallbacks#audioSpectrum} at the display frame rate, on analyzer
+     * threads; leave it off when no waterfall is visible.
+     */
+    public synchronized void setSpectrumEnabled(boolean enabled) {
+        if (enabled == (rxSpectrum != null)) {
+            return;
+        }
+        if (enabled) {
+            ThreadFactory threads = audioThreadFactory("kv4p-spectrum", Process.THREAD_PRIORITY_DEFAULT);
+            rxSpectrum = new SpectrumAnalyzer(columnsDb -> callbacks.audioSpectrum(false, columnsDb), threads);
+            txSpectrum = new SpectrumAnalyzer(columnsDb -> callbacks.audioSpectrum(true, columnsDb), threads);
+        } else {
+            SpectrumAnalyzer rx = rxSpectrum;
+            SpectrumAnalyzer tx = txSpectrum;
+            rxSpectrum = null;
+            txSpectrum = null;
+            rx.close();
+            tx.close();
+        }
+        Optional.ofNullable(txCapture).ifPresent(capture -> capture.setSpectrumAnalyzer(txSpectrum));
+    }
+
+    /**
+     * Starts or stops identifying the CTCSS tone or DCS code on received audio, reported through
+     * {@link RadioAudioServiceCallbacks#subAudibleToneDetected} when it changes. The radio
+     * module's high-pass filter strips these tones, so it must be off for anything to be found.
+     */
+    public synchronized void setToneDetectionEnabled(boolean enabled) {
+        if (enabled == (rxToneDetector != null)) {
+            return;
+        }
+        if (enabled && radioModule.isHighpassEnabled()) {
+            Log.w(TAG, "Tone detection enabled with the high-pass filter on; sub-audible tones will not be heard.");
+        }
+        rxToneDetector = enabled ? new SubAudibleToneDetector(
+            (tone, confidence) -> callbacks.subAudibleToneDetected(tone, confidence)) : null;
+    }
+
+    /** Starts or stops DTMF decoding of received audio, reported through {@link RadioAudioServiceCallbacks#dtmfDigitReceived}. */
+    public synchronized void setDtmfDecodingEnabled(boolean enabled) {
+        if (enabled == (rxDtmfDecoder != null)) {
+            return;
+        }
+        rxDtmfDecoder = enabled ? new Dtmf.Decoder(digit -> callbacks.dtmfDigitReceived(digit)) : null;
+    }
+
+    /**
+     * Transmits {@code digits} as DTMF, e.g. to control a repeater or link node. The TX capture
+     * engine plays the tones in place of mic audio, so they are encoded and flow-controlled on
+     * their way to {@link Protocol.Sender#txAudio} like speech, and mic capture must be possible.
+     * If PTT is not already down it is keyed for the digits, which start after the key-up delay
+     * (see {@link #setDtmfKeyUpDelayMs}), and released once they are sent; releasing PTT early
+     * drops any digits not yet played.
+     *
+     * @return false if the digits are invalid, too many are queued, or transmitting is not possible.
+     */
+    public boolean sendDtmf(String digits) {
+        if (mode != RadioMode.TX) {
+            if (mode != RadioMode.RX || !isTxAllowed() || hostToEsp32 == null) {
+                return false;
+            }
+            if (!dtmfGenerator.queue(digits, dtmfKeyUpDelayMs)) {
+                return false;
+            }
+            startPtt();
+            if (mode != RadioMode.TX || txCapture == null) {
+                // No mic capture means no TX audio path for the tones.
+                endPtt();
+                return false;
+            }
+            pttKeyedForDtmf = true;
+            return true;
+        }
+        if (txCapture == null) {
+            return false;
+        }
+        return dtmfGenerator.queue(digits);
+    }
+
+    /** Silence transmitted before the first digit when {@link #sendDtmf} keys PTT itself. */
+    public void setDtmfKeyUpDelayMs(int delayMs) {
+        if (delayMs < 0) {
+            throw new IllegalArgumentException("Negative DTMF key-up delay: " + delayMs);
+        }
+        dtmfKeyUpDelayMs = delayMs;
+    }
+
+    // On the TX audio thread, after the last queued digit's gap.
+    private void onDtmfIdle() {
+        handler.post(() -> {
+            if (pttKeyedForDtmf && !dtmfGenerator.isActive()) {
+                endPtt();
+            }
+        });
+    }
+
+    /** Replays the most recent transmission held in the replay ring; false if there is none. */
+    public boolean replayLastRxTransmission() {
+        return rxReplayRing.lastTransmission().map(this::replayRxAudio).orElse(false);
+    }
+
+    /** Replays what was received from {@code fromMillisAgo} until {@code toMillisAgo}; false if nothing was. */
+    public boolean replayRecentRxAudio(long fromMillisAgo, long toMillisAgo) {
+        long now = System.nanoTime();
+        return rxReplayRing.range(now - TimeUnit.MILLISECONDS.toNanos(fromMillisAgo),
+            now - TimeUnit.MILLISECONDS.toNanos(toMillisAgo)).map(this::replayRxAudio).orElse(false);
+    }
+
+    public boolean isReplayingRx() {
+        return rxReplayThread != null;
+    }
+
+    public void stopRxReplay() {
+        Thread replay = rxReplayThread;
+        if (replay == null) {
+            return;
+        }
+        replay.interrupt();
+        try {
+            replay.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Plays {@code range} of the replay ring through the RX pipeline in place of live audio,
+     * which resumes when the replay ends. Only while receiving, since TX mutes the RX path.
+     */
+    private boolean replayRxAudio(RxReplayRing.Range range) {
+        stopRxReplay();
+        final RxAudioPipeline pipeline = rxAudio;
+        final RxAudioSession session = rxSession;
+        if (pipeline == null || session == null || audioTrack == null || !isReceiving()) {
+            return false;
+        }
+        Thread replay = new Thread(() -> {
+            try {
+                long blocks = rxReplayRing.replay(range, (adpcm, len) -> {
+                    synchronized (rxAudioProducerLock) {
+                        pipeline.offerAdpcm(adpcm, 0, len);
+                    }
+                }, true);
+                Log.i(TAG, "Replayed " + blocks + " RX audio blocks");
+            } catch (InterruptedException e) {
+                Log.d(TAG, "RX audio replay stopped");
+            } finally {
+                synchronized (rxAudioProducerLock) {
+                    rxReplayThread = null;
+                }
+                session.onSquelch(isReceiving() && !radioModule.isSquelched());
+            }
+        }, "RxReplay");
+        rxReplayThread = replay;
+        session.onSquelch(true);
+        if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+            audioTrack.play();
+        }
+        replay.start();
+        return true;
+    }
+
     /**
      * Sets whether radio module should poll RSSI. We need to be able to turn this off
      * because in v1.x versions of the PCB there's cross-talk between the Serial2 trace and
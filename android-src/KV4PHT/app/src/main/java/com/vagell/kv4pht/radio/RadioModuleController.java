@@ -21,6 +21,9 @@ package com.vagell.kv4pht.radio;
 import static com.vagell.kv4pht.radio.Protocol.DRA818_12K5;
 import static com.vagell.kv4pht.radio.Protocol.DRA818_25K;
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
 /**
  * Owns the Android-side desired/applied radio state.
  * <p>
@@ -28,12 +31,23 @@ import static com.vagell.kv4pht.radio.Protocol.DRA818_25K;
  * next desired-state snapshot should contain. Public getters expose the latest
  * firmware-reported state; setters mutate desired state that will be sent to
  * firmware.
+ * <p>
+ * With {@link #setDesiredStateCoalescing} enabled, changes are rate limited:
+ * the first change after a quiet period goes out at once, and further changes
+ * inside the window collapse into one trailing frame carrying the latest state
+ * and sequence. Changes to PTT always go out immediately.
  */
 public class RadioModuleController {
     private interface DesiredStateChange {
         Protocol.HostDesiredState apply(Protocol.HostDesiredState state);
     }
 
+    /** Runs a deferred desired-state flush; the service posts it to its main-thread Handler. */
+    @FunctionalInterface
+    public interface FlushScheduler {
+        void schedule(Runnable flush, long delayMillis);
+    }
+
     private static final int MAX_DESIRED_STATE_RETRIES = 3;
     private static final int DESIRED_DEVICE_FLAGS_MASK =
         Protocol.HOST_STATE_RADIO_CONFIG_VALID
@@ -73,11 +87,53 @@ public class RadioModuleController {
     private boolean transportReady = false;
     private int desiredStateRetries = 0;
 
+    private long coalesceWindowNanos = 0;
+    private FlushScheduler flushScheduler;
+    private LongSupplier clockNanos = System::nanoTime;
+    private long lastDesiredStateSentNanos;
+    // Bumped whenever the sender changes so a flush scheduled for an old link does nothing.
+    private int flushGeneration = 0;
+    private boolean flushPending = false;
+    // Changes folded into the next frame; all but one of them count as suppressed.
+    private int pendingChanges = 0;
+    private long desiredStateFramesSent = 0;
+    private long desiredStateFramesSuppressed = 0;
+    private long desiredStateRetriesSent = 0;
+
+    /**
+     * Collapses desired-state changes made within {@code window} of the previous frame into one
+     * frame. A zero window (the default) sends every change immediately.
+     */
+    public synchronized void setDesiredStateCoalescing(long window, TimeUnit unit, FlushScheduler scheduler) {
+        setDesiredStateCoalescing(window, unit, scheduler, System::nanoTime);
+    }
+
+    synchronized void setDesiredStateCoalescing(long window, TimeUnit unit, FlushScheduler scheduler, LongSupplier clockNanos) {
+        this.coalesceWindowNanos = scheduler != null ? unit.toNanos(window) : 0;
+        this.flushScheduler = scheduler;
+        this.clockNanos = clockNanos;
+    }
+
+    /** Desired-state frames written to the firmware, excluding retries. */
+    public synchronized long getDesiredStateFramesSent() {
+        return desiredStateFramesSent;
+    }
+
+    /** Desired-state changes and retries that were folded into another frame instead of being sent. */
+    public synchronized long getDesiredStateFramesSuppressed() {
+        return desiredStateFramesSuppressed;
+    }
+
+    public synchronized long getDesiredStateRetriesSent() {
+        return desiredStateRetriesSent;
+    }
+
     synchronized void attachSender(Protocol.Sender sender) {
         this.sender = sender;
         transportReady = false;
         lastDesiredStateSent = desiredState;
         desiredStateRetries = 0;
+        cancelPendingFlush();
     }
 
     synchronized void markTransportReady() {
@@ -93,6 +149,7 @@ public class RadioModuleController {
         firmwareVersion = null;
         appliedStateInSync = false;
         desiredStateRetries = 0;
+        cancelPendingFlush();
     }
 
     synchronized void seedFirmwareVersion(Protocol.FirmwareVersion version) {
@@ -427,16 +484,65 @@ public class RadioModuleController {
     }
 
     private void sendDesiredStateIfChanged() {
-        if (updateDepth == 0 && sender != null && transportReady && !desiredState.equals(lastDesiredStateSent)) {
+        if (updateDepth != 0 || sender == null || !transportReady || desiredState.equals(lastDesiredStateSent)) {
+            return;
+        }
+        pendingChanges++;
+        if (coalesceWindowNanos == 0 || changesPtt()) {
             sendDesiredState();
+            return;
         }
+        if (flushPending) {
+            return; // The scheduled flush picks up this change too.
+        }
+        long sinceLastSend = clockNanos.getAsLong() - lastDesiredStateSentNanos;
+        if (desiredStateFramesSent == 0 || sinceLastSend >= coalesceWindowNanos) {
+            sendDesiredState();
+            return;
+        }
+        flushPending = true;
+        int generation = flushGeneration;
+        flushScheduler.schedule(() -> onCoalescedFlush(generation),
+            TimeUnit.NANOSECONDS.toMillis(coalesceWindowNanos - sinceLastSend));
+    }
+
+    private synchronized void onCoalescedFlush(int generation) {
+        if (generation != flushGeneration || !flushPending) {
+            return;
+        }
+        flushPending = false;
+        if (updateDepth != 0 || sender == null || !transportReady) {
+            return; // endUpdate() or markTransportReady() sends the latest state.
+        }
+        if (desiredState.equals(lastDesiredStateSent)) {
+            // The changes were undone, or already went out with a PTT frame.
+            desiredStateFramesSuppressed += pendingChanges;
+            pendingChanges = 0;
+            return;
+        }
+        sendDesiredState();
+    }
+
+    private boolean changesPtt() {
+        return lastDesiredStateSent == null
+            || ((desiredState.getFlags() ^ lastDesiredStateSent.getFlags()) & Protocol.HOST_STATE_PTT_REQUESTED) != 0;
+    }
+
+    private void cancelPendingFlush() {
+        flushGeneration++;
+        flushPending = false;
+        pendingChanges = 0;
     }
 
     private void sendDesiredState() {
         desiredState = desiredState.withSequence(desiredState.getSequence() + 1);
         lastDesiredStateSent = desiredState;
+        lastDesiredStateSentNanos = clockNanos.getAsLong();
         desiredStateRetries = 0;
         appliedStateInSync = false;
+        desiredStateFramesSent++;
+        desiredStateFramesSuppressed += Math.max(0, pendingChanges - 1);
+        pendingChanges = 0;
         sender.sendDesiredState(desiredState);
     }
 
@@ -444,7 +550,15 @@ public class RadioModuleController {
         if (sender == null || !transportReady || !desiredState.equals(lastDesiredStateSent) || desiredStateRetries >= MAX_DESIRED_STATE_RETRIES) {
             return;
         }
+        if (coalesceWindowNanos != 0 && desiredStateFramesSent != 0
+            && clockNanos.getAsLong() - lastDesiredStateSentNanos < coalesceWindowNanos) {
+            // Reports for earlier sequences still arrive while the latest frame is in flight;
+            // only retry once the firmware has had a window to apply it.
+            desiredStateFramesSuppressed++;
+            return;
+        }
         desiredStateRetries++;
+        desiredStateRetriesSent++;
         sender.sendDesiredState(lastDesiredStateSent);
     }
 }
@@ -0,0 +1,262 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the raw byte stream between the host and the ESP32 so field issues can be replayed.
+ * <p>
+ * File format (little-endian, like the radio protocol):
+ * <pre>
+ * header:  "KV4PCAP" version:u8 startEpochMillis:i64
+ * record:  direction:u8 deltaMicros:u32 length:u16 payload[length]
+ * </pre>
+ * {@code deltaMicros} is the time since the previous record in the same file (the first record
+ * is relative to the file start). Records go through a direct staging buffer into a
+ * {@link FileChannel}, which is flushed when full and at least once a second, by a timer when
+ * the stream goes quiet so the last records reach disk without waiting for close. When the current
+ * file would exceed {@code maxFileBytes} it is rotated to {@code <name>.1.kv4pcap} and so on,
+ * keeping at most {@code maxFiles} files; a new recorder rotates out the previous session's
+ * capture the same way. An I/O error disables recording rather than disturbing the radio link.
+ */
+public final class RadioStreamRecorder implements Closeable {
+    private static final String TAG = RadioStreamRecorder.class.getSimpleName();
+
+    static final byte[] MAGIC = {'K', 'V', '4', 'P', 'C', 'A', 'P'};
+    static final int FORMAT_VERSION = 1;
+    static final int FILE_HEADER_LEN = MAGIC.length + 1 + 8;
+    static final int RECORD_HEADER_LEN = 1 + 4 + 2;
+    static final int MAX_CHUNK_LEN = 0xFFFF;
+    static final String FILE_EXTENSION = ".kv4pcap";
+    public static final long DEFAULT_MAX_FILE_BYTES = 4L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 4;
+    private static final int STAGING_BUFFER_SIZE = FILE_HEADER_LEN + RECORD_HEADER_LEN + MAX_CHUNK_LEN;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Direction {
+        FROM_RADIO,
+        TO_RADIO;
+
+        static Direction fromValue(int value) {
+            return value == 0 ? FROM_RADIO : TO_RADIO;
+        }
+    }
+
+    private final File directory;
+    private final String baseName;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel channel;
+    // Flushes records that arrived less than a second before the stream went quiet.
+    private ScheduledExecutorService idleFlusher;
+    private long fileBytes;
+    private long lastRecordNanos;
+    private long lastFlushNanos;
+    private long recordedBytes;
+    private int rotations;
+    private boolean failed;
+
+    public RadioStreamRecorder(File directory, String baseName) {
+        this(directory, baseName, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    public RadioStreamRecorder(File directory, String baseName, long maxFileBytes, int maxFiles) {
+        if (maxFileBytes < FILE_HEADER_LEN + RECORD_HEADER_LEN + MAX_CHUNK_LEN || maxFiles < 1) {
+            throw new IllegalArgumentException("maxFileBytes must hold a full chunk and maxFiles must be positive");
+        }
+        this.directory = directory;
+        this.baseName = baseName;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /** Path of capture file {@code index}: 0 is the one being written, higher numbers are older. */
+    public static File captureFile(File directory, String baseName, int index) {
+        return new File(directory, index == 0 ? baseName + FILE_EXTENSION : baseName + "." + index + FILE_EXTENSION);
+    }
+
+    public synchronized void record(Direction direction, byte[] bytes, int offset, int len) {
+        while (len > 0 && !failed) {
+            int chunk = Math.min(len, MAX_CHUNK_LEN);
+            try {
+                writeRecord(direction, bytes, offset, chunk);
+            } catch (IOException e) {
+                fail(e);
+            }
+            offset += chunk;
+            len -= chunk;
+        }
+    }
+
+    public synchronized void flush() {
+        if (failed || channel == null) {
+            return;
+        }
+        try {
+            flushStaging();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        closeChannel();
+        stopIdleFlusher();
+        failed = true;
+    }
+
+    /** Payload bytes recorded so far, across all files. */
+    public synchronized long getRecordedBytes() {
+        return recordedBytes;
+    }
+
+    public synchronized int getRotations() {
+        return rotations;
+    }
+
+    private void writeRecord(Direction direction, byte[] bytes, int offset, int len) throws IOException {
+        long now = System.nanoTime();
+        int recordLen = RECORD_HEADER_LEN + len;
+        if (channel == null) {
+            // A new session never overwrites the previous one; it rotates it out instead.
+            if (captureFile(directory, baseName, 0).exists()) {
+                shiftFiles();
+            }
+            openFile(now);
+        } else if (fileBytes + recordLen > maxFileBytes) {
+            rotate(now);
+        }
+        if (staging.remaining() < recordLen) {
+            flushStaging();
+        }
+        long deltaMicros = Math.min(TimeUnit.NANOSECONDS.toMicros(now - lastRecordNanos), 0xFFFFFFFFL);
+        staging.put((byte) direction.ordinal());
+        staging.putInt((int) deltaMicros);
+        staging.putShort((short) len);
+        staging.put(bytes, offset, len);
+        fileBytes += recordLen;
+        recordedBytes += len;
+        lastRecordNanos = now;
+        if (now - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+            flushStaging();
+        }
+    }
+
+    private void openFile(long now) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create capture directory " + directory);
+        }
+        channel = FileChannel.open(captureFile(directory, baseName, 0).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        staging.put(MAGIC);
+        staging.put((byte) FORMAT_VERSION);
+        staging.putLong(System.currentTimeMillis());
+        fileBytes = FILE_HEADER_LEN;
+        lastRecordNanos = now;
+        lastFlushNanos = now;
+        if (idleFlusher == null) {
+            idleFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+            idleFlusher.scheduleWithFixedDelay(this::flushIfIdle,
+                FLUSH_INTERVAL_NANOS, FLUSH_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void flushIfIdle() {
+        if (!failed && channel != null && staging.position() > 0
+            && System.nanoTime() - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+            flush();
+        }
+    }
+
+    private void stopIdleFlusher() {
+        if (idleFlusher != null) {
+            idleFlusher.shutdown();
+            idleFlusher = null;
+        }
+    }
+
+    private void rotate(long now) throws IOException {
+        flushStaging();
+        closeChannel();
+        shiftFiles();
+        openFile(now);
+    }
+
+    private void shiftFiles() throws IOException {
+        File oldest = captureFile(directory, baseName, maxFiles - 1);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Cannot delete " + oldest);
+        }
+        for (int i = maxFiles - 2; i >= 0; i--) {
+            File from = captureFile(directory, baseName, i);
+            if (from.exists() && !from.renameTo(captureFile(directory, baseName, i + 1))) {
+                throw new IOException("Cannot rotate " + from);
+            }
+        }
+        rotations++;
+    }
+
+    private void flushStaging() throws IOException {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            channel.write(staging);
+        }
+        staging.clear();
+        lastFlushNanos = System.nanoTime();
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing radio stream capture", e);
+        }
+        channel = null;
+    }
+
+    private void fail(IOException e) {
+        Log.w(TAG, "Radio stream capture disabled after I/O error", e);
+        failed = true;
+        staging.clear();
+        closeChannel();
+        stopIdleFlusher();
+    }
+}
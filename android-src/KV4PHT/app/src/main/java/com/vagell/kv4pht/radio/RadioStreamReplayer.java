@@ -0,0 +1,134 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import com.vagell.kv4pht.radio.RadioStreamRecorder.Direction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back captures written by {@link RadioStreamRecorder}, either at the original pace or as
+ * fast as possible (useful as realistic benchmark input).
+ */
+public final class RadioStreamReplayer {
+
+    /** Receives each recorded chunk; {@code bytes} is reused after the call returns. */
+    @FunctionalInterface
+    public interface Sink {
+        void onChunk(Direction direction, byte[] bytes, int offset, int len);
+    }
+
+    private final List<File> files;
+    private final byte[] chunk = new byte[RadioStreamRecorder.MAX_CHUNK_LEN];
+
+    public RadioStreamReplayer(List<File> files) {
+        this.files = new ArrayList<>(files);
+    }
+
+    /** All existing files of a rotated capture, oldest first. */
+    public static List<File> captureFiles(File directory, String baseName) {
+        List<File> found = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File file = RadioStreamRecorder.captureFile(directory, baseName, i);
+            if (!file.exists()) {
+                break;
+            }
+            found.add(0, file);
+        }
+        return found;
+    }
+
+    /**
+     * Feeds every chunk to {@code sink}, sleeping between chunks to reproduce the recorded
+     * timing when {@code realTime} is set.
+     *
+     * @return number of chunks replayed.
+     */
+    public long replay(Sink sink, boolean realTime) throws IOException, InterruptedException {
+        long chunks = 0;
+        long start = System.nanoTime();
+        long offsetNanos = 0;
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+                readHeader(buffer, file);
+                while (buffer.remaining() >= RadioStreamRecorder.RECORD_HEADER_LEN) {
+                    Direction direction = Direction.fromValue(buffer.get());
+                    long deltaMicros = buffer.getInt() & 0xFFFFFFFFL;
+                    int len = buffer.getShort() & 0xFFFF;
+                    if (buffer.remaining() < len) {
+                        break; // Truncated by a crash mid-flush; keep what came before.
+                    }
+                    buffer.get(chunk, 0, len);
+                    offsetNanos += TimeUnit.MICROSECONDS.toNanos(deltaMicros);
+                    if (realTime) {
+                        waitUntil(start + offsetNanos);
+                    }
+                    sink.onChunk(direction, chunk, 0, len);
+                    chunks++;
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /** Replays only the bytes that came from the radio into {@code parser}. */
+    public long replayInto(Protocol.KissParser parser, boolean realTime) throws IOException, InterruptedException {
+        return replay((direction, bytes, offset, len) -> {
+            if (direction == Direction.FROM_RADIO) {
+                parser.processBytes(bytes, offset, len);
+            }
+        }, realTime);
+    }
+
+    private static void readHeader(ByteBuffer buffer, File file) throws IOException {
+        byte[] magic = new byte[RadioStreamRecorder.MAGIC.length];
+        if (buffer.remaining() < RadioStreamRecorder.FILE_HEADER_LEN) {
+            throw new IOException("Not a radio stream capture: " + file);
+        }
+        buffer.get(magic);
+        int version = buffer.get() & 0xFF;
+        if (!Arrays.equals(magic, RadioStreamRecorder.MAGIC) || version != RadioStreamRecorder.FORMAT_VERSION) {
+            throw new IOException("Not a radio stream capture: " + file);
+        }
+        buffer.getLong(); // startEpochMillis, informational only
+    }
+
+    private static void waitUntil(long deadlineNanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
@@ -14,7 +14,11 @@ interface RadioTransport extends AutoCloseable {
     void close();
 
     boolean isReady();
-    void writeAsync(byte[] bytes);
+    /**
+     * Queues {@code len} bytes of {@code bytes} for sending. Implementations must copy the
+     * slice before returning; callers reuse the array for the next frame.
+     */
+    void writeAsync(byte[] bytes, int offset, int len);
     boolean supportsFirmwareFlashing();
     boolean prepareForFirmwareFlashing();
     String getName();
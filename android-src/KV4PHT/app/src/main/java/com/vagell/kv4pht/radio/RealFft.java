@@ -0,0 +1,136 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+/**
+ * Forward FFT of a real signal whose length is a power of two.
+ * <p>
+ * The {@code n} real samples are packed as {@code n/2} complex values, transformed by an
+ * iterative radix-2 FFT and then split into the {@code n/2 + 1} bins of the real spectrum.
+ * Twiddle factors and the bit-reversal permutation are tabulated up front, so a transform
+ * allocates nothing.
+ */
+public final class RealFft {
+    private final int size;
+    private final int half;
+    // e^{-2 pi i k / half} for the complex FFT, k < half / 2.
+    private final float[] cos;
+    private final float[] sin;
+    // e^{-2 pi i k / size} for splitting the packed result, k < half.
+    private final float[] splitCos;
+    private final float[] splitSin;
+    private final int[] bitReverse;
+    private final float[] workRe;
+    private final float[] workIm;
+
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two of at least 4: " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+        cos = new float[half / 2];
+        sin = new float[half / 2];
+        for (int k = 0; k < half / 2; k++) {
+            double angle = -2 * Math.PI * k / half;
+            cos[k] = (float) Math.cos(angle);
+            sin[k] = (float) Math.sin(angle);
+        }
+        splitCos = new float[half];
+        splitSin = new float[half];
+        for (int k = 0; k < half; k++) {
+            double angle = -2 * Math.PI * k / size;
+            splitCos[k] = (float) Math.cos(angle);
+            splitSin[k] = (float) Math.sin(angle);
+        }
+        int bits = Integer.numberOfTrailingZeros(half);
+        bitReverse = new int[half];
+        for (int i = 0; i < half; i++) {
+            bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        workRe = new float[half];
+        workIm = new float[half];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** Number of output bins, DC through Nyquist. */
+    public int getBins() {
+        return half + 1;
+    }
+
+    /**
+     * Transforms {@code input[0..size)} into bins {@code 0..size/2} of {@code re} and {@code im},
+     * which must hold at least {@link #getBins()} values. {@code input} is not modified.
+     */
+    public void forward(float[] input, float[] re, float[] im) {
+        // Even samples as real parts, odd samples as imaginary parts, in bit-reversed order.
+        for (int i = 0; i < half; i++) {
+            int j = bitReverse[i];
+            workRe[j] = input[2 * i];
+            workIm[j] = input[2 * i + 1];
+        }
+        for (int span = 1, stride = half / 2; span < half; span <<= 1, stride >>= 1) {
+            for (int start = 0; start < half; start += span << 1) {
+                for (int k = 0; k < span; k++) {
+                    float wr = cos[k * stride];
+                    float wi = sin[k * stride];
+                    int a = start + k;
+                    int b = a + span;
+                    float tr = workRe[b] * wr - workIm[b] * wi;
+                    float ti = workRe[b] * wi + workIm[b] * wr;
+                    workRe[b] = workRe[a] - tr;
+                    workIm[b] = workIm[a] - ti;
+                    workRe[a] += tr;
+                    workIm[a] += ti;
+                }
+            }
+        }
+        // Z[k] = E[k] + i O[k]; recover X[k] = E[k] + e^{-2 pi i k / n} O[k].
+        re[0] = workRe[0] + workIm[0];
+        im[0] = 0;
+        re[half] = workRe[0] - workIm[0];
+        im[half] = 0;
+        for (int k = 1; k < half; k++) {
+            float zr = workRe[k];
+            float zi = workIm[k];
+            float cr = workRe[half - k];
+            float ci = -workIm[half - k];
+            float er = (zr + cr) * 0.5f;
+            float ei = (zi + ci) * 0.5f;
+            // O[k] = (Z[k] - conj(Z[n/2 - k])) / 2i
+            float or = (zi - ci) * 0.5f;
+            float oi = -(zr - cr) * 0.5f;
+            float wr = splitCos[k];
+            float wi = splitSin[k];
+            re[k] = er + or * wr - oi * wi;
+            im[k] = ei + or * wi + oi * wr;
+        }
+    }
+
+    /** Squared magnitude of each bin of {@code input} into {@code power[0..size/2]}. */
+    public void powerSpectrum(float[] input, float[] re, float[] im, float[] power) {
+        forward(input, re, im);
+        for (int k = 0; k <= half; k++) {
+            power[k] = re[k] * re[k] + im[k] * im[k];
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.vagell.kv4pht.radio;
+
+/**
+ * Wraps a transport and copies everything it receives and sends into a {@link RadioStreamRecorder}.
+ */
+final class RecordingRadioTransport implements RadioTransport {
+    private final RadioTransport delegate;
+    private final RadioStreamRecorder recorder;
+
+    RecordingRadioTransport(RadioTransport delegate, RadioStreamRecorder recorder) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        delegate.start(new Listener() {
+            @Override
+            public void onBytes(byte[] bytes) {
+                recorder.record(RadioStreamRecorder.Direction.FROM_RADIO, bytes, 0, bytes.length);
+                listener.onBytes(bytes);
+            }
+
+            @Override
+            public void onReady() {
+                listener.onReady();
+            }
+
+            @Override
+            public void onDisconnected() {
+                listener.onDisconnected();
+            }
+
+            @Override
+            public void onError(Exception error) {
+                listener.onError(error);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        try {
+            delegate.close();
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    @Override
+    public void writeAsync(byte[] bytes, int offset, int len) {
+        recorder.record(RadioStreamRecorder.Direction.TO_RADIO, bytes, offset, len);
+        delegate.writeAsync(bytes, offset, len);
+    }
+
+    @Override
+    public boolean supportsFirmwareFlashing() {
+        return delegate.supportsFirmwareFlashing();
+    }
+
+    @Override
+    public boolean prepareForFirmwareFlashing() {
+        return delegate.prepareForFirmwareFlashing();
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+}
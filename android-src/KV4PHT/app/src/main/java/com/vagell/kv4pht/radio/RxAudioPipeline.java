@@ -0,0 +1,211 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves RX audio decoding and playback off the thread that parses the radio stream.
+ * <p>
+ * The parser thread hands each IMA ADPCM block to {@link #offerAdpcm}, which only copies it
+ * (with its arrival time) into a {@link SpscBlockRing}. A dedicated audio thread (created by
+ * the supplied {@link ThreadFactory}, which on Android raises it to
+ * {@code THREAD_PRIORITY_URGENT_AUDIO}) decodes blocks into an {@link RxJitterBuffer} and
+ * plays one frame per frame period into a {@link PcmSink}, normally {@code AudioTrack.write}.
+ * Bursty arrivals are smoothed by the jitter buffer and missing frames are concealed there.
+ * <p>
+ * An overrun is a block dropped because the ring was full, i.e. the audio thread fell behind.
+ */
+public final class RxAudioPipeline implements Closeable {
+    private static final String TAG = RxAudioPipeline.class.getSimpleName();
+
+    public static final int FRAME_SAMPLES = RxJitterBuffer.FRAME_SAMPLES;
+    public static final int FRAME_BYTES = ImaAdpcm.encodedSize(FRAME_SAMPLES);
+    // 32 blocks of 249 samples at 16 kHz is about half a second.
+    public static final int DEFAULT_CAPACITY_BLOCKS = 32;
+    // Frames written ahead of the playout clock so the track never waits on this thread.
+    static final int TRACK_LEAD_FRAMES = 2;
+    // Further behind the playout clock than this (e.g. a sink that blocked) restarts the clock.
+    private static final long MAX_PLAYOUT_LAG_NANOS = 4 * RxJitterBuffer.FRAME_NANOS;
+    // Upper bound on a missed wakeup; the producer normally unparks the audio thread directly.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /** Receives decoded PCM on the audio thread; {@code pcm} is reused after the call returns. */
+    @FunctionalInterface
+    public interface PcmSink {
+        void write(short[] pcm, int offset, int len);
+
+        /** Called on the audio thread when the stream ends and writes stop until the next one. */
+        default void onIdle() {
+        }
+    }
+
+    private final SpscBlockRing ring;
+    private final RxJitterBuffer jitterBuffer;
+    private final PcmSink sink;
+    private final Thread thread;
+    private final byte[] block = new byte[FRAME_BYTES];
+    private final short[] decoded = new short[FRAME_SAMPLES];
+    private final short[] playout = new short[FRAME_SAMPLES];
+    private volatile boolean running;
+    private volatile boolean consumerParked;
+    // Each counter has a single writer (overruns: producer, framesPlayed: audio thread).
+    private volatile long overruns;
+    private volatile long framesPlayed;
+    private boolean playing;
+    private long nextPlayoutNanos;
+
+    public RxAudioPipeline(PcmSink sink, ThreadFactory threadFactory) {
+        this(sink, threadFactory, DEFAULT_CAPACITY_BLOCKS, new RxJitterBuffer());
+    }
+
+    public RxAudioPipeline(PcmSink sink, ThreadFactory threadFactory, int capacityBlocks, RxJitterBuffer jitterBuffer) {
+        this.sink = sink;
+        // Volatile publish: offerAdpcm reads consumerParked right after offering (see park()).
+        this.ring = new SpscBlockRing(capacityBlocks, FRAME_BYTES, true);
+        this.jitterBuffer = jitterBuffer;
+        this.thread = threadFactory.newThread(this::run);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Queues one ADPCM block for playback. Producer thread only; never blocks or allocates.
+     * Bytes beyond one block are ignored, as the decoder would ignore them.
+     *
+     * @return false if the block was dropped because the audio thread is behind.
+     */
+    public boolean offerAdpcm(byte[] adpcm, int offset, int len) {
+        if (!ring.offer(adpcm, offset, Math.min(len, FRAME_BYTES), System.nanoTime())) {
+            overruns++;
+            return false;
+        }
+        if (consumerParked) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Queues the ADPCM block at absolute index {@code offset} of {@code frame}, e.g. straight out
+     * of a received KISS frame; the buffer may be direct and its position is left alone.
+     */
+    public boolean offerAdpcm(ByteBuffer frame, int offset, int len) {
+        if (!ring.offer(frame, offset, Math.min(len, FRAME_BYTES), System.nanoTime())) {
+            overruns++;
+            return false;
+        }
+        if (consumerParked) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /** Frames written to the sink, including concealed ones. */
+    public long getFramesPlayed() {
+        return framesPlayed;
+    }
+
+    /** Playout delay, late/concealed frame counts and underruns. */
+    public RxJitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    private void run() {
+        while (running) {
+            drainRing();
+            long now = System.nanoTime();
+            if (!playing) {
+                if (jitterBuffer.isReadyToPlay(now)) {
+                    playing = true;
+                    nextPlayoutNanos = now - TRACK_LEAD_FRAMES * RxJitterBuffer.FRAME_NANOS;
+                } else {
+                    park(jitterBuffer.getBufferedFrames() > 0 ? RxJitterBuffer.FRAME_NANOS : IDLE_PARK_NANOS);
+                }
+                continue;
+            }
+            long wait = nextPlayoutNanos - now;
+            if (wait > 0) {
+                park(wait);
+                continue;
+            }
+            if (!jitterBuffer.pull(playout, 0)) {
+                playing = false;
+                sink.onIdle();
+                continue;
+            }
+            try {
+                sink.write(playout, 0, FRAME_SAMPLES);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "RX audio sink failed", e);
+            }
+            framesPlayed++;
+            nextPlayoutNanos += RxJitterBuffer.FRAME_NANOS;
+            if (System.nanoTime() - nextPlayoutNanos > MAX_PLAYOUT_LAG_NANOS) {
+                nextPlayoutNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private void drainRing() {
+        int len;
+        while ((len = ring.poll(block, 0)) >= 0) {
+            int samples = ImaAdpcm.decodeBlock(block, 0, len, decoded, 0, FRAME_SAMPLES);
+            jitterBuffer.push(decoded, 0, samples, ring.polledStamp());
+        }
+    }
+
+    private void park(long nanos) {
+        consumerParked = true;
+        // Re-check after publishing the flag so a block offered in between is not missed. With the
+        // ring's volatile tail store this is a Dekker handshake: either we see the block, or the
+        // producer sees the flag and unparks us.
+        if (ring.isEmpty() && running) {
+            LockSupport.parkNanos(this, nanos);
+        }
+        consumerParked = false;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Value;
+
+/**
+ * Records received audio as the IMA ADPCM blocks the radio sends, without decoding or
+ * re-encoding, into a standard IMA ADPCM WAV file ({@code WAVE_FORMAT_DVI_ADPCM}, 16 kHz mono,
+ * one 128-byte block per 249 samples), about 8 KB per second of audio.
+ * <p>
+ * Blocks go through a direct staging buffer into a {@link FileChannel}, which is written when
+ * full and at least once a second; each write also rewrites the WAV header sizes in place, so
+ * the file stays playable if the app dies mid-recording. Squelch-open segments are appended to
+ * a sidecar index ({@code <file>.idx}, little-endian):
+ * <pre>
+ * header:  "KV4PIDX" version:u8 startEpochMillis:i64
+ * record:  startBlock:u32 blockCount:u32 startEpochMillis:i64
+ * </pre>
+ * Block {@code n} starts at byte {@link #WAV_HEADER_LEN}{@code + n * }{@link #BLOCK_BYTES} and
+ * sample {@code n * }{@link #SAMPLES_PER_BLOCK}, so a segment can be seeked to directly. An I/O
+ * error stops the recording rather than disturbing reception.
+ */
+public final class RxAudioRecorder implements Closeable {
+    private static final String TAG = RxAudioRecorder.class.getSimpleName();
+
+    public static final int BLOCK_BYTES = RxAudioPipeline.FRAME_BYTES;
+    public static final int SAMPLES_PER_BLOCK = RxAudioPipeline.FRAME_SAMPLES;
+    public static final int SAMPLE_RATE = RxJitterBuffer.SAMPLE_RATE;
+    static final int WAVE_FORMAT_DVI_ADPCM = 0x0011;
+    static final int FMT_CHUNK_LEN = 20;
+    // RIFF header, fmt chunk, fact chunk and the data chunk header.
+    public static final int WAV_HEADER_LEN = 12 + 8 + FMT_CHUNK_LEN + 8 + 4 + 8;
+    // The fact chunk's 32-bit sample count overflows first, after about 74 hours of audio.
+    static final long MAX_BLOCKS = 0xFFFFFFFFL / SAMPLES_PER_BLOCK;
+
+    static final byte[] INDEX_MAGIC = {'K', 'V', '4', 'P', 'I', 'D', 'X'};
+    static final int INDEX_VERSION = 1;
+    static final int INDEX_HEADER_LEN = INDEX_MAGIC.length + 1 + 8;
+    static final int INDEX_RECORD_LEN = 4 + 4 + 8;
+    static final String INDEX_EXTENSION = ".idx";
+
+    // About a second of audio per write.
+    static final int STAGING_BLOCKS = 64;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** A squelch-open stretch of the recording, in blocks. */
+    @Value
+    public static class Segment {
+        long startBlock;
+        long blockCount;
+        long startEpochMillis;
+
+        public long getByteOffset() {
+            return WAV_HEADER_LEN + startBlock * BLOCK_BYTES;
+        }
+
+        public long getStartSample() {
+            return startBlock * SAMPLES_PER_BLOCK;
+        }
+
+        public long getDurationMillis() {
+            return blockCount * SAMPLES_PER_BLOCK * 1000L / SAMPLE_RATE;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_BLOCKS * BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer header = ByteBuffer.allocateDirect(WAV_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer indexRecord = ByteBuffer.allocateDirect(INDEX_RECORD_LEN).order(ByteOrder.LITTLE_ENDIAN);
+    private long blocks;
+    private long lastFlushNanos;
+    private boolean segmentOpen;
+    private long segmentStartBlock;
+    private long segmentStartMillis;
+    private int segments;
+    private boolean stopped;
+
+    /** Creates (or truncates) {@code file} and its index and starts recording into them. */
+    public RxAudioRecorder(File file) throws IOException {
+        this.file = file;
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create recording directory " + directory);
+        }
+        channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            indexChannel = FileChannel.open(indexFile(file).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeHeader();
+            ByteBuffer indexHeader = ByteBuffer.allocate(INDEX_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+            indexHeader.put(INDEX_MAGIC).put((byte) INDEX_VERSION).putLong(System.currentTimeMillis()).flip();
+            writeFully(indexChannel, indexHeader);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.position(WAV_HEADER_LEN);
+        lastFlushNanos = System.nanoTime();
+    }
+
+    /** The sidecar segment index of recording {@code file}. */
+    public static File indexFile(File file) {
+        return new File(file.getPath() + INDEX_EXTENSION);
+    }
+
+    /**
+     * Appends one ADPCM block. Blocks are stored at the fixed WAV block size: longer ones are
+     * truncated and shorter ones padded with silence.
+     */
+    public synchronized void append(byte[] adpcm, int offset, int len) {
+        if (!reserveBlock()) {
+            return;
+        }
+        int n = Math.min(len, BLOCK_BYTES);
+        staging.put(adpcm, offset, n);
+        finishBlock(n);
+    }
+
+    /**
+     * Appends the block at absolute index {@code offset} of {@code frame}, e.g. straight out of a
+     * received KISS frame; the buffer may be direct and its position is left alone.
+     */
+    public synchronized void append(ByteBuffer frame, int offset, int len) {
+        if (frame.hasArray()) {
+            append(frame.array(), frame.arrayOffset() + offset, len);
+            return;
+        }
+        if (!reserveBlock()) {
+            return;
+        }
+        int n = Math.min(len, BLOCK_BYTES);
+        for (int i = 0; i < n; i++) {
+            staging.put(frame.get(offset + i));
+        }
+        finishBlock(n);
+    }
+
+    /** Marks the start or end of a squelch-open segment at the current block. */
+    public synchronized void onSquelch(boolean open) {
+        if (stopped || open == segmentOpen) {
+            return;
+        }
+        if (open) {
+            segmentOpen = true;
+            segmentStartBlock = blocks;
+            segmentStartMillis = System.currentTimeMillis();
+        } else {
+            endSegment();
+        }
+    }
+
+    public synchronized void flush() {
+        if (stopped) {
+            return;
+        }
+        try {
+            flushStaging();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (stopped) {
+            return;
+        }
+        endSegment();
+        flush();
+        stopped = true;
+        closeChannels();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Blocks recorded so far, including those not yet written to disk. */
+    public synchronized long getBlocks() {
+        return blocks;
+    }
+
+    /** Byte offset in the file at which the next block will be written. */
+    public synchronized long getAudioOffset() {
+        return WAV_HEADER_LEN + blocks * BLOCK_BYTES;
+    }
+
+    public synchronized long getDurationMillis() {
+        return blocks * SAMPLES_PER_BLOCK * 1000L / SAMPLE_RATE;
+    }
+
+    /** Completed segments written to the index. */
+    public synchronized int getSegments() {
+        return segments;
+    }
+
+    /** False once closed, full, or stopped by an I/O error. */
+    public synchronized boolean isRecording() {
+        return !stopped;
+    }
+
+    /** Reads the segments of an index written by this class, in recording order. */
+    public static List<Segment> readIndex(File indexFile) throws IOException {
+        try (FileChannel in = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) in.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                // Keep reading until the whole index is in memory.
+            }
+            buffer.flip();
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            if (buffer.remaining() < INDEX_HEADER_LEN) {
+                throw new IOException("Not a recording index: " + indexFile);
+            }
+            buffer.get(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC) || (buffer.get() & 0xFF) != INDEX_VERSION) {
+                throw new IOException("Not a recording index: " + indexFile);
+            }
+            buffer.getLong(); // startEpochMillis, informational only
+            List<Segment> found = new ArrayList<>();
+            while (buffer.remaining() >= INDEX_RECORD_LEN) {
+                found.add(new Segment(buffer.getInt() & 0xFFFFFFFFL, buffer.getInt() & 0xFFFFFFFFL, buffer.getLong()));
+            }
+            return found;
+        }
+    }
+
+    private boolean reserveBlock() {
+        if (stopped) {
+            return false;
+        }
+        if (blocks == MAX_BLOCKS) {
+            Log.w(TAG, "RX recording reached the WAV size limit, stopping: " + file);
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    private void finishBlock(int written) {
+        for (int i = written; i < BLOCK_BYTES; i++) {
+            staging.put((byte) 0);
+        }
+        blocks++;
+        if (!staging.hasRemaining() || System.nanoTime() - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+            flush();
+        }
+    }
+
+    private void endSegment() {
+        if (!segmentOpen) {
+            return;
+        }
+        segmentOpen = false;
+        if (blocks == segmentStartBlock) {
+            return; // Squelch opened and closed with no audio in between.
+        }
+        indexRecord.clear();
+        indexRecord.putInt((int) segmentStartBlock);
+        indexRecord.putInt((int) (blocks - segmentStartBlock));
+        indexRecord.putLong(segmentStartMillis);
+        indexRecord.flip();
+        try {
+            writeFully(indexChannel, indexRecord);
+            segments++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void flushStaging() throws IOException {
+        if (staging.position() > 0) {
+            staging.flip();
+            writeFully(channel, staging);
+            staging.clear();
+            writeHeader();
+        }
+        lastFlushNanos = System.nanoTime();
+    }
+
+    private void writeHeader() throws IOException {
+        long dataBytes = blocks * BLOCK_BYTES;
+        header.clear();
+        header.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        header.putInt((int) (WAV_HEADER_LEN - 8 + dataBytes));
+        header.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        header.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        header.putInt(FMT_CHUNK_LEN);
+        header.putShort((short) WAVE_FORMAT_DVI_ADPCM);
+        header.putShort((short) 1);
+        header.putInt(SAMPLE_RATE);
+        header.putInt(SAMPLE_RATE * BLOCK_BYTES / SAMPLES_PER_BLOCK);
+        header.putShort((short) BLOCK_BYTES);
+        header.putShort((short) 4);
+        header.putShort((short) 2);
+        header.putShort((short) SAMPLES_PER_BLOCK);
+        header.put((byte) 'f').put((byte) 'a').put((byte) 'c').put((byte) 't');
+        header.putInt(4);
+        header.putInt((int) (blocks * SAMPLES_PER_BLOCK));
+        header.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        header.putInt((int) dataBytes);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void closeChannels() {
+        closeChannel(channel);
+        closeChannel(indexChannel);
+    }
+
+    private static void closeChannel(FileChannel toClose) {
+        try {
+            toClose.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing RX recording", e);
+        }
+    }
+
+    private void fail(IOException e) {
+        Log.w(TAG, "RX recording stopped after I/O error", e);
+        stopped = true;
+        staging.clear();
+        closeChannels();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Owns audio focus and playback volume for RX audio.
+ * <p>
+ * Focus is requested once when the squelch opens and held through short pauses: when the
+ * squelch closes the session enters a hang period and only abandons focus if nothing is heard
+ * for {@code hangMillis}. Focus changes from the system mute, duck or end the session; after a
+ * permanent loss focus is requested again at the next squelch opening, since a new
+ * transmission is something the user wants to hear.
+ * <p>
+ * Volume is applied to the PCM on the audio thread by {@link #applyVolume}, ramping linearly
+ * within each block towards the target, instead of through {@code AudioTrack.setVolume} calls.
+ * State changes are synchronized; {@link #applyVolume} only reads volatile fields.
+ */
+public final class RxAudioSession {
+    private static final String TAG = RxAudioSession.class.getSimpleName();
+
+    static final int UNITY_GAIN = 1 << 15;
+    // Volume while another app has focus and lets us duck, about -10 dB.
+    static final int DUCK_GAIN = UNITY_GAIN * 3 / 10;
+    // Largest volume change per block: a full fade takes 4 blocks, about 60 ms.
+    static final int RAMP_STEP_PER_BLOCK = UNITY_GAIN / 4;
+
+    /** Audio focus requests, normally {@code AudioManager.requestAudioFocus}/{@code abandonAudioFocusRequest}. */
+    public interface Focus {
+        /** @return whether focus was granted. */
+        boolean request();
+
+        void abandon();
+    }
+
+    /** Runs {@code task} on the session's thread after {@code delayMillis}, e.g. {@code Handler::postDelayed}. */
+    @FunctionalInterface
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    /** Focus changes reported by the system, mirroring {@code AudioManager.AUDIOFOCUS_*}. */
+    public enum FocusChange {
+        GAIN,
+        LOSS,
+        LOSS_TRANSIENT,
+        LOSS_TRANSIENT_CAN_DUCK
+    }
+
+    public enum State {
+        /** No focus held; waiting for the squelch to open. */
+        IDLE,
+        /** Squelch open and focus held. */
+        ACTIVE,
+        /** Squelch closed; focus kept for the hang time in case the conversation continues. */
+        HANG,
+        /** Focus lost or denied; silent until the squelch opens again. */
+        LOST
+    }
+
+    private final Focus focus;
+    private final Scheduler scheduler;
+    private final long hangMillis;
+    private final LongSupplier clockNanos;
+    private State state = State.IDLE;
+    private int hangGeneration;
+    private int focusGain = UNITY_GAIN;
+    private volatile int targetGain;
+    private volatile boolean muted;
+    private volatile boolean unmutePending;
+    private volatile long unmuteAtNanos;
+    // Audio thread only.
+    private int currentGain;
+    private long focusRequests;
+
+    public RxAudioSession(Focus focus, Scheduler scheduler, long hangMillis) {
+        this(focus, scheduler, hangMillis, System::nanoTime);
+    }
+
+    RxAudioSession(Focus focus, Scheduler scheduler, long hangMillis, LongSupplier clockNanos) {
+        this.focus = focus;
+        this.scheduler = scheduler;
+        this.hangMillis = hangMillis;
+        this.clockNanos = clockNanos;
+    }
+
+    /** Reports the current squelch state; repeated reports of the same state do nothing. */
+    public synchronized void onSquelch(boolean open) {
+        if (open) {
+            switch (state) {
+                case IDLE:
+                case LOST:
+                    focusRequests++;
+                    if (focus.request()) {
+                        focusGain = UNITY_GAIN;
+                        setState(State.ACTIVE);
+                    } else {
+                        setState(State.LOST);
+                    }
+                    break;
+                case HANG:
+                    hangGeneration++;
+                    setState(State.ACTIVE);
+                    break;
+                default:
+                    break;
+            }
+        } else if (state == State.ACTIVE) {
+            setState(State.HANG);
+            int generation = ++hangGeneration;
+            scheduler.schedule(() -> onHangExpired(generation), hangMillis);
+        }
+    }
+
+    public synchronized void onFocusChange(FocusChange change) {
+        if (state != State.ACTIVE && state != State.HANG) {
+            return;
+        }
+        switch (change) {
+            case GAIN:
+                focusGain = UNITY_GAIN;
+                break;
+            case LOSS_TRANSIENT:
+                focusGain = 0;
+                break;
+            case LOSS_TRANSIENT_CAN_DUCK:
+                focusGain = DUCK_GAIN;
+                break;
+            case LOSS:
+                hangGeneration++;
+                focus.abandon();
+                setState(State.LOST);
+                return;
+        }
+        updateTargetGain();
+    }
+
+    /** Silences playback until {@link #unmuteAfter} (e.g. while transmitting). */
+    public synchronized void mute() {
+        muted = true;
+        unmutePending = false;
+        updateTargetGain();
+    }
+
+    /**
+     * Keeps playback silent for {@code millis}, then fades it in; used to hide the noise burst
+     * as the receiver comes back after transmitting or when the track starts.
+     */
+    public synchronized void unmuteAfter(long millis) {
+        muted = true;
+        unmuteAtNanos = clockNanos.getAsLong() + TimeUnit.MILLISECONDS.toNanos(millis);
+        unmutePending = true;
+        updateTargetGain();
+    }
+
+    /** Abandons focus if held, e.g. when the audio track is released. */
+    public synchronized void close() {
+        hangGeneration++;
+        if (state == State.ACTIVE || state == State.HANG) {
+            focus.abandon();
+        }
+        setState(State.IDLE);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getFocusRequests() {
+        return focusRequests;
+    }
+
+    /**
+     * Scales {@code len} samples in place by the session volume. Audio thread only; does not
+     * allocate or call into the system.
+     */
+    public void applyVolume(short[] pcm, int offset, int len) {
+        if (unmutePending && clockNanos.getAsLong() - unmuteAtNanos >= 0) {
+            synchronized (this) {
+                if (unmutePending && clockNanos.getAsLong() - unmuteAtNanos >= 0) {
+                    unmutePending = false;
+                    muted = false;
+                    updateTargetGain();
+                }
+            }
+        }
+        int target = targetGain;
+        int start = currentGain;
+        int end = Math.max(start - RAMP_STEP_PER_BLOCK, Math.min(start + RAMP_STEP_PER_BLOCK, target));
+        currentGain = end;
+        if (start == UNITY_GAIN && end == UNITY_GAIN) {
+            return;
+        }
+        if (start == 0 && end == 0) {
+            Arrays.fill(pcm, offset, offset + len, (short) 0);
+            return;
+        }
+        long step = ((long) (end - start) << 16) / len;
+        long gain = (long) start << 16;
+        for (int i = offset; i < offset + len; i++) {
+            gain += step;
+            pcm[i] = (short) ((pcm[i] * (gain >> 16)) >> 15);
+        }
+    }
+
+    private void setState(State next) {
+        if (next != state) {
+            Log.d(TAG, "RX audio session " + state + " -> " + next);
+            state = next;
+        }
+        updateTargetGain();
+    }
+
+    private void onHangExpired(int generation) {
+        synchronized (this) {
+            if (generation != hangGeneration || state != State.HANG) {
+                return;
+            }
+            focus.abandon();
+            setState(State.IDLE);
+        }
+    }
+
+    private void updateTargetGain() {
+        boolean audible = state == State.ACTIVE || state == State.HANG;
+        targetGain = audible && !muted ? focusGain : 0;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive playout buffer for RX audio frames.
+ * <p>
+ * Frames arrive in bursts (USB packet batching, BLE connection intervals) but have to be
+ * played one every {@link #FRAME_NANOS}. Each arrival is compared with an ideal frame clock
+ * started at the first frame of a transmission; the spread between the earliest and the latest
+ * arrival relative to that clock is the jitter, and the target delay is that many frames plus
+ * one, within {@code [minDelayFrames, maxDelayFrames]}. The jitter estimate decays slowly, so
+ * the delay grows at once when bursts get worse and shrinks again (by skipping a frame) once
+ * the buffer has held more than it needs for a while.
+ * <p>
+ * Frames are not numbered on the wire, so a missing frame is only noticed when the buffer is
+ * empty at playout time. It is concealed by repeating the last frame with a fade to silence,
+ * and a frame that arrives after its slot was concealed is counted as late and discarded
+ * unless the buffer is below target. Every splice (concealment, resume, skipped frame) is
+ * smoothed over {@link #SPLICE_SAMPLES} so it does not click.
+ * <p>
+ * Not thread-safe: push and pull from the audio thread. Statistics may be read from any
+ * thread.
+ */
+public final class RxJitterBuffer {
+    public static final int FRAME_SAMPLES = 249;
+    public static final int SAMPLE_RATE = 16000;
+    public static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(FRAME_SAMPLES) / SAMPLE_RATE;
+    public static final int DEFAULT_MIN_DELAY_FRAMES = 2;
+    public static final int DEFAULT_MAX_DELAY_FRAMES = 16;
+    // Silence after this many concealed frames ends the stream until new frames arrive.
+    static final int MAX_CONCEAL_FRAMES = 8;
+    static final int CONCEAL_FADE_FRAMES = 3;
+    static final int SPLICE_SAMPLES = 32;
+    // Pulls the buffer must stay above target before a frame is skipped (about half a second).
+    static final int SHRINK_HOLD_FRAMES = 32;
+    // Arrivals further apart than this start a new transmission with a fresh frame clock.
+    static final long STREAM_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    // Per-frame decay of the jitter peak and of the earliest transit (1/512 each), about 5.5 s
+    // to halve; forgetting the earliest transit also lets the frame clock follow a drifting sender.
+    private static final int JITTER_DECAY_SHIFT = 9;
+
+    private final int minDelayFrames;
+    private final int maxDelayFrames;
+    private final short[][] frames;
+    private final long[] arrivals;
+    private int head;
+    private int count;
+    private final short[] lastFrame = new short[FRAME_SAMPLES];
+    private boolean haveLastFrame;
+    private int lastOutputSample;
+    // Starts true so the first frame ramps up from silence.
+    private boolean spliceNext = true;
+
+    private long lastArrivalNanos = Long.MIN_VALUE;
+    private long streamStartNanos;
+    private long streamFrames;
+    private long minTransitNanos;
+    private boolean playing;
+    private int concealRun;
+    private int owedFrames;
+    private int aboveTargetRun;
+
+    // Single writer (the audio thread); volatile so other threads can read them.
+    private volatile long jitterNanos;
+    private volatile int targetDelayFrames;
+    private volatile int bufferedFrames;
+    private volatile long lateFrames;
+    private volatile long concealedFrames;
+    private volatile long droppedFrames;
+    private volatile long underruns;
+
+    public RxJitterBuffer() {
+        this(DEFAULT_MIN_DELAY_FRAMES, DEFAULT_MAX_DELAY_FRAMES);
+    }
+
+    public RxJitterBuffer(int minDelayFrames, int maxDelayFrames) {
+        if (minDelayFrames < 1 || maxDelayFrames < minDelayFrames) {
+            throw new IllegalArgumentException("Need 1 <= minDelayFrames <= maxDelayFrames");
+        }
+        this.minDelayFrames = minDelayFrames;
+        this.maxDelayFrames = maxDelayFrames;
+        // Room for a full target plus the burst that arrives while we are at it.
+        this.frames = new short[maxDelayFrames * 2][FRAME_SAMPLES];
+        this.arrivals = new long[maxDelayFrames * 2];
+        this.targetDelayFrames = minDelayFrames;
+    }
+
+    /** Adds one decoded frame; shorter frames are padded by holding the last sample. */
+    public void push(short[] pcm, int offset, int len, long arrivalNanos) {
+        updateJitter(arrivalNanos);
+        if (owedFrames > 0) {
+            // Its slot was already filled by concealment.
+            owedFrames--;
+            lateFrames++;
+            if (count >= targetDelayFrames) {
+                droppedFrames++;
+                return;
+            }
+        }
+        if (count == frames.length) {
+            head = (head + 1) % frames.length;
+            count--;
+            droppedFrames++;
+            spliceNext = true;
+        }
+        int slot = (head + count) % frames.length;
+        int n = Math.min(len, FRAME_SAMPLES);
+        System.arraycopy(pcm, offset, frames[slot], 0, n);
+        short hold = n > 0 ? pcm[offset + n - 1] : 0;
+        for (int i = n; i < FRAME_SAMPLES; i++) {
+            frames[slot][i] = hold;
+        }
+        arrivals[slot] = arrivalNanos;
+        count++;
+        bufferedFrames = count;
+    }
+
+    /** Whether an idle buffer holds enough (or has waited long enough) to start playing. */
+    public boolean isReadyToPlay(long nowNanos) {
+        if (playing) {
+            return true;
+        }
+        return count > 0 && (count >= targetDelayFrames || nowNanos - arrivals[head] >= targetDelayFrames * FRAME_NANOS);
+    }
+
+    /**
+     * Produces the next {@link #FRAME_SAMPLES} samples of playout into {@code out}, concealing
+     * a missing frame if needed.
+     *
+     * @return false once the stream has ended (nothing buffered for {@link #MAX_CONCEAL_FRAMES}).
+     */
+    public boolean pull(short[] out, int offset) {
+        playing = true;
+        if (count == 0) {
+            if (concealRun >= MAX_CONCEAL_FRAMES || !haveLastFrame) {
+                endStream();
+                return false;
+            }
+            conceal(out, offset);
+            return true;
+        }
+        maybeShrink();
+        if (concealRun > 0) {
+            underruns++;
+            concealRun = 0;
+            spliceNext = true;
+        }
+        short[] frame = frames[head];
+        head = (head + 1) % frames.length;
+        count--;
+        bufferedFrames = count;
+        System.arraycopy(frame, 0, out, offset, FRAME_SAMPLES);
+        System.arraycopy(frame, 0, lastFrame, 0, FRAME_SAMPLES);
+        haveLastFrame = true;
+        if (spliceNext) {
+            smoothSplice(out, offset);
+            spliceNext = false;
+        }
+        lastOutputSample = out[offset + FRAME_SAMPLES - 1];
+        return true;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    public int getTargetDelayFrames() {
+        return targetDelayFrames;
+    }
+
+    public int getBufferedFrames() {
+        return bufferedFrames;
+    }
+
+    /** Audio currently waiting in the buffer, i.e. the playout delay it adds. */
+    public long getCurrentDelayNanos() {
+        return bufferedFrames * FRAME_NANOS;
+    }
+
+    /** Frames that arrived after concealment had already filled their slot. */
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    public long getConcealedFrames() {
+        return concealedFrames;
+    }
+
+    /** Frames discarded to shrink the delay, on overflow, or because they were late. */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /** Times the buffer ran dry mid-stream and playout resumed after concealment. */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "delay=%.1fms target=%d jitter=%.1fms late=%d concealed=%d dropped=%d underruns=%d",
+            getCurrentDelayNanos() / 1e6, targetDelayFrames, jitterNanos / 1e6, lateFrames, concealedFrames,
+            droppedFrames, underruns);
+    }
+
+    private void updateJitter(long arrivalNanos) {
+        if (lastArrivalNanos == Long.MIN_VALUE || arrivalNanos - lastArrivalNanos > STREAM_GAP_NANOS) {
+            streamStartNanos = arrivalNanos;
+            streamFrames = 0;
+            minTransitNanos = 0;
+        }
+        lastArrivalNanos = arrivalNanos;
+        long transit = arrivalNanos - (streamStartNanos + streamFrames * FRAME_NANOS);
+        streamFrames++;
+        if (transit < minTransitNanos) {
+            minTransitNanos = transit;
+        } else {
+            minTransitNanos += (transit - minTransitNanos) >> JITTER_DECAY_SHIFT;
+        }
+        long spread = transit - minTransitNanos;
+        long jitter = jitterNanos;
+        jitter = spread > jitter ? spread : jitter - (jitter >> JITTER_DECAY_SHIFT);
+        jitterNanos = jitter;
+        int target = (int) ((jitter + FRAME_NANOS - 1) / FRAME_NANOS) + 1;
+        targetDelayFrames = Math.max(minDelayFrames, Math.min(maxDelayFrames, target));
+    }
+
+    private void maybeShrink() {
+        if (count > targetDelayFrames + 1) {
+            aboveTargetRun++;
+        } else {
+            aboveTargetRun = 0;
+        }
+        if (aboveTargetRun >= SHRINK_HOLD_FRAMES && count > 1) {
+            head = (head + 1) % frames.length;
+            count--;
+            droppedFrames++;
+            spliceNext = true;
+            aboveTargetRun = 0;
+        }
+    }
+
+    private void conceal(short[] out, int offset) {
+        // Linear fade across the frame from this run's gain to the next one.
+        int startGain = Math.max(0, CONCEAL_FADE_FRAMES - concealRun);
+        int endGain = Math.max(0, CONCEAL_FADE_FRAMES - concealRun - 1);
+        int span = CONCEAL_FADE_FRAMES * FRAME_SAMPLES;
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            int gainNum = startGain * FRAME_SAMPLES + (endGain - startGain) * i;
+            out[offset + i] = (short) (lastFrame[i] * gainNum / span);
+        }
+        smoothSplice(out, offset);
+        lastOutputSample = out[offset + FRAME_SAMPLES - 1];
+        concealRun++;
+        owedFrames++;
+        concealedFrames++;
+    }
+
+    /** Ramps out the step between the previous output sample and the start of this frame. */
+    private void smoothSplice(short[] out, int offset) {
+        int step = lastOutputSample - out[offset];
+        for (int i = 0; i < SPLICE_SAMPLES; i++) {
+            int sample = out[offset + i] + step * (SPLICE_SAMPLES - i) / (SPLICE_SAMPLES + 1);
+            out[offset + i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+    }
+
+    private void endStream() {
+        playing = false;
+        concealRun = 0;
+        owedFrames = 0;
+        aboveTargetRun = 0;
+        haveLastFrame = false;
+        lastOutputSample = 0;
+        spliceNext = true;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.Value;
+
+/**
+ * Keeps the last few minutes of received audio for instant replay, as the ADPCM blocks the
+ * radio sent (about 480 KB per minute), each with its arrival time, frequency and squelch state.
+ * <p>
+ * All storage is allocated up front and the oldest block is overwritten once the ring is full,
+ * so appending costs one block copy and allocates nothing; blocks are only decoded when
+ * replayed. Blocks are addressed by a sequence number that counts every block ever appended.
+ */
+public final class RxReplayRing {
+    public static final int BLOCK_BYTES = RxAudioPipeline.FRAME_BYTES;
+    public static final int DEFAULT_MINUTES = 2;
+    // Arrivals further apart than this (e.g. a transmit in between) end a transmission.
+    static final long TRANSMISSION_GAP_NANOS = RxJitterBuffer.STREAM_GAP_NANOS;
+
+    /** Receives replayed blocks; {@code adpcm} is reused after the call returns. */
+    @FunctionalInterface
+    public interface BlockSink {
+        void onBlock(byte[] adpcm, int len);
+    }
+
+    /** Blocks {@code [startSeq, endSeq)} of the ring. */
+    @Value
+    public static class Range {
+        long startSeq;
+        long endSeq;
+
+        public long getBlocks() {
+            return endSeq - startSeq;
+        }
+
+        public long getDurationMillis() {
+            return getBlocks() * RxJitterBuffer.FRAME_NANOS / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    private final int capacity;
+    private final byte[] data;
+    private final short[] lengths;
+    private final long[] stampNanos;
+    private final float[] frequencies;
+    private final boolean[] squelchOpen;
+    private long nextSeq;
+
+    public RxReplayRing() {
+        this(blocksForMinutes(DEFAULT_MINUTES));
+    }
+
+    public RxReplayRing(int capacityBlocks) {
+        if (capacityBlocks < 1) {
+            throw new IllegalArgumentException("capacityBlocks must be positive");
+        }
+        capacity = capacityBlocks;
+        data = new byte[capacityBlocks * BLOCK_BYTES];
+        lengths = new short[capacityBlocks];
+        stampNanos = new long[capacityBlocks];
+        frequencies = new float[capacityBlocks];
+        squelchOpen = new boolean[capacityBlocks];
+    }
+
+    /** Ring size that holds {@code minutes} of continuous audio. */
+    public static int blocksForMinutes(int minutes) {
+        return (int) (TimeUnit.MINUTES.toNanos(minutes) / RxJitterBuffer.FRAME_NANOS) + 1;
+    }
+
+    public synchronized void append(byte[] adpcm, int offset, int len, long nowNanos, float frequency, boolean open) {
+        int n = Math.min(len, BLOCK_BYTES);
+        int slot = slot(nextSeq);
+        System.arraycopy(adpcm, offset, data, slot * BLOCK_BYTES, n);
+        store(slot, n, nowNanos, frequency, open);
+    }
+
+    /**
+     * Appends the block at absolute index {@code offset} of {@code frame}, e.g. straight out of a
+     * received KISS frame; the buffer may be direct and its position is left alone.
+     */
+    public synchronized void append(ByteBuffer frame, int offset, int len, long nowNanos, float frequency, boolean open) {
+        if (frame.hasArray()) {
+            append(frame.array(), frame.arrayOffset() + offset, len, nowNanos, frequency, open);
+            return;
+        }
+        int n = Math.min(len, BLOCK_BYTES);
+        int slot = slot(nextSeq);
+        int base = slot * BLOCK_BYTES;
+        for (int i = 0; i < n; i++) {
+            data[base + i] = frame.get(offset + i);
+        }
+        store(slot, n, nowNanos, frequency, open);
+    }
+
+    /** Sequence number of the oldest block still held. */
+    public synchronized long getOldestSeq() {
+        return Math.max(0, nextSeq - capacity);
+    }
+
+    /** Sequence number the next appended block will get. */
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    public int getCapacityBlocks() {
+        return capacity;
+    }
+
+    public synchronized void clear() {
+        nextSeq = 0;
+    }
+
+    /**
+     * The most recent run of squelch-open blocks, on one frequency and without arrival gaps,
+     * or empty if no held block had squelch open.
+     */
+    public synchronized Optional<Range> lastTransmission() {
+        long oldest = getOldestSeq();
+        long end = nextSeq;
+        while (end > oldest && !squelchOpen[slot(end - 1)]) {
+            end--;
+        }
+        if (end == oldest) {
+            return Optional.empty();
+        }
+        long start = end - 1;
+        while (start > oldest && continues(start - 1, start)) {
+            start--;
+        }
+        return Optional.of(new Range(start, end));
+    }
+
+    /** Held blocks that arrived in {@code [fromNanos, toNanos)}, or empty if there are none. */
+    public synchronized Optional<Range> range(long fromNanos, long toNanos) {
+        long oldest = getOldestSeq();
+        long start = nextSeq;
+        while (start > oldest && stampNanos[slot(start - 1)] - fromNanos >= 0) {
+            start--;
+        }
+        long end = start;
+        while (end < nextSeq && stampNanos[slot(end)] - toNanos < 0) {
+            end++;
+        }
+        return end > start ? Optional.of(new Range(start, end)) : Optional.empty();
+    }
+
+    /**
+     * Copies block {@code seq} into {@code out} at {@code offset}.
+     *
+     * @return its length, or -1 if it has been overwritten or not appended yet.
+     */
+    public synchronized int read(long seq, byte[] out, int offset) {
+        if (!isHeld(seq)) {
+            return -1;
+        }
+        int slot = slot(seq);
+        System.arraycopy(data, slot * BLOCK_BYTES, out, offset, lengths[slot]);
+        return lengths[slot];
+    }
+
+    public synchronized long getTimestampNanos(long seq) {
+        return stampNanos[heldSlot(seq)];
+    }
+
+    public synchronized float getFrequency(long seq) {
+        return frequencies[heldSlot(seq)];
+    }
+
+    public synchronized boolean isSquelchOpen(long seq) {
+        return squelchOpen[heldSlot(seq)];
+    }
+
+    /**
+     * Feeds the blocks of {@code range} still held to {@code sink}, one frame period apart when
+     * {@code realTime} is set (the receiving jitter buffer smooths the rest). Blocks overwritten
+     * while replaying are skipped.
+     *
+     * @return number of blocks replayed.
+     */
+    public long replay(Range range, BlockSink sink, boolean realTime) throws InterruptedException {
+        byte[] block = new byte[BLOCK_BYTES];
+        long replayed = 0;
+        long next = System.nanoTime();
+        for (long seq = range.getStartSeq(); seq < range.getEndSeq(); seq++) {
+            int len = read(seq, block, 0);
+            if (len < 0) {
+                continue;
+            }
+            if (realTime) {
+                waitUntil(next);
+                next += RxJitterBuffer.FRAME_NANOS;
+            } else if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            sink.onBlock(block, len);
+            replayed++;
+        }
+        return replayed;
+    }
+
+    private void store(int slot, int len, long nowNanos, float frequency, boolean open) {
+        lengths[slot] = (short) len;
+        stampNanos[slot] = nowNanos;
+        frequencies[slot] = frequency;
+        squelchOpen[slot] = open;
+        nextSeq++;
+    }
+
+    // Whether block {@code seq} belongs to the same transmission as the one after it.
+    private boolean continues(long seq, long nextSeqInRun) {
+        int slot = slot(seq);
+        int nextSlot = slot(nextSeqInRun);
+        return squelchOpen[slot]
+            && frequencies[slot] == frequencies[nextSlot]
+            && stampNanos[nextSlot] - stampNanos[slot] <= TRANSMISSION_GAP_NANOS;
+    }
+
+    private boolean isHeld(long seq) {
+        return seq >= getOldestSeq() && seq < nextSeq;
+    }
+
+    private int heldSlot(long seq) {
+        if (!isHeld(seq)) {
+            throw new IndexOutOfBoundsException("Block " + seq + " is not held");
+        }
+        return slot(seq);
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % capacity);
+    }
+
+    private static void waitUntil(long deadlineNanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.vagell.kv4pht.radio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Setter;
+
+/**
+ * Pure-Java stand-in for the ESP32 firmware, implementing the device side of {@code protocol.h}
+ * so the host stack can be load tested without hardware.
+ * <p>
+ * On {@link #start} it reports ready and sends a Hello. Host frames are deframed, acked with a
+ * {@code COMMAND_WINDOW_UPDATE} of their encoded length (optionally after a processing delay),
+ * and {@code HostDesiredState} is applied and echoed as {@code DeviceState} the way the firmware
+ * does. While RX audio is open and PTT is up, ADPCM blocks of a test tone stream at the real
+ * 16 kHz pace times {@code speedup}; KISS AX.25 frames can be added at a fixed interval, and
+ * either kind can be randomly lost. All callbacks come from one simulator thread.
+ * <p>
+ * Configure with the setters before calling {@link #start}.
+ */
+public final class SimulatedEsp32Transport implements RadioTransport {
+    static final int SAMPLE_RATE = 16000;
+    static final int FRAME_SAMPLES = 249;
+    private static final int DEVICE_MODE_TX = 0;
+    private static final int DEVICE_MODE_RX = 1;
+    private static final int HOST_STATE_SESSION_FLAG_MASK =
+        Protocol.HOST_STATE_RX_AUDIO_OPEN | Protocol.HOST_STATE_ENABLE_STATUS_REPORTS;
+    private static final int HOST_STATE_GLOBAL_FLAG_MASK = Protocol.HOST_STATE_RADIO_CONFIG_VALID
+        | Protocol.HOST_STATE_PTT_REQUESTED | Protocol.HOST_STATE_HIGH_POWER | Protocol.HOST_STATE_RSSI_ENABLED
+        | Protocol.HOST_STATE_FILTER_PRE | Protocol.HOST_STATE_FILTER_HIGH | Protocol.HOST_STATE_FILTER_LOW
+        | Protocol.HOST_STATE_TX_ALLOWED;
+
+    /** Reported in the Hello; the host rejects anything older than the firmware it packages. */
+    @Setter
+    private int firmwareVersion = 17;
+    /** Window advertised in the Hello (the firmware's serial RX buffer). */
+    @Setter
+    private int windowSize = 2048;
+    /** Multiplier on the real-time RX audio and AX.25 rates. */
+    @Setter
+    private double speedup = 1.0;
+    /** Probability that a generated RX audio or AX.25 frame is never sent. */
+    @Setter
+    private double frameLossRate = 0.0;
+    /** Delay between receiving a host frame and acking it, simulating firmware processing. */
+    @Setter
+    private long ackDelayNanos = 0;
+    /** Interval between received AX.25 packets in real time; {@code 0} sends none. */
+    @Setter
+    private long ax25IntervalNanos = 0;
+    /** Bytes per {@code onBytes} call, like USB reads; {@code 0} delivers whole frames. */
+    @Setter
+    private int maxReadSize = 0;
+    @Setter
+    private Protocol.RadioStatus radioModuleStatus = Protocol.RadioStatus.RADIO_STATUS_FOUND;
+    @Setter
+    private long randomSeed = 1;
+
+    private final AtomicLong rxAudioFramesSent = new AtomicLong();
+    private final AtomicLong ax25FramesSent = new AtomicLong();
+    private final AtomicLong framesLost = new AtomicLong();
+    private final AtomicLong hostFramesReceived = new AtomicLong();
+    private final AtomicLong txAudioBytesReceived = new AtomicLong();
+    private final AtomicLong deviceStatesSent = new AtomicLong();
+    private final AtomicLong windowOverruns = new AtomicLong();
+    private final AtomicLong unackedBytes = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+    private volatile Listener listener;
+    private volatile boolean ready;
+    private Random random;
+
+    // Device state, touched only on the simulator thread.
+    private final byte[] hostFrame = new byte[Protocol.KISS_MAX_FRAME_SIZE];
+    private int hostFrameLen;
+    private int hostEncodedLen;
+    private boolean hostEscape;
+    private boolean hostFrameDropped;
+    private boolean hostInFrame;
+    private Protocol.HostDesiredState desiredState = Protocol.HostDesiredState.builder().build();
+    private int sessionFlags;
+    private final ImaAdpcm.Encoder rxEncoder = new ImaAdpcm.Encoder();
+    private final short[] rxPcm = new short[FRAME_SAMPLES];
+    private final byte[] rxAdpcm = new byte[ImaAdpcm.encodedSize(FRAME_SAMPLES)];
+    private long rxSampleClock;
+    private final byte[] outFrame = new byte[Protocol.KISS_MAX_ENCODED_FRAME_SIZE];
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        random = new Random(randomSeed);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, SimulatedEsp32Transport.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(() -> {
+            ready = true;
+            listener.onReady();
+            sendHello();
+        });
+        long framePeriodNanos = (long) (TimeUnit.SECONDS.toNanos(FRAME_SAMPLES) / SAMPLE_RATE / speedup);
+        executor.scheduleAtFixedRate(this::rxAudioTick, framePeriodNanos, framePeriodNanos, TimeUnit.NANOSECONDS);
+        if (ax25IntervalNanos > 0) {
+            long period = Math.max(1, (long) (ax25IntervalNanos / speedup));
+            executor.scheduleAtFixedRate(this::ax25Tick, period, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        ready = false;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void writeAsync(byte[] bytes, int offset, int len) {
+        if (!ready) {
+            return;
+        }
+        byte[] copy = Arrays.copyOfRange(bytes, offset, offset + len);
+        if (unackedBytes.addAndGet(len) > windowSize) {
+            // The real firmware would lose these bytes from its serial buffer.
+            windowOverruns.incrementAndGet();
+        }
+        try {
+            executor.execute(() -> receiveFromHost(copy));
+        } catch (RejectedExecutionException e) {
+            // Closed concurrently; a disconnected device drops the bytes too.
+        }
+    }
+
+    @Override
+    public boolean supportsFirmwareFlashing() {
+        return false;
+    }
+
+    @Override
+    public boolean prepareForFirmwareFlashing() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return "Simulated ESP32";
+    }
+
+    public long getRxAudioFramesSent() {
+        return rxAudioFramesSent.get();
+    }
+
+    public long getAx25FramesSent() {
+        return ax25FramesSent.get();
+    }
+
+    public long getFramesLost() {
+        return framesLost.get();
+    }
+
+    public long getHostFramesReceived() {
+        return hostFramesReceived.get();
+    }
+
+    public long getTxAudioBytesReceived() {
+        return txAudioBytesReceived.get();
+    }
+
+    public long getDeviceStatesSent() {
+        return deviceStatesSent.get();
+    }
+
+    /** Host writes that pushed the bytes awaiting an ack past the advertised window. */
+    public long getWindowOverruns() {
+        return windowOverruns.get();
+    }
+
+    // Mirrors KissParser::processByte in protocol.h, including how the encoded length is counted.
+    private void receiveFromHost(byte[] bytes) {
+        for (byte raw : bytes) {
+            int b = raw & 0xFF;
+            if (b == Protocol.KISS_FEND) {
+                hostEncodedLen++;
+                if (hostFrameLen > 0 && !hostFrameDropped) {
+                    processHostFrame();
+                    scheduleAck(hostEncodedLen);
+                }
+                hostFrameLen = 0;
+                hostEscape = false;
+                hostFrameDropped = false;
+                hostInFrame = true;
+                hostEncodedLen = 1;
+                continue;
+            }
+            if (!hostInFrame) {
+                continue;
+            }
+            hostEncodedLen++;
+            if (hostFrameDropped) {
+                continue;
+            }
+            if (hostEscape) {
+                hostEscape = false;
+                b = b == Protocol.KISS_TFEND ? Protocol.KISS_FEND : b == Protocol.KISS_TFESC ? Protocol.KISS_FESC : -1;
+                if (b < 0) {
+                    hostFrameDropped = true;
+                    continue;
+                }
+            } else if (b == Protocol.KISS_FESC) {
+                hostEscape = true;
+                continue;
+            }
+            if (hostFrameLen == hostFrame.length) {
+                hostFrameDropped = true;
+                continue;
+            }
+            hostFrame[hostFrameLen++] = (byte) b;
+        }
+    }
+
+    private void scheduleAck(int encodedLen) {
+        if (ackDelayNanos > 0) {
+            executor.schedule(() -> sendWindowAck(encodedLen), ackDelayNanos, TimeUnit.NANOSECONDS);
+        } else {
+            sendWindowAck(encodedLen);
+        }
+    }
+
+    private void processHostFrame() {
+        hostFramesReceived.incrementAndGet();
+        int kissCommand = hostFrame[0] & 0x0F;
+        if (kissCommand == Protocol.KISS_CMD_DATA) {
+            // The firmware keys up and sends the AX.25 packet as AFSK; nothing comes back but state.
+            sendDeviceStateIfEnabled();
+            return;
+        }
+        int header = 1 + Protocol.KV4P_VENDOR_HEADER_LEN;
+        if (kissCommand != Protocol.KISS_CMD_SETHARDWARE || hostFrameLen < header) {
+            return;
+        }
+        int command = hostFrame[header - 1] & 0xFF;
+        int len = hostFrameLen - header;
+        if (command == Protocol.SndCommand.COMMAND_HOST_TX_AUDIO.getValue()) {
+            if (isTransmitting()) {
+                txAudioBytesReceived.addAndGet(len);
+            }
+        } else if (command == Protocol.SndCommand.COMMAND_HOST_DESIRED_STATE.getValue()
+            && len == Protocol.HostDesiredState.BYTE_LEN) {
+            applyDesiredState(ByteBuffer.wrap(hostFrame, header, len).order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    private void applyDesiredState(ByteBuffer b) {
+        Protocol.HostDesiredState incoming = Protocol.HostDesiredState.builder()
+            .sequence(b.getInt())
+            .memoryId(b.getInt())
+            .flags(b.getShort() & 0xFFFF)
+            .bw(b.get())
+            .freqTx(b.getFloat())
+            .freqRx(b.getFloat())
+            .ctcssTx(b.get())
+            .squelch(b.get())
+            .ctcssRx(b.get())
+            .build();
+        int oldSessionFlags = sessionFlags;
+        sessionFlags = incoming.getFlags() & HOST_STATE_SESSION_FLAG_MASK;
+        boolean globalStateChanged = incoming.getSequence() > desiredState.getSequence();
+        if (globalStateChanged) {
+            desiredState = incoming.withFlags(incoming.getFlags() & HOST_STATE_GLOBAL_FLAG_MASK);
+        }
+        if (globalStateChanged || oldSessionFlags != sessionFlags) {
+            sendDeviceStateIfEnabled();
+        }
+    }
+
+    private boolean isTransmitting() {
+        int flags = desiredState.getFlags();
+        return (flags & Protocol.HOST_STATE_PTT_REQUESTED) != 0 && (flags & Protocol.HOST_STATE_TX_ALLOWED) != 0;
+    }
+
+    private void rxAudioTick() {
+        if ((sessionFlags & Protocol.HOST_STATE_RX_AUDIO_OPEN) == 0 || isTransmitting()) {
+            return;
+        }
+        // 1 kHz test tone at a quarter of full scale.
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            rxPcm[i] = (short) (8192 * Math.sin(2 * Math.PI * 1000 * (rxSampleClock + i) / SAMPLE_RATE));
+        }
+        rxSampleClock += FRAME_SAMPLES;
+        int len = rxEncoder.encodeBlock(rxPcm, 0, FRAME_SAMPLES, rxAdpcm, 0);
+        if (lose()) {
+            return;
+        }
+        sendVendorFrame(Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue(), rxAdpcm, len);
+        rxAudioFramesSent.incrementAndGet();
+    }
+
+    private void ax25Tick() {
+        if (lose()) {
+            return;
+        }
+        byte[] packet = testAx25Packet(ax25FramesSent.get());
+        sendFrame(Protocol.KISS_CMD_DATA, null, 0, packet, packet.length);
+        ax25FramesSent.incrementAndGet();
+    }
+
+    private boolean lose() {
+        if (frameLossRate > 0 && random.nextDouble() < frameLossRate) {
+            framesLost.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void sendHello() {
+        ByteBuffer hello = ByteBuffer.allocate(Protocol.FirmwareVersion.BYTE_LEN + Protocol.DeviceState.BYTE_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        hello.putShort((short) firmwareVersion);
+        hello.put((byte) radioModuleStatus.getValue());
+        hello.putInt(windowSize);
+        hello.put((byte) Protocol.RfModuleType.RF_SA818_VHF.getValue());
+        hello.putFloat(134.0f);
+        hello.putFloat(174.0f);
+        hello.put((byte) 0);
+        putDeviceState(hello);
+        sendVendorFrame(Protocol.RcvCommand.COMMAND_HELLO.getValue(), hello.array(), hello.position());
+    }
+
+    private void sendDeviceStateIfEnabled() {
+        if ((sessionFlags & Protocol.HOST_STATE_ENABLE_STATUS_REPORTS) == 0) {
+            return;
+        }
+        ByteBuffer state = ByteBuffer.allocate(Protocol.DeviceState.BYTE_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        putDeviceState(state);
+        sendVendorFrame(Protocol.RcvCommand.COMMAND_DEVICE_STATE.getValue(), state.array(), state.position());
+        deviceStatesSent.incrementAndGet();
+    }
+
+    private void putDeviceState(ByteBuffer b) {
+        boolean transmitting = isTransmitting();
+        int flags = desiredState.getFlags() | sessionFlags;
+        if (transmitting) {
+            flags |= Protocol.DEVICE_STATE_TX_ACTIVE;
+        }
+        b.putInt(desiredState.getSequence());
+        b.putInt(desiredState.getMemoryId());
+        b.putShort((short) flags);
+        b.put(desiredState.getBw());
+        b.putFloat(desiredState.getFreqTx());
+        b.putFloat(desiredState.getFreqRx());
+        b.put(desiredState.getCtcssTx());
+        b.put(desiredState.getSquelch());
+        b.put(desiredState.getCtcssRx());
+        b.put((byte) radioModuleStatus.getValue());
+        b.put((byte) (transmitting ? DEVICE_MODE_TX : DEVICE_MODE_RX));
+        b.put((byte) 0);
+        b.put((byte) 0);
+    }
+
+    private void sendWindowAck(int size) {
+        unackedBytes.addAndGet(-size);
+        byte[] ack = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(size).array();
+        sendVendorFrame(Protocol.RcvCommand.COMMAND_WINDOW_UPDATE.getValue(), ack, ack.length);
+    }
+
+    private void sendVendorFrame(int command, byte[] payload, int len) {
+        byte[] header = {'K', 'V', '4', 'P', (byte) Protocol.KV4P_PROTOCOL_VERSION, (byte) command};
+        sendFrame(Protocol.KISS_CMD_SETHARDWARE, header, header.length, payload, len);
+    }
+
+    private void sendFrame(int kissCommand, byte[] header, int headerLen, byte[] payload, int len) {
+        int pos = 0;
+        outFrame[pos++] = (byte) Protocol.KISS_FEND;
+        outFrame[pos++] = (byte) kissCommand;
+        for (int i = 0; i < headerLen; i++) {
+            pos = putEscaped(pos, header[i] & 0xFF);
+        }
+        for (int i = 0; i < len; i++) {
+            pos = putEscaped(pos, payload[i] & 0xFF);
+        }
+        outFrame[pos++] = (byte) Protocol.KISS_FEND;
+        deliver(pos);
+    }
+
+    private int putEscaped(int pos, int value) {
+        if (value == Protocol.KISS_FEND) {
+            outFrame[pos++] = (byte) Protocol.KISS_FESC;
+            outFrame[pos++] = (byte) Protocol.KISS_TFEND;
+        } else if (value == Protocol.KISS_FESC) {
+            outFrame[pos++] = (byte) Protocol.KISS_FESC;
+            outFrame[pos++] = (byte) Protocol.KISS_TFESC;
+        } else {
+            outFrame[pos++] = (byte) value;
+        }
+        return pos;
+    }
+
+    private void deliver(int len) {
+        Listener target = listener;
+        if (!ready || target == null) {
+            return;
+        }
+        int chunk = maxReadSize > 0 ? maxReadSize : len;
+        for (int offset = 0; offset < len; offset += chunk) {
+            // Fresh array per read, as the USB and BLE transports hand over.
+            target.onBytes(Arrays.copyOfRange(outFrame, offset, Math.min(len, offset + chunk)));
+        }
+    }
+
+    /** An AX.25 UI frame from SIM-1 to APRS carrying a numbered status text. */
+    static byte[] testAx25Packet(long number) {
+        byte[] info = (">simulated packet " + number).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer packet = ByteBuffer.allocate(14 + 2 + info.length);
+        putAx25Address(packet, "APRS", 0, false);
+        putAx25Address(packet, "SIM", 1, true);
+        packet.put((byte) 0x03); // UI frame
+        packet.put((byte) 0xF0); // no layer 3
+        packet.put(info);
+        return packet.array();
+    }
+
+    private static void putAx25Address(ByteBuffer packet, String callsign, int ssid, boolean last) {
+        for (int i = 0; i < 6; i++) {
+            char c = i < callsign.length() ? callsign.charAt(i) : ' ';
+            packet.put((byte) (c << 1));
+        }
+        packet.put((byte) (0x60 | (ssid << 1) | (last ? 1 : 0)));
+    }
+}
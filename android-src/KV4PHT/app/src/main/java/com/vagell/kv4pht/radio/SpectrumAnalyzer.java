@@ -0,0 +1,190 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns an audio stream into spectrum frames for a waterfall display, on its own thread.
+ * <p>
+ * The audio thread hands PCM to {@link #offer}, which only copies it into a sample ring and
+ * never blocks. A worker thread (created by the supplied {@link ThreadFactory}) wakes at the
+ * display frame rate and, if new audio arrived, takes the latest {@code fftSize} samples,
+ * applies a Hann window and a {@link RealFft}, and reduces the bins to a fixed number of display
+ * columns (the strongest bin of each). Columns are in dB relative to a full-scale sine and
+ * clamped at {@link #FLOOR_DB}. Analysing only the newest window per frame is what decimates
+ * the spectrum to the display rate; everything is preallocated, so frames allocate nothing.
+ */
+public final class SpectrumAnalyzer implements Closeable {
+    public static final int DEFAULT_FFT_SIZE = 512;
+    public static final int DEFAULT_COLUMNS = 128;
+    public static final int DEFAULT_FRAMES_PER_SECOND = 30;
+    public static final float FLOOR_DB = -100f;
+
+    /**
+     * Receives each frame on the analyzer thread; {@code columnsDb} (low to high frequency) is
+     * reused for the next frame, so copy it before handing it to another thread.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onSpectrum(float[] columnsDb);
+    }
+
+    private final RealFft fft;
+    private final int fftSize;
+    private final float[] window;
+    private final float[] frame;
+    private final float[] re;
+    private final float[] im;
+    private final float[] power;
+    private final float[] columnsDb;
+    private final int[] columnStart;
+    private final float fullScalePower;
+    private final Listener listener;
+    private final long frameIntervalNanos;
+    // Written only by the producer; four windows deep so a frame being read is not overwritten.
+    private final short[] samples;
+    private final int sampleMask;
+    private final AtomicLong written = new AtomicLong();
+    private final Thread thread;
+    private long analyzedUpTo;
+    private volatile long frames;
+    private volatile boolean running = true;
+
+    public SpectrumAnalyzer(Listener listener, ThreadFactory threadFactory) {
+        this(DEFAULT_FFT_SIZE, DEFAULT_COLUMNS, DEFAULT_FRAMES_PER_SECOND, listener, threadFactory);
+    }
+
+    public SpectrumAnalyzer(int fftSize, int columns, int framesPerSecond, Listener listener, ThreadFactory threadFactory) {
+        fft = new RealFft(fftSize);
+        if (columns < 1 || columns > fftSize / 2 || framesPerSecond < 1) {
+            throw new IllegalArgumentException("columns must be in 1.." + fftSize / 2 + " and framesPerSecond positive");
+        }
+        this.fftSize = fftSize;
+        this.listener = listener;
+        this.frameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / framesPerSecond;
+        window = new float[fftSize];
+        float windowSum = 0;
+        for (int i = 0; i < fftSize; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+            windowSum += window[i];
+        }
+        // A full-scale sine peaks at amplitude * sum(window) / 2.
+        float fullScale = Short.MAX_VALUE * windowSum / 2;
+        fullScalePower = fullScale * fullScale;
+        frame = new float[fftSize];
+        re = new float[fft.getBins()];
+        im = new float[fft.getBins()];
+        power = new float[fft.getBins()];
+        columnsDb = new float[columns];
+        // Column c covers bins [columnStart[c], columnStart[c + 1]); DC is left out.
+        columnStart = new int[columns + 1];
+        for (int c = 0; c <= columns; c++) {
+            columnStart[c] = 1 + (int) ((long) c * (fft.getBins() - 1) / columns);
+        }
+        samples = new short[fftSize * 4];
+        sampleMask = samples.length - 1;
+        thread = threadFactory.newThread(this::run);
+        thread.start();
+    }
+
+    /** Queues PCM for analysis. Call from one audio thread; never blocks. */
+    public void offer(short[] pcm, int offset, int len) {
+        long w = written.get();
+        for (int i = 0; i < len; i++) {
+            samples[(int) (w + i) & sampleMask] = pcm[offset + i];
+        }
+        written.lazySet(w + len);
+    }
+
+    public int getColumns() {
+        return columnsDb.length;
+    }
+
+    /** Frames delivered so far. */
+    public long getFrames() {
+        return frames;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long next = System.nanoTime();
+        while (running) {
+            next += frameIntervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (-wait > frameIntervalNanos) {
+                next = System.nanoTime(); // Fell behind (e.g. the device slept); skip missed frames.
+            }
+            if (running && analyze()) {
+                listener.onSpectrum(columnsDb);
+            }
+        }
+    }
+
+    /**
+     * Computes a frame from the newest window of samples into {@code columnsDb}.
+     *
+     * @return false if no audio arrived since the previous frame.
+     */
+    boolean analyze() {
+        long end = written.get();
+        if (end == analyzedUpTo || end < fftSize) {
+            return false;
+        }
+        analyzedUpTo = end;
+        long start = end - fftSize;
+        for (int i = 0; i < fftSize; i++) {
+            frame[i] = samples[(int) (start + i) & sampleMask] * window[i];
+        }
+        fft.powerSpectrum(frame, re, im, power);
+        for (int c = 0; c < columnsDb.length; c++) {
+            float peak = 0;
+            for (int k = columnStart[c]; k < columnStart[c + 1]; k++) {
+                peak = Math.max(peak, power[k]);
+            }
+            float db = peak > 0 ? (float) (10 * Math.log10(peak / fullScalePower)) : FLOOR_DB;
+            columnsDb[c] = Math.max(FLOOR_DB, db);
+        }
+        frames++;
+        return true;
+    }
+
+    float[] getColumnsDb() {
+        return columnsDb;
+    }
+}
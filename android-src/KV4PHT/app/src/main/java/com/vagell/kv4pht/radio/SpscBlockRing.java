@@ -0,0 +1,185 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of variable-length byte blocks.
+ * <p>
+ * Every slot is preallocated, so neither side allocates. One thread may call {@link #offer}
+ * and one other thread may call {@link #poll}; each side caches the other's index and only
+ * re-reads it when the ring looks full (or empty), and publishes its own index with an ordered
+ * store, so the common path has no locks or CAS.
+ * <p>
+ * A consumer that parks when the ring is empty needs the producer to read its "parked" flag
+ * only after the new tail is visible, or a wakeup can be lost. An ordered store allows that read
+ * to move ahead of it, so such rings are built with {@code volatilePublish} to store the tail
+ * with a full fence instead.
+ */
+public final class SpscBlockRing {
+    private final byte[][] blocks;
+    private final int[] lengths;
+    private final long[] stamps;
+    private final int mask;
+    private final int maxBlockBytes;
+    private final boolean volatilePublish;
+    // Next block to read; written only by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    // Next block to write; written only by the producer.
+    private final AtomicLong tail = new AtomicLong();
+    private long producerCachedHead;
+    private long consumerCachedTail;
+    private long polledStamp;
+
+    /** @param capacity number of blocks, rounded up to a power of two. */
+    public SpscBlockRing(int capacity, int maxBlockBytes) {
+        this(capacity, maxBlockBytes, false);
+    }
+
+    /**
+     * @param volatilePublish publish each offered block with a volatile store, for producers
+     *                        that check whether the consumer is parked right after offering.
+     */
+    public SpscBlockRing(int capacity, int maxBlockBytes, boolean volatilePublish) {
+        if (capacity < 1 || maxBlockBytes < 1) {
+            throw new IllegalArgumentException("capacity and maxBlockBytes must be positive");
+        }
+        int slots = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.blocks = new byte[slots][maxBlockBytes];
+        this.lengths = new int[slots];
+        this.stamps = new long[slots];
+        this.mask = slots - 1;
+        this.maxBlockBytes = maxBlockBytes;
+        this.volatilePublish = volatilePublish;
+    }
+
+    public int capacity() {
+        return blocks.length;
+    }
+
+    public int maxBlockBytes() {
+        return maxBlockBytes;
+    }
+
+    /**
+     * Copies a block into the ring. Producer thread only.
+     *
+     * @return false if the ring is full and the block was not queued.
+     */
+    public boolean offer(byte[] src, int offset, int len) {
+        return offer(src, offset, len, 0);
+    }
+
+    /** Like {@link #offer(byte[], int, int)}, tagging the block with {@code stamp} (e.g. its arrival time). */
+    public boolean offer(byte[] src, int offset, int len, long stamp) {
+        if (len < 0 || len > maxBlockBytes) {
+            throw new IllegalArgumentException("Block of " + len + " bytes does not fit a " + maxBlockBytes + " byte slot");
+        }
+        long t = tail.get();
+        if (t - producerCachedHead == blocks.length) {
+            producerCachedHead = head.get();
+            if (t - producerCachedHead == blocks.length) {
+                return false;
+            }
+        }
+        int slot = (int) t & mask;
+        System.arraycopy(src, offset, blocks[slot], 0, len);
+        lengths[slot] = len;
+        stamps[slot] = stamp;
+        publishTail(t + 1);
+        return true;
+    }
+
+    /**
+     * Copies {@code len} bytes at absolute index {@code offset} of {@code src} into the ring without
+     * touching its position; {@code src} need not have a backing array. Producer thread only.
+     *
+     * @return false if the ring is full and the block was not queued.
+     */
+    public boolean offer(ByteBuffer src, int offset, int len, long stamp) {
+        if (src.hasArray()) {
+            return offer(src.array(), src.arrayOffset() + offset, len, stamp);
+        }
+        if (len < 0 || len > maxBlockBytes) {
+            throw new IllegalArgumentException("Block of " + len + " bytes does not fit a " + maxBlockBytes + " byte slot");
+        }
+        long t = tail.get();
+        if (t - producerCachedHead == blocks.length) {
+            producerCachedHead = head.get();
+            if (t - producerCachedHead == blocks.length) {
+                return false;
+            }
+        }
+        int slot = (int) t & mask;
+        byte[] block = blocks[slot];
+        for (int i = 0; i < len; i++) {
+            block[i] = src.get(offset + i);
+        }
+        lengths[slot] = len;
+        stamps[slot] = stamp;
+        publishTail(t + 1);
+        return true;
+    }
+
+    /**
+     * Copies the oldest block into {@code dst}, which must hold {@link #maxBlockBytes()} bytes
+     * from {@code offset}. Consumer thread only.
+     *
+     * @return the block length, or -1 if the ring is empty.
+     */
+    public int poll(byte[] dst, int offset) {
+        long h = head.get();
+        if (h == consumerCachedTail) {
+            consumerCachedTail = tail.get();
+            if (h == consumerCachedTail) {
+                return -1;
+            }
+        }
+        int slot = (int) h & mask;
+        int len = lengths[slot];
+        System.arraycopy(blocks[slot], 0, dst, offset, len);
+        polledStamp = stamps[slot];
+        head.lazySet(h + 1);
+        return len;
+    }
+
+    /** Stamp of the block most recently returned by {@link #poll}. Consumer thread only. */
+    public long polledStamp() {
+        return polledStamp;
+    }
+
+    /** Blocks currently queued; exact only when called from the producer or consumer thread. */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    private void publishTail(long t) {
+        if (volatilePublish) {
+            tail.set(t);
+        } else {
+            tail.lazySet(t);
+        }
+    }
+}
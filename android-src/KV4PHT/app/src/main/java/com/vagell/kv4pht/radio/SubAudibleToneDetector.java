@@ -0,0 +1,322 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import com.vagell.kv4pht.ui.ToneHelper;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Detects the sub-audible signalling in received audio: a CTCSS tone from {@link ToneHelper}'s
+ * list or a standard DCS code, to help check a memory's {@code rxTone}.
+ * <p>
+ * The 16 kHz PCM is low-passed below 300 Hz and decimated to 2 kHz, which makes the rest cheap.
+ * A bank of Goertzel filters, one per CTCSS tone, runs over blocks of {@link #BLOCK_SAMPLES}
+ * (half a second); the strongest tone's share of the block's low-band energy is its confidence,
+ * 1.0 for a clean tone. A DCS decoder slices the same low-band signal, recovers the 134.4 bit/s
+ * clock, and looks for a standard code's 23-bit Golay word repeating. Everything is incremental
+ * and preallocated, so a continuous tone is reported within a second and {@link #process}
+ * allocates nothing.
+ * <p>
+ * A DCS code inverted on air is the same signal as a rotated normal code (023I is 047N), so
+ * codes are reported in normal polarity as they arrive at the decoder. Detection needs the
+ * radio module's high-pass filter off, otherwise the module removes these tones before the
+ * audio reaches us.
+ */
+public final class SubAudibleToneDetector {
+    public static final String NONE = "None";
+    public static final int INPUT_SAMPLE_RATE = RxJitterBuffer.SAMPLE_RATE;
+    static final int DECIMATION = 8;
+    static final int SAMPLE_RATE = INPUT_SAMPLE_RATE / DECIMATION;
+    static final int BLOCK_SAMPLES = SAMPLE_RATE / 2;
+    static final float DETECT_CONFIDENCE = 0.5f;
+    static final float RELEASE_CONFIDENCE = 0.25f;
+    // Ignore blocks quieter than this (RMS of the low band, in 16-bit units), e.g. squelched audio.
+    static final float MIN_LEVEL = 50f;
+
+    static final double DCS_BIT_RATE = 134.4;
+    static final int DCS_WORD_BITS = 23;
+    static final int DCS_WORD_MASK = (1 << DCS_WORD_BITS) - 1;
+    // Sightings one word apart needed to report a code, and words without one before dropping it.
+    static final int DCS_CONFIRMATIONS = 2;
+    static final int DCS_HOLD_WORDS = 3;
+    private static final float DCS_PLL_GAIN = 0.25f;
+    static final int[] DCS_CODES = {
+        023, 025, 026, 031, 032, 036, 043, 047, 051, 053, 054, 065, 071, 072, 073, 074,
+        0114, 0115, 0116, 0122, 0125, 0131, 0132, 0134, 0143, 0145, 0152, 0155, 0156, 0162, 0165, 0172,
+        0174, 0205, 0212, 0223, 0225, 0226, 0243, 0244, 0245, 0246, 0251, 0252, 0255, 0261, 0263, 0265,
+        0266, 0271, 0274, 0306, 0311, 0315, 0325, 0331, 0332, 0343, 0346, 0351, 0356, 0364, 0365, 0371,
+        0411, 0412, 0413, 0423, 0431, 0432, 0445, 0446, 0452, 0454, 0455, 0462, 0464, 0465, 0466, 0503,
+        0506, 0516, 0523, 0526, 0532, 0546, 0565, 0606, 0612, 0624, 0627, 0631, 0632, 0654, 0662, 0664,
+        0703, 0712, 0723, 0731, 0732, 0734, 0743, 0754
+    };
+
+    /** Called on the processing thread when the detected signalling changes. */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param tone a CTCSS tone as in {@link ToneHelper#VALID_TONE_STRINGS}, a DCS code such
+         *             as {@code "D023N"}, or {@link #NONE}.
+         */
+        void onToneChanged(String tone, float confidence);
+    }
+
+    private final Listener listener;
+
+    // Two cascaded Butterworth low-pass biquads at 300 Hz, ahead of decimation.
+    private final float[] lowPass = new float[10];
+    private final float[] lowPassState = new float[8];
+    private int decimationPhase;
+
+    private final String[] toneNames;
+    private final float[] goertzelCoeff;
+    private final float[] goertzelS1;
+    private final float[] goertzelS2;
+    private float blockEnergy;
+    private int blockSamples;
+    private String ctcssTone = NONE;
+    private float ctcssConfidence;
+
+    private final int[] dcsWords;
+    private final String[] dcsNames;
+    private final float dcsPhaseStep = (float) (DCS_BIT_RATE / SAMPLE_RATE);
+    private float dcsPhase;
+    private float dcsMean;
+    private boolean dcsLastLevel;
+    private int dcsRegister;
+    private int dcsCandidate = -1;
+    private int dcsCandidateBits;
+    private int dcsCandidateCount;
+    private int dcsLocked = -1;
+    private int dcsBitsSinceLocked;
+
+    private String reportedTone = NONE;
+    private float reportedConfidence;
+
+    public SubAudibleToneDetector(Listener listener) {
+        this.listener = listener;
+        designLowPass(300.0, INPUT_SAMPLE_RATE);
+
+        double[] tones = ToneHelper.getValidToneValues();
+        toneNames = new String[tones.length];
+        goertzelCoeff = new float[tones.length];
+        goertzelS1 = new float[tones.length];
+        goertzelS2 = new float[tones.length];
+        for (int i = 0; i < tones.length; i++) {
+            toneNames[i] = ToneHelper.VALID_TONE_STRINGS.get(i + 1);
+            goertzelCoeff[i] = (float) (2 * Math.cos(2 * Math.PI * tones[i] / SAMPLE_RATE));
+        }
+
+        long[] sorted = new long[DCS_CODES.length];
+        for (int i = 0; i < DCS_CODES.length; i++) {
+            sorted[i] = ((long) dcsCodeword(DCS_CODES[i]) << 32) | i;
+        }
+        Arrays.sort(sorted);
+        dcsWords = new int[DCS_CODES.length];
+        dcsNames = new String[DCS_CODES.length];
+        for (int i = 0; i < sorted.length; i++) {
+            dcsWords[i] = (int) (sorted[i] >>> 32);
+            dcsNames[i] = String.format(Locale.US, "D%03oN", DCS_CODES[(int) sorted[i]]);
+        }
+    }
+
+    /**
+     * The 23-bit word for DCS {@code code} (e.g. {@code 023} octal) in normal polarity, first
+     * transmitted bit in bit 0: the nine code bits and {@code 100}, then eleven Golay parity bits.
+     */
+    static int dcsCodeword(int code) {
+        int data = code | 0x800;
+        int word = data;
+        for (int i = 0; i < 12; i++) {
+            word <<= 1;
+            if ((word & 0x1000) != 0) {
+                word ^= 0x08EA;
+            }
+        }
+        return data | ((word & 0x0FFE) << 11);
+    }
+
+    /** Feeds decoded 16 kHz PCM. */
+    public void process(short[] pcm, int offset, int len) {
+        float[] c = lowPass;
+        float[] z = lowPassState;
+        for (int i = offset; i < offset + len; i++) {
+            // Direct form II transposed, two sections.
+            float x = pcm[i];
+            float y = c[0] * x + z[0];
+            z[0] = c[1] * x - c[3] * y + z[1];
+            z[1] = c[2] * x - c[4] * y;
+            x = y;
+            y = c[5] * x + z[2];
+            z[2] = c[6] * x - c[8] * y + z[3];
+            z[3] = c[7] * x - c[9] * y;
+            if (++decimationPhase == DECIMATION) {
+                decimationPhase = 0;
+                onLowBandSample(y);
+            }
+        }
+    }
+
+    public String getTone() {
+        return reportedTone;
+    }
+
+    public float getConfidence() {
+        return reportedConfidence;
+    }
+
+    public void reset() {
+        Arrays.fill(lowPassState, 0);
+        decimationPhase = 0;
+        resetBlock();
+        ctcssTone = NONE;
+        ctcssConfidence = 0;
+        dcsPhase = 0;
+        dcsMean = 0;
+        dcsRegister = 0;
+        dcsCandidate = -1;
+        dcsCandidateCount = 0;
+        dcsLocked = -1;
+        update();
+    }
+
+    private void onLowBandSample(float x) {
+        for (int t = 0; t < goertzelCoeff.length; t++) {
+            float s0 = x + goertzelCoeff[t] * goertzelS1[t] - goertzelS2[t];
+            goertzelS2[t] = goertzelS1[t];
+            goertzelS1[t] = s0;
+        }
+        blockEnergy += x * x;
+        if (++blockSamples == BLOCK_SAMPLES) {
+            finishBlock();
+        }
+        dcsSample(x);
+    }
+
+    private void finishBlock() {
+        int best = -1;
+        float bestPower = 0;
+        for (int t = 0; t < goertzelCoeff.length; t++) {
+            float s1 = goertzelS1[t];
+            float s2 = goertzelS2[t];
+            float power = s1 * s1 + s2 * s2 - goertzelCoeff[t] * s1 * s2;
+            if (power > bestPower) {
+                bestPower = power;
+                best = t;
+            }
+        }
+        // A pure tone puts (A N / 2)^2 in its filter and A^2 N / 2 in the block.
+        float confidence = 0;
+        if (best >= 0 && blockEnergy > MIN_LEVEL * MIN_LEVEL * BLOCK_SAMPLES) {
+            confidence = Math.min(1f, 2 * bestPower / (BLOCK_SAMPLES * blockEnergy));
+        }
+        if (confidence >= DETECT_CONFIDENCE || (confidence >= RELEASE_CONFIDENCE && toneNames[best].equals(ctcssTone))) {
+            ctcssTone = toneNames[best];
+            ctcssConfidence = confidence;
+        } else {
+            ctcssTone = NONE;
+            ctcssConfidence = confidence;
+        }
+        resetBlock();
+        update();
+    }
+
+    private void resetBlock() {
+        Arrays.fill(goertzelS1, 0);
+        Arrays.fill(goertzelS2, 0);
+        blockEnergy = 0;
+        blockSamples = 0;
+    }
+
+    private void dcsSample(float x) {
+        dcsMean += (x - dcsMean) / 256;
+        boolean level = x > dcsMean;
+        if (level != dcsLastLevel) {
+            // Bit edges belong at phase 0.5, halfway between the sampling points.
+            dcsPhase += (0.5f - dcsPhase) * DCS_PLL_GAIN;
+            dcsLastLevel = level;
+        }
+        dcsPhase += dcsPhaseStep;
+        if (dcsPhase >= 1f) {
+            dcsPhase -= 1f;
+            dcsBit(level);
+        }
+    }
+
+    private void dcsBit(boolean bit) {
+        dcsRegister = (dcsRegister >>> 1) | (bit ? 1 << (DCS_WORD_BITS - 1) : 0);
+        dcsCandidateBits++;
+        dcsBitsSinceLocked++;
+        int match = Arrays.binarySearch(dcsWords, dcsRegister & DCS_WORD_MASK);
+        if (match >= 0) {
+            if (match == dcsCandidate && dcsCandidateBits == DCS_WORD_BITS) {
+                dcsCandidateCount++;
+            } else {
+                dcsCandidate = match;
+                dcsCandidateCount = 1;
+            }
+            dcsCandidateBits = 0;
+            if (dcsCandidateCount >= DCS_CONFIRMATIONS) {
+                dcsBitsSinceLocked = 0;
+                if (dcsLocked != match) {
+                    dcsLocked = match;
+                    update();
+                }
+            }
+        }
+        if (dcsLocked >= 0 && dcsBitsSinceLocked > DCS_HOLD_WORDS * DCS_WORD_BITS) {
+            dcsLocked = -1;
+            update();
+        }
+    }
+
+    private void update() {
+        String tone;
+        float confidence;
+        if (dcsLocked >= 0) {
+            tone = dcsNames[dcsLocked];
+            confidence = 1f;
+        } else {
+            tone = ctcssTone;
+            confidence = ctcssConfidence;
+        }
+        reportedConfidence = confidence;
+        if (!tone.equals(reportedTone)) {
+            reportedTone = tone;
+            listener.onToneChanged(tone, confidence);
+        }
+    }
+
+    private void designLowPass(double cutoffHz, int sampleRate) {
+        // 4th-order Butterworth as two biquads (Q = 0.541 and 1.307), via the bilinear transform.
+        double[] qs = {0.5411961, 1.3065630};
+        double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+        for (int s = 0; s < 2; s++) {
+            double alpha = Math.sin(w0) / (2 * qs[s]);
+            double cos = Math.cos(w0);
+            double a0 = 1 + alpha;
+            lowPass[s * 5] = (float) ((1 - cos) / 2 / a0);
+            lowPass[s * 5 + 1] = (float) ((1 - cos) / a0);
+            lowPass[s * 5 + 2] = (float) ((1 - cos) / 2 / a0);
+            lowPass[s * 5 + 3] = (float) (-2 * cos / a0);
+            lowPass[s * 5 + 4] = (float) ((1 - alpha) / a0);
+        }
+    }
+}
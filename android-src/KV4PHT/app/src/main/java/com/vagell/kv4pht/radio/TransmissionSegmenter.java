@@ -0,0 +1,137 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import com.vagell.kv4pht.data.RxTransmission;
+
+import java.util.Objects;
+
+/**
+ * Turns squelch transitions and the RX audio stream into {@link RxTransmission} records.
+ * <p>
+ * A transmission starts when squelch opens and ends when it closes, or when squelch opens on a
+ * different channel (e.g. while scanning). Squelch that reopens on the same channel within
+ * {@link #SQUELCH_TAIL_MILLIS} of closing continues the same transmission, so a fluttering
+ * weak signal is logged once. A closed transmission is therefore only emitted once the tail
+ * has passed, which the steady RX audio stream ({@link #onAudio}) or the next squelch report
+ * notices; {@link #flush} emits it right away. Not thread-safe; call from the parser thread.
+ */
+public final class TransmissionSegmenter {
+    static final long SQUELCH_TAIL_MILLIS = 500;
+
+    @FunctionalInterface
+    public interface Listener {
+        void onTransmission(RxTransmission transmission);
+    }
+
+    private final Listener listener;
+    // The transmission in progress (squelch open or within its tail), or null.
+    private RxTransmission current;
+    private boolean open;
+
+    public TransmissionSegmenter(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reports squelch state with the channel it applies to and the latest RSSI.
+     *
+     * @param recorder the RX recording in progress, or null; new transmissions point into it.
+     */
+    public void onSquelch(boolean squelchOpen, String frequency, int memoryId, int rssi, long nowMillis,
+                          RxAudioRecorder recorder) {
+        if (current != null && !sameChannel(current, frequency, memoryId)) {
+            end(nowMillis);
+        }
+        expireTail(nowMillis);
+        if (squelchOpen) {
+            if (current == null) {
+                current = start(frequency, memoryId, nowMillis, recorder);
+            }
+            open = true;
+            current.peakRssi = Math.max(current.peakRssi, rssi);
+            current.endTime = nowMillis;
+        } else if (open) {
+            open = false;
+            current.endTime = nowMillis;
+        }
+    }
+
+    /** Reports a received audio block; extends an open transmission and expires a finished tail. */
+    public void onAudio(long nowMillis) {
+        if (current == null) {
+            return;
+        }
+        if (open) {
+            current.endTime = nowMillis;
+        } else {
+            expireTail(nowMillis);
+        }
+    }
+
+    /** Ends and emits any transmission in progress, e.g. when leaving RX or shutting down. */
+    public void flush(long nowMillis) {
+        if (current != null) {
+            end(nowMillis);
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    private void expireTail(long nowMillis) {
+        if (current != null && !open && nowMillis - current.endTime >= SQUELCH_TAIL_MILLIS) {
+            emit();
+        }
+    }
+
+    private void end(long nowMillis) {
+        if (open) {
+            current.endTime = nowMillis;
+        }
+        emit();
+    }
+
+    private void emit() {
+        RxTransmission done = current;
+        current = null;
+        open = false;
+        listener.onTransmission(done);
+    }
+
+    private static RxTransmission start(String frequency, int memoryId, long nowMillis, RxAudioRecorder recorder) {
+        RxTransmission transmission = new RxTransmission();
+        transmission.startTime = nowMillis;
+        transmission.endTime = nowMillis;
+        transmission.frequency = frequency;
+        transmission.memoryId = memoryId;
+        if (recorder != null && recorder.isRecording()) {
+            transmission.recording = recorder.getFile().getPath();
+            transmission.audioOffset = recorder.getAudioOffset();
+        } else {
+            transmission.audioOffset = RxTransmission.NO_AUDIO;
+        }
+        return transmission;
+    }
+
+    private static boolean sameChannel(RxTransmission transmission, String frequency, int memoryId) {
+        return transmission.memoryId == memoryId && Objects.equals(transmission.frequency, frequency);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import java.util.Arrays;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Integer-only processing for the 16 kHz mic stream before it is encoded for transmission.
+ * <p>
+ * Three stages run per sample, in place:
+ * <ol>
+ *   <li>A second-order Butterworth high-pass (Q28 coefficients, error feedback) that removes DC
+ *   and handling rumble below the voice band.</li>
+ *   <li>An AGC that follows the peak envelope in 1 ms segments, with a fast attack and slow
+ *   release, and steers it towards {@link Config#agcTarget}. The gain never exceeds
+ *   {@link Config#agcMaxGain}, and input below {@link Config#agcGate} is not boosted further.</li>
+ *   <li>A peak limiter with {@link #LOOKAHEAD_SAMPLES} of lookahead. It ramps its gain down
+ *   before a peak leaves the delay line, so output never exceeds {@link Config#limiterCeiling}
+ *   and the radio is not overdeviated.</li>
+ * </ol>
+ * Gains are Q12 (AGC) and Q15 (limiter). Configuration is computed when it is set; processing
+ * neither allocates nor uses floating point. Not thread-safe.
+ */
+public final class TxAudioProcessor {
+    /** Delay added by the limiter: 2 ms at 16 kHz. A power of two. */
+    public static final int LOOKAHEAD_SAMPLES = 32;
+    static final int SAMPLE_RATE = 16000;
+    // The AGC updates its envelope and gain once per segment (1 ms).
+    static final int AGC_SEGMENT_SAMPLES = 16;
+    private static final int FILTER_SHIFT = 28;
+    private static final int ENVELOPE_SHIFT = 8;
+    private static final int AGC_GAIN_SHIFT = 12;
+    private static final int AGC_UNITY = 1 << AGC_GAIN_SHIFT;
+    // The AGC attenuates at most this much (1/16, -24 dB).
+    private static final int AGC_MIN_GAIN = AGC_UNITY / 16;
+    private static final int LIMITER_SHIFT = 15;
+    private static final int LIMITER_UNITY = 1 << LIMITER_SHIFT;
+    // Limiter recovery per sample as a shift: a time constant of 2^7 samples, about 8 ms.
+    private static final int LIMITER_RELEASE_SHIFT = 7;
+    private static final int WINDOW_MASK = 63; // Holds the LOOKAHEAD_SAMPLES + 1 gains in view.
+
+    /** Settings for one mic profile; see {@link MicGainBoost#getTxProcessing()}. */
+    @Value
+    @Builder(toBuilder = true)
+    public static class Config {
+        /** High-pass corner in Hz; 0 disables the filter. */
+        @Builder.Default
+        int highPassHz = 250;
+        /** Peak level the AGC steers speech towards. */
+        @Builder.Default
+        int agcTarget = 16384;
+        /** Most the AGC may amplify; 1 means it only ever attenuates. */
+        @Builder.Default
+        float agcMaxGain = 1.0f;
+        /** Envelope level below which quiet input (background noise) gets no extra gain. */
+        @Builder.Default
+        int agcGate = 512;
+        /** Envelope attack and release, rounded down to a power of two of 1 ms segments. */
+        @Builder.Default
+        int agcAttackMillis = 4;
+        @Builder.Default
+        int agcReleaseMillis = 512;
+        /** Highest output sample magnitude. */
+        @Builder.Default
+        int limiterCeiling = 26000;
+    }
+
+    // High-pass filter (direct form I).
+    private boolean highPass;
+    private long b0;
+    private long b1;
+    private long b2;
+    private long a1;
+    private long a2;
+    private int x1;
+    private int x2;
+    private int y1;
+    private int y2;
+    private long filterError;
+
+    // AGC.
+    private int agcTarget;
+    private int agcMaxGain;
+    private int agcGate;
+    private int attackShift;
+    private int releaseShift;
+    private int envelope; // Peak envelope, Q8.
+    private int segmentPeak;
+    private int segmentSamples;
+    private int agcGain = AGC_UNITY;
+
+    // Limiter: delay line plus a monotonic deque giving the lowest gain needed in the window.
+    private int limiterCeiling;
+    private final int[] delay = new int[LOOKAHEAD_SAMPLES];
+    private int delayPos;
+    private final int[] windowGains = new int[WINDOW_MASK + 1];
+    private final int[] windowIndices = new int[WINDOW_MASK + 1];
+    private int windowHead;
+    private int windowTail;
+    private int sampleIndex;
+    private int limiterGain = LIMITER_UNITY;
+
+    public TxAudioProcessor(Config config) {
+        configure(config);
+    }
+
+    /** Applies new settings; filter, envelope and limiter state carry over so there is no click. */
+    public void configure(Config config) {
+        highPass = config.getHighPassHz() > 0;
+        if (highPass) {
+            // RBJ cookbook high-pass, Q = 1/sqrt(2).
+            double w0 = 2 * Math.PI * config.getHighPassHz() / SAMPLE_RATE;
+            double alpha = Math.sin(w0) / Math.sqrt(2);
+            double cos = Math.cos(w0);
+            double a0 = 1 + alpha;
+            double scale = (1L << FILTER_SHIFT) / a0;
+            b0 = Math.round((1 + cos) / 2 * scale);
+            b1 = Math.round(-(1 + cos) * scale);
+            b2 = b0;
+            a1 = Math.round(-2 * cos * scale);
+            a2 = Math.round((1 - alpha) * scale);
+        }
+        agcTarget = config.getAgcTarget();
+        agcMaxGain = Math.max(AGC_UNITY, Math.round(config.getAgcMaxGain() * AGC_UNITY));
+        agcGate = Math.max(1, config.getAgcGate());
+        attackShift = log2(config.getAgcAttackMillis());
+        releaseShift = log2(config.getAgcReleaseMillis());
+        limiterCeiling = Math.min(Short.MAX_VALUE, config.getLimiterCeiling());
+    }
+
+    public void reset() {
+        x1 = x2 = y1 = y2 = 0;
+        filterError = 0;
+        envelope = 0;
+        segmentPeak = 0;
+        segmentSamples = 0;
+        agcGain = AGC_UNITY;
+        Arrays.fill(delay, 0);
+        delayPos = 0;
+        windowHead = windowTail = 0;
+        sampleIndex = 0;
+        limiterGain = LIMITER_UNITY;
+    }
+
+    /** Current AGC gain, Q12 (4096 is unity). */
+    public int getAgcGain() {
+        return agcGain;
+    }
+
+    /** Current limiter gain, Q15 (32768 is no limiting). */
+    public int getLimiterGain() {
+        return limiterGain;
+    }
+
+    /** Processes {@code len} samples in place. Output lags input by {@link #LOOKAHEAD_SAMPLES}. */
+    public void process(short[] pcm, int offset, int len) {
+        for (int i = offset; i < offset + len; i++) {
+            int sample = highPass ? highPass(pcm[i]) : pcm[i];
+            sample = agc(sample);
+            pcm[i] = (short) limit(sample);
+        }
+    }
+
+    private int highPass(int x) {
+        long acc = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2 + filterError;
+        int y = (int) (acc >> FILTER_SHIFT);
+        // Feed the truncation error back so it does not build up at low frequencies.
+        filterError = acc - ((long) y << FILTER_SHIFT);
+        x2 = x1;
+        x1 = x;
+        y2 = y1;
+        y1 = y;
+        return y;
+    }
+
+    private int agc(int x) {
+        int magnitude = Math.abs(x);
+        if (magnitude > segmentPeak) {
+            segmentPeak = magnitude;
+        }
+        if (++segmentSamples == AGC_SEGMENT_SAMPLES) {
+            int peak = segmentPeak << ENVELOPE_SHIFT;
+            envelope += (peak - envelope) >> (peak > envelope ? attackShift : releaseShift);
+            int level = Math.max(envelope >> ENVELOPE_SHIFT, agcGate);
+            int gain = (agcTarget << AGC_GAIN_SHIFT) / level;
+            agcGain = Math.max(AGC_MIN_GAIN, Math.min(agcMaxGain, gain));
+            segmentPeak = 0;
+            segmentSamples = 0;
+        }
+        return (x * agcGain) >> AGC_GAIN_SHIFT;
+    }
+
+    private int limit(int x) {
+        int magnitude = Math.abs(x);
+        int needed = magnitude > limiterCeiling
+            ? (int) (((long) limiterCeiling << LIMITER_SHIFT) / magnitude) : LIMITER_UNITY;
+        int index = sampleIndex++;
+        // Keep the deque increasing so its head is the lowest gain still in the window.
+        while (windowTail != windowHead && windowGains[(windowTail - 1) & WINDOW_MASK] >= needed) {
+            windowTail--;
+        }
+        windowGains[windowTail & WINDOW_MASK] = needed;
+        windowIndices[windowTail & WINDOW_MASK] = index;
+        windowTail++;
+        int leaving = index - LOOKAHEAD_SAMPLES;
+        while (windowIndices[windowHead & WINDOW_MASK] - leaving < 0) {
+            windowHead++;
+        }
+        int lowest = windowGains[windowHead & WINDOW_MASK];
+        if (lowest < limiterGain) {
+            // Ramp down linearly, steeply enough that every sample in the window gets at most the
+            // gain it needs by the time it leaves the delay line.
+            int step = 0;
+            for (int j = windowHead; j != windowTail && windowGains[j & WINDOW_MASK] < limiterGain; j++) {
+                int steps = windowIndices[j & WINDOW_MASK] - leaving;
+                step = Math.max(step, (limiterGain - windowGains[j & WINDOW_MASK] + steps) / (steps + 1));
+            }
+            limiterGain -= step;
+        } else {
+            limiterGain = Math.min(lowest, limiterGain + ((LIMITER_UNITY - limiterGain) >> LIMITER_RELEASE_SHIFT) + 1);
+        }
+        int delayed = delay[delayPos];
+        delay[delayPos] = x;
+        delayPos = (delayPos + 1) & (LOOKAHEAD_SAMPLES - 1);
+        int out = (int) (((long) delayed * limiterGain) >> LIMITER_SHIFT);
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, out));
+    }
+
+    private static int log2(int millis) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(1, millis));
+    }
+}
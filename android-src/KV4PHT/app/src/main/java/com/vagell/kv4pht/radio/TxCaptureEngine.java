@@ -0,0 +1,287 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures microphone audio and streams it to the radio as IMA ADPCM blocks.
+ * <p>
+ * Two threads from the supplied {@link ThreadFactory}: the capture thread only reads one block
+ * of PCM at a time from the {@link Source} into a direct buffer and copies it into a bounded
+ * {@link SpscBlockRing}, so a slow link never stalls the microphone. The TX thread takes blocks
+ * from the ring, runs them through a {@link TxAudioProcessor}, meters the result, encodes it
+ * and hands it to the {@link FrameSink}, which may block on flow control. If the TX thread
+ * falls a full ring behind, new blocks are dropped and counted as overruns. While a
+ * {@link Dtmf.Generator} has digits to play, its tones replace the processed mic audio block for
+ * block, so they go out at the capture rate with their exact durations. All buffers are
+ * allocated up front.
+ */
+public final class TxCaptureEngine implements Closeable {
+    private static final String TAG = TxCaptureEngine.class.getSimpleName();
+
+    public static final int FRAME_SAMPLES = RxJitterBuffer.FRAME_SAMPLES;
+    static final int FRAME_PCM_BYTES = FRAME_SAMPLES * 2;
+    // 16 blocks of 249 samples at 16 kHz is about a quarter of a second.
+    public static final int DEFAULT_CAPACITY_BLOCKS = 16;
+    // The level is reported every other block, about 32 times a second.
+    static final int METER_INTERVAL_BLOCKS = 2;
+    // Matches the scale of the TX audio visualization.
+    private static final float METER_SCALE = 8.0f / 32768.0f;
+    // Upper bound on a missed wakeup; the capture thread normally unparks the TX thread directly.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /** Microphone input, normally {@code AudioRecord.read(ByteBuffer, int, READ_BLOCKING)}. */
+    @FunctionalInterface
+    public interface Source {
+        /**
+         * Reads up to {@code sizeInBytes} bytes of native-order 16-bit PCM into {@code buffer}
+         * starting at index 0, blocking until they are available.
+         *
+         * @return bytes read, or a negative error code.
+         */
+        int read(ByteBuffer buffer, int sizeInBytes);
+    }
+
+    /** Receives each encoded block on the TX thread; {@code adpcm} is reused after the call returns. */
+    @FunctionalInterface
+    public interface FrameSink {
+        void send(byte[] adpcm, int len);
+    }
+
+    /** Receives the mean absolute level, scaled for the TX visualization, on the TX thread. */
+    @FunctionalInterface
+    public interface LevelListener {
+        void onLevel(float level);
+    }
+
+    private final Source source;
+    private final FrameSink sink;
+    private final LevelListener levelListener;
+    private final SpscBlockRing ring;
+    private final Thread captureThread;
+    private final Thread txThread;
+    private final ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+    private final TxAudioProcessor processor = new TxAudioProcessor(MicGainBoost.NONE.getTxProcessing());
+    // Set from any thread, applied by the TX thread before its next block.
+    private final AtomicReference<TxAudioProcessor.Config> pendingConfig = new AtomicReference<>();
+    private volatile SpectrumAnalyzer spectrumAnalyzer;
+    private volatile Dtmf.Generator dtmfGenerator;
+    private final ByteBuffer captureBuffer = ByteBuffer.allocateDirect(FRAME_PCM_BYTES).order(ByteOrder.nativeOrder());
+    private final byte[] pcmBytes = new byte[FRAME_PCM_BYTES];
+    private final ShortBuffer pcmView = ByteBuffer.wrap(pcmBytes).order(ByteOrder.nativeOrder()).asShortBuffer();
+    private final short[] pcm = new short[FRAME_SAMPLES];
+    private final byte[] adpcm = new byte[ImaAdpcm.encodedSize(FRAME_SAMPLES)];
+    private volatile boolean running;
+    private volatile boolean txParked;
+    // Each counter has a single writer (capture thread, or TX thread for blocksSent).
+    private volatile long blocksCaptured;
+    private volatile long blocksSent;
+    private volatile long overruns;
+    private volatile long readErrors;
+    private volatile long maxQueueDelayNanos;
+    private long meterSum;
+    private int meterSamples;
+    private int meterBlocks;
+
+    public TxCaptureEngine(Source source, FrameSink sink, LevelListener levelListener, ThreadFactory threadFactory) {
+        this(source, sink, levelListener, threadFactory, threadFactory, DEFAULT_CAPACITY_BLOCKS);
+    }
+
+    public TxCaptureEngine(Source source, FrameSink sink, LevelListener levelListener,
+                           ThreadFactory captureThreadFactory, ThreadFactory txThreadFactory, int capacityBlocks) {
+        this.source = source;
+        this.sink = sink;
+        this.levelListener = levelListener;
+        // Volatile publish: the capture thread reads txParked right after offering (see park()).
+        this.ring = new SpscBlockRing(capacityBlocks, FRAME_PCM_BYTES, true);
+        this.captureThread = captureThreadFactory.newThread(this::runCapture);
+        this.txThread = txThreadFactory.newThread(this::runTx);
+    }
+
+    public void start() {
+        running = true;
+        txThread.start();
+        captureThread.start();
+    }
+
+    /** Processing applied before encoding, e.g. {@link MicGainBoost#getTxProcessing()}. */
+    public void setProcessing(TxAudioProcessor.Config config) {
+        pendingConfig.set(config);
+    }
+
+    /** Also hands each processed block to {@code analyzer} (or nobody when null). */
+    public void setSpectrumAnalyzer(SpectrumAnalyzer analyzer) {
+        spectrumAnalyzer = analyzer;
+    }
+
+    /** Takes DTMF tones from {@code generator} (or nobody when null) in place of mic audio. */
+    public void setDtmfGenerator(Dtmf.Generator generator) {
+        dtmfGenerator = generator;
+    }
+
+    /**
+     * Stops both threads. The capture thread exits after its current read, so at most one block
+     * period passes before the source can be released. The TX thread is interrupted rather than
+     * just unparked: it may be waiting in the sink for flow-control credits that only arrive
+     * through the (possibly calling) main thread, and an interrupted credit wait drops the frame
+     * at once instead of running out its latency budget.
+     */
+    @Override
+    public void close() {
+        running = false;
+        txThread.interrupt();
+        join(captureThread);
+        join(txThread);
+    }
+
+    public long getBlocksCaptured() {
+        return blocksCaptured;
+    }
+
+    public long getBlocksSent() {
+        return blocksSent;
+    }
+
+    /** Blocks dropped because the TX thread was a full ring behind. */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /** Blocks captured and waiting for the TX thread. */
+    public int getQueuedBlocks() {
+        return ring.size();
+    }
+
+    public long getReadErrors() {
+        return readErrors;
+    }
+
+    /** Longest time a block waited between capture and being handed to the sink. */
+    public long getMaxQueueDelayNanos() {
+        return maxQueueDelayNanos;
+    }
+
+    private void runCapture() {
+        while (running) {
+            int read = source.read(captureBuffer, FRAME_PCM_BYTES);
+            if (read != FRAME_PCM_BYTES) {
+                // A short read only happens when the source is being stopped.
+                if (read < 0) {
+                    readErrors++;
+                    Log.w(TAG, "Mic read failed: " + read);
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            blocksCaptured++;
+            if (!ring.offer(captureBuffer, 0, FRAME_PCM_BYTES, System.nanoTime())) {
+                overruns++;
+                continue;
+            }
+            if (txParked) {
+                LockSupport.unpark(txThread);
+            }
+        }
+    }
+
+    private void runTx() {
+        encoder.reset();
+        processor.reset();
+        while (running) {
+            if (ring.poll(pcmBytes, 0) < 0) {
+                park();
+                continue;
+            }
+            long delay = System.nanoTime() - ring.polledStamp();
+            if (delay > maxQueueDelayNanos) {
+                maxQueueDelayNanos = delay;
+            }
+            pcmView.clear();
+            pcmView.get(pcm);
+            TxAudioProcessor.Config config = pendingConfig.getAndSet(null);
+            if (config != null) {
+                processor.configure(config);
+            }
+            processor.process(pcm, 0, FRAME_SAMPLES);
+            Dtmf.Generator dtmf = dtmfGenerator;
+            if (dtmf != null) {
+                // After processing, so the limiter does not reshape the tones.
+                dtmf.generate(pcm, 0, FRAME_SAMPLES);
+            }
+            meter();
+            SpectrumAnalyzer analyzer = spectrumAnalyzer;
+            if (analyzer != null) {
+                analyzer.offer(pcm, 0, FRAME_SAMPLES);
+            }
+            int len = encoder.encodeBlock(pcm, 0, FRAME_SAMPLES, adpcm, 0);
+            try {
+                sink.send(adpcm, len);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "TX audio sink failed", e);
+            }
+            blocksSent++;
+        }
+    }
+
+    /** Accumulates the level of the processed block, i.e. what is transmitted. */
+    private void meter() {
+        long sum = 0;
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            sum += Math.abs(pcm[i]);
+        }
+        meterSum += sum;
+        meterSamples += FRAME_SAMPLES;
+        if (++meterBlocks == METER_INTERVAL_BLOCKS) {
+            levelListener.onLevel(meterSum * METER_SCALE / meterSamples);
+            meterSum = 0;
+            meterSamples = 0;
+            meterBlocks = 0;
+        }
+    }
+
+    private void park() {
+        txParked = true;
+        // Re-check after publishing the flag so a block offered in between is not missed.
+        if (ring.isEmpty() && running) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        txParked = false;
+    }
+
+    private void join(Thread thread) {
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -75,10 +75,10 @@ final class UsbSerialRadioTransport implements RadioTransport {
     }
 
     @Override
-    public void writeAsync(byte[] bytes) {
+    public void writeAsync(byte[] bytes, int offset, int len) {
         SerialInputOutputManager manager = ioManager;
         if (manager != null) {
-            manager.writeAsync(bytes);
+            manager.writeAsync(bytes, offset, len);
         }
     }
 
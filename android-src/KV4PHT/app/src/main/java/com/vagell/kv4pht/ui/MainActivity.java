@@ -33,9 +33,6 @@ import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.hardware.usb.UsbManager;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -108,16 +105,8 @@ import static com.google.android.material.snackbar.Snackbar.LENGTH_LONG;
 import static com.vagell.kv4pht.radio.RadioAudioService.INTENT_OPEN_CHAT;
 
 public class MainActivity extends AppCompatActivity {
-    // For transmitting audio to ESP32 / radio
-    private AudioRecord audioRecord;
+    // Whether the PTT UI is showing a transmission; mic capture itself runs in RadioAudioService.
     private boolean isRecording = false;
-    private int channelConfig = AudioFormat.CHANNEL_IN_MONO;
-    private int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-    private int minBufferSize = Math.max(
-        AudioRecord.getMinBufferSize(RadioAudioService.AUDIO_SAMPLE_RATE, channelConfig, audioFormat),
-        RadioAudioService.AUDIO_FRAME_SAMPLES * 2);
-
-    private Thread recordingThread;
 
     private final Handler pttButtonDebounceHandler = new Handler(Looper.getMainLooper());
 
@@ -166,7 +155,6 @@ public class MainActivity extends AppCompatActivity {
     // Tx audio visualizer constants
     private static int MAX_AUDIO_VIZ_SIZE = 500;
     private static int MIN_TX_AUDIO_VIZ_SIZE = 200;
-    private static int RECORD_ANIM_FPS = 30;
     private static final int S_METER_MAX_VALUE = 13;
 
     // The main service that handles USB with the ESP32, incoming and outgoing audio, data, etc.
@@ -538,12 +526,16 @@ public class MainActivity extends AppCompatActivity {
                     endPttUi();
                 }
 
+                @Override
+                public void txAudioLevel(float level) {
+                    updateRecordingVisualization(0, level);
+                }
+
                 @Override
                 public void showNotification(String notificationChannelId, int notificationTypeId, String title, String message, String tapIntentName) {
                     doShowNotification(notificationChannelId, notificationTypeId, title, message, tapIntentName);
                 }
             };
-            initAudioRecorder();
             radioAudioService.setCallbacks(callbacks);
             applySettings(); // Some settings require radioAudioService to exist to apply.
             radioAudioService.setChannelMemories(viewModel.getChannelMemories());
@@ -992,7 +984,7 @@ public class MainActivity extends AppCompatActivity {
             layoutParams.height = Math.abs(txVolume) < 0.001 ||
                     mode == RadioMode.RX ? 0 : (int) (MAX_AUDIO_VIZ_SIZE * txVolume) + MIN_TX_AUDIO_VIZ_SIZE;
             txAudioView.setLayoutParams(layoutParams);
-        }), waitMs); // waitMs gives us the fps we desire, see RECORD_ANIM_FPS constant.
+        }), waitMs); // Levels arrive from RadioAudioService at about 30 fps while transmitting.
     }
 
     private void applySettings() {
@@ -1616,98 +1608,15 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void initAudioRecorder() {
-        if (checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-        if (null != audioRecord) {
-            audioRecord.stop();
-            audioRecord.release();
-            audioRecord = null;
-        }
-        audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                RadioAudioService.AUDIO_SAMPLE_RATE,
-                channelConfig,
-                audioFormat,
-                minBufferSize);
-        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-            Log.d("DEBUG", "Audio init error");
-        }
-    }
-
     private void startRecording() {
-        if (audioRecord == null) {
-            initAudioRecorder();
-        }
-
-        // After attempting to initialize, check if it's usable.
-        if (audioRecord == null || audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-            Log.d("DEBUG", "AudioRecord not ready, cannot start recording.");
-            // If it's not null, it's in a bad state. Release it so we can try again next time.
-            if (audioRecord != null) {
-                audioRecord.release();
-                audioRecord = null;
-            }
-            return;
-        }
-
         ImageButton pttButton = findViewById(R.id.pttButton);
         pttButton.setBackground(getDrawable(R.drawable.ptt_button_on));
-
-        audioRecord.startRecording();
         isRecording = true;
-
-        recordingThread = new Thread(new Runnable() {
-            public void run() {
-                processAudioStream();
-            }
-        }, "AudioRecorder Thread");
-
-        recordingThread.start();
-    }
-
-    private void processAudioStream() {
-        float audioChunkSampleTotal = 0.0f; // Accumulate across buffers
-        int accumulatedSamples = 0; // Track count of samples
-        int samplesPerAnimFrame = RadioAudioService.AUDIO_SAMPLE_RATE / RECORD_ANIM_FPS;
-        short[] audioBuffer = new short[RadioAudioService.AUDIO_FRAME_SAMPLES];
-        while (isRecording) {
-            int samples = audioRecord.read(audioBuffer, 0, RadioAudioService.AUDIO_FRAME_SAMPLES, AudioRecord.READ_BLOCKING);
-            if (samples == RadioAudioService.AUDIO_FRAME_SAMPLES) {
-                if (null == radioAudioService || !radioAudioService.isRadioConnected()) {
-                    Log.d("DEBUG", "Error: Could not contact radio in processAudioStream() while recording.");
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            stopRecording();
-                        }
-                    });
-                    return;
-                }
-                radioAudioService.sendAudioToESP32(audioBuffer, false);
-                // Accumulate samples across buffers
-                for (int i = 0; i < samples; i++) {
-                    audioChunkSampleTotal += Math.abs(audioBuffer[i] / 32768.0f) * 8.0f;
-                    accumulatedSamples++;
-                    // If we have enough samples, update visualization
-                    if (accumulatedSamples >= samplesPerAnimFrame) {
-                        updateRecordingVisualization(0, audioChunkSampleTotal / accumulatedSamples);
-                        // Reset accumulators
-                        audioChunkSampleTotal = 0.0f;
-                        accumulatedSamples = 0;
-                    }
-                }
-            }
-        }
     }
 
     private void stopRecording() {
-        if (audioRecord != null) {
+        if (isRecording) {
             isRecording = false;
-            audioRecord.stop();
-            audioRecord.release();
-            audioRecord = null;
-            recordingThread = null;
             updateRecordingVisualization(100, 0.0f);
         }
         ImageButton pttButton = findViewById(R.id.pttButton);
@@ -22,6 +22,13 @@ public class ToneHelper {
             "210.7", "218.1", "225.7", "233.6", "241.8", "250.3"
     );
 
+    /**
+     * @return The valid tone frequencies in Hz, in the same order as VALID_TONE_STRINGS without "None".
+     */
+    public static double[] getValidToneValues() {
+        return VALID_TONE_VALUES.clone();
+    }
+
     public static boolean isValidTone(String tone) {
         return VALID_TONE_STRINGS.contains(tone);
     }
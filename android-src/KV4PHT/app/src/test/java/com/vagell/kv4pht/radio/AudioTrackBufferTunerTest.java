@@ -0,0 +1,155 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class AudioTrackBufferTunerTest {
+    private static final int BURST = 192;
+    private static final long POLL = AudioTrackBufferTuner.POLL_INTERVAL_NANOS;
+
+    private static final class FakeTrack implements AudioTrackBufferTuner.Track {
+        int underruns;
+        int bufferFrames;
+        final int capacityFrames;
+
+        FakeTrack(int bufferFrames, int capacityFrames) {
+            this.bufferFrames = bufferFrames;
+            this.capacityFrames = capacityFrames;
+        }
+
+        @Override
+        public int getUnderrunCount() {
+            return underruns;
+        }
+
+        @Override
+        public int getBufferSizeInFrames() {
+            return bufferFrames;
+        }
+
+        @Override
+        public int setBufferSizeInFrames(int frames) {
+            bufferFrames = Math.min(frames, capacityFrames);
+            return bufferFrames;
+        }
+
+        @Override
+        public int getBufferCapacityInFrames() {
+            return capacityFrames;
+        }
+    }
+
+    @Test
+    public void underrunsGrowTheBufferOneBurstAtATimeUpToCapacity() {
+        FakeTrack track = new FakeTrack(4 * BURST, 6 * BURST);
+        AudioTrackBufferTuner tuner = new AudioTrackBufferTuner(track, 48000, BURST, 4 * BURST);
+        long now = 0;
+        tuner.onFrameWritten(now);
+        for (int i = 0; i < 4; i++) {
+            track.underruns += 2;
+            tuner.onFrameWritten(now += POLL);
+        }
+
+        assertEquals(6 * BURST, track.bufferFrames);
+        assertEquals(6 * BURST, tuner.getBufferSizeFrames());
+        assertEquals(8, tuner.getUnderruns());
+        assertEquals(6 * BURST * 1_000_000_000L / 48000, tuner.getBufferLatencyNanos());
+        List<AudioTrackBufferTuner.Adjustment> history = tuner.getHistory();
+        assertEquals(2, history.size());
+        assertEquals(new AudioTrackBufferTuner.Adjustment(POLL, 2, 4 * BURST, 5 * BURST), history.get(0));
+    }
+
+    @Test
+    public void pollsAreRateLimited() {
+        FakeTrack track = new FakeTrack(4 * BURST, 8 * BURST);
+        AudioTrackBufferTuner tuner = new AudioTrackBufferTuner(track, 48000, BURST, 2 * BURST);
+        tuner.onFrameWritten(0);
+        track.underruns = 1;
+        tuner.onFrameWritten(POLL - 1);
+        assertEquals(4 * BURST, track.bufferFrames);
+        tuner.onFrameWritten(POLL);
+        assertEquals(5 * BURST, track.bufferFrames);
+    }
+
+    @Test
+    public void quietPlaybackShrinksTheBufferDownToTheMinimum() {
+        FakeTrack track = new FakeTrack(4 * BURST, 8 * BURST);
+        AudioTrackBufferTuner tuner = new AudioTrackBufferTuner(track, 48000, BURST, 2 * BURST);
+        long now = 0;
+        long hold = AudioTrackBufferTuner.INITIAL_SHRINK_HOLD_NANOS;
+        tuner.onFrameWritten(now);
+        for (long t = 0; t < 10 * hold; t += POLL) {
+            tuner.onFrameWritten(now += POLL);
+        }
+
+        assertEquals(2 * BURST, track.bufferFrames);
+        assertEquals(2, tuner.getHistory().size());
+        assertEquals(0, tuner.getUnderruns());
+    }
+
+    @Test
+    public void underrunAfterShrinkDoublesTheQuietTimeBeforeTheNextShrink() {
+        FakeTrack track = new FakeTrack(4 * BURST, 8 * BURST);
+        AudioTrackBufferTuner tuner = new AudioTrackBufferTuner(track, 48000, BURST, 2 * BURST);
+        long hold = AudioTrackBufferTuner.INITIAL_SHRINK_HOLD_NANOS;
+        long now = 0;
+        tuner.onFrameWritten(now);
+        now = pollUntil(tuner, now, hold);
+        assertEquals(3 * BURST, track.bufferFrames);
+
+        track.underruns++;
+        tuner.onFrameWritten(now += POLL);
+        assertEquals(4 * BURST, track.bufferFrames);
+
+        // The initial hold no longer suffices; twice that does.
+        now = pollUntil(tuner, now, hold);
+        assertEquals(4 * BURST, track.bufferFrames);
+        pollUntil(tuner, now, hold);
+        assertEquals(3 * BURST, track.bufferFrames);
+    }
+
+    @Test
+    public void underrunsWhileIdleAreIgnored() {
+        FakeTrack track = new FakeTrack(4 * BURST, 8 * BURST);
+        AudioTrackBufferTuner tuner = new AudioTrackBufferTuner(track, 48000, BURST, 2 * BURST);
+        long now = 0;
+        tuner.onFrameWritten(now);
+        tuner.onIdle();
+        // The track starves between transmissions.
+        track.underruns += 3;
+        now += 10 * POLL;
+        tuner.onFrameWritten(now);
+        tuner.onFrameWritten(now += POLL);
+
+        assertEquals(4 * BURST, track.bufferFrames);
+        assertEquals(0, tuner.getUnderruns());
+    }
+
+    @Test
+    public void historyKeepsTheMostRecentResizes() {
+        FakeTrack track = new FakeTrack(BURST, 1000 * BURST);
+        AudioTrackBufferTuner tuner = new AudioTrackBufferTuner(track, 48000, BURST, BURST);
+        long now = 0;
+        tuner.onFrameWritten(now);
+        int resizes = AudioTrackBufferTuner.HISTORY_SIZE + 5;
+        for (int i = 0; i < resizes; i++) {
+            track.underruns++;
+            tuner.onFrameWritten(now += POLL);
+        }
+
+        List<AudioTrackBufferTuner.Adjustment> history = tuner.getHistory();
+        assertEquals(AudioTrackBufferTuner.HISTORY_SIZE, history.size());
+        assertEquals(6 * BURST, history.get(0).getFromFrames());
+        assertEquals((resizes + 1) * BURST, history.get(history.size() - 1).getToFrames());
+    }
+
+    private static long pollUntil(AudioTrackBufferTuner tuner, long now, long duration) {
+        for (long t = 0; t < duration; t += POLL) {
+            tuner.onFrameWritten(now += POLL);
+        }
+        return now;
+    }
+}
@@ -0,0 +1,53 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Locale;
+
+/**
+ * Minimal JVM micro-benchmark harness for the radio hot paths.
+ * <p>
+ * Benchmarks live next to the unit tests but are skipped unless the
+ * {@code kv4p.benchmarks} system property is set to {@code true}, so they never slow
+ * down or destabilize a normal test run.
+ */
+final class Benchmarks {
+    static final String ENABLE_PROPERTY = "kv4p.benchmarks";
+    private static final long WARMUP_NS = 300_000_000L;
+    private static final long MEASURE_NS = 1_000_000_000L;
+
+    @FunctionalInterface
+    interface Operation {
+        void run(int iteration);
+    }
+
+    private Benchmarks() {
+    }
+
+    static void assumeEnabled() {
+        assumeTrue("benchmarks disabled; run with -D" + ENABLE_PROPERTY + "=true", Boolean.getBoolean(ENABLE_PROPERTY));
+    }
+
+    /** Runs {@code operation} repeatedly after a warmup and returns completed operations per second. */
+    static double opsPerSecond(Operation operation) {
+        runFor(operation, WARMUP_NS);
+        long start = System.nanoTime();
+        long ops = runFor(operation, MEASURE_NS);
+        return ops * 1e9 / (System.nanoTime() - start);
+    }
+
+    static void report(String name, double value, String unit) {
+        System.out.println(String.format(Locale.US, "[benchmark] %-48s %12.2f %s", name, value, unit));
+    }
+
+    private static long runFor(Operation operation, long durationNs) {
+        long deadline = System.nanoTime() + durationNs;
+        long ops = 0;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 64; i++) {
+                operation.run((int) ops++);
+            }
+        }
+        return ops;
+    }
+}
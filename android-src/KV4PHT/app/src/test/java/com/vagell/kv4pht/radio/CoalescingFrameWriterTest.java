@@ -0,0 +1,149 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CoalescingFrameWriterTest {
+    private final List<byte[]> writes = new ArrayList<>();
+    private final Protocol.AsyncFrameWriter downstream = (bytes, offset, len) -> {
+        synchronized (writes) {
+            byte[] copy = new byte[len];
+            System.arraycopy(bytes, offset, copy, 0, len);
+            writes.add(copy);
+            writes.notifyAll();
+        }
+    };
+
+    @Test
+    public void packsFramesUpToByteBudget() {
+        try (CoalescingFrameWriter writer = new CoalescingFrameWriter(downstream, 300, TimeUnit.SECONDS.toNanos(10), null)) {
+            for (int i = 0; i < 5; i++) {
+                writer.writeAsync(frame(i, 132), 0, 132);
+            }
+
+            assertEquals(2, writes.size());
+            assertEquals(264, writes.get(0).length);
+            assertEquals(264, writes.get(1).length);
+
+            writer.flush();
+
+            assertEquals(3, writes.size());
+            assertEquals(5, writer.getFrames());
+            assertEquals(3, writer.getWrites());
+            long[] histogram = writer.getFramesPerWriteHistogram();
+            assertEquals(1, histogram[1]);
+            assertEquals(2, histogram[2]);
+        }
+    }
+
+    @Test
+    public void flushesHeldFramesAfterMaxHoldTime() throws InterruptedException {
+        try (CoalescingFrameWriter writer = new CoalescingFrameWriter(downstream, 4096, TimeUnit.MILLISECONDS.toNanos(2), null)) {
+            long start = System.nanoTime();
+            writer.writeAsync(frame(1, 132), 0, 132);
+            writer.writeAsync(frame(2, 132), 0, 132);
+
+            synchronized (writes) {
+                long deadline = System.currentTimeMillis() + 1000;
+                while (writes.isEmpty() && System.currentTimeMillis() < deadline) {
+                    writes.wait(10);
+                }
+            }
+            long elapsedNs = System.nanoTime() - start;
+
+            assertEquals(1, writes.size());
+            assertEquals(264, writes.get(0).length);
+            assertTrue("flushed after " + elapsedNs + "ns", elapsedNs >= TimeUnit.MILLISECONDS.toNanos(2));
+        }
+    }
+
+    @Test
+    public void preservesOrderAndBytesAcrossBatchesAndOversizedFrames() {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        List<Integer> frameCounts = new ArrayList<>();
+        try (CoalescingFrameWriter writer = new CoalescingFrameWriter(downstream, 256, TimeUnit.SECONDS.toNanos(10),
+                (frames, bytes) -> frameCounts.add(frames))) {
+            int[] sizes = {100, 100, 300, 50, 256, 10};
+            for (int i = 0; i < sizes.length; i++) {
+                byte[] frame = frame(i, sizes[i]);
+                expected.write(frame, 0, frame.length);
+                writer.writeAsync(frame, 0, frame.length);
+            }
+        }
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        for (byte[] write : writes) {
+            actual.write(write, 0, write.length);
+        }
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        int total = 0;
+        for (int frames : frameCounts) {
+            total += frames;
+        }
+        assertEquals(6, total);
+        assertEquals(writes.size(), frameCounts.size());
+    }
+
+    @Test
+    public void blockedTransportWriteDoesNotStallOtherProducers() throws Exception {
+        CountDownLatch writeEntered = new CountDownLatch(1);
+        CountDownLatch releaseWrite = new CountDownLatch(1);
+        Protocol.AsyncFrameWriter blocking = (bytes, offset, len) -> {
+            writeEntered.countDown();
+            try {
+                releaseWrite.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            downstream.writeAsync(bytes, offset, len);
+        };
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (CoalescingFrameWriter writer = new CoalescingFrameWriter(blocking, 264, TimeUnit.SECONDS.toNanos(10), null)) {
+            byte[] audio1 = frame(1, 132);
+            byte[] audio2 = frame(2, 132);
+            byte[] control = frame(3, 16);
+            expected.write(audio1, 0, 132);
+            expected.write(audio2, 0, 132);
+            expected.write(control, 0, 16);
+            Thread producer = new Thread(() -> {
+                writer.writeAsync(audio1, 0, 132);
+                writer.writeAsync(audio2, 0, 132); // Fills the batch and blocks in the transport.
+            });
+            producer.start();
+            assertTrue(writeEntered.await(5, TimeUnit.SECONDS));
+
+            long start = System.nanoTime();
+            writer.writeAsync(control, 0, 16);
+            long elapsedNs = System.nanoTime() - start;
+            assertTrue("control frame waited " + elapsedNs + "ns", elapsedNs < TimeUnit.SECONDS.toNanos(1));
+            assertTrue(writes.isEmpty());
+
+            releaseWrite.countDown();
+            producer.join(5000);
+            writer.flush();
+        }
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        for (byte[] write : writes) {
+            actual.write(write, 0, write.length);
+        }
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    private static byte[] frame(int seed, int len) {
+        byte[] frame = new byte[len];
+        for (int i = 0; i < len; i++) {
+            frame[i] = (byte) (seed * 31 + i);
+        }
+        return frame;
+    }
+}
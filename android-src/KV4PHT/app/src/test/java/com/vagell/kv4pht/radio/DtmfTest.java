@@ -0,0 +1,232 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class DtmfTest {
+    private static final int RATE = Dtmf.SAMPLE_RATE;
+    private static final int BLOCK = RxJitterBuffer.FRAME_SAMPLES;
+
+    @Test
+    public void generatorPlaysExactToneAndGapDurations() {
+        int[] idle = new int[1];
+        Dtmf.Generator generator = new Dtmf.Generator(70, 45, () -> idle[0]++);
+        assertTrue(generator.queue("1#"));
+        assertEquals(2 * (70 + 45), generator.getRemainingMillis());
+
+        short[] out = new short[RATE];
+        int produced = 0;
+        while (generator.isActive()) {
+            assertTrue(generator.generate(out, produced, BLOCK));
+            produced += BLOCK;
+        }
+        assertEquals(1, idle[0]);
+        int tone = 70 * RATE / 1000;
+        int period = (70 + 45) * RATE / 1000;
+        for (int digit = 0; digit < 2; digit++) {
+            int start = digit * period;
+            assertTrue(peak(out, start, start + tone) > 20000);
+            assertEquals("gap " + digit, 0, peak(out, start + tone, start + period));
+        }
+        assertEquals("silence after the last digit", 0, peak(out, 2 * period, produced));
+        assertFalse(generator.generate(out, 0, BLOCK));
+    }
+
+    @Test
+    public void generatorOutputDoesNotDependOnFrameSize() {
+        short[] whole = new short[RATE / 2];
+        Dtmf.Generator generator = new Dtmf.Generator();
+        generator.queue("159D");
+        generator.generate(whole, 0, whole.length);
+
+        short[] pieces = new short[whole.length];
+        generator = new Dtmf.Generator();
+        generator.queue("159D");
+        Random random = new Random(4);
+        for (int offset = 0; offset < pieces.length; ) {
+            int len = Math.min(1 + random.nextInt(300), pieces.length - offset);
+            generator.generate(pieces, offset, len);
+            offset += len;
+        }
+        assertArrayEquals(whole, pieces);
+
+        // Phase-continuous: no step bigger than the two tones can swing in one sample.
+        int maxStep = (int) (2 * Math.PI * Dtmf.COLUMN_HZ[3] / RATE * Dtmf.Generator.PEAK_LEVEL * Short.MAX_VALUE) + 1;
+        for (int i = 1; i < whole.length; i++) {
+            assertTrue("step at " + i, Math.abs(whole[i] - whole[i - 1]) <= maxStep);
+        }
+    }
+
+    @Test
+    public void queueRejectsInvalidDigitsAndOverflow() {
+        Dtmf.Generator generator = new Dtmf.Generator();
+        assertFalse(generator.queue("12x"));
+        assertFalse(generator.isActive());
+        assertTrue(generator.queue("abcd*#"));
+        assertFalse(generator.queue(new String(new char[Dtmf.Generator.MAX_QUEUED_DIGITS]).replace('\0', '1')));
+        generator.cancel();
+        assertFalse(generator.isActive());
+    }
+
+    @Test
+    public void decodesEveryDigitThroughNoise() {
+        String digits = "0123456789*#ABCD";
+        short[] audio = generate(digits, Dtmf.Generator.DEFAULT_TONE_MILLIS, Dtmf.Generator.DEFAULT_GAP_MILLIS);
+        // About 10 dB below the tones.
+        addNoise(audio, 3500, new Random(11));
+
+        assertEquals(digits, decode(audio));
+    }
+
+    @Test
+    public void decodesShortTonesAndRepeatedDigits() {
+        short[] audio = generate("5500", 60, 60);
+        addNoise(audio, 1500, new Random(12));
+
+        assertEquals("5500", decode(audio));
+    }
+
+    @Test
+    public void ignoresTonesTooShortToBeDigits() {
+        assertEquals("", decode(generate("7", 30, 100)));
+    }
+
+    @Test
+    public void firstToneStartsAfterTheLeadIn() {
+        Dtmf.Generator generator = new Dtmf.Generator(100, 100, () -> { });
+        generator.queue("8", 300);
+        assertEquals(500, generator.getRemainingMillis());
+        short[] audio = new short[(int) (generator.getRemainingMillis() * RATE / 1000)];
+        generator.generate(audio, 0, audio.length);
+
+        int leadIn = 300 * RATE / 1000;
+        assertEquals(0, peak(audio, 0, leadIn));
+        assertTrue(peak(audio, leadIn, leadIn + RATE / 50) > 1000);
+        assertEquals("8", decode(audio));
+        assertFalse(generator.isActive());
+    }
+
+    @Test
+    public void briefDropoutDoesNotRepeatADigit() {
+        short[] audio = generate("3", 300, 100);
+        int dropout = RATE / 10;
+        for (int i = dropout; i < dropout + RATE / 100; i++) {
+            audio[i] = 0;
+        }
+
+        assertEquals("3", decode(audio));
+    }
+
+    @Test
+    public void rejectsExcessiveTwist() {
+        // Digit 5 (770 + 1336 Hz) with the high group 10 dB up, then the low group 6 dB up.
+        short[] forward = twoTones(770, 1336, 3000, 3000 * Math.pow(10, 10 / 20.0), RATE / 5);
+        short[] reverse = twoTones(770, 1336, 3000 * Math.pow(10, 6 / 20.0), 3000, RATE / 5);
+        short[] balanced = twoTones(770, 1336, 3000, 3000, RATE / 5);
+
+        assertEquals("", decode(forward));
+        assertEquals("", decode(reverse));
+        assertEquals("5", decode(balanced));
+    }
+
+    @Test
+    public void speechAndNoiseAloneDecodeNothing() {
+        short[] audio = new short[5 * RATE];
+        Random random = new Random(13);
+        double phase = 0;
+        for (int i = 0; i < audio.length; i++) {
+            double t = (double) i / RATE;
+            // A voiced sound: harmonics of a gliding 110-170 Hz pitch, at a syllable rate.
+            phase += 2 * Math.PI * (140 + 30 * Math.sin(2 * Math.PI * 0.7 * t)) / RATE;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 4 * t);
+            double sample = random.nextGaussian() * 300;
+            for (int h = 1; h <= 20; h++) {
+                sample += envelope * 6000 / h * Math.sin(h * phase);
+            }
+            audio[i] = clip(sample);
+        }
+
+        assertEquals("", decode(audio));
+    }
+
+    @Test
+    public void generatingAndDecodingDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        short[] frame = new short[BLOCK];
+        long[] heard = new long[1];
+        Dtmf.Generator generator = new Dtmf.Generator();
+        Dtmf.Decoder decoder = new Dtmf.Decoder(digit -> heard[0]++);
+        for (int i = 0; i < 20_000; i++) {
+            if (!generator.isActive()) {
+                generator.queue("1234567890");
+            }
+            generator.generate(frame, 0, BLOCK);
+            decoder.process(frame, 0, BLOCK);
+        }
+
+        generator.queue("1234567890");
+        long before = threads.getThreadAllocatedBytes(threadId);
+        while (generator.generate(frame, 0, BLOCK)) {
+            decoder.process(frame, 0, BLOCK);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        assertTrue(heard[0] > 0);
+    }
+
+    static short[] generate(String digits, int toneMillis, int gapMillis) {
+        Dtmf.Generator generator = new Dtmf.Generator(toneMillis, gapMillis, () -> { });
+        generator.queue(digits);
+        short[] audio = new short[(int) (generator.getRemainingMillis() * RATE / 1000)];
+        generator.generate(audio, 0, audio.length);
+        return audio;
+    }
+
+    private static String decode(short[] audio) {
+        StringBuilder heard = new StringBuilder();
+        Dtmf.Decoder decoder = new Dtmf.Decoder(heard::append);
+        for (int offset = 0; offset < audio.length; offset += BLOCK) {
+            decoder.process(audio, offset, Math.min(BLOCK, audio.length - offset));
+        }
+        // Trailing silence so a digit at the very end is still confirmed.
+        short[] silence = new short[BLOCK];
+        for (int i = 0; i < 4; i++) {
+            decoder.process(silence, 0, BLOCK);
+        }
+        return heard.toString();
+    }
+
+    private static short[] twoTones(double low, double high, double lowAmplitude, double highAmplitude, int samples) {
+        short[] out = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / RATE;
+            out[i] = clip(lowAmplitude * Math.sin(2 * Math.PI * low * t) + highAmplitude * Math.sin(2 * Math.PI * high * t));
+        }
+        return out;
+    }
+
+    private static void addNoise(short[] audio, double rms, Random random) {
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = clip(audio[i] + random.nextGaussian() * rms);
+        }
+    }
+
+    private static short clip(double sample) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample)));
+    }
+
+    private static int peak(short[] pcm, int from, int to) {
+        int peak = 0;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(pcm[i]));
+        }
+        return peak;
+    }
+}
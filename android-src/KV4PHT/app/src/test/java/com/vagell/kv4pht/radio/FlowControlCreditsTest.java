@@ -0,0 +1,146 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FlowControlCreditsTest {
+
+    @Test
+    public void acquireTakesCreditsWithoutStalling() {
+        FlowControlCredits credits = new FlowControlCredits(300, 0, FlowControlCredits.TimeoutPolicy.DROP);
+
+        assertTrue(credits.acquire(132));
+        assertTrue(credits.acquire(132));
+        assertFalse(credits.tryAcquire(132));
+
+        assertEquals(36, credits.getAvailable());
+        assertEquals(0, credits.getStalledFrames());
+        assertEquals(0, credits.getStalledNanos());
+    }
+
+    @Test
+    public void parkedSenderResumesAfterGrantAndCountsStall() throws InterruptedException {
+        FlowControlCredits credits = new FlowControlCredits(0, 0, FlowControlCredits.TimeoutPolicy.DROP);
+        AtomicBoolean acquired = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread sender = new Thread(() -> {
+            acquired.set(credits.acquire(132));
+            done.countDown();
+        });
+        sender.start();
+
+        Thread.sleep(20);
+        credits.grant(100);
+        assertFalse(done.await(20, TimeUnit.MILLISECONDS));
+        credits.grant(100);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(acquired.get());
+        assertEquals(68, credits.getAvailable());
+        assertEquals(1, credits.getStalledFrames());
+        assertTrue(credits.getStalledNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void waitingHighPriorityAcquireHoldsBackLowerPriorities() throws InterruptedException {
+        FlowControlCredits credits = new FlowControlCredits(0, 0, FlowControlCredits.TimeoutPolicy.DROP);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread control = new Thread(() -> {
+            credits.acquire(100, 0);
+            done.countDown();
+        });
+        control.start();
+        while (credits.getStalledFrames() == 0) {
+            Thread.sleep(1);
+        }
+
+        credits.grant(50);
+        assertFalse(credits.tryAcquire(10, 2));
+        assertFalse(done.await(20, TimeUnit.MILLISECONDS));
+        credits.grant(50);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        control.join(1000);
+        credits.grant(10);
+        assertTrue(credits.tryAcquire(10, 2));
+    }
+
+    @Test
+    public void timedOutFrameIsDroppedWithDropPolicy() {
+        FlowControlCredits credits = new FlowControlCredits(
+            10, TimeUnit.MILLISECONDS.toNanos(5), FlowControlCredits.TimeoutPolicy.DROP);
+
+        assertFalse(credits.acquire(132));
+
+        assertEquals(10, credits.getAvailable());
+        assertEquals(1, credits.getTimedOutFrames());
+        assertTrue(credits.getStalledNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void timedOutFrameThrowsWithFailPolicy() {
+        FlowControlCredits credits = new FlowControlCredits(
+            10, TimeUnit.MILLISECONDS.toNanos(5), FlowControlCredits.TimeoutPolicy.FAIL);
+
+        try {
+            credits.acquire(132);
+            fail("expected StalledException");
+        } catch (FlowControlCredits.StalledException expected) {
+            assertEquals(1, credits.getTimedOutFrames());
+        }
+    }
+
+    @Test
+    public void interruptedSenderGivesUpWithoutTakingCredits() throws InterruptedException {
+        FlowControlCredits credits = new FlowControlCredits(0, 0, FlowControlCredits.TimeoutPolicy.DROP);
+        AtomicBoolean acquired = new AtomicBoolean(true);
+        Thread sender = new Thread(() -> acquired.set(credits.acquire(132)));
+        sender.start();
+        Thread.sleep(20);
+
+        sender.interrupt();
+        sender.join(1000);
+
+        assertFalse(sender.isAlive());
+        assertFalse(acquired.get());
+        assertEquals(0, credits.getAvailable());
+    }
+
+    @Test
+    public void concurrentSendersNeverOverdrawGrantedCredits() throws InterruptedException {
+        FlowControlCredits credits = new FlowControlCredits(0, 0, FlowControlCredits.TimeoutPolicy.DROP);
+        int senders = 4;
+        int framesPerSender = 2_000;
+        AtomicInteger sent = new AtomicInteger();
+        Thread[] threads = new Thread[senders];
+        for (int i = 0; i < senders; i++) {
+            threads[i] = new Thread(() -> {
+                for (int f = 0; f < framesPerSender; f++) {
+                    if (credits.acquire(10)) {
+                        sent.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < senders * framesPerSender; i++) {
+            credits.grant(10);
+            assertTrue(credits.getAvailable() >= 0);
+        }
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(senders * framesPerSender, sent.get());
+        assertEquals(0, credits.getAvailable());
+    }
+}
@@ -0,0 +1,77 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class FlowControlRttEstimatorTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void matchesAcksToSentFramesByCumulativeBytes() {
+        FlowControlRttEstimator rtt = new FlowControlRttEstimator();
+        rtt.onSent(100, 0);
+        rtt.onSent(50, 2 * MS);
+
+        rtt.onAcked(100, 10 * MS);
+        assertEquals(1, rtt.getSamples());
+        assertEquals(10 * MS, rtt.getSmoothedRttNanos());
+
+        rtt.onAcked(50, 14 * MS);
+        assertEquals(2, rtt.getSamples());
+        assertEquals(10 * MS, rtt.getMinRttNanos());
+        assertTrue(rtt.getSmoothedRttNanos() > 10 * MS && rtt.getSmoothedRttNanos() < 12 * MS);
+    }
+
+    @Test
+    public void steadyAudioStreamYieldsRateTimesRtt() {
+        FlowControlRttEstimator rtt = new FlowControlRttEstimator();
+        // 137-byte frames every 15.5 ms (16 kHz ADPCM), each acked 20 ms after it was sent.
+        long period = 15_500_000L;
+        for (int i = 0; i < 200; i++) {
+            rtt.onSent(137, i * period);
+            if (i >= 2) {
+                rtt.onAcked(137, (i - 2) * period + 20 * MS);
+            }
+        }
+
+        assertEquals(20 * MS, rtt.getSmoothedRttNanos());
+        assertEquals(0, rtt.getRttVarNanos() / MS);
+        long expectedRate = (long) (137 * 1e9 / period);
+        assertEquals(expectedRate, rtt.getDeliveryRateBytesPerSec(), expectedRate / 100.0);
+        assertEquals(expectedRate * 20 / 1000.0, rtt.getBandwidthDelayProductBytes(), 2);
+    }
+
+    @Test
+    public void idleGapDoesNotDragDeliveryRateDown() {
+        FlowControlRttEstimator rtt = new FlowControlRttEstimator();
+        rtt.onSent(100, 0);
+        rtt.onSent(100, 0);
+        rtt.onAcked(100, 5 * MS);
+        rtt.onAcked(100, 10 * MS);
+        long rate = rtt.getDeliveryRateBytesPerSec();
+
+        rtt.onSent(100, 5_000 * MS);
+        rtt.onAcked(100, 5_005 * MS);
+
+        assertEquals(rate, rtt.getDeliveryRateBytesPerSec());
+    }
+
+    @Test
+    public void resetInFlightDiscardsUnackedFramesButKeepsEstimates() {
+        FlowControlRttEstimator rtt = new FlowControlRttEstimator();
+        rtt.onSent(100, 0);
+        rtt.onAcked(100, 4 * MS);
+        rtt.onSent(100, 10 * MS);
+
+        rtt.resetInFlight();
+        rtt.onSent(60, 20 * MS);
+        rtt.onAcked(60, 26 * MS);
+
+        assertEquals(2, rtt.getSamples());
+        assertEquals(4 * MS, rtt.getMinRttNanos());
+    }
+}
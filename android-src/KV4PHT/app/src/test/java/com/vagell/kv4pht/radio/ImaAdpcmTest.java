@@ -2,6 +2,14 @@ package com.vagell.kv4pht.radio;
 
 import org.junit.Test;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -78,7 +86,348 @@ public class ImaAdpcmTest {
         assertEquals(0, block[2] & 0xff);
     }
 
-    private static short[] deterministicPcm(int samples) {
+    @Test
+    public void tableKernelsMatchReferenceCodecBitForBit() {
+        Random random = new Random(1234);
+        short[] pcm = new short[4096];
+        for (int trial = 0; trial < 200; trial++) {
+            fillTestSignal(pcm, random, trial % 4);
+            int samples = 1 + random.nextInt(400);
+            int offset = random.nextInt(pcm.length - samples);
+            byte[] expected = new byte[ImaAdpcm.encodedSize(samples) + 3];
+            byte[] actual = new byte[expected.length];
+
+            assertEquals(Reference.encodeBlock(pcm, offset, samples, expected, 3),
+                    ImaAdpcm.encodeBlock(pcm, offset, samples, actual, 3));
+            assertArrayEquals(expected, actual);
+
+            short[] expectedPcm = new short[samples + 2];
+            short[] actualPcm = new short[samples + 2];
+            assertEquals(Reference.decodeBlock(expected, 3, expected.length - 3, expectedPcm, 2, samples),
+                    ImaAdpcm.decodeBlock(actual, 3, actual.length - 3, actualPcm, 2, samples));
+            assertArrayEquals(expectedPcm, actualPcm);
+        }
+    }
+
+    @Test
+    public void statefulEncoderMatchesReferenceAcrossManyBlocks() {
+        Random random = new Random(99);
+        short[] pcm = new short[249 * 64];
+        fillTestSignal(pcm, random, 3);
+        Reference.Encoder reference = new Reference.Encoder();
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        byte[] expected = new byte[128];
+        byte[] actual = new byte[128];
+        for (int block = 0; block < 64; block++) {
+            assertEquals(reference.encodeBlock(pcm, block * 249, 249, expected, 0),
+                    encoder.encodeBlock(pcm, block * 249, 249, actual, 0));
+            assertArrayEquals("block " + block, expected, actual);
+        }
+    }
+
+    @Test
+    public void decodeMatchesReferenceForArbitraryBytes() {
+        Random random = new Random(5);
+        byte[] adpcm = new byte[128];
+        short[] expected = new short[249];
+        short[] actual = new short[249];
+        for (int trial = 0; trial < 2000; trial++) {
+            random.nextBytes(adpcm);
+            int len = random.nextInt(adpcm.length + 1);
+            int samples = random.nextInt(expected.length + 1);
+            Arrays.fill(expected, (short) 0);
+            Arrays.fill(actual, (short) 0);
+            assertEquals(Reference.decodeBlock(adpcm, 0, len, expected, 0, samples),
+                    ImaAdpcm.decodeBlock(adpcm, 0, len, actual, 0, samples));
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void encodeAndDecodeAllocateNothing() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        short[] pcm = deterministicPcm(249);
+        byte[] adpcm = new byte[128];
+        short[] decoded = new short[249];
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        for (int i = 0; i < 20_000; i++) {
+            encoder.encodeBlock(pcm, 0, 249, adpcm, 0);
+            ImaAdpcm.decodeBlock(adpcm, 0, adpcm.length, decoded, 0, decoded.length);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            encoder.encodeBlock(pcm, 0, 249, adpcm, 0);
+            ImaAdpcm.encodeBlock(pcm, 0, 249, adpcm, 0);
+            ImaAdpcm.decodeBlock(adpcm, 0, adpcm.length, decoded, 0, decoded.length);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(threadId) - before);
+    }
+
+    @Test
+    public void bufferDecodeMatchesArrayDecodeForFrameSlices() {
+        Random random = new Random(11);
+        short[] pcm = new short[249];
+        fillTestSignal(pcm, random, 3);
+        byte[] block = new byte[128];
+        ImaAdpcm.encodeBlock(pcm, 0, 249, block, 0);
+        short[] expected = new short[249];
+        ImaAdpcm.decodeBlock(block, 0, block.length, expected, 0, expected.length);
+
+        // The block sits inside a larger received frame, as in a COMMAND_RX_AUDIO payload.
+        ByteBuffer frame = ByteBuffer.allocateDirect(7 + 128 + 1);
+        frame.position(7);
+        frame.put(block);
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            frame.limit(7 + 128).position(7);
+            ByteBuffer out = ByteBuffer.allocateDirect(2 + 249 * 2).order(order);
+            out.position(2);
+            assertEquals(249, ImaAdpcm.decodeBlock(frame, out));
+            assertEquals(7 + 128, frame.position());
+            assertEquals(out.capacity(), out.position());
+            out.position(2);
+            for (short sample : expected) {
+                assertEquals(sample, out.getShort());
+            }
+        }
+
+        frame.limit(7 + 128).position(7);
+        ShortBuffer shorts = ShortBuffer.allocate(300);
+        shorts.position(10);
+        assertEquals(249, ImaAdpcm.decodeBlock(frame, shorts));
+        assertArrayEquals(expected, Arrays.copyOfRange(shorts.array(), 10, 259));
+
+        // A short destination stops early and leaves the rest of the block unread.
+        frame.limit(7 + 128).position(7);
+        ShortBuffer small = ShortBuffer.allocate(10);
+        assertEquals(10, ImaAdpcm.decodeBlock(frame, small));
+        assertEquals(7 + 4 + 5, frame.position());
+        assertArrayEquals(Arrays.copyOf(expected, 10), small.array());
+    }
+
+    @Test
+    public void bufferEncodeMatchesArrayEncodeAcrossBlocks() {
+        Random random = new Random(12);
+        short[] pcm = new short[249 * 8];
+        fillTestSignal(pcm, random, 0);
+        ByteBuffer pcmBytes = ByteBuffer.allocateDirect(pcm.length * 2).order(ByteOrder.nativeOrder());
+        pcmBytes.asShortBuffer().put(pcm);
+        ShortBuffer pcmShorts = ShortBuffer.wrap(pcm);
+        ImaAdpcm.Encoder arrays = new ImaAdpcm.Encoder();
+        ImaAdpcm.Encoder shortBuffers = new ImaAdpcm.Encoder();
+        ImaAdpcm.Encoder byteBuffers = new ImaAdpcm.Encoder();
+        byte[] expected = new byte[128];
+        ByteBuffer fromShorts = ByteBuffer.allocateDirect(128);
+        ByteBuffer fromBytes = ByteBuffer.allocateDirect(128);
+        for (int block = 0; block < 8; block++) {
+            arrays.encodeBlock(pcm, block * 249, 249, expected, 0);
+            fromShorts.clear();
+            fromBytes.clear();
+            assertEquals(128, shortBuffers.encodeBlock(pcmShorts, 249, fromShorts));
+            assertEquals(128, byteBuffers.encodeBlock(pcmBytes, 249, fromBytes));
+            assertEquals((block + 1) * 249, pcmShorts.position());
+            assertEquals((block + 1) * 249 * 2, pcmBytes.position());
+            assertArrayEquals(expected, contents(fromShorts));
+            assertArrayEquals(expected, contents(fromBytes));
+        }
+
+        byte[] odd = new byte[ImaAdpcm.encodedSize(7)];
+        ByteBuffer oddOut = ByteBuffer.allocate(odd.length);
+        ImaAdpcm.encodeBlock(pcm, 0, 7, odd, 0);
+        ImaAdpcm.encodeBlock(ShortBuffer.wrap(pcm, 0, 7), 7, oddOut);
+        assertArrayEquals(odd, oddOut.array());
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void bufferEncodeRejectsTooFewSamples() {
+        ImaAdpcm.encodeBlock(ShortBuffer.allocate(10), 249, ByteBuffer.allocate(128));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void bufferEncodeRejectsTooSmallOutput() {
+        ImaAdpcm.encodeBlock(ShortBuffer.allocate(249), 249, ByteBuffer.allocate(127));
+    }
+
+    @Test
+    public void directBufferCodecAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        ByteBuffer pcm = ByteBuffer.allocateDirect(249 * 2).order(ByteOrder.nativeOrder());
+        ByteBuffer adpcm = ByteBuffer.allocateDirect(128);
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        for (int i = 0; i < 20_000; i++) {
+            encodeDecode(encoder, pcm, adpcm);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            encodeDecode(encoder, pcm, adpcm);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(threadId) - before);
+    }
+
+    private static void encodeDecode(ImaAdpcm.Encoder encoder, ByteBuffer pcm, ByteBuffer adpcm) {
+        pcm.clear();
+        adpcm.clear();
+        encoder.encodeBlock(pcm, 249, adpcm);
+        adpcm.flip();
+        pcm.clear();
+        ImaAdpcm.decodeBlock(adpcm, pcm);
+    }
+
+    private static byte[] contents(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** Speech-like sine mix, full-scale square wave, white noise, or all three summed with clipping. */
+    static void fillTestSignal(short[] pcm, Random random, int kind) {
+        for (int i = 0; i < pcm.length; i++) {
+            double sine = Math.sin(i * 0.07) * 9000 + Math.sin(i * 0.31) * 3000;
+            double square = (i / 40) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            double noise = random.nextGaussian() * 8000;
+            double value = kind == 0 ? sine : kind == 1 ? square : kind == 2 ? noise : sine + square / 2 + noise;
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+    }
+
+    /** The original branchy, per-call-allocating codec, kept to pin the table kernels bit for bit. */
+    static final class Reference {
+        private static final int[] INDEX_TABLE = {
+                -1, -1, -1, -1, 2, 4, 6, 8,
+                -1, -1, -1, -1, 2, 4, 6, 8
+        };
+        private static final int[] STEP_TABLE = {
+                7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+                19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+                50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+                130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+                337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+                876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+                2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+                5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+                15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+        };
+
+        static final class Encoder {
+            private int stepIndex;
+
+            int encodeBlock(short[] pcm, int pcmOffset, int samples, byte[] adpcm, int adpcmOffset) {
+                if (samples <= 0) {
+                    return 0;
+                }
+                int[] state = {pcm[pcmOffset], stepIndex};
+                int encoded = Reference.encodeBlock(pcm, pcmOffset, samples, adpcm, adpcmOffset, state);
+                if (encoded > 0) {
+                    stepIndex = state[1];
+                }
+                return encoded;
+            }
+        }
+
+        static int encodeBlock(short[] pcm, int pcmOffset, int samples, byte[] adpcm, int adpcmOffset) {
+            int[] state = {samples > 0 ? pcm[pcmOffset] : 0, 0};
+            return encodeBlock(pcm, pcmOffset, samples, adpcm, adpcmOffset, state);
+        }
+
+        private static int encodeBlock(short[] pcm, int pcmOffset, int samples, byte[] adpcm, int adpcmOffset,
+                                       int[] state) {
+            if (samples <= 0) {
+                return 0;
+            }
+            state[0] = pcm[pcmOffset];
+            adpcm[adpcmOffset] = (byte) state[0];
+            adpcm[adpcmOffset + 1] = (byte) (state[0] >> 8);
+            adpcm[adpcmOffset + 2] = (byte) state[1];
+            adpcm[adpcmOffset + 3] = 0;
+            int out = adpcmOffset + 4;
+            boolean highNibble = false;
+            int packed = 0;
+            for (int i = 1; i < samples; i++) {
+                int code = encodeNibble(pcm[pcmOffset + i], state);
+                if (!highNibble) {
+                    packed = code & 0x0f;
+                    highNibble = true;
+                } else {
+                    adpcm[out++] = (byte) (packed | (code << 4));
+                    highNibble = false;
+                }
+            }
+            if (highNibble) {
+                adpcm[out++] = (byte) packed;
+            }
+            return out - adpcmOffset;
+        }
+
+        static int decodeBlock(byte[] adpcm, int adpcmOffset, int len, short[] pcm, int pcmOffset, int samples) {
+            if (len < 4 || samples <= 0) {
+                return 0;
+            }
+            int[] state = {
+                    (short) ((adpcm[adpcmOffset] & 0xff) | ((adpcm[adpcmOffset + 1] & 0xff) << 8)),
+                    clampIndex(adpcm[adpcmOffset + 2] & 0xff)
+            };
+            int written = 0;
+            pcm[pcmOffset + written++] = (short) state[0];
+            for (int i = adpcmOffset + 4; i < adpcmOffset + len && written < samples; i++) {
+                int packed = adpcm[i] & 0xff;
+                decodeNibble(packed & 0x0f, state);
+                pcm[pcmOffset + written++] = (short) state[0];
+                if (written >= samples) {
+                    break;
+                }
+                decodeNibble((packed >> 4) & 0x0f, state);
+                pcm[pcmOffset + written++] = (short) state[0];
+            }
+            return written;
+        }
+
+        private static int encodeNibble(short sample, int[] state) {
+            int predictor = state[0];
+            int index = state[1];
+            int step = STEP_TABLE[index];
+            int diff = sample - predictor;
+            int magnitude = Math.min(7, Math.abs(diff) * 4 / step);
+            int code = magnitude | (diff < 0 ? 8 : 0);
+            int delta = step * (2 * magnitude + 1) / 8;
+            predictor += diff < 0 ? -delta : delta;
+            state[0] = clampInt16(predictor);
+            state[1] = clampIndex(index + INDEX_TABLE[code]);
+            return code;
+        }
+
+        private static void decodeNibble(int code, int[] state) {
+            int predictor = state[0];
+            int index = state[1];
+            int step = STEP_TABLE[index];
+            int delta = step >> 3;
+            if ((code & 4) != 0) {
+                delta += step;
+            }
+            if ((code & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((code & 1) != 0) {
+                delta += step >> 2;
+            }
+            predictor += (code & 8) != 0 ? -delta : delta;
+            state[0] = clampInt16(predictor);
+            state[1] = clampIndex(index + INDEX_TABLE[code & 0x0f]);
+        }
+
+        private static int clampInt16(int sample) {
+            return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+
+        private static int clampIndex(int index) {
+            return Math.max(0, Math.min(88, index));
+        }
+    }
+
+    static short[] deterministicPcm(int samples) {
         short[] pcm = new short[samples];
         for (int i = 0; i < samples; i++) {
             pcm[i] = (short) (((i * 997 + i * i * 13) % 50001) - 25000);
@@ -0,0 +1,125 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PolyphaseResamplerTest {
+
+    @Test
+    public void upsamplingProducesExactlyTheRateRatioOfSamples() {
+        assertEquals(48000, resample(new PolyphaseResampler(16000, 48000), tone(16000, 1000, 16000, 0.5)).length);
+        assertEquals(44100, resample(new PolyphaseResampler(16000, 44100), tone(16000, 1000, 16000, 0.5)).length);
+        assertEquals(16000, resample(new PolyphaseResampler(48000, 16000), tone(48000, 1000, 48000, 0.5)).length);
+    }
+
+    @Test
+    public void passBandToneKeepsItsLevel() {
+        for (int rate : new int[] {48000, 44100}) {
+            short[] out = resample(new PolyphaseResampler(16000, rate), tone(16000, 1000, 16000, 0.5));
+            // Skip the filter transient; rate / 10 samples is a whole number of 1 kHz cycles.
+            double level = level(out, rate / 2, rate / 10, rate, 1000);
+            assertEquals("output rate " + rate, 0.5 * Short.MAX_VALUE, level, 0.5 * Short.MAX_VALUE * 0.02);
+        }
+    }
+
+    @Test
+    public void upsamplingImagesAreSuppressed() {
+        short[] out = resample(new PolyphaseResampler(16000, 48000), tone(16000, 3000, 16000, 0.5));
+        double wanted = level(out, 24000, 4800, 48000, 3000);
+        // Zero-stuffing 3 kHz to 48 kHz mirrors it around multiples of 16 kHz.
+        assertTrue(level(out, 24000, 4800, 48000, 13000) < wanted / 1000);
+        assertTrue(level(out, 24000, 4800, 48000, 19000) < wanted / 1000);
+    }
+
+    @Test
+    public void downsamplingRejectsContentThatWouldAlias() {
+        short[] out = resample(new PolyphaseResampler(48000, 16000), tone(48000, 12000, 48000, 0.5));
+        // 12 kHz folds onto 4 kHz at a 16 kHz output rate.
+        assertTrue(level(out, 8000, 1600, 16000, 4000) < 0.5 * Short.MAX_VALUE / 1000);
+    }
+
+    @Test
+    public void chunkedInputMatchesOneShotInput() {
+        short[] in = new short[16000];
+        ImaAdpcmTest.fillTestSignal(in, new Random(5), 3);
+        PolyphaseResampler oneShot = new PolyphaseResampler(16000, 44100);
+        short[] expected = new short[oneShot.maxOutputSamples(in.length)];
+        int expectedLen = oneShot.process(in, 0, in.length, expected, 0);
+
+        PolyphaseResampler chunked = new PolyphaseResampler(16000, 44100);
+        short[] actual = new short[expected.length];
+        Random random = new Random(6);
+        int written = 0;
+        for (int offset = 0; offset < in.length; ) {
+            int len = Math.min(in.length - offset, random.nextInt(300));
+            int produced = chunked.process(in, offset, len, actual, written);
+            assertTrue(produced <= chunked.maxOutputSamples(len));
+            written += produced;
+            offset += len;
+        }
+        assertEquals(expectedLen, written);
+        assertArrayEquals(Arrays.copyOf(expected, expectedLen), Arrays.copyOf(actual, written));
+    }
+
+    @Test
+    public void fullScaleInputClampsInsteadOfWrapping() {
+        short[] in = new short[1000];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (i / 8) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        short[] out = resample(new PolyphaseResampler(16000, 48000), in);
+        for (int i = 1; i < out.length; i++) {
+            // A wrapped sample would jump across the whole range.
+            assertTrue(Math.abs(out[i] - out[i - 1]) < Short.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void processAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        PolyphaseResampler resampler = new PolyphaseResampler(16000, 48000);
+        short[] in = tone(16000, 1000, 249, 0.5);
+        short[] out = new short[resampler.maxOutputSamples(in.length)];
+        for (int i = 0; i < 5_000; i++) {
+            resampler.process(in, 0, in.length, out, 0);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 5_000; i++) {
+            resampler.process(in, 0, in.length, out, 0);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(threadId) - before);
+    }
+
+    static short[] tone(int rate, double frequency, int samples, double amplitude) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * Short.MAX_VALUE * Math.sin(2 * Math.PI * frequency * i / rate));
+        }
+        return pcm;
+    }
+
+    private static short[] resample(PolyphaseResampler resampler, short[] in) {
+        short[] out = new short[resampler.maxOutputSamples(in.length)];
+        return Arrays.copyOf(out, resampler.process(in, 0, in.length, out, 0));
+    }
+
+    /** Amplitude of {@code frequency} over a window holding a whole number of its cycles. */
+    private static double level(short[] pcm, int offset, int len, int rate, double frequency) {
+        double re = 0;
+        double im = 0;
+        for (int i = 0; i < len; i++) {
+            double angle = 2 * Math.PI * frequency * (offset + i) / rate;
+            re += pcm[offset + i] * Math.cos(angle);
+            im += pcm[offset + i] * Math.sin(angle);
+        }
+        return 2 * Math.hypot(re, im) / len;
+    }
+}
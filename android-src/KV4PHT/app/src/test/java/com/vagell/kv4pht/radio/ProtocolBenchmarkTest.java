@@ -0,0 +1,326 @@
+package com.vagell.kv4pht.radio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+public class ProtocolBenchmarkTest {
+    private long sink;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void kissParserThroughput() {
+        byte[] stream = rxAudioStream(256);
+        Protocol.KissParser parser = new Protocol.KissParser(
+            (cmd, param, offset, len) -> sink += len,
+            (param, offset, len) -> sink += len);
+
+        double perSecond = Benchmarks.opsPerSecond(i -> parser.processBytes(stream, 0, stream.length));
+
+        Benchmarks.report("KissParser.processBytes", perSecond * stream.length / 1e6, "MB/s");
+    }
+
+    @Test
+    public void capturedStreamReplayThroughput() throws Exception {
+        // Recorded in 64-byte reads, the size USB CDC hands to the listener.
+        byte[] stream = rxAudioStream(256);
+        File dir = folder.getRoot();
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, "bench")) {
+            for (int offset = 0; offset < stream.length; offset += 64) {
+                recorder.record(RadioStreamRecorder.Direction.FROM_RADIO, stream, offset, Math.min(64, stream.length - offset));
+            }
+        }
+        List<File> files = RadioStreamReplayer.captureFiles(dir, "bench");
+        RadioStreamReplayer replayer = new RadioStreamReplayer(files);
+        Protocol.KissParser parser = new Protocol.KissParser(
+            (cmd, param, offset, len) -> sink += len,
+            (param, offset, len) -> sink += len);
+
+        double perSecond = Benchmarks.opsPerSecond(i -> {
+            try {
+                replayer.replayInto(parser, false);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        Benchmarks.report("RadioStreamReplayer.replayInto", perSecond * stream.length / 1e6, "MB/s");
+    }
+
+    @Test
+    public void simulatedLinkFlowControlledTxAudio() throws Exception {
+        SimulatedEsp32Transport radio = new SimulatedEsp32Transport();
+        radio.setSpeedup(10);
+        try {
+            SimulatedEsp32TransportTest.SimulatedHost host = SimulatedEsp32TransportTest.SimulatedHost.connect(radio);
+            host.sendDesiredState(1, Protocol.HOST_STATE_PTT_REQUESTED | Protocol.HOST_STATE_TX_ALLOWED);
+            byte[] audio = new byte[ImaAdpcm.encodedSize(SimulatedEsp32Transport.FRAME_SAMPLES)];
+
+            double perSecond = Benchmarks.opsPerSecond(i -> host.sender.txAudio(audio, audio.length));
+
+            double realTimeFramesPerSecond = (double) SimulatedEsp32Transport.SAMPLE_RATE / SimulatedEsp32Transport.FRAME_SAMPLES;
+            Benchmarks.report("Sender.txAudio over simulated ESP32", perSecond, "frames/s");
+            Benchmarks.report("  x real-time TX audio rate", perSecond / realTimeFramesPerSecond, "x");
+            Benchmarks.report("  window overruns", radio.getWindowOverruns(), "");
+        } finally {
+            radio.close();
+        }
+    }
+
+    @Test
+    public void commandDispatchLinearScanVersusTable() {
+        int[] wireCommands = new int[256];
+        Protocol.RcvCommand[] known = Protocol.RcvCommand.values();
+        Random random = new Random(7);
+        for (int i = 0; i < wireCommands.length; i++) {
+            wireCommands[i] = known[1 + random.nextInt(known.length - 1)].getValue();
+        }
+        ByteBuffer frame = ByteBuffer.allocate(16);
+        Protocol.CommandBufferConsumer handler = (cmd, buffer, offset, len) -> sink += cmd.ordinal() + len;
+        Protocol.CommandRegistry registry = Protocol.CommandRegistry.forwardingAll(handler, (buffer, offset, len) -> { });
+
+        double linear = Benchmarks.opsPerSecond(i -> {
+            int value = wireCommands[i & 0xFF];
+            Protocol.RcvCommand cmd = Protocol.RcvCommand.COMMAND_RCV_UNKNOWN;
+            for (Protocol.RcvCommand candidate : Protocol.RcvCommand.values()) {
+                if (candidate.getValue() == value) {
+                    cmd = candidate;
+                    break;
+                }
+            }
+            switch (cmd) {
+                case COMMAND_RX_AUDIO:
+                case COMMAND_WINDOW_UPDATE:
+                case COMMAND_DEVICE_STATE:
+                case COMMAND_HELLO:
+                    handler.accept(cmd, frame, 0, 16);
+                    break;
+                default:
+                    handler.accept(cmd, frame, 0, 8);
+                    break;
+            }
+        });
+        double table = Benchmarks.opsPerSecond(i -> registry.dispatch(wireCommands[i & 0xFF], frame, 0, 16));
+
+        Benchmarks.report("dispatch: values() scan + switch", linear / 1e6, "M/s");
+        Benchmarks.report("dispatch: CommandRegistry table", table / 1e6, "M/s");
+    }
+
+    @Test
+    public void rxAudioRingHandoffThroughput() throws Exception {
+        byte[][] blocks = RxAudioPipelineTest.randomBlocks(64);
+        SpscBlockRing ring = new SpscBlockRing(64, RxAudioPipeline.FRAME_BYTES);
+        java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+        Thread consumer = new Thread(() -> {
+            byte[] block = new byte[RxAudioPipeline.FRAME_BYTES];
+            while (!done.get()) {
+                if (ring.poll(block, 0) < 0) {
+                    Thread.yield();
+                }
+            }
+        });
+        consumer.start();
+        try {
+            double offered = Benchmarks.opsPerSecond(i -> {
+                byte[] block = blocks[i & 63];
+                while (!ring.offer(block, 0, block.length, i)) {
+                    Thread.yield();
+                }
+            });
+            Benchmarks.report("rx audio: SPSC ring handoff", offered / 1e6, "M blocks/s");
+        } finally {
+            done.set(true);
+            consumer.join();
+        }
+    }
+
+    @Test
+    public void rxAudioDecodeAndJitterBufferCost() {
+        byte[][] blocks = RxAudioPipelineTest.randomBlocks(64);
+        RxJitterBuffer jitter = new RxJitterBuffer();
+        short[] decoded = new short[RxJitterBuffer.FRAME_SAMPLES];
+        short[] out = new short[RxJitterBuffer.FRAME_SAMPLES];
+        double frames = Benchmarks.opsPerSecond(i -> {
+            byte[] block = blocks[i & 63];
+            int samples = ImaAdpcm.decodeBlock(block, 0, block.length, decoded, 0, decoded.length);
+            jitter.push(decoded, 0, samples, i * RxJitterBuffer.FRAME_NANOS);
+            jitter.pull(out, 0);
+        });
+        Benchmarks.report("rx audio: decode + jitter push/pull", frames / 1e3, "k frames/s");
+        Benchmarks.report("rx audio: realtime factor", frames * RxJitterBuffer.FRAME_NANOS / 1e9, "x");
+    }
+
+    @Test
+    public void imaAdpcmBlockThroughput() {
+        short[] pcm = new short[249 * 64];
+        ImaAdpcmTest.fillTestSignal(pcm, new Random(3), 3);
+        byte[][] blocks = new byte[64][128];
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        for (int i = 0; i < 64; i++) {
+            encoder.encodeBlock(pcm, i * 249, 249, blocks[i], 0);
+        }
+        short[] decoded = new short[249];
+        byte[] encoded = new byte[128];
+        ImaAdpcmTest.Reference.Encoder referenceEncoder = new ImaAdpcmTest.Reference.Encoder();
+
+        double decode = Benchmarks.opsPerSecond(i ->
+            ImaAdpcm.decodeBlock(blocks[i & 63], 0, 128, decoded, 0, 249));
+        double referenceDecode = Benchmarks.opsPerSecond(i ->
+            ImaAdpcmTest.Reference.decodeBlock(blocks[i & 63], 0, 128, decoded, 0, 249));
+        double encode = Benchmarks.opsPerSecond(i -> encoder.encodeBlock(pcm, (i & 63) * 249, 249, encoded, 0));
+        double referenceEncode = Benchmarks.opsPerSecond(i ->
+            referenceEncoder.encodeBlock(pcm, (i & 63) * 249, 249, encoded, 0));
+
+        java.nio.ByteBuffer frames = java.nio.ByteBuffer.allocate(64 * 128);
+        for (byte[] block : blocks) {
+            frames.put(block);
+        }
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(249 * 2).order(java.nio.ByteOrder.nativeOrder());
+        double bufferDecode = Benchmarks.opsPerSecond(i -> {
+            frames.limit(((i & 63) + 1) * 128).position((i & 63) * 128);
+            direct.clear();
+            ImaAdpcm.decodeBlock(frames, direct);
+        });
+
+        Benchmarks.report("ima adpcm: decode (tables)", decode / 1e3, "k blocks/s");
+        Benchmarks.report("ima adpcm: decode (ByteBuffer -> direct)", bufferDecode / 1e3, "k blocks/s");
+        Benchmarks.report("ima adpcm: decode (branchy reference)", referenceDecode / 1e3, "k blocks/s");
+        Benchmarks.report("ima adpcm: encode (tables)", encode / 1e3, "k blocks/s");
+        Benchmarks.report("ima adpcm: encode (branchy reference)", referenceEncode / 1e3, "k blocks/s");
+    }
+
+    @Test
+    public void polyphaseResamplerCost() {
+        short[] frame = new short[RxJitterBuffer.FRAME_SAMPLES];
+        ImaAdpcmTest.fillTestSignal(frame, new Random(4), 3);
+        for (int rate : new int[] {48000, 44100}) {
+            PolyphaseResampler resampler = new PolyphaseResampler(16000, rate);
+            short[] out = new short[resampler.maxOutputSamples(frame.length)];
+            double frames = Benchmarks.opsPerSecond(i -> resampler.process(frame, 0, frame.length, out, 0));
+            double nanosPerSample = 1e9 / (frames * frame.length * rate / 16000.0);
+            Benchmarks.report("resampler 16k -> " + rate + ": cost", nanosPerSample, "ns/output sample");
+            Benchmarks.report("resampler 16k -> " + rate + ": realtime factor",
+                frames * RxJitterBuffer.FRAME_NANOS / 1e9, "x");
+        }
+    }
+
+    @Test
+    public void txAudioProcessingCost() {
+        short[] source = new short[RxJitterBuffer.FRAME_SAMPLES * 64];
+        ImaAdpcmTest.fillTestSignal(source, new Random(13), 3);
+        short[] block = new short[RxJitterBuffer.FRAME_SAMPLES];
+        for (MicGainBoost boost : new MicGainBoost[] {MicGainBoost.NONE, MicGainBoost.HIGH}) {
+            TxAudioProcessor processor = new TxAudioProcessor(boost.getTxProcessing());
+            double blocks = Benchmarks.opsPerSecond(i -> {
+                System.arraycopy(source, (i & 63) * block.length, block, 0, block.length);
+                processor.process(block, 0, block.length);
+            });
+            Benchmarks.report("tx processing (" + boost + "): cost", 1e9 / (blocks * block.length), "ns/sample");
+        }
+    }
+
+    @Test
+    public void spectrumFftThroughput() {
+        for (int size : new int[] {256, 512, 1024}) {
+            RealFft fft = new RealFft(size);
+            float[] input = new float[size];
+            Random random = new Random(size);
+            for (int i = 0; i < size; i++) {
+                input[i] = (float) random.nextGaussian() * 8000;
+            }
+            float[] re = new float[fft.getBins()];
+            float[] im = new float[fft.getBins()];
+            float[] power = new float[fft.getBins()];
+            double perSecond = Benchmarks.opsPerSecond(i -> fft.powerSpectrum(input, re, im, power));
+            Benchmarks.report("RealFft " + size + " points", perSecond, "frames/s");
+        }
+        short[] block = new short[RxJitterBuffer.FRAME_SAMPLES];
+        ImaAdpcmTest.fillTestSignal(block, new Random(8), 3);
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SpectrumAnalyzer.DEFAULT_FFT_SIZE, SpectrumAnalyzer.DEFAULT_COLUMNS,
+            SpectrumAnalyzer.DEFAULT_FRAMES_PER_SECOND, columns -> sink++, runnable -> new Thread(() -> { }));
+        double perSecond = Benchmarks.opsPerSecond(i -> {
+            analyzer.offer(block, 0, block.length);
+            analyzer.analyze();
+        });
+        Benchmarks.report("SpectrumAnalyzer frame (window+fft+columns)", perSecond, "frames/s");
+    }
+
+    @Test
+    public void subAudibleToneDetectorCost() {
+        short[] audio = SubAudibleToneDetectorTest.ctcssWithVoice(100, SubAudibleToneDetector.INPUT_SAMPLE_RATE, new Random(9));
+        int block = RxJitterBuffer.FRAME_SAMPLES;
+        SubAudibleToneDetector detector = new SubAudibleToneDetector((tone, confidence) -> sink++);
+        double blocksPerSecond = Benchmarks.opsPerSecond(i -> {
+            int offset = i % (audio.length / block) * block;
+            detector.process(audio, offset, block);
+        });
+        double audioSecondsPerSecond = blocksPerSecond * block / SubAudibleToneDetector.INPUT_SAMPLE_RATE;
+        Benchmarks.report("SubAudibleToneDetector CPU per second of audio", 1000 / audioSecondsPerSecond, "ms");
+    }
+
+    @Test
+    public void dtmfCost() {
+        short[] audio = DtmfTest.generate("0123456789*#ABCD", Dtmf.Generator.DEFAULT_TONE_MILLIS, Dtmf.Generator.DEFAULT_GAP_MILLIS);
+        int block = RxJitterBuffer.FRAME_SAMPLES;
+        int blocks = audio.length / block;
+        Dtmf.Decoder decoder = new Dtmf.Decoder(digit -> sink++);
+        double decoded = Benchmarks.opsPerSecond(i -> decoder.process(audio, i % blocks * block, block));
+        short[] frame = new short[block];
+        Dtmf.Generator generator = new Dtmf.Generator();
+        double generated = Benchmarks.opsPerSecond(i -> {
+            if (!generator.generate(frame, 0, block)) {
+                generator.queue("0123456789");
+            }
+        });
+        double blocksPerAudioSecond = (double) Dtmf.SAMPLE_RATE / block;
+        Benchmarks.report("Dtmf.Decoder CPU per second of audio", 1000 * blocksPerAudioSecond / decoded, "ms");
+        Benchmarks.report("Dtmf.Generator CPU per second of audio", 1000 * blocksPerAudioSecond / generated, "ms");
+    }
+
+    /** Encoded COMMAND_RX_AUDIO frames with random ADPCM payloads, as the firmware streams them. */
+    static byte[] rxAudioStream(int frames) {
+        Random random = new Random(42);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] block = new byte[ImaAdpcm.encodedSize(249)];
+        for (int i = 0; i < frames; i++) {
+            random.nextBytes(block);
+            stream.write(Protocol.KISS_FEND);
+            stream.write(Protocol.KISS_CMD_SETHARDWARE);
+            writeEscaped(stream, Protocol.KV4P_VENDOR_PREFIX);
+            stream.write(Protocol.KV4P_PROTOCOL_VERSION);
+            stream.write(Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue());
+            writeEscaped(stream, block);
+            stream.write(Protocol.KISS_FEND);
+        }
+        return stream.toByteArray();
+    }
+
+    private static void writeEscaped(ByteArrayOutputStream stream, byte[] bytes) {
+        for (byte b : bytes) {
+            int value = b & 0xFF;
+            if (value == Protocol.KISS_FEND) {
+                stream.write(Protocol.KISS_FESC);
+                stream.write(Protocol.KISS_TFEND);
+            } else if (value == Protocol.KISS_FESC) {
+                stream.write(Protocol.KISS_FESC);
+                stream.write(Protocol.KISS_TFESC);
+            } else {
+                stream.write(value);
+            }
+        }
+    }
+}
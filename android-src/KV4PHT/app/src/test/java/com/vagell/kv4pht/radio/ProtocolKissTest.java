@@ -113,6 +113,83 @@ public class ProtocolKissTest {
         assertEquals(0x0C, Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue());
     }
 
+    @Test
+    public void wireValueLookupsMatchEveryConstant() {
+        for (Protocol.RcvCommand command : Protocol.RcvCommand.values()) {
+            assertEquals(command, Protocol.RcvCommand.fromValue(command.getValue()));
+        }
+        for (Protocol.DeviceMode mode : Protocol.DeviceMode.values()) {
+            assertEquals(mode, Protocol.DeviceMode.fromValue(mode.getValue()));
+        }
+        for (Protocol.RadioStatus status : Protocol.RadioStatus.values()) {
+            assertEquals(status, Protocol.RadioStatus.fromValue(status.getValue()));
+        }
+        for (Protocol.RfModuleType type : Protocol.RfModuleType.values()) {
+            assertEquals(type, Protocol.RfModuleType.fromValue(type.getValue()));
+        }
+        assertEquals(Protocol.RcvCommand.COMMAND_RCV_UNKNOWN, Protocol.RcvCommand.fromValue(0x7F));
+        assertEquals(Protocol.RcvCommand.COMMAND_RCV_UNKNOWN, Protocol.RcvCommand.fromValue(-1));
+        assertEquals(Protocol.RcvCommand.COMMAND_RCV_UNKNOWN, Protocol.RcvCommand.fromValue(0x10C));
+        assertEquals(Protocol.DeviceMode.DEVICE_MODE_UNKNOWN, Protocol.DeviceMode.fromValue(7));
+        assertEquals(Protocol.RadioStatus.RADIO_STATUS_UNKNOWN, Protocol.RadioStatus.fromValue('\u2603'));
+    }
+
+    @Test
+    public void registryRoutesEachCommandToItsSubsystem() {
+        List<String> events = new ArrayList<>();
+        Protocol.CommandRegistry registry = new Protocol.CommandRegistry()
+            .register(Protocol.RcvCommand.COMMAND_RX_AUDIO, (cmd, buffer, offset, len) -> events.add("audio " + len))
+            .register(Protocol.RcvCommand.COMMAND_DEVICE_STATE, (cmd, buffer, offset, len) -> events.add("state " + cmd))
+            .register(0x42, (cmd, buffer, offset, len) -> events.add("raw " + cmd + " " + buffer.get(offset)))
+            .registerAx25((buffer, offset, len) -> events.add("ax25 " + len));
+        Protocol.KissParser parser = new Protocol.KissParser(registry);
+
+        parser.processBytes(buildKissFrame(Protocol.KISS_CMD_SETHARDWARE,
+            buildKv4pVendorPayload(Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue(), new byte[3])));
+        parser.processBytes(buildKissFrame(Protocol.KISS_CMD_SETHARDWARE,
+            buildKv4pVendorPayload(Protocol.RcvCommand.COMMAND_DEVICE_STATE.getValue(), new byte[1])));
+        parser.processBytes(buildKissFrame(Protocol.KISS_CMD_SETHARDWARE,
+            buildKv4pVendorPayload(0x42, new byte[]{7})));
+        parser.processBytes(buildKissFrame(Protocol.KISS_CMD_SETHARDWARE,
+            buildKv4pVendorPayload(Protocol.RcvCommand.COMMAND_HELLO.getValue(), new byte[1])));
+        parser.processBytes(buildKissFrame(Protocol.KISS_CMD_DATA, new byte[5]));
+
+        assertEquals(java.util.Arrays.asList(
+            "audio 3", "state COMMAND_DEVICE_STATE", "raw COMMAND_RCV_UNKNOWN 7", "ax25 5"), events);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void registryRejectsSecondHandlerForSameCommand() {
+        new Protocol.CommandRegistry()
+            .register(Protocol.RcvCommand.COMMAND_RX_AUDIO, (cmd, buffer, offset, len) -> { })
+            .register(Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue(), (cmd, buffer, offset, len) -> { });
+    }
+
+    @Test
+    public void registryDispatchAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        int[] handled = new int[1];
+        Protocol.CommandRegistry registry = new Protocol.CommandRegistry()
+            .register(Protocol.RcvCommand.COMMAND_RX_AUDIO, (cmd, buffer, offset, len) -> handled[0]++);
+        ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 20_000; i++) {
+            registry.dispatch(Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue(), frame, 0, 16);
+            Protocol.DeviceMode.fromValue(i & 0xFF);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            registry.dispatch(Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue(), frame, 0, 16);
+            Protocol.DeviceMode.fromValue(i & 0xFF);
+            Protocol.RadioStatus.fromValue((char) i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(30_000, handled[0]);
+        assertEquals("bytes allocated per lookup", 0, allocated / 10_000);
+    }
+
     @Test
     public void encoderEscapesFendAndFesc() {
         byte[] frame = buildKissFrame(
@@ -625,6 +702,90 @@ public class ProtocolKissTest {
         assertEquals(1, sender.sentStates.size());
     }
 
+    @Test
+    public void coalescingCollapsesBurstIntoOneFrameWithLatestState() {
+        CapturingSender sender = new CapturingSender();
+        List<Runnable> flushes = new ArrayList<>();
+        long[] now = {1_000_000_000L};
+        RadioModuleController controller = new RadioModuleController();
+        controller.setDesiredStateCoalescing(50, java.util.concurrent.TimeUnit.MILLISECONDS,
+            (flush, delayMillis) -> flushes.add(flush), () -> now[0]);
+        controller.attachSender(sender);
+        controller.markTransportReady();
+
+        controller.setSquelch(1);
+        for (int squelch = 2; squelch <= 8; squelch++) {
+            now[0] += 5_000_000L;
+            controller.setSquelch(squelch);
+        }
+
+        assertEquals(1, sender.sentStates.size());
+        assertEquals(1, flushes.size());
+        now[0] += 50_000_000L;
+        flushes.get(0).run();
+
+        assertEquals(2, sender.sentStates.size());
+        Protocol.HostDesiredState last = sender.sentStates.get(1);
+        assertEquals(8, last.getSquelch());
+        assertEquals(sender.sentStates.get(0).getSequence() + 1, last.getSequence());
+        assertEquals(2, controller.getDesiredStateFramesSent());
+        assertEquals(6, controller.getDesiredStateFramesSuppressed());
+    }
+
+    @Test
+    public void coalescingNeverDelaysPttChanges() {
+        CapturingSender sender = new CapturingSender();
+        List<Runnable> flushes = new ArrayList<>();
+        long[] now = {1_000_000_000L};
+        RadioModuleController controller = new RadioModuleController();
+        controller.setDesiredStateCoalescing(50, java.util.concurrent.TimeUnit.MILLISECONDS,
+            (flush, delayMillis) -> flushes.add(flush), () -> now[0]);
+        controller.attachSender(sender);
+        controller.markTransportReady();
+
+        controller.setSquelch(1);
+        controller.setSquelch(2);
+        controller.pttDown();
+
+        assertEquals(2, sender.sentStates.size());
+        Protocol.HostDesiredState ptt = sender.sentStates.get(1);
+        assertTrue((ptt.getFlags() & Protocol.HOST_STATE_PTT_REQUESTED) != 0);
+        assertEquals(2, ptt.getSquelch());
+
+        // The pending flush finds nothing left to send.
+        flushes.get(0).run();
+        assertEquals(2, sender.sentStates.size());
+
+        controller.pttUp();
+        assertEquals(3, sender.sentStates.size());
+        assertEquals(0, sender.sentStates.get(2).getFlags() & Protocol.HOST_STATE_PTT_REQUESTED);
+        assertEquals(3, controller.getDesiredStateFramesSent());
+        assertEquals(1, controller.getDesiredStateFramesSuppressed());
+    }
+
+    @Test
+    public void coalescingHoldsRetriesForStaleDeviceStatesInsideWindow() {
+        CapturingSender sender = new CapturingSender();
+        long[] now = {1_000_000_000L};
+        RadioModuleController controller = new RadioModuleController();
+        controller.setDesiredStateCoalescing(50, java.util.concurrent.TimeUnit.MILLISECONDS,
+            (flush, delayMillis) -> { }, () -> now[0]);
+        controller.attachSender(sender);
+        controller.markTransportReady();
+        controller.setSquelch(3);
+        Protocol.HostDesiredState sent = sender.sentStates.get(0);
+        Protocol.DeviceState stale = deviceStateMatching(sent.withSequence(sent.getSequence() - 1), 0);
+
+        controller.updateDeviceState(stale);
+        assertEquals(1, sender.sentStates.size());
+
+        now[0] += 60_000_000L;
+        controller.updateDeviceState(stale);
+        assertEquals(2, sender.sentStates.size());
+        assertEquals(sent, sender.sentStates.get(1));
+        assertEquals(1, controller.getDesiredStateRetriesSent());
+    }
+
     @Test
     public void matchingDeviceStateMarksControllerInSyncAndDoesNotRetry() {
         CapturingSender sender = new CapturingSender();
@@ -968,6 +1129,215 @@ public class ProtocolKissTest {
         assertEquals(13, Protocol.calculateSMeterValue(255));
     }
 
+    @Test
+    public void parserHonorsOffsetAndLength() {
+        byte[] frame = buildKissFrame(Protocol.KISS_CMD_DATA, new byte[]{0x11, (byte) Protocol.KISS_FEND, 0x22});
+        byte[] padded = new byte[frame.length + 6];
+        java.util.Arrays.fill(padded, (byte) Protocol.KISS_FESC);
+        System.arraycopy(frame, 0, padded, 3, frame.length);
+
+        newParser().processBytes(padded, 3, frame.length);
+
+        assertEquals(1, ax25CallCount);
+        assertArrayEquals(new byte[]{0x11, (byte) Protocol.KISS_FEND, 0x22}, ax25Payload);
+    }
+
+    @Test
+    public void parserDispatchesVendorFrameThatExactlyFillsFrameBuffer() {
+        byte[] frame = new byte[Protocol.KISS_MAX_FRAME_SIZE + 2];
+        frame[0] = (byte) Protocol.KISS_FEND;
+        frame[1] = Protocol.KISS_CMD_SETHARDWARE;
+        System.arraycopy(Protocol.KV4P_VENDOR_PREFIX, 0, frame, 2, Protocol.KV4P_VENDOR_PREFIX.length);
+        frame[6] = Protocol.KV4P_PROTOCOL_VERSION;
+        frame[7] = (byte) Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue();
+        java.util.Arrays.fill(frame, 8, frame.length - 1, (byte) 0x55);
+        frame[frame.length - 1] = (byte) Protocol.KISS_FEND;
+
+        newParser().processBytes(frame);
+
+        assertEquals(1, commandCallCount);
+        assertEquals(Protocol.PROTO_MTU, payloadLen);
+    }
+
+    @Test
+    public void parserAcceptsHeapAndDirectByteBuffers() {
+        byte[] vendorFrame = buildKissFrame(
+            Protocol.KISS_CMD_SETHARDWARE,
+            buildKv4pVendorPayload(Protocol.RcvCommand.COMMAND_RX_AUDIO.getValue(), new byte[1000]));
+        ByteBuffer direct = ByteBuffer.allocateDirect(vendorFrame.length);
+        direct.put(vendorFrame).flip();
+        ByteBuffer heap = ByteBuffer.wrap(vendorFrame);
+
+        Protocol.KissParser parser = newParser();
+        parser.processBytes(direct);
+        parser.processBytes(heap);
+
+        assertEquals(2, commandCallCount);
+        assertEquals(1000, payloadLen);
+        assertFalse(direct.hasRemaining());
+        assertFalse(heap.hasRemaining());
+    }
+
+    @Test
+    public void runScanningParserMatchesByteAtATimeReference() {
+        java.util.Random random = new java.util.Random(0x4B563450L);
+        for (int round = 0; round < 200; round++) {
+            byte[] stream = randomKissStream(random);
+            List<String> expected = new ArrayList<>();
+            ReferenceKissParser reference = new ReferenceKissParser(expected);
+            for (byte b : stream) {
+                reference.processByte(b);
+            }
+
+            List<String> whole = new ArrayList<>();
+            recordingParser(whole).processBytes(stream);
+            assertEquals("round " + round, expected, whole);
+
+            List<String> chunked = new ArrayList<>();
+            Protocol.KissParser parser = recordingParser(chunked);
+            for (int pos = 0; pos < stream.length; ) {
+                int len = Math.min(stream.length - pos, 1 + random.nextInt(300));
+                parser.processBytes(stream, pos, len);
+                pos += len;
+            }
+            assertEquals("round " + round, expected, chunked);
+        }
+    }
+
+    private static byte[] randomKissStream(java.util.Random random) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int frames = 1 + random.nextInt(12);
+        for (int i = 0; i < frames; i++) {
+            int kind = random.nextInt(6);
+            byte[] payload = new byte[random.nextInt(kind == 5 ? Protocol.KISS_MAX_FRAME_SIZE + 64 : 300)];
+            for (int j = 0; j < payload.length; j++) {
+                // Bias towards framing bytes so escapes and splits are exercised often.
+                int pick = random.nextInt(8);
+                payload[j] = (byte) (pick == 0 ? Protocol.KISS_FEND : pick == 1 ? Protocol.KISS_FESC : random.nextInt(256));
+            }
+            if (kind == 0) {
+                byte[] frame = buildKissFrame(Protocol.KISS_CMD_DATA, payload);
+                stream.write(frame, 0, frame.length);
+            } else if (kind == 5) {
+                // Unescaped run longer than the frame buffer: must be dropped without throwing.
+                stream.write(Protocol.KISS_FEND);
+                stream.write(Protocol.KISS_CMD_DATA);
+                for (byte b : payload) {
+                    stream.write(b == (byte) Protocol.KISS_FEND || b == (byte) Protocol.KISS_FESC ? 0x55 : b);
+                }
+                stream.write(Protocol.KISS_FEND);
+            } else if (kind == 1) {
+                Protocol.RcvCommand[] commands = Protocol.RcvCommand.values();
+                int command = commands[random.nextInt(commands.length)].getValue();
+                byte[] frame = buildKissFrame(Protocol.KISS_CMD_SETHARDWARE, buildKv4pVendorPayload(command, payload));
+                stream.write(frame, 0, frame.length);
+            } else if (kind == 2) {
+                // Raw noise, including unknown escapes and stray FENDs.
+                stream.write(payload, 0, payload.length);
+            } else if (kind == 3) {
+                byte[] frame = buildKissFrame(random.nextInt(256), payload);
+                stream.write(frame, 0, frame.length);
+            } else {
+                byte[] frame = buildKissFrame(Protocol.KISS_CMD_DATA, payload);
+                stream.write(frame, 0, Math.max(1, frame.length - 1 - random.nextInt(3)));
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    private static Protocol.KissParser recordingParser(List<String> events) {
+        return new Protocol.KissParser(
+            (cmd, param, offset, len) -> events.add(cmd + ":" + hex(param, offset, len)),
+            (param, offset, len) -> events.add("AX25:" + hex(param, offset, len)));
+    }
+
+    private static String hex(ByteBuffer buffer, int offset, int len) {
+        char[] digits = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            int b = buffer.get(offset + i) & 0xFF;
+            digits[i * 2] = Character.forDigit(b >> 4, 16);
+            digits[i * 2 + 1] = Character.forDigit(b & 0x0F, 16);
+        }
+        return new String(digits);
+    }
+
+    /** The original byte-at-a-time KISS state machine, kept as an oracle for the run-scanning parser. */
+    private static final class ReferenceKissParser {
+        private final byte[] frame = new byte[Protocol.KISS_MAX_FRAME_SIZE];
+        private final List<String> events;
+        private int frameLen = 0;
+        private boolean escape = false;
+        private boolean dropFrame = false;
+        private boolean inFrame = false;
+
+        ReferenceKissParser(List<String> events) {
+            this.events = events;
+        }
+
+        void processByte(byte b) {
+            int value = b & 0xFF;
+            if (value == Protocol.KISS_FEND) {
+                if (frameLen > 0 && !dropFrame) {
+                    processFrame();
+                }
+                frameLen = 0;
+                escape = false;
+                dropFrame = false;
+                inFrame = true;
+            } else if (inFrame && !dropFrame && escape) {
+                if (value == Protocol.KISS_TFEND) {
+                    append((byte) Protocol.KISS_FEND);
+                } else if (value == Protocol.KISS_TFESC) {
+                    append((byte) Protocol.KISS_FESC);
+                } else {
+                    dropFrame = true;
+                }
+                escape = false;
+            } else if (inFrame && !dropFrame && value == Protocol.KISS_FESC) {
+                escape = true;
+            } else if (inFrame && !dropFrame) {
+                append(b);
+            }
+        }
+
+        private void append(byte b) {
+            if (frameLen >= frame.length) {
+                dropFrame = true;
+                return;
+            }
+            frame[frameLen++] = b;
+        }
+
+        private void processFrame() {
+            int kissCommandByte = frame[0] & 0xFF;
+            int payloadLen = frameLen - 1;
+            ByteBuffer buffer = ByteBuffer.wrap(frame, 0, frameLen);
+            if ((kissCommandByte >> 4) != Protocol.KISS_PORT_0) {
+                return;
+            }
+            int kissCommand = kissCommandByte & 0x0F;
+            if (kissCommand == Protocol.KISS_CMD_DATA) {
+                if (payloadLen > 0 && payloadLen <= Protocol.PROTO_MTU) {
+                    events.add("AX25:" + hex(buffer, 1, payloadLen));
+                }
+            } else if (kissCommand == Protocol.KISS_CMD_SETHARDWARE && payloadLen >= Protocol.KV4P_VENDOR_HEADER_LEN) {
+                for (int i = 0; i < Protocol.KV4P_VENDOR_PREFIX.length; i++) {
+                    if (frame[1 + i] != Protocol.KV4P_VENDOR_PREFIX[i]) {
+                        return;
+                    }
+                }
+                int commandPayloadLen = payloadLen - Protocol.KV4P_VENDOR_HEADER_LEN;
+                if ((frame[5] & 0xFF) != Protocol.KV4P_PROTOCOL_VERSION || commandPayloadLen > Protocol.PROTO_MTU) {
+                    return;
+                }
+                Protocol.RcvCommand cmd = Protocol.RcvCommand.fromValue(frame[6] & 0xFF);
+                if (cmd != Protocol.RcvCommand.COMMAND_RCV_UNKNOWN) {
+                    events.add(cmd + ":" + hex(buffer, 1 + Protocol.KV4P_VENDOR_HEADER_LEN, commandPayloadLen));
+                }
+            }
+        }
+    }
+
     private Protocol.KissParser newParser() {
         return new Protocol.KissParser((cmd, param, offset, len) -> {
             called = true;
@@ -0,0 +1,219 @@
+/*
+kv4p HT (see http://kv4p.com)
+Copyright (C) 2024 Vance Vagell
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class ProtocolSenderTest {
+
+    @Test
+    public void txAudioWritesEncodedFrameSliceFromReusedBuffer() {
+        RingWriter ring = new RingWriter(4096);
+        Protocol.Sender sender = new Protocol.Sender(ring, false);
+        byte[] audio = {0x01, (byte) Protocol.KISS_FEND, 0x02};
+
+        sender.txAudio(audio, audio.length);
+        sender.txAudio(audio, 1);
+
+        List<byte[]> frames = ring.frames();
+        assertEquals(2, frames.size());
+        assertArrayEquals(new byte[]{
+            (byte) Protocol.KISS_FEND, Protocol.KISS_CMD_SETHARDWARE, 'K', 'V', '4', 'P',
+            Protocol.KV4P_PROTOCOL_VERSION, (byte) Protocol.SndCommand.COMMAND_HOST_TX_AUDIO.getValue(),
+            0x01, (byte) Protocol.KISS_FESC, (byte) Protocol.KISS_TFEND, 0x02, (byte) Protocol.KISS_FEND,
+        }, frames.get(0));
+        assertEquals(10, frames.get(1).length);
+    }
+
+    @Test
+    public void steadyStateTxAudioAllocatesNothingPerFrame() {
+        com.sun.management.ThreadMXBean threads = allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        RingWriter ring = new RingWriter(64 * 1024);
+        Protocol.Sender sender = new Protocol.Sender(ring);
+        sender.setFlowControlWindow(Integer.MAX_VALUE / 2);
+        byte[] audio = new byte[ImaAdpcm.encodedSize(249)];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (byte) (i * 37);
+        }
+        // Warm up so class loading and JIT compilation are not attributed to the measured frames.
+        for (int i = 0; i < 20_000; i++) {
+            sendAndCredit(sender, ring, audio);
+        }
+
+        int frames = 10_000;
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < frames; i++) {
+            sendAndCredit(sender, ring, audio);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated per frame", 0, allocated / frames);
+    }
+
+    @Test
+    public void controlFrameOvertakesAudioWaitingForCredits() throws InterruptedException {
+        List<byte[]> written = new CopyOnWriteArrayList<>();
+        Protocol.Sender sender = new Protocol.Sender((bytes, offset, len) ->
+            written.add(java.util.Arrays.copyOfRange(bytes, offset, offset + len)));
+        sender.setFlowControlWindow(0);
+        sender.setAudioLatencyBudget(300, TimeUnit.MILLISECONDS);
+        Protocol.HostDesiredState ptt = Protocol.HostDesiredState.builder()
+            .flags(Protocol.HOST_STATE_PTT_REQUESTED).build();
+
+        // A 1-byte audio frame needs fewer credits than the control frame, so without priority it would win the grant.
+        Thread audio = new Thread(() -> sender.txAudio(new byte[]{0x01}, 1));
+        audio.start();
+        awaitStalledFrames(sender, 1);
+        Thread control = new Thread(() -> sender.sendDesiredState(ptt));
+        control.start();
+        awaitStalledFrames(sender, 2);
+        sender.enlargeFlowControlWindow(controlFrameSize(ptt));
+
+        control.join(1000);
+        audio.join(1000);
+        assertEquals(1, written.size());
+        assertEquals(Protocol.SndCommand.COMMAND_HOST_DESIRED_STATE.getValue(), written.get(0)[7]);
+        Protocol.FrameClassStats controlStats = sender.getFrameClassStats(Protocol.FrameClass.CONTROL);
+        Protocol.FrameClassStats audioStats = sender.getFrameClassStats(Protocol.FrameClass.AUDIO);
+        assertEquals(1, controlStats.getSentFrames());
+        assertTrue(controlStats.getMaxQueueNanos() > 0);
+        assertEquals(0, audioStats.getSentFrames());
+        assertEquals(1, audioStats.getDroppedFrames());
+    }
+
+    @Test
+    public void audioOlderThanLatencyBudgetIsDropped() {
+        RingWriter ring = new RingWriter(4096);
+        Protocol.Sender sender = new Protocol.Sender(ring);
+        sender.setFlowControlWindow(0);
+        sender.setAudioLatencyBudget(5, TimeUnit.MILLISECONDS);
+
+        sender.txAudio(new byte[]{0x01}, 1);
+
+        assertEquals(0, ring.written);
+        Protocol.FrameClassStats stats = sender.getFrameClassStats(Protocol.FrameClass.AUDIO);
+        assertEquals(1, stats.getDroppedFrames());
+        assertEquals(1, sender.getFlowControlCredits().getTimedOutFrames());
+    }
+
+    @Test
+    public void adaptiveWindowShrinksToMeasuredNeedAndStillFitsLargeFrames() {
+        RingWriter ring = new RingWriter(64 * 1024);
+        Protocol.Sender sender = new Protocol.Sender(ring);
+        sender.setFlowControlWindow(4096);
+        sender.setAdaptiveFlowControlWindow(true);
+        byte[] audio = new byte[ImaAdpcm.encodedSize(249)];
+
+        // Acked immediately: a near-zero RTT, so the window drops to (near) its floor. The RTT is
+        // wall-clock time, so keep sending until a scheduling hiccup has been smoothed out.
+        int floor = Protocol.Sender.MIN_ADAPTIVE_FLOW_CONTROL_WINDOW;
+        for (int i = 0; i < 2 * Protocol.Sender.MIN_ADAPTIVE_RTT_SAMPLES
+                || (i < 5000 && sender.getFlowControlWindowLimit() > 2 * floor); i++) {
+            sendAndCredit(sender, ring, audio);
+        }
+        int limit = sender.getFlowControlWindowLimit();
+        assertTrue("window " + limit, limit >= floor && limit <= 2 * floor);
+        assertEquals(limit, sender.getFlowControlCredits().getAvailable());
+        assertTrue(sender.getWindowRtt().getSamples() >= Protocol.Sender.MIN_ADAPTIVE_RTT_SAMPLES);
+
+        int before = ring.written;
+        sender.txAx25(new byte[1000]);
+        assertTrue(ring.written - before > Protocol.Sender.MIN_ADAPTIVE_FLOW_CONTROL_WINDOW);
+        assertTrue(sender.getFlowControlWindowLimit() >= ring.written - before);
+
+        sender.setAdaptiveFlowControlWindow(false);
+        assertEquals(4096, sender.getFlowControlWindowLimit());
+    }
+
+    private static int controlFrameSize(Protocol.HostDesiredState state) {
+        RingWriter ring = new RingWriter(256);
+        new Protocol.Sender(ring, false).sendDesiredState(state);
+        return ring.written;
+    }
+
+    private static void awaitStalledFrames(Protocol.Sender sender, int frames) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (sender.getFlowControlCredits().getStalledFrames() < frames && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(frames, sender.getFlowControlCredits().getStalledFrames());
+    }
+
+    private static void sendAndCredit(Protocol.Sender sender, RingWriter ring, byte[] audio) {
+        int before = ring.written;
+        sender.txAudio(audio, audio.length);
+        sender.enlargeFlowControlWindow(ring.written - before);
+    }
+
+    static com.sun.management.ThreadMXBean allocationCountingThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /** Stands in for a transport's outbound ring: copies each slice into a fixed array. */
+    static final class RingWriter implements Protocol.AsyncFrameWriter {
+        private final byte[] ring;
+        private final int[] frameEnds = new int[1024];
+        private int frameCount;
+        private int head;
+        int written;
+
+        RingWriter(int capacity) {
+            ring = new byte[capacity];
+        }
+
+        @Override
+        public void writeAsync(byte[] bytes, int offset, int len) {
+            for (int i = 0; i < len; i++) {
+                ring[(head + i) % ring.length] = bytes[offset + i];
+            }
+            head = (head + len) % ring.length;
+            written += len;
+            frameEnds[frameCount++ % frameEnds.length] = written;
+        }
+
+        List<byte[]> frames() {
+            List<byte[]> frames = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < frameCount; i++) {
+                byte[] frame = new byte[frameEnds[i] - start];
+                System.arraycopy(ring, start, frame, 0, frame.length);
+                frames.add(frame);
+                start = frameEnds[i];
+            }
+            return frames;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.vagell.kv4pht.radio.RadioStreamRecorder.Direction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RadioStreamCaptureTest {
+    private static final String NAME = "capture";
+    private static final long MIN_FILE_BYTES = RadioStreamRecorder.FILE_HEADER_LEN
+        + RadioStreamRecorder.RECORD_HEADER_LEN + RadioStreamRecorder.MAX_CHUNK_LEN;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayReturnsRecordedChunksWithDirections() throws Exception {
+        File dir = folder.getRoot();
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, NAME)) {
+            recorder.record(Direction.FROM_RADIO, new byte[]{9, 1, 2, 3, 9}, 1, 3);
+            recorder.record(Direction.TO_RADIO, new byte[]{4, 5}, 0, 2);
+            recorder.record(Direction.FROM_RADIO, new byte[0], 0, 0);
+        }
+
+        List<Chunk> chunks = replayAll(dir);
+
+        assertEquals(2, chunks.size());
+        assertEquals(Direction.FROM_RADIO, chunks.get(0).direction);
+        assertArrayEquals(new byte[]{1, 2, 3}, chunks.get(0).bytes);
+        assertEquals(Direction.TO_RADIO, chunks.get(1).direction);
+        assertArrayEquals(new byte[]{4, 5}, chunks.get(1).bytes);
+    }
+
+    @Test
+    public void quietStreamIsFlushedWithoutFurtherRecords() throws Exception {
+        File dir = folder.getRoot();
+        File file = RadioStreamRecorder.captureFile(dir, NAME, 0);
+        long expected = RadioStreamRecorder.FILE_HEADER_LEN + RadioStreamRecorder.RECORD_HEADER_LEN + 3;
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, NAME)) {
+            recorder.record(Direction.FROM_RADIO, new byte[]{1, 2, 3}, 0, 3);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+            while (file.length() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(expected, file.length());
+        }
+    }
+
+    @Test
+    public void rotationBoundsFileCountAndSize() throws Exception {
+        File dir = folder.getRoot();
+        byte[] chunk = new byte[30_000];
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, NAME, MIN_FILE_BYTES, 3)) {
+            for (int i = 0; i < 10; i++) {
+                Arrays.fill(chunk, (byte) i);
+                recorder.record(Direction.FROM_RADIO, chunk, 0, chunk.length);
+            }
+        }
+
+        List<File> files = RadioStreamReplayer.captureFiles(dir, NAME);
+        assertEquals(3, files.size());
+        for (File file : files) {
+            assertTrue(file.length() <= MIN_FILE_BYTES);
+        }
+        List<Chunk> chunks = replayAll(dir);
+        assertEquals(6, chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(4 + i, chunks.get(i).bytes[0]);
+        }
+    }
+
+    @Test
+    public void chunksLargerThanRecordLimitAreSplit() throws Exception {
+        File dir = folder.getRoot();
+        byte[] big = new byte[RadioStreamRecorder.MAX_CHUNK_LEN + 10];
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, NAME)) {
+            recorder.record(Direction.TO_RADIO, big, 0, big.length);
+            assertEquals(big.length, recorder.getRecordedBytes());
+        }
+
+        List<Chunk> chunks = replayAll(dir);
+        assertEquals(2, chunks.size());
+        assertEquals(10, chunks.get(1).bytes.length);
+    }
+
+    @Test
+    public void newRecorderRotatesOutPreviousSession() throws Exception {
+        File dir = folder.getRoot();
+        try (RadioStreamRecorder first = new RadioStreamRecorder(dir, NAME)) {
+            first.record(Direction.FROM_RADIO, new byte[]{1}, 0, 1);
+        }
+        try (RadioStreamRecorder second = new RadioStreamRecorder(dir, NAME)) {
+            second.record(Direction.FROM_RADIO, new byte[]{2}, 0, 1);
+        }
+
+        List<Chunk> chunks = replayAll(dir);
+        assertEquals(2, chunks.size());
+        assertEquals(1, chunks.get(0).bytes[0]);
+        assertEquals(2, chunks.get(1).bytes[0]);
+    }
+
+    @Test
+    public void truncatedCaptureReplaysCompleteRecords() throws Exception {
+        File dir = folder.getRoot();
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, NAME)) {
+            recorder.record(Direction.FROM_RADIO, new byte[]{1, 2}, 0, 2);
+            recorder.record(Direction.FROM_RADIO, new byte[]{3, 4, 5, 6}, 0, 4);
+        }
+        File file = RadioStreamRecorder.captureFile(dir, NAME, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 2);
+        }
+
+        assertEquals(1, replayAll(dir).size());
+    }
+
+    @Test
+    public void replayIntoParserDispatchesRecordedFrames() throws Exception {
+        File dir = folder.getRoot();
+        byte[] stream = ProtocolBenchmarkTest.rxAudioStream(20);
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, NAME)) {
+            for (int offset = 0; offset < stream.length; offset += 64) {
+                recorder.record(Direction.FROM_RADIO, stream, offset, Math.min(64, stream.length - offset));
+                recorder.record(Direction.TO_RADIO, new byte[]{(byte) Protocol.KISS_FEND}, 0, 1);
+            }
+        }
+        int[] audioFrames = new int[1];
+        Protocol.KissParser parser = new Protocol.KissParser(
+            (cmd, param, offset, len) -> audioFrames[0] += cmd == Protocol.RcvCommand.COMMAND_RX_AUDIO ? 1 : 0,
+            (param, offset, len) -> { });
+
+        new RadioStreamReplayer(RadioStreamReplayer.captureFiles(dir, NAME)).replayInto(parser, false);
+
+        assertEquals(20, audioFrames[0]);
+    }
+
+    @Test
+    public void realTimeReplayReproducesRecordedGaps() throws Exception {
+        File dir = folder.getRoot();
+        try (RadioStreamRecorder recorder = new RadioStreamRecorder(dir, NAME)) {
+            recorder.record(Direction.FROM_RADIO, new byte[]{1}, 0, 1);
+            Thread.sleep(50);
+            recorder.record(Direction.FROM_RADIO, new byte[]{2}, 0, 1);
+        }
+        RadioStreamReplayer replayer = new RadioStreamReplayer(RadioStreamReplayer.captureFiles(dir, NAME));
+
+        long start = System.nanoTime();
+        replayer.replay((direction, bytes, offset, len) -> { }, true);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45));
+    }
+
+    private static List<Chunk> replayAll(File dir) throws IOException, InterruptedException {
+        List<Chunk> chunks = new ArrayList<>();
+        new RadioStreamReplayer(RadioStreamReplayer.captureFiles(dir, NAME)).replay((direction, bytes, offset, len) ->
+            chunks.add(new Chunk(direction, Arrays.copyOfRange(bytes, offset, offset + len))), false);
+        return chunks;
+    }
+
+    private static final class Chunk {
+        final Direction direction;
+        final byte[] bytes;
+
+        Chunk(Direction direction, byte[] bytes) {
+            this.direction = direction;
+            this.bytes = bytes;
+        }
+    }
+}
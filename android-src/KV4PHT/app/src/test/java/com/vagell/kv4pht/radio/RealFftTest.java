@@ -0,0 +1,59 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RealFftTest {
+
+    @Test
+    public void matchesADirectDft() {
+        Random random = new Random(3);
+        for (int size : new int[] {4, 8, 64, 512}) {
+            float[] input = new float[size];
+            for (int i = 0; i < size; i++) {
+                input[i] = (float) (random.nextGaussian() * 1000);
+            }
+            RealFft fft = new RealFft(size);
+            float[] re = new float[fft.getBins()];
+            float[] im = new float[fft.getBins()];
+            fft.forward(input, re, im);
+
+            for (int k = 0; k <= size / 2; k++) {
+                double expectedRe = 0;
+                double expectedIm = 0;
+                for (int n = 0; n < size; n++) {
+                    double angle = -2 * Math.PI * k * n / size;
+                    expectedRe += input[n] * Math.cos(angle);
+                    expectedIm += input[n] * Math.sin(angle);
+                }
+                double tolerance = 1e-4 * 1000 * size;
+                assertEquals("re[" + k + "] of " + size, expectedRe, re[k], tolerance);
+                assertEquals("im[" + k + "] of " + size, expectedIm, im[k], tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void sineLandsInItsBin() {
+        int size = 256;
+        RealFft fft = new RealFft(size);
+        float[] input = new float[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = (float) Math.cos(2 * Math.PI * 10 * i / size);
+        }
+        float[] power = new float[fft.getBins()];
+        fft.powerSpectrum(input, new float[fft.getBins()], new float[fft.getBins()], power);
+
+        for (int k = 0; k < power.length; k++) {
+            assertEquals(k == 10 ? (size / 2f) * (size / 2f) : 0, power[k], 1e-2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesThatAreNotPowersOfTwo() {
+        new RealFft(384);
+    }
+}
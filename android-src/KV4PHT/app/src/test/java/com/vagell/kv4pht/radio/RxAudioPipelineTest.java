@@ -0,0 +1,182 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RxAudioPipelineTest {
+    private static final long TIMEOUT_MS = 2000;
+
+    @Test
+    public void ringPreservesOrderAndReportsFullAndEmpty() {
+        SpscBlockRing ring = new SpscBlockRing(3, 8);
+        byte[] out = new byte[8];
+        assertEquals(4, ring.capacity());
+        assertEquals(-1, ring.poll(out, 0));
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(new byte[] {(byte) i, (byte) i}, 0, Math.min(i + 1, 2)));
+        }
+        assertFalse(ring.offer(new byte[1], 0, 1));
+        assertEquals(4, ring.size());
+
+        assertEquals(1, ring.poll(out, 0));
+        assertEquals(0, out[0]);
+        assertEquals(2, ring.poll(out, 0));
+        assertEquals(1, out[1]);
+        assertTrue(ring.offer(new byte[] {9}, 0, 1));
+        assertEquals(2, ring.poll(out, 0));
+        assertEquals(2, ring.poll(out, 0));
+        assertEquals(1, ring.poll(out, 0));
+        assertEquals(9, out[0]);
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void ringCopiesBlocksOutOfDirectFrameBuffers() {
+        SpscBlockRing ring = new SpscBlockRing(2, 8);
+        java.nio.ByteBuffer frame = java.nio.ByteBuffer.allocateDirect(16);
+        for (int i = 0; i < 16; i++) {
+            frame.put(i, (byte) i);
+        }
+        assertTrue(ring.offer(frame, 5, 3, 42));
+        assertEquals(0, frame.position());
+
+        byte[] out = new byte[8];
+        assertEquals(3, ring.poll(out, 0));
+        assertEquals(42, ring.polledStamp());
+        assertArrayEquals(new byte[] {5, 6, 7}, java.util.Arrays.copyOf(out, 3));
+    }
+
+    @Test
+    public void audioThreadDecodesBlocksInOrder() throws Exception {
+        byte[][] blocks = randomBlocks(20);
+        List<short[]> played = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(blocks.length);
+        RxAudioPipeline pipeline = new RxAudioPipeline((pcm, offset, len) -> {
+            synchronized (played) {
+                played.add(java.util.Arrays.copyOfRange(pcm, offset, offset + len));
+            }
+            done.countDown();
+        }, Thread::new, 32, new RxJitterBuffer());
+        // Queue everything first so thread start-up cannot open a gap that gets concealed.
+        for (byte[] block : blocks) {
+            assertTrue(pipeline.offerAdpcm(block, 0, block.length));
+        }
+        pipeline.start();
+        try {
+            assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            pipeline.close();
+        }
+
+        short[] expected = new short[RxAudioPipeline.FRAME_SAMPLES];
+        for (int i = 0; i < blocks.length; i++) {
+            ImaAdpcm.decodeBlock(blocks[i], 0, blocks[i].length, expected, 0, expected.length);
+            // The first frame ramps in from silence.
+            int from = i == 0 ? RxJitterBuffer.SPLICE_SAMPLES : 0;
+            assertArrayEquals(java.util.Arrays.copyOfRange(expected, from, expected.length),
+                java.util.Arrays.copyOfRange(played.get(i), from, expected.length));
+        }
+        assertTrue(pipeline.getFramesPlayed() >= blocks.length);
+        assertEquals(0, pipeline.getOverruns());
+    }
+
+    @Test
+    public void sinkIsToldWhenTheStreamGoesIdle() throws Exception {
+        CountDownLatch idle = new CountDownLatch(1);
+        RxAudioPipeline pipeline = new RxAudioPipeline(new RxAudioPipeline.PcmSink() {
+            @Override
+            public void write(short[] pcm, int offset, int len) {
+            }
+
+            @Override
+            public void onIdle() {
+                idle.countDown();
+            }
+        }, Thread::new, 32, new RxJitterBuffer());
+        for (byte[] block : randomBlocks(4)) {
+            assertTrue(pipeline.offerAdpcm(block, 0, block.length));
+        }
+        pipeline.start();
+        try {
+            // Playback ends once concealment of the missing frames after the last block runs out.
+            assertTrue(idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertTrue(pipeline.getFramesPlayed() >= 4);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void fullRingCountsOverrunsInsteadOfBlockingProducer() throws Exception {
+        CountDownLatch sinkEntered = new CountDownLatch(1);
+        CountDownLatch releaseSink = new CountDownLatch(1);
+        RxAudioPipeline pipeline = new RxAudioPipeline((pcm, offset, len) -> {
+            sinkEntered.countDown();
+            awaitQuietly(releaseSink);
+        }, Thread::new, 4, new RxJitterBuffer());
+        byte[] block = randomBlocks(1)[0];
+        pipeline.start();
+        try {
+            assertTrue(pipeline.offerAdpcm(block, 0, block.length));
+            assertTrue(sinkEntered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            for (int i = 0; i < 4; i++) {
+                assertTrue(pipeline.offerAdpcm(block, 0, block.length));
+            }
+            assertFalse(pipeline.offerAdpcm(block, 0, block.length));
+            assertFalse(pipeline.offerAdpcm(block, 0, block.length));
+            assertEquals(2, pipeline.getOverruns());
+        } finally {
+            releaseSink.countDown();
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void offerAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        SpscBlockRing ring = new SpscBlockRing(8, RxAudioPipeline.FRAME_BYTES);
+        byte[] block = randomBlocks(1)[0];
+        byte[] out = new byte[RxAudioPipeline.FRAME_BYTES];
+        for (int i = 0; i < 20_000; i++) {
+            ring.offer(block, 0, block.length);
+            ring.poll(out, 0);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            ring.offer(block, 0, block.length);
+            ring.poll(out, 0);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(threadId) - before);
+    }
+
+    static byte[][] randomBlocks(int count) {
+        Random random = new Random(7);
+        byte[][] blocks = new byte[count][RxAudioPipeline.FRAME_BYTES];
+        for (byte[] block : blocks) {
+            random.nextBytes(block);
+            block[2] = (byte) random.nextInt(89); // Valid step index in the block header.
+        }
+        return blocks;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
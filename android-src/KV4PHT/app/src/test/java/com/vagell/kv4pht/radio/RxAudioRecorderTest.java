@@ -0,0 +1,162 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class RxAudioRecorderTest {
+    private static final int BLOCK = RxAudioRecorder.BLOCK_BYTES;
+    private static final int HEADER = RxAudioRecorder.WAV_HEADER_LEN;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blocksAreStoredVerbatimInAnImaAdpcmWav() throws Exception {
+        File file = new File(folder.getRoot(), "rx/log.wav");
+        byte[][] blocks = RxAudioPipelineTest.randomBlocks(100);
+        try (RxAudioRecorder recorder = new RxAudioRecorder(file)) {
+            for (byte[] block : blocks) {
+                recorder.append(block, 0, block.length);
+            }
+        }
+
+        ByteBuffer wav = read(file);
+        assertEquals(HEADER + blocks.length * BLOCK, wav.limit());
+        assertWavHeader(wav, blocks.length);
+        for (int i = 0; i < blocks.length; i++) {
+            byte[] stored = new byte[BLOCK];
+            wav.position(HEADER + i * BLOCK);
+            wav.get(stored);
+            assertArrayEquals(blocks[i], stored);
+        }
+    }
+
+    @Test
+    public void headerDescribesTheAudioWrittenSoFar() throws Exception {
+        File file = new File(folder.getRoot(), "log.wav");
+        ByteBuffer direct = ByteBuffer.allocateDirect(BLOCK + 10);
+        try (RxAudioRecorder recorder = new RxAudioRecorder(file)) {
+            for (int i = 0; i < 5; i++) {
+                recorder.append(direct, 10, BLOCK);
+            }
+            // Short blocks are padded so every block stays at the WAV block alignment.
+            recorder.append(new byte[]{1, 2, 3}, 0, 3);
+            recorder.flush();
+
+            ByteBuffer wav = read(file);
+            assertEquals(HEADER + 6 * BLOCK, wav.limit());
+            assertWavHeader(wav, 6);
+            assertEquals(6 * RxAudioRecorder.SAMPLES_PER_BLOCK * 1000L / RxAudioRecorder.SAMPLE_RATE,
+                recorder.getDurationMillis());
+        }
+    }
+
+    @Test
+    public void indexListsSquelchOpenSegments() throws Exception {
+        File file = new File(folder.getRoot(), "log.wav");
+        byte[] block = RxAudioPipelineTest.randomBlocks(1)[0];
+        try (RxAudioRecorder recorder = new RxAudioRecorder(file)) {
+            append(recorder, block, 2);
+            recorder.onSquelch(true);
+            append(recorder, block, 3);
+            recorder.onSquelch(false);
+            // Opening and closing with no audio in between leaves no empty segment behind.
+            recorder.onSquelch(true);
+            recorder.onSquelch(false);
+            append(recorder, block, 4);
+            recorder.onSquelch(true);
+            append(recorder, block, 1);
+            assertEquals(1, recorder.getSegments());
+        }
+
+        List<RxAudioRecorder.Segment> segments = RxAudioRecorder.readIndex(RxAudioRecorder.indexFile(file));
+        assertEquals(2, segments.size());
+        assertEquals(2, segments.get(0).getStartBlock());
+        assertEquals(3, segments.get(0).getBlockCount());
+        assertEquals(HEADER + 2 * BLOCK, segments.get(0).getByteOffset());
+        assertEquals(2 * RxAudioRecorder.SAMPLES_PER_BLOCK, segments.get(0).getStartSample());
+        // The segment still open at close is written too.
+        assertEquals(9, segments.get(1).getStartBlock());
+        assertEquals(1, segments.get(1).getBlockCount());
+        assertTrue(segments.get(1).getStartEpochMillis() >= segments.get(0).getStartEpochMillis());
+    }
+
+    @Test
+    public void closedRecorderIgnoresFurtherAudio() throws Exception {
+        File file = new File(folder.getRoot(), "log.wav");
+        RxAudioRecorder recorder = new RxAudioRecorder(file);
+        recorder.append(new byte[BLOCK], 0, BLOCK);
+        recorder.close();
+        recorder.append(new byte[BLOCK], 0, BLOCK);
+        recorder.close();
+
+        assertFalse(recorder.isRecording());
+        assertEquals(HEADER + BLOCK, file.length());
+    }
+
+    @Test
+    public void appendingDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        ByteBuffer frame = ByteBuffer.allocateDirect(BLOCK);
+        try (RxAudioRecorder recorder = new RxAudioRecorder(new File(folder.getRoot(), "log.wav"))) {
+            for (int i = 0; i < 2_000; i++) {
+                recorder.append(frame, 0, BLOCK);
+            }
+
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 10_000; i++) {
+                recorder.append(frame, 0, BLOCK);
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        }
+    }
+
+    private static void append(RxAudioRecorder recorder, byte[] block, int count) {
+        for (int i = 0; i < count; i++) {
+            recorder.append(block, 0, block.length);
+        }
+    }
+
+    private static ByteBuffer read(File file) throws Exception {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void assertWavHeader(ByteBuffer wav, int blocks) {
+        assertEquals("RIFF", fourCc(wav, 0));
+        assertEquals(HEADER - 8 + blocks * BLOCK, wav.getInt(4));
+        assertEquals("WAVE", fourCc(wav, 8));
+        assertEquals("fmt ", fourCc(wav, 12));
+        assertEquals(RxAudioRecorder.FMT_CHUNK_LEN, wav.getInt(16));
+        assertEquals(RxAudioRecorder.WAVE_FORMAT_DVI_ADPCM, wav.getShort(20));
+        assertEquals(1, wav.getShort(22));
+        assertEquals(16000, wav.getInt(24));
+        assertEquals(BLOCK, wav.getShort(32));
+        assertEquals(4, wav.getShort(34));
+        assertEquals(RxAudioRecorder.SAMPLES_PER_BLOCK, wav.getShort(38));
+        assertEquals("fact", fourCc(wav, 40));
+        assertEquals(blocks * RxAudioRecorder.SAMPLES_PER_BLOCK, wav.getInt(48));
+        assertEquals("data", fourCc(wav, 52));
+        assertEquals(blocks * BLOCK, wav.getInt(56));
+    }
+
+    private static String fourCc(ByteBuffer wav, int offset) {
+        byte[] id = Arrays.copyOfRange(wav.array(), offset, offset + 4);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+}
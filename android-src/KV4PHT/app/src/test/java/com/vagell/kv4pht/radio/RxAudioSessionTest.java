@@ -0,0 +1,183 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RxAudioSessionTest {
+    private static final long HANG_MS = 3000;
+    private static final int N = RxJitterBuffer.FRAME_SAMPLES;
+
+    private static final class FakeFocus implements RxAudioSession.Focus {
+        boolean grant = true;
+        int requests;
+        int abandons;
+
+        @Override
+        public boolean request() {
+            requests++;
+            return grant;
+        }
+
+        @Override
+        public void abandon() {
+            abandons++;
+        }
+    }
+
+    private final FakeFocus focus = new FakeFocus();
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private long nowNanos = 1;
+    private final RxAudioSession session =
+        new RxAudioSession(focus, (task, delayMillis) -> scheduled.add(task), HANG_MS, () -> nowNanos);
+
+    @Test
+    public void focusIsRequestedOnceForATransmissionAndAbandonedAfterTheHangTime() {
+        session.onSquelch(false);
+        assertEquals(0, focus.requests);
+
+        for (int i = 0; i < 100; i++) {
+            session.onSquelch(true);
+        }
+        assertEquals(1, focus.requests);
+        assertEquals(RxAudioSession.State.ACTIVE, session.getState());
+
+        session.onSquelch(false);
+        assertEquals(RxAudioSession.State.HANG, session.getState());
+        assertEquals(1, scheduled.size());
+        scheduled.get(0).run();
+        assertEquals(RxAudioSession.State.IDLE, session.getState());
+        assertEquals(1, focus.abandons);
+    }
+
+    @Test
+    public void reopeningDuringTheHangKeepsFocusWithoutANewRequest() {
+        session.onSquelch(true);
+        session.onSquelch(false);
+        session.onSquelch(true);
+        // The timer from the first closing fires late and must not end the new transmission.
+        scheduled.get(0).run();
+
+        assertEquals(RxAudioSession.State.ACTIVE, session.getState());
+        assertEquals(1, focus.requests);
+        assertEquals(0, focus.abandons);
+    }
+
+    @Test
+    public void permanentLossSilencesUntilTheNextOpening() {
+        session.onSquelch(true);
+        settle();
+        session.onFocusChange(RxAudioSession.FocusChange.LOSS);
+        assertEquals(RxAudioSession.State.LOST, session.getState());
+        assertEquals(1, focus.abandons);
+        settle();
+        assertTrue(isSilent(play(tone())));
+
+        session.onSquelch(false);
+        session.onSquelch(true);
+        assertEquals(2, focus.requests);
+        assertEquals(RxAudioSession.State.ACTIVE, session.getState());
+    }
+
+    @Test
+    public void deniedFocusStaysSilent() {
+        focus.grant = false;
+        session.onSquelch(true);
+        settle();
+        assertEquals(RxAudioSession.State.LOST, session.getState());
+        assertTrue(isSilent(play(tone())));
+    }
+
+    @Test
+    public void transientLossAndDuckingRampTheVolume() {
+        session.onSquelch(true);
+        settle();
+        short[] in = tone();
+        assertTrue(Arrays.equals(in, play(in.clone())));
+
+        session.onFocusChange(RxAudioSession.FocusChange.LOSS_TRANSIENT_CAN_DUCK);
+        settle();
+        assertEquals(peak(in) * RxAudioSession.DUCK_GAIN / RxAudioSession.UNITY_GAIN, peak(play(tone())), 2);
+
+        session.onFocusChange(RxAudioSession.FocusChange.LOSS_TRANSIENT);
+        settle();
+        assertTrue(isSilent(play(tone())));
+
+        session.onFocusChange(RxAudioSession.FocusChange.GAIN);
+        settle();
+        assertTrue(Arrays.equals(in, play(tone())));
+    }
+
+    @Test
+    public void volumeRampsSmoothlyWithinABlock() {
+        session.onSquelch(true);
+        short[] out = new short[N];
+        Arrays.fill(out, (short) 10000);
+        session.applyVolume(out, 0, N);
+        // A fade-in step, rising sample by sample instead of jumping.
+        for (int i = 1; i < N; i++) {
+            assertTrue(out[i] >= out[i - 1]);
+            assertTrue(out[i] - out[i - 1] <= 12);
+        }
+        assertEquals(10000 * RxAudioSession.RAMP_STEP_PER_BLOCK / RxAudioSession.UNITY_GAIN, out[N - 1], 12);
+    }
+
+    @Test
+    public void unmuteAfterHoldsSilenceThenFadesIn() {
+        session.onSquelch(true);
+        settle();
+        session.unmuteAfter(900);
+        settle();
+        assertTrue(isSilent(play(tone())));
+
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(900);
+        settle();
+        assertTrue(Arrays.equals(tone(), play(tone())));
+
+        session.mute();
+        settle();
+        nowNanos += TimeUnit.SECONDS.toNanos(60);
+        assertTrue(isSilent(play(tone())));
+    }
+
+    @Test
+    public void closeAbandonsHeldFocus() {
+        session.onSquelch(true);
+        session.close();
+        assertEquals(1, focus.abandons);
+        assertEquals(RxAudioSession.State.IDLE, session.getState());
+    }
+
+    private void settle() {
+        for (int i = 0; i < 8; i++) {
+            play(tone());
+        }
+    }
+
+    private short[] play(short[] pcm) {
+        session.applyVolume(pcm, 0, pcm.length);
+        return pcm;
+    }
+
+    private static short[] tone() {
+        return TxAudioProcessorTest.tone(1000, 12000, N);
+    }
+
+    private static boolean isSilent(short[] pcm) {
+        return peak(pcm) == 0;
+    }
+
+    private static int peak(short[] pcm) {
+        int max = 0;
+        for (short sample : pcm) {
+            max = Math.max(max, Math.abs(sample));
+        }
+        return max;
+    }
+}
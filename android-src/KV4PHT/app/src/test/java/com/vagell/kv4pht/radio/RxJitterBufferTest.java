@@ -0,0 +1,172 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RxJitterBufferTest {
+    private static final long F = RxJitterBuffer.FRAME_NANOS;
+    private static final int N = RxJitterBuffer.FRAME_SAMPLES;
+
+    @Test
+    public void steadyArrivalsPlayAtMinimumDelayWithoutConcealment() {
+        RxJitterBuffer buffer = new RxJitterBuffer();
+        short[] out = new short[N];
+        buffer.push(tone(0), 0, N, 0);
+        buffer.push(tone(1), 0, N, F);
+        assertTrue(buffer.isReadyToPlay(F));
+        for (int i = 2; i < 200; i++) {
+            assertTrue(buffer.pull(out, 0));
+            buffer.push(tone(i), 0, N, i * F);
+        }
+
+        assertEquals(RxJitterBuffer.DEFAULT_MIN_DELAY_FRAMES, buffer.getTargetDelayFrames());
+        assertEquals(0, buffer.getConcealedFrames());
+        assertEquals(0, buffer.getLateFrames());
+        assertEquals(0, buffer.getDroppedFrames());
+        assertEquals(2 * F, buffer.getCurrentDelayNanos());
+    }
+
+    @Test
+    public void burstyArrivalsRaiseDelayUntilConcealmentStops() {
+        RxJitterBuffer buffer = new RxJitterBuffer();
+        // USB-style batching: four frames at once every four frame periods, arriving up to half a frame late.
+        long[] arrivals = new long[2000];
+        for (int i = 0; i < arrivals.length; i++) {
+            int burst = i / 4;
+            arrivals[i] = burst * 4 * F + (burst * 7919L % 8) * F / 16;
+        }
+        long concealedAfterWarmup = simulatePlayout(buffer, arrivals, 64);
+
+        assertTrue("target " + buffer.getTargetDelayFrames(), buffer.getTargetDelayFrames() >= 4);
+        assertEquals(0, concealedAfterWarmup);
+    }
+
+    @Test
+    public void missingFramesAreConcealedByFadingRepeatWithoutClicks() {
+        RxJitterBuffer buffer = new RxJitterBuffer();
+        short[] out = new short[N];
+        short[] previousOut = new short[N];
+        int maxStep = 0;
+        int pushed = 0;
+        long[] concealedEnergy = new long[3];
+        buffer.push(tone(pushed++), 0, N, 0);
+        buffer.push(tone(pushed++), 0, N, F);
+        for (int pull = 0; pull < 40; pull++) {
+            boolean gap = pull >= 10 && pull < 13;
+            long concealedBefore = buffer.getConcealedFrames();
+            assertTrue(buffer.pull(out, 0));
+            if (buffer.getConcealedFrames() > concealedBefore) {
+                concealedEnergy[(int) concealedBefore] = energy(out);
+            }
+            if (pull > 0) {
+                maxStep = Math.max(maxStep, Math.abs(out[0] - previousOut[N - 1]));
+            }
+            for (int i = 1; i < N; i++) {
+                maxStep = Math.max(maxStep, Math.abs(out[i] - out[i - 1]));
+            }
+            System.arraycopy(out, 0, previousOut, 0, N);
+            if (pull == 13) {
+                // The three frames held back by the gap show up together, too late.
+                for (int i = 0; i < 3; i++) {
+                    buffer.push(tone(pushed++), 0, N, (pull + 1) * F);
+                }
+            }
+            if (!gap) {
+                buffer.push(tone(pushed++), 0, N, (pull + 2) * F);
+            }
+        }
+
+        assertTrue(buffer.getConcealedFrames() >= 2);
+        assertTrue(buffer.getLateFrames() >= 2);
+        assertEquals(1, buffer.getUnderruns());
+        assertTrue(concealedEnergy[0] > concealedEnergy[1]);
+        // The tone itself changes by at most ~1400 per sample; an unsmoothed splice can jump 16000.
+        assertTrue("max step " + maxStep, maxStep < 2500);
+    }
+
+    @Test
+    public void delayShrinksBackToTargetBySkippingFrames() {
+        RxJitterBuffer buffer = new RxJitterBuffer();
+        short[] out = new short[N];
+        for (int i = 0; i < 10; i++) {
+            buffer.push(tone(i), 0, N, 0);
+        }
+        for (int i = 10; i < 1000; i++) {
+            buffer.pull(out, 0);
+            buffer.push(tone(i), 0, N, i * F);
+        }
+
+        assertTrue(buffer.getDroppedFrames() >= 6);
+        assertTrue(buffer.getBufferedFrames() <= buffer.getTargetDelayFrames() + 1);
+        assertEquals(0, buffer.getConcealedFrames());
+    }
+
+    @Test
+    public void streamEndsAfterConcealmentLimitWithoutCountingUnderrun() {
+        RxJitterBuffer buffer = new RxJitterBuffer();
+        short[] out = new short[N];
+        buffer.push(tone(0), 0, N, 0);
+        assertFalse(buffer.isReadyToPlay(0));
+        assertTrue(buffer.isReadyToPlay(2 * F));
+
+        assertTrue(buffer.pull(out, 0));
+        for (int i = 0; i < RxJitterBuffer.MAX_CONCEAL_FRAMES; i++) {
+            assertTrue(buffer.pull(out, 0));
+        }
+        assertFalse(buffer.pull(out, 0));
+        assertFalse(buffer.isPlaying());
+        assertEquals(0, energy(out));
+        assertEquals(0, buffer.getUnderruns());
+        assertEquals(RxJitterBuffer.MAX_CONCEAL_FRAMES, buffer.getConcealedFrames());
+    }
+
+    /** Plays out at one frame per period from when the buffer is ready; returns frames concealed after warm-up. */
+    private static long simulatePlayout(RxJitterBuffer buffer, long[] arrivals, int warmupPulls) {
+        short[] out = new short[N];
+        int next = 0;
+        long nextPull = Long.MAX_VALUE;
+        int pulls = 0;
+        long concealedAtWarmup = 0;
+        for (long t = 0; next < arrivals.length; t += F / 4) {
+            while (next < arrivals.length && arrivals[next] <= t) {
+                buffer.push(tone(next), 0, N, arrivals[next]);
+                next++;
+            }
+            if (nextPull == Long.MAX_VALUE && buffer.isReadyToPlay(t)) {
+                nextPull = t;
+            }
+            if (t >= nextPull) {
+                if (!buffer.pull(out, 0)) {
+                    nextPull = Long.MAX_VALUE;
+                    continue;
+                }
+                nextPull += F;
+                if (++pulls == warmupPulls) {
+                    concealedAtWarmup = buffer.getConcealedFrames();
+                }
+            }
+        }
+        return buffer.getConcealedFrames() - concealedAtWarmup;
+    }
+
+    /** Frame {@code index} of a continuous 440 Hz tone. */
+    private static short[] tone(int index) {
+        short[] pcm = new short[N];
+        for (int i = 0; i < N; i++) {
+            long n = (long) index * N + i;
+            pcm[i] = (short) (Math.sin(2 * Math.PI * 440 * n / RxJitterBuffer.SAMPLE_RATE) * 8000);
+        }
+        return pcm;
+    }
+
+    private static long energy(short[] pcm) {
+        long sum = 0;
+        for (short s : pcm) {
+            sum += (long) s * s;
+        }
+        return sum;
+    }
+}
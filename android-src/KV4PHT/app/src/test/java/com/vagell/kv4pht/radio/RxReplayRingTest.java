@@ -0,0 +1,141 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+public class RxReplayRingTest {
+    private static final int BLOCK = RxReplayRing.BLOCK_BYTES;
+    private static final long FRAME = RxJitterBuffer.FRAME_NANOS;
+    private static final float FREQ = 146.52f;
+
+    private long now = 1_000_000_000L;
+
+    @Test
+    public void holdsAboutHalfAMegabytePerMinute() {
+        int blocks = RxReplayRing.blocksForMinutes(1);
+        assertTrue(blocks * FRAME >= 60_000_000_000L);
+        assertEquals(480 * 1024, blocks * BLOCK, 10 * 1024);
+    }
+
+    @Test
+    public void oldestBlocksAreOverwrittenWhenFull() {
+        RxReplayRing ring = new RxReplayRing(4);
+        byte[][] blocks = RxAudioPipelineTest.randomBlocks(6);
+        for (byte[] block : blocks) {
+            append(ring, block, true, FREQ);
+        }
+
+        assertEquals(2, ring.getOldestSeq());
+        assertEquals(6, ring.getNextSeq());
+        byte[] out = new byte[BLOCK];
+        assertEquals(-1, ring.read(1, out, 0));
+        assertEquals(-1, ring.read(6, out, 0));
+        for (int seq = 2; seq < 6; seq++) {
+            assertEquals(BLOCK, ring.read(seq, out, 0));
+            assertArrayEquals(blocks[seq], out);
+        }
+        assertEquals(FREQ, ring.getFrequency(5), 0f);
+    }
+
+    @Test
+    public void lastTransmissionIsTheLatestSquelchOpenRun() {
+        RxReplayRing ring = new RxReplayRing(64);
+        byte[] block = new byte[BLOCK];
+        appendRun(ring, block, 5, true, FREQ);
+        appendRun(ring, block, 3, false, FREQ);
+        appendRun(ring, block, 4, true, FREQ);
+        appendRun(ring, block, 2, false, FREQ);
+
+        assertEquals(Optional.of(new RxReplayRing.Range(8, 12)), ring.lastTransmission());
+    }
+
+    @Test
+    public void transmissionEndsAtAFrequencyChangeOrArrivalGap() {
+        RxReplayRing ring = new RxReplayRing(64);
+        byte[] block = new byte[BLOCK];
+        appendRun(ring, block, 5, true, FREQ);
+        appendRun(ring, block, 3, true, 446.0f);
+        assertEquals(Optional.of(new RxReplayRing.Range(5, 8)), ring.lastTransmission());
+
+        now += RxReplayRing.TRANSMISSION_GAP_NANOS * 2;
+        appendRun(ring, block, 2, true, 446.0f);
+        assertEquals(Optional.of(new RxReplayRing.Range(8, 10)), ring.lastTransmission());
+    }
+
+    @Test
+    public void noTransmissionWhenSquelchNeverOpened() {
+        RxReplayRing ring = new RxReplayRing(8);
+        appendRun(ring, new byte[BLOCK], 20, false, FREQ);
+        assertFalse(ring.lastTransmission().isPresent());
+    }
+
+    @Test
+    public void rangeSelectsBlocksByArrivalTime() {
+        RxReplayRing ring = new RxReplayRing(16);
+        long start = now;
+        appendRun(ring, new byte[BLOCK], 20, false, FREQ);
+
+        // Blocks 0..3 have been overwritten; the range is clipped to what is held.
+        assertEquals(Optional.of(new RxReplayRing.Range(4, 10)), ring.range(start, start + 10 * FRAME));
+        assertEquals(Optional.of(new RxReplayRing.Range(12, 20)), ring.range(start + 12 * FRAME, now));
+        assertFalse(ring.range(now, now + FRAME).isPresent());
+    }
+
+    @Test
+    public void replayFeedsHeldBlocksInOrder() throws Exception {
+        RxReplayRing ring = new RxReplayRing(8);
+        byte[][] blocks = RxAudioPipelineTest.randomBlocks(8);
+        for (byte[] block : blocks) {
+            append(ring, block, true, FREQ);
+        }
+
+        List<byte[]> replayed = new ArrayList<>();
+        long count = ring.replay(new RxReplayRing.Range(2, 6), (adpcm, len) -> replayed.add(Arrays.copyOf(adpcm, len)), false);
+
+        assertEquals(4, count);
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(blocks[i + 2], replayed.get(i));
+        }
+    }
+
+    @Test
+    public void appendingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        RxReplayRing ring = new RxReplayRing(256);
+        ByteBuffer direct = ByteBuffer.allocateDirect(BLOCK);
+        byte[] block = new byte[BLOCK];
+        for (int i = 0; i < 20_000; i++) {
+            ring.append(direct, 0, BLOCK, i, FREQ, true);
+            ring.append(block, 0, BLOCK, i, FREQ, false);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            ring.append(direct, 0, BLOCK, i, FREQ, true);
+            ring.append(block, 0, BLOCK, i, FREQ, false);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(threadId) - before);
+    }
+
+    private void appendRun(RxReplayRing ring, byte[] block, int count, boolean open, float frequency) {
+        for (int i = 0; i < count; i++) {
+            append(ring, block, open, frequency);
+        }
+    }
+
+    private void append(RxReplayRing ring, byte[] block, boolean open, float frequency) {
+        ring.append(block, 0, block.length, now, frequency, open);
+        now += FRAME;
+    }
+}
@@ -0,0 +1,169 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+public class SimulatedEsp32TransportTest {
+    private final SimulatedEsp32Transport radio = new SimulatedEsp32Transport();
+
+    @After
+    public void tearDown() {
+        radio.close();
+    }
+
+    @Test
+    public void handshakeEchoesDesiredStateAndStreamsRxAudio() throws InterruptedException {
+        radio.setSpeedup(10);
+        radio.setMaxReadSize(64);
+        SimulatedHost host = SimulatedHost.connect(radio);
+
+        host.sendDesiredState(1, Protocol.HOST_STATE_RADIO_CONFIG_VALID | Protocol.HOST_STATE_RX_AUDIO_OPEN
+            | Protocol.HOST_STATE_ENABLE_STATUS_REPORTS);
+
+        awaitTrue(() -> host.lastDeviceState.get() != null);
+        Protocol.DeviceState state = host.lastDeviceState.get();
+        assertEquals(1, state.getAppliedSequence());
+        assertEquals(Protocol.DeviceMode.DEVICE_MODE_RX, state.getMode());
+        assertTrue(state.hasRadioConfig());
+        awaitTrue(() -> host.rxAudioFrames.get() >= 20);
+        assertEquals(ImaAdpcm.encodedSize(SimulatedEsp32Transport.FRAME_SAMPLES), host.lastRxAudioLen);
+    }
+
+    @Test
+    public void flowControlledTxAudioNeverOverrunsTheWindow() throws InterruptedException {
+        radio.setWindowSize(1024);
+        radio.setAckDelayNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        SimulatedHost host = SimulatedHost.connect(radio);
+        host.sendDesiredState(1, Protocol.HOST_STATE_PTT_REQUESTED | Protocol.HOST_STATE_TX_ALLOWED
+            | Protocol.HOST_STATE_ENABLE_STATUS_REPORTS);
+        awaitTrue(() -> host.lastDeviceState.get() != null);
+        assertEquals(Protocol.DeviceMode.DEVICE_MODE_TX, host.lastDeviceState.get().getMode());
+
+        byte[] audio = new byte[ImaAdpcm.encodedSize(SimulatedEsp32Transport.FRAME_SAMPLES)];
+        for (int i = 0; i < 200; i++) {
+            host.sender.txAudio(audio, audio.length);
+        }
+
+        awaitTrue(() -> host.sender.getFlowControlCredits().getAvailable() == 1024);
+        assertEquals(0, radio.getWindowOverruns());
+        assertEquals(200L * audio.length, radio.getTxAudioBytesReceived());
+        assertTrue(host.sender.getFlowControlCredits().getStalledFrames() > 0);
+    }
+
+    @Test
+    public void lossyAx25StreamDeliversIntactPackets() throws InterruptedException {
+        radio.setSpeedup(10);
+        radio.setAx25IntervalNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        radio.setFrameLossRate(0.5);
+        SimulatedHost host = SimulatedHost.connect(radio);
+
+        awaitTrue(() -> host.ax25Packets.size() >= 10);
+
+        assertTrue(radio.getFramesLost() > 0);
+        for (byte[] packet : host.ax25Packets) {
+            assertEquals('>', packet[16]);
+        }
+        assertArrayEquals(SimulatedEsp32Transport.testAx25Packet(0), host.ax25Packets.get(0));
+    }
+
+    static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /** The host side of the link: a Sender and KissParser wired the way RadioAudioService wires them. */
+    static final class SimulatedHost implements RadioTransport.Listener {
+        final Protocol.Sender sender;
+        final AtomicReference<Protocol.Hello> hello = new AtomicReference<>();
+        final AtomicReference<Protocol.DeviceState> lastDeviceState = new AtomicReference<>();
+        final AtomicInteger rxAudioFrames = new AtomicInteger();
+        final List<byte[]> ax25Packets = new CopyOnWriteArrayList<>();
+        volatile int lastRxAudioLen;
+        private final Protocol.KissParser parser = new Protocol.KissParser(this::onCommand, this::onAx25);
+
+        private SimulatedHost(RadioTransport transport) {
+            sender = new Protocol.Sender(transport::writeAsync);
+        }
+
+        static SimulatedHost connect(SimulatedEsp32Transport radio) throws InterruptedException {
+            SimulatedHost host = new SimulatedHost(radio);
+            radio.start(host);
+            awaitTrue(() -> host.hello.get() != null);
+            return host;
+        }
+
+        void sendDesiredState(int sequence, int flags) {
+            sender.sendDesiredState(Protocol.HostDesiredState.builder()
+                .sequence(sequence)
+                .flags(flags)
+                .bw(Protocol.DRA818_25K)
+                .freqTx(146.52f)
+                .freqRx(146.52f)
+                .build());
+        }
+
+        @Override
+        public void onBytes(byte[] bytes) {
+            parser.processBytes(bytes);
+        }
+
+        @Override
+        public void onReady() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onError(Exception error) {
+        }
+
+        private void onCommand(Protocol.RcvCommand command, ByteBuffer buffer, int offset, int len) {
+            switch (command) {
+                case COMMAND_HELLO:
+                    Protocol.Hello.from(buffer, offset, len).ifPresent(h -> {
+                        sender.setFlowControlWindow(h.getVersion().getWindowSize());
+                        hello.set(h);
+                    });
+                    break;
+                case COMMAND_WINDOW_UPDATE:
+                    Protocol.WindowUpdate.from(buffer, offset, len)
+                        .ifPresent(update -> sender.enlargeFlowControlWindow(update.getSize()));
+                    break;
+                case COMMAND_DEVICE_STATE:
+                    Protocol.DeviceState.from(buffer, offset, len).ifPresent(lastDeviceState::set);
+                    break;
+                case COMMAND_RX_AUDIO:
+                    lastRxAudioLen = len;
+                    rxAudioFrames.incrementAndGet();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onAx25(ByteBuffer buffer, int offset, int len) {
+            byte[] packet = new byte[len];
+            for (int i = 0; i < len; i++) {
+                packet[i] = buffer.get(offset + i);
+            }
+            ax25Packets.add(packet);
+        }
+    }
+}
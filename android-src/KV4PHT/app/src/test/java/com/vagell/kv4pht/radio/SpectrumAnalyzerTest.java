@@ -0,0 +1,103 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class SpectrumAnalyzerTest {
+    private static final int SIZE = 512;
+    private static final int COLUMNS = 64;
+    // The analysis thread is replaced by one that does nothing, so tests drive analyze() directly.
+    private static final ThreadFactory NO_THREAD = runnable -> new Thread(() -> { });
+
+    @Test
+    public void fullScaleToneShowsAtZeroDbInItsColumn() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SIZE, COLUMNS, 30, columns -> { }, NO_THREAD);
+        // 1 kHz at 16 kHz sits exactly on bin 32, i.e. in column 7 of 64 (4 bins each, from bin 1).
+        analyzer.offer(TxAudioProcessorTest.tone(1000, Short.MAX_VALUE, SIZE), 0, SIZE);
+
+        assertTrue(analyzer.analyze());
+        float[] columns = analyzer.getColumnsDb();
+        assertEquals(0, columns[7], 0.1);
+        for (int c = 0; c < COLUMNS; c++) {
+            if (Math.abs(c - 7) > 1) {
+                assertTrue("column " + c + " at " + columns[c] + " dB", columns[c] < -40);
+            }
+        }
+    }
+
+    @Test
+    public void silenceSitsAtTheFloor() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SIZE, COLUMNS, 30, columns -> { }, NO_THREAD);
+        analyzer.offer(new short[SIZE], 0, SIZE);
+
+        assertTrue(analyzer.analyze());
+        for (float db : analyzer.getColumnsDb()) {
+            assertEquals(SpectrumAnalyzer.FLOOR_DB, db, 0f);
+        }
+    }
+
+    @Test
+    public void framesNeedAFullWindowOfNewAudio() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SIZE, COLUMNS, 30, columns -> { }, NO_THREAD);
+        short[] block = TxAudioProcessorTest.tone(440, 8000, RxJitterBuffer.FRAME_SAMPLES);
+        analyzer.offer(block, 0, block.length);
+        assertFalse(analyzer.analyze());
+
+        analyzer.offer(block, 0, block.length);
+        analyzer.offer(block, 0, block.length);
+        assertTrue(analyzer.analyze());
+        assertFalse(analyzer.analyze());
+
+        analyzer.offer(block, 0, 16);
+        assertTrue(analyzer.analyze());
+        assertEquals(2, analyzer.getFrames());
+    }
+
+    @Test
+    public void deliversFramesOnItsOwnThread() throws Exception {
+        CountDownLatch delivered = new CountDownLatch(3);
+        Thread[] deliveredOn = new Thread[1];
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SIZE, COLUMNS, 200, columns -> {
+            deliveredOn[0] = Thread.currentThread();
+            delivered.countDown();
+        }, Thread::new);
+        try {
+            short[] block = TxAudioProcessorTest.tone(440, 8000, SIZE);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (delivered.getCount() > 0 && System.nanoTime() < deadline) {
+                analyzer.offer(block, 0, block.length);
+                Thread.sleep(2);
+            }
+            assertEquals(0, delivered.getCount());
+            assertTrue(deliveredOn[0] != Thread.currentThread());
+        } finally {
+            analyzer.close();
+        }
+    }
+
+    @Test
+    public void offerAndAnalyzeDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SIZE, COLUMNS, 30, columns -> { }, NO_THREAD);
+        short[] block = TxAudioProcessorTest.tone(440, 8000, RxJitterBuffer.FRAME_SAMPLES);
+        for (int i = 0; i < 5_000; i++) {
+            analyzer.offer(block, 0, block.length);
+            analyzer.analyze();
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 2_000; i++) {
+            analyzer.offer(block, 0, block.length);
+            analyzer.analyze();
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(threadId) - before);
+    }
+}
@@ -0,0 +1,155 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class SubAudibleToneDetectorTest {
+    private static final int RATE = SubAudibleToneDetector.INPUT_SAMPLE_RATE;
+    private static final int BLOCK = RxJitterBuffer.FRAME_SAMPLES;
+
+    @Test
+    public void findsEachCtcssToneUnderVoiceAndNoiseWithinASecond() {
+        for (String expected : new String[] {"67", "71.9", "74.4", "100", "151.4", "250.3"}) {
+            short[] audio = ctcssWithVoice(Double.parseDouble(expected), 2 * RATE, new Random(expected.hashCode()));
+            List<String> changes = new ArrayList<>();
+            SubAudibleToneDetector detector = new SubAudibleToneDetector((tone, confidence) -> changes.add(tone));
+
+            int detectedAt = feedUntil(detector, audio, expected);
+            assertTrue(expected + " took " + detectedAt + " samples", detectedAt >= 0 && detectedAt <= RATE);
+            feed(detector, audio, detectedAt, audio.length);
+            assertEquals(expected, detector.getTone());
+            assertTrue(detector.getConfidence() > SubAudibleToneDetector.DETECT_CONFIDENCE);
+            assertEquals("only reported once", 1, changes.size());
+        }
+    }
+
+    @Test
+    public void voiceAndNoiseAloneDetectNothing() {
+        short[] audio = ctcssWithVoice(0, 3 * RATE, new Random(7));
+        List<String> changes = new ArrayList<>();
+        SubAudibleToneDetector detector = new SubAudibleToneDetector((tone, confidence) -> changes.add(tone));
+
+        feed(detector, audio, 0, audio.length);
+        assertEquals(SubAudibleToneDetector.NONE, detector.getTone());
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void toneEndingIsReportedAsNone() {
+        short[] audio = ctcssWithVoice(88.5, 2 * RATE, new Random(3));
+        List<String> changes = new ArrayList<>();
+        SubAudibleToneDetector detector = new SubAudibleToneDetector((tone, confidence) -> changes.add(tone));
+
+        feed(detector, audio, 0, audio.length);
+        short[] silence = new short[RATE];
+        feed(detector, silence, 0, silence.length);
+        assertEquals(SubAudibleToneDetector.NONE, detector.getTone());
+        assertEquals(2, changes.size());
+        assertEquals("88.5", changes.get(0));
+    }
+
+    @Test
+    public void codewordsMatchKnownValues() {
+        // D023N on air, first bit in bit 0.
+        assertEquals(0x763813, SubAudibleToneDetector.dcsCodeword(023));
+    }
+
+    @Test
+    public void findsDcsCodesUnderNoiseWithinASecond() {
+        for (int code : new int[] {023, 0155, 0411, 0754}) {
+            String expected = String.format("D%03oN", code);
+            short[] audio = dcs(SubAudibleToneDetector.dcsCodeword(code), 2 * RATE, false, new Random(code));
+            SubAudibleToneDetector detector = new SubAudibleToneDetector((tone, confidence) -> { });
+
+            int detectedAt = feedUntil(detector, audio, expected);
+            assertTrue(expected + " took " + detectedAt + " samples", detectedAt >= 0 && detectedAt <= RATE);
+            feed(detector, audio, detectedAt, audio.length);
+            assertEquals(expected, detector.getTone());
+        }
+    }
+
+    @Test
+    public void invertedDcsIsReportedAsItsNormalEquivalent() {
+        short[] audio = dcs(SubAudibleToneDetector.dcsCodeword(023), 2 * RATE, true, new Random(1));
+        SubAudibleToneDetector detector = new SubAudibleToneDetector((tone, confidence) -> { });
+
+        feed(detector, audio, 0, audio.length);
+        assertEquals("D047N", detector.getTone());
+    }
+
+    @Test
+    public void processingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        short[] ctcss = ctcssWithVoice(123, 2 * RATE, new Random(5));
+        short[] dcs = dcs(SubAudibleToneDetector.dcsCodeword(0243), 2 * RATE, false, new Random(5));
+        SubAudibleToneDetector detector = new SubAudibleToneDetector((tone, confidence) -> { });
+        for (int i = 0; i < 20; i++) {
+            feed(detector, ctcss, 0, ctcss.length);
+            feed(detector, dcs, 0, dcs.length);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 5; i++) {
+            feed(detector, ctcss, 0, ctcss.length);
+            feed(detector, dcs, 0, dcs.length);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    /** A CTCSS tone (none if {@code toneHz} is 0) under louder speech-band tones and white noise. */
+    static short[] ctcssWithVoice(double toneHz, int samples, Random random) {
+        short[] out = new short[samples];
+        double[] voice = {520, 870, 1330, 2210};
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / RATE;
+            // Syllable-rate envelope so the voice comes and goes like speech.
+            double v = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+            double sample = 1500 * Math.sin(2 * Math.PI * toneHz * t) + random.nextGaussian() * 1000;
+            for (double f : voice) {
+                sample += v * 2500 * Math.sin(2 * Math.PI * f * t);
+            }
+            out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+        return out;
+    }
+
+    /** NRZ at 134.4 bit/s repeating {@code word} first bit first, softened as an FM receiver would. */
+    static short[] dcs(int word, int samples, boolean inverted, Random random) {
+        short[] out = new short[samples];
+        double smoothed = 0;
+        for (int i = 0; i < samples; i++) {
+            long bitIndex = (long) (i * SubAudibleToneDetector.DCS_BIT_RATE / RATE);
+            boolean bit = ((word >>> (bitIndex % SubAudibleToneDetector.DCS_WORD_BITS)) & 1) != 0;
+            double level = (bit != inverted) ? 1500 : -1500;
+            smoothed += (level - smoothed) * 0.05;
+            double sample = smoothed + random.nextGaussian() * 1000;
+            out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+        return out;
+    }
+
+    /** Feeds {@code audio} a block at a time; returns the sample count when {@code tone} was reported, or -1. */
+    private static int feedUntil(SubAudibleToneDetector detector, short[] audio, String tone) {
+        for (int offset = 0; offset < audio.length; offset += BLOCK) {
+            detector.process(audio, offset, Math.min(BLOCK, audio.length - offset));
+            if (tone.equals(detector.getTone())) {
+                return Math.min(offset + BLOCK, audio.length);
+            }
+        }
+        return -1;
+    }
+
+    private static void feed(SubAudibleToneDetector detector, short[] audio, int from, int to) {
+        for (int offset = from; offset < to; offset += BLOCK) {
+            detector.process(audio, offset, Math.min(BLOCK, to - offset));
+        }
+    }
+}
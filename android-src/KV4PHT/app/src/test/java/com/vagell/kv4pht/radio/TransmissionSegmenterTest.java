@@ -0,0 +1,105 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.vagell.kv4pht.data.RxTransmission;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TransmissionSegmenterTest {
+    private static final String FREQ = "146.5200";
+    private static final String OTHER_FREQ = "446.0000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<RxTransmission> logged = new ArrayList<>();
+    private final TransmissionSegmenter segmenter = new TransmissionSegmenter(logged::add);
+
+    @Test
+    public void squelchOpenToCloseIsOneTransmission() {
+        segmenter.onSquelch(false, FREQ, 3, 10, 0, null);
+        segmenter.onSquelch(true, FREQ, 3, 80, 1_000, null);
+        segmenter.onSquelch(true, FREQ, 3, 120, 2_000, null);
+        segmenter.onSquelch(true, FREQ, 3, 90, 3_000, null);
+        segmenter.onAudio(3_500);
+        segmenter.onSquelch(false, FREQ, 3, 20, 4_000, null);
+        assertTrue(logged.isEmpty());
+
+        segmenter.onAudio(4_000 + TransmissionSegmenter.SQUELCH_TAIL_MILLIS);
+
+        assertEquals(1, logged.size());
+        RxTransmission transmission = logged.get(0);
+        assertEquals(1_000, transmission.startTime);
+        assertEquals(4_000, transmission.endTime);
+        assertEquals(FREQ, transmission.frequency);
+        assertEquals(3, transmission.memoryId);
+        assertEquals(120, transmission.peakRssi);
+        assertNull(transmission.recording);
+        assertEquals(RxTransmission.NO_AUDIO, transmission.audioOffset);
+    }
+
+    @Test
+    public void squelchFlutterWithinTheTailContinuesTheTransmission() {
+        segmenter.onSquelch(true, FREQ, 3, 50, 1_000, null);
+        segmenter.onSquelch(false, FREQ, 3, 50, 2_000, null);
+        segmenter.onAudio(2_200);
+        segmenter.onSquelch(true, FREQ, 3, 50, 2_300, null);
+        segmenter.onSquelch(false, FREQ, 3, 50, 5_000, null);
+        segmenter.flush(5_100);
+
+        assertEquals(1, logged.size());
+        assertEquals(1_000, logged.get(0).startTime);
+        assertEquals(5_000, logged.get(0).endTime);
+    }
+
+    @Test
+    public void channelChangeEndsTheTransmission() {
+        segmenter.onSquelch(true, FREQ, RxTransmission.NO_MEMORY, 50, 1_000, null);
+        segmenter.onSquelch(true, OTHER_FREQ, RxTransmission.NO_MEMORY, 60, 1_200, null);
+        segmenter.flush(2_000);
+
+        assertEquals(2, logged.size());
+        assertEquals(FREQ, logged.get(0).frequency);
+        assertEquals(1_200, logged.get(0).endTime);
+        assertEquals(OTHER_FREQ, logged.get(1).frequency);
+        assertEquals(1_200, logged.get(1).startTime);
+        assertEquals(2_000, logged.get(1).endTime);
+    }
+
+    @Test
+    public void openTransmissionFollowsTheAudioStream() {
+        segmenter.onSquelch(true, FREQ, 3, 50, 1_000, null);
+        segmenter.onAudio(1_900);
+        segmenter.flush(1_900);
+
+        assertEquals(1, logged.size());
+        assertEquals(1_900, logged.get(0).endTime);
+        segmenter.flush(3_000);
+        assertEquals(1, logged.size());
+    }
+
+    @Test
+    public void transmissionPointsIntoTheRecording() throws Exception {
+        File file = new File(folder.getRoot(), "log.wav");
+        try (RxAudioRecorder recorder = new RxAudioRecorder(file)) {
+            byte[] block = new byte[RxAudioRecorder.BLOCK_BYTES];
+            for (int i = 0; i < 5; i++) {
+                recorder.append(block, 0, block.length);
+            }
+            segmenter.onSquelch(true, FREQ, 3, 50, 1_000, recorder);
+            segmenter.flush(2_000);
+        }
+
+        assertEquals(file.getPath(), logged.get(0).recording);
+        assertEquals(RxAudioRecorder.WAV_HEADER_LEN + 5 * RxAudioRecorder.BLOCK_BYTES, logged.get(0).audioOffset);
+    }
+}
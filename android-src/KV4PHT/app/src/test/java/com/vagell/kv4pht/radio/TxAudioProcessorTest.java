@@ -0,0 +1,141 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TxAudioProcessorTest {
+    private static final int RATE = TxAudioProcessor.SAMPLE_RATE;
+    // AGC that never acts, to look at the filter and limiter alone.
+    private static final TxAudioProcessor.Config TRANSPARENT_AGC =
+        TxAudioProcessor.Config.builder().agcTarget(Short.MAX_VALUE).limiterCeiling(Short.MAX_VALUE).build();
+
+    @Test
+    public void highPassRemovesDcAndHumButKeepsVoiceBand() {
+        TxAudioProcessor processor = new TxAudioProcessor(TRANSPARENT_AGC);
+        short[] dc = new short[RATE];
+        Arrays.fill(dc, (short) 8000);
+        processor.process(dc, 0, dc.length);
+        assertTrue(maxAbs(dc, RATE / 2, RATE / 2) <= 1);
+
+        assertTrue(gainAt(60) < 0.1);
+        assertEquals(1.0, gainAt(1000), 0.02);
+        assertEquals(1.0, gainAt(3000), 0.02);
+    }
+
+    @Test
+    public void limiterHoldsTheCeilingEvenOnSuddenPeaks() {
+        int ceiling = 20000;
+        TxAudioProcessor processor = new TxAudioProcessor(TxAudioProcessor.Config.builder()
+            .highPassHz(0).agcTarget(Short.MAX_VALUE).agcMaxGain(1.0f).limiterCeiling(ceiling).build());
+        short[] pcm = new short[RATE];
+        Random random = new Random(9);
+        for (int i = 0; i < pcm.length; i++) {
+            // Quiet noise with full-scale clicks that arrive without warning.
+            pcm[i] = (short) (i % 997 == 500 ? (random.nextBoolean() ? Short.MAX_VALUE : Short.MIN_VALUE)
+                : random.nextInt(2001) - 1000);
+        }
+        processor.process(pcm, 0, pcm.length);
+        assertTrue(maxAbs(pcm, 0, pcm.length) <= ceiling);
+    }
+
+    @Test
+    public void limiterLeavesQuietAudioAloneApartFromTheLookaheadDelay() {
+        TxAudioProcessor processor = new TxAudioProcessor(TxAudioProcessor.Config.builder()
+            .highPassHz(0).agcTarget(Short.MAX_VALUE).limiterCeiling(20000).build());
+        short[] in = tone(1000, 10000, RATE / 10);
+        short[] out = in.clone();
+        processor.process(out, 0, out.length);
+        for (int i = TxAudioProcessor.LOOKAHEAD_SAMPLES; i < out.length; i++) {
+            assertEquals(in[i - TxAudioProcessor.LOOKAHEAD_SAMPLES], out[i]);
+        }
+    }
+
+    @Test
+    public void agcBoostsQuietSpeechUpToTheProfileMaximum() {
+        TxAudioProcessor processor = new TxAudioProcessor(MicGainBoost.MED.getTxProcessing());
+        short[] quiet = tone(1000, 2000, RATE);
+        processor.process(quiet, 0, quiet.length);
+        assertEquals(2 * 4096, processor.getAgcGain());
+        assertEquals(4000, maxAbs(quiet, RATE / 2, RATE / 2), 120);
+
+        TxAudioProcessor none = new TxAudioProcessor(MicGainBoost.NONE.getTxProcessing());
+        quiet = tone(1000, 2000, RATE);
+        none.process(quiet, 0, quiet.length);
+        assertEquals(4096, none.getAgcGain());
+    }
+
+    @Test
+    public void agcBringsLoudSpeechDownToTheTargetInsteadOfClipping() {
+        for (MicGainBoost boost : MicGainBoost.values()) {
+            TxAudioProcessor processor = new TxAudioProcessor(boost.getTxProcessing());
+            short[] loud = tone(1000, 30000, RATE);
+            processor.process(loud, 0, loud.length);
+            int target = boost.getTxProcessing().getAgcTarget();
+            assertEquals(boost.name(), target, maxAbs(loud, RATE / 2, RATE / 2), target * 0.05);
+        }
+    }
+
+    @Test
+    public void chunkedProcessingMatchesOneShot() {
+        short[] oneShot = new short[RATE];
+        ImaAdpcmTest.fillTestSignal(oneShot, new Random(10), 3);
+        short[] chunked = oneShot.clone();
+        new TxAudioProcessor(MicGainBoost.HIGH.getTxProcessing()).process(oneShot, 0, oneShot.length);
+
+        TxAudioProcessor processor = new TxAudioProcessor(MicGainBoost.HIGH.getTxProcessing());
+        Random random = new Random(11);
+        for (int offset = 0; offset < chunked.length; ) {
+            int len = Math.min(chunked.length - offset, random.nextInt(400));
+            processor.process(chunked, offset, len);
+            offset += len;
+        }
+        assertArrayEquals(oneShot, chunked);
+    }
+
+    @Test
+    public void processAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = ProtocolSenderTest.allocationCountingThreadBean();
+        long threadId = Thread.currentThread().getId();
+        TxAudioProcessor processor = new TxAudioProcessor(MicGainBoost.HIGH.getTxProcessing());
+        short[] pcm = new short[249];
+        ImaAdpcmTest.fillTestSignal(pcm, new Random(12), 3);
+        for (int i = 0; i < 5_000; i++) {
+            processor.process(pcm, 0, pcm.length);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 5_000; i++) {
+            processor.process(pcm, 0, pcm.length);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(threadId) - before);
+    }
+
+    private static double gainAt(double frequency) {
+        TxAudioProcessor processor = new TxAudioProcessor(TRANSPARENT_AGC);
+        short[] pcm = tone(frequency, 10000, RATE);
+        processor.process(pcm, 0, pcm.length);
+        return maxAbs(pcm, RATE / 2, RATE / 2) / 10000.0;
+    }
+
+    static short[] tone(double frequency, int amplitude, int samples) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / RATE));
+        }
+        return pcm;
+    }
+
+    private static int maxAbs(short[] pcm, int offset, int len) {
+        int max = 0;
+        for (int i = offset; i < offset + len; i++) {
+            max = Math.max(max, Math.abs(pcm[i]));
+        }
+        return max;
+    }
+}
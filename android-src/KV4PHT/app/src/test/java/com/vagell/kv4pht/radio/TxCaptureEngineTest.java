@@ -0,0 +1,198 @@
+package com.vagell.kv4pht.radio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class TxCaptureEngineTest {
+    private static final long TIMEOUT_MS = 2000;
+    private static final int N = TxCaptureEngine.FRAME_SAMPLES;
+
+    /** Serves {@code pcm} one block per read, then behaves like an idle mic. */
+    private static final class BlockSource implements TxCaptureEngine.Source {
+        private final short[] pcm;
+        private int next;
+
+        BlockSource(short[] pcm) {
+            this.pcm = pcm;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int sizeInBytes) {
+            if (next + N > pcm.length) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                return 0;
+            }
+            for (int i = 0; i < sizeInBytes / 2; i++) {
+                buffer.putShort(i * 2, pcm[next + i]);
+            }
+            next += N;
+            return sizeInBytes;
+        }
+    }
+
+    @Test
+    public void capturedBlocksAreProcessedAndEncodedInOrder() throws Exception {
+        short[] pcm = new short[N * 10];
+        ImaAdpcmTest.fillTestSignal(pcm, new Random(8), 3);
+        List<byte[]> sent = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(10);
+        TxCaptureEngine engine = new TxCaptureEngine(new BlockSource(pcm), (adpcm, len) -> {
+            sent.add(Arrays.copyOf(adpcm, len));
+            done.countDown();
+        }, level -> { }, Thread::new);
+        engine.setProcessing(MicGainBoost.HIGH.getTxProcessing());
+        engine.start();
+        try {
+            assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            engine.close();
+        }
+
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        TxAudioProcessor processor = new TxAudioProcessor(MicGainBoost.HIGH.getTxProcessing());
+        byte[] expected = new byte[ImaAdpcm.encodedSize(N)];
+        short[] block = new short[N];
+        for (int i = 0; i < 10; i++) {
+            System.arraycopy(pcm, i * N, block, 0, N);
+            processor.process(block, 0, N);
+            encoder.encodeBlock(block, 0, N, expected, 0);
+            assertArrayEquals("block " + i, expected, sent.get(i));
+        }
+        assertEquals(10, engine.getBlocksCaptured());
+        assertEquals(10, engine.getBlocksSent());
+        assertEquals(0, engine.getOverruns());
+    }
+
+    @Test
+    public void dtmfTonesReplaceMicAudioUntilTheDigitsEnd() throws Exception {
+        short[] pcm = new short[N * 12];
+        ImaAdpcmTest.fillTestSignal(pcm, new Random(9), 3);
+        Dtmf.Generator generator = new Dtmf.Generator(40, 20, () -> { });
+        generator.queue("9");
+        short[] tones = new short[N * 4];
+        Dtmf.Generator reference = new Dtmf.Generator(40, 20, () -> { });
+        reference.queue("9");
+        reference.generate(tones, 0, tones.length);
+        List<byte[]> sent = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(12);
+        TxCaptureEngine engine = new TxCaptureEngine(new BlockSource(pcm), (adpcm, len) -> {
+            sent.add(Arrays.copyOf(adpcm, len));
+            done.countDown();
+        }, level -> { }, Thread::new);
+        engine.setProcessing(MicGainBoost.NONE.getTxProcessing());
+        engine.setDtmfGenerator(generator);
+        engine.start();
+        try {
+            assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            engine.close();
+        }
+
+        // 60 ms of tone and gap is just under 4 blocks; mic audio resumes with the next one.
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        TxAudioProcessor processor = new TxAudioProcessor(MicGainBoost.NONE.getTxProcessing());
+        byte[] expected = new byte[ImaAdpcm.encodedSize(N)];
+        short[] block = new short[N];
+        for (int i = 0; i < 12; i++) {
+            System.arraycopy(pcm, i * N, block, 0, N);
+            processor.process(block, 0, N);
+            if (i < 4) {
+                System.arraycopy(tones, i * N, block, 0, N);
+            }
+            encoder.encodeBlock(block, 0, N, expected, 0);
+            assertArrayEquals("block " + i, expected, sent.get(i));
+        }
+        assertFalse(generator.isActive());
+    }
+
+    @Test
+    public void closeAbortsASinkWaitingForCredits() throws Exception {
+        // No credits will ever be granted, as when window updates queue behind the closing thread.
+        FlowControlCredits credits = new FlowControlCredits(0, 0, FlowControlCredits.TimeoutPolicy.DROP);
+        CountDownLatch waiting = new CountDownLatch(1);
+        TxCaptureEngine engine = new TxCaptureEngine(new BlockSource(new short[N * 4]), (adpcm, len) -> {
+            waiting.countDown();
+            credits.acquire(len, 0, TimeUnit.SECONDS.toNanos(5), FlowControlCredits.TimeoutPolicy.DROP);
+        }, level -> { }, Thread::new);
+        engine.start();
+        assertTrue(waiting.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        engine.close();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("close took " + elapsedMs + " ms", elapsedMs < 200);
+    }
+
+    @Test
+    public void levelIsReportedOncePerMeterInterval() throws Exception {
+        short[] pcm = new short[N * 8];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (i % 2 == 0 ? 4096 : -4096);
+        }
+        List<Float> levels = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(8 / TxCaptureEngine.METER_INTERVAL_BLOCKS);
+        TxCaptureEngine engine = new TxCaptureEngine(new BlockSource(pcm), (adpcm, len) -> { }, level -> {
+            levels.add(level);
+            done.countDown();
+        }, Thread::new);
+        engine.start();
+        try {
+            assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            engine.close();
+        }
+
+        assertEquals(8 / TxCaptureEngine.METER_INTERVAL_BLOCKS, levels.size());
+        // The first interval includes the processing delay; after that the level is that of an
+        // eighth of full scale on the visualization's scale of 8.
+        for (float level : levels.subList(1, levels.size())) {
+            assertEquals(1.0f, level, 1e-3f);
+        }
+    }
+
+    @Test
+    public void blockedSinkDropsNewBlocksWithoutStallingCapture() throws Exception {
+        int blocks = TxCaptureEngine.DEFAULT_CAPACITY_BLOCKS * 3;
+        CountDownLatch sinkEntered = new CountDownLatch(1);
+        CountDownLatch releaseSink = new CountDownLatch(1);
+        TxCaptureEngine engine = new TxCaptureEngine(new BlockSource(new short[N * blocks]), (adpcm, len) -> {
+            sinkEntered.countDown();
+            try {
+                releaseSink.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, level -> { }, Thread::new);
+        engine.start();
+        try {
+            assertTrue(sinkEntered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            while (engine.getBlocksCaptured() < blocks && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            assertEquals(blocks, engine.getBlocksCaptured());
+            // Every block is either in the sink, queued or dropped. The ring may have overrun
+            // before the TX thread took its first block, so only bound the split.
+            assertEquals(0, engine.getBlocksSent());
+            assertEquals(blocks, 1 + engine.getQueuedBlocks() + engine.getOverruns());
+            assertTrue(engine.getQueuedBlocks() <= TxCaptureEngine.DEFAULT_CAPACITY_BLOCKS);
+        } finally {
+            releaseSink.countDown();
+            engine.close();
+        }
+    }
+}
@@ -48,6 +48,7 @@ public class SerialInputOutputManager {
     private int mReadBufferSize; // default size = getReadEndpoint().getMaxPacketSize()
     private int mReadBufferCount = 4;
     private ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+    private ByteBuffer mSpareWriteBuffer = ByteBuffer.allocate(BUFSIZ); // swapped with mWriteBuffer by the write thread
 
     private int mThreadPriority = Process.THREAD_PRIORITY_URGENT_AUDIO;
     private final AtomicReference<State> mState = new AtomicReference<>(State.STOPPED);
@@ -154,6 +155,7 @@ public class SerialInputOutputManager {
             if(mWriteBuffer.position() > 0)
                 newWriteBuffer.put(mWriteBuffer.array(), 0, mWriteBuffer.position());
             mWriteBuffer = newWriteBuffer;
+            mSpareWriteBuffer = ByteBuffer.allocate(bufferSize);
         }
     }
 
@@ -166,8 +168,16 @@ public class SerialInputOutputManager {
      * else the write will be delayed until read data is available
      */
     public void writeAsync(byte[] data) {
+        writeAsync(data, 0, data.length);
+    }
+
+    /**
+     * copies {@code length} bytes of {@code data} into the write buffer before returning,
+     * so the caller may reuse {@code data} immediately
+     */
+    public void writeAsync(byte[] data, int offset, int length) {
         synchronized (mWriteBufferLock) {
-            while (mWriteBuffer.remaining() < data.length) {
+            while (mWriteBuffer.remaining() < length) {
                 try {
                     mWriteBufferLock.wait(); // Block until space is available in the buffer
                 } catch (InterruptedException e) {
@@ -175,7 +185,7 @@ public class SerialInputOutputManager {
                     return; // Exit gracefully
                 }
             }
-            mWriteBuffer.put(data);
+            mWriteBuffer.put(data, offset, length);
             mWriteBufferLock.notifyAll(); // Notify waiting threads
         }
     }
@@ -357,15 +367,17 @@ public class SerialInputOutputManager {
 
         @Override
         void step() throws IOException, InterruptedException {
-            // Handle outgoing data.
-            byte[] buffer = null;
+            // Handle outgoing data. The filled buffer is swapped with the idle one, so writers can
+            // keep appending while it is written out and no per-write array is allocated.
+            ByteBuffer buffer = null;
+            int len = 0;
             synchronized (mWriteBufferLock) {
-                int len = mWriteBuffer.position();
+                len = mWriteBuffer.position();
                 if (len > 0) {
-                    buffer = new byte[len];
-                    mWriteBuffer.rewind();
-                    mWriteBuffer.get(buffer, 0, len);
+                    buffer = mWriteBuffer;
+                    mWriteBuffer = mSpareWriteBuffer;
                     mWriteBuffer.clear();
+                    mSpareWriteBuffer = buffer;
                     mWriteBufferLock.notifyAll(); // Notify writeAsync that there is space in the buffer
                 } else {
                     mWriteBufferLock.wait();
@@ -373,9 +385,9 @@ public class SerialInputOutputManager {
             }
             if (buffer != null) {
                 if (DEBUG) {
-                    Log.d(TAG, "Writing data len=" + buffer.length);
+                    Log.d(TAG, "Writing data len=" + len);
                 }
-                mSerialPort.write(buffer, mWriteTimeout);
+                mSerialPort.write(buffer.array(), len, mWriteTimeout);
             }
         }
     }